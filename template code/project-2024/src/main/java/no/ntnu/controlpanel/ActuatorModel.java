@@ -0,0 +1,45 @@
+package no.ntnu.controlpanel;
+
+import java.util.Arrays;
+
+/**
+ * The last known actuator states of one node, as seen by the control panel. Nodes repeat the
+ * states of all their actuators in every full state, so the states received are compared with
+ * the known ones and only real changes are passed on to the GUI.
+ * A node has only a handful of actuators, so they are kept in two small arrays and searched
+ * linearly.
+ */
+final class ActuatorModel {
+  private static final int INITIAL_CAPACITY = 4;
+
+  private int[] ids = new int[INITIAL_CAPACITY];
+  private boolean[] states = new boolean[INITIAL_CAPACITY];
+  private int count;
+
+  /**
+   * Store the received state of an actuator.
+   *
+   * @param actuatorId ID of the actuator
+   * @param isOn       The received state
+   * @return True if the state differs from the known one, or the actuator was not known yet
+   */
+  boolean update(int actuatorId, boolean isOn) {
+    for (int i = 0; i < count; ++i) {
+      if (ids[i] == actuatorId) {
+        if (states[i] == isOn) {
+          return false;
+        }
+        states[i] = isOn;
+        return true;
+      }
+    }
+    if (count == ids.length) {
+      ids = Arrays.copyOf(ids, count * 2);
+      states = Arrays.copyOf(states, count * 2);
+    }
+    ids[count] = actuatorId;
+    states[count] = isOn;
+    count++;
+    return true;
+  }
+}
@@ -15,6 +15,15 @@ public interface CommunicationChannel {
    */
   void sendActuatorChange(int nodeId, int actuatorId, boolean isOn);
 
+  /**
+   * Request the recorded sensor readings of a node. The readings arrive as sensor history events.
+   *
+   * @param nodeId ID of the node
+   * @param from   Start of the time range, in milliseconds since the epoch
+   * @param to     End of the time range, in milliseconds since the epoch
+   */
+  void requestSensorHistory(int nodeId, long from, long to);
+
   /**
    * Open the communication channel.
    *
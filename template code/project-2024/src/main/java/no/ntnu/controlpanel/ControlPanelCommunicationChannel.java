@@ -1,16 +1,29 @@
 package no.ntnu.controlpanel;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
 
 import no.ntnu.greenhouse.Actuator;
-import no.ntnu.greenhouse.SensorReading;
+import no.ntnu.protocol.ActuatorCommand;
+import no.ntnu.protocol.ActuatorState;
+import no.ntnu.protocol.BinaryCodec;
+import no.ntnu.protocol.HistoryRequest;
+import no.ntnu.protocol.SensorData;
+import no.ntnu.protocol.SensorDelta;
+import no.ntnu.protocol.SensorHistory;
+import no.ntnu.protocol.SensorMessageDecoder;
+import no.ntnu.protocol.SensorMessageHandler;
+import no.ntnu.protocol.WireCodec;
 import no.ntnu.tools.Logger;
-import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
 
@@ -22,12 +35,34 @@ public class ControlPanelCommunicationChannel implements CommunicationChannel {
     private Socket clientSocket;
     private PrintWriter socketWriter;
     private BufferedReader socketReader;
+    // raw streams, used by the binary codec
+    private InputStream socketInput;
+    private OutputStream socketOutput;
+    private final WireCodec codec;
     private final String serverAddress;
     private final int serverPort;
     private boolean isOpen;
     private final ControlPanelLogic logic;
-    private final Set<Integer> addedNodes;
-    private boolean isGuiReady = false;
+    // latest sensor readings of every node, rebuilt from full states and deltas. only used by the receiving thread.
+    private final Map<Integer, SensorModel> sensorModels = new HashMap<>();
+    // actuator states last passed to the logic, kept for every node seen so far. only used by the receiving thread.
+    private final Map<Integer, ActuatorModel> actuatorModels = new HashMap<>();
+    // reads json sensor data and deltas, only used by the receiving thread. the values are applied to the models
+    // straight from the decoder.
+    private final SensorMessageDecoder decoder = new SensorMessageDecoder();
+    private final SensorMessageHandler jsonHandler = new SensorMessageHandler() {
+        @Override
+        public void onSensorData(int nodeId, int sequence, SensorMessageDecoder message) {
+            handleSensorData(nodeId, message);
+        }
+
+        @Override
+        public void onSensorDelta(int nodeId, int sequence, SensorMessageDecoder message) {
+            handleSensorDelta(nodeId, message);
+        }
+    };
+    // released once the gui can show data, the received data waits in the socket until then
+    private final CountDownLatch guiReady = new CountDownLatch(1);
 
     /**
      * Constructor for the communication channel
@@ -37,11 +72,24 @@ public class ControlPanelCommunicationChannel implements CommunicationChannel {
      * @param serverPort    server's port
      */
     public ControlPanelCommunicationChannel(ControlPanelLogic logic, String serverAddress, int serverPort) {
+        this(logic, serverAddress, serverPort, WireCodec.JSON);
+    }
+
+    /**
+     * Constructor for a communication channel using the given codec
+     *
+     * @param logic         logic object which handles received data
+     * @param serverAddress server's address
+     * @param serverPort    server's port
+     * @param codec         codec used for all messages after the handshake
+     */
+    public ControlPanelCommunicationChannel(ControlPanelLogic logic, String serverAddress, int serverPort,
+                                            WireCodec codec) {
+        this.codec = codec;
         this.serverAddress = serverAddress;
         this.serverPort = serverPort;
         this.isOpen = false;
         this.logic = logic;
-        addedNodes = Collections.synchronizedSet(new HashSet<>());
     }
 
     /**
@@ -53,10 +101,12 @@ public class ControlPanelCommunicationChannel implements CommunicationChannel {
     public boolean open() {
         try {
             clientSocket = new Socket(serverAddress, serverPort);
-            socketWriter = new PrintWriter(clientSocket.getOutputStream(), true);
-            socketReader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+            socketOutput = clientSocket.getOutputStream();
+            socketInput = new BufferedInputStream(clientSocket.getInputStream());
+            socketWriter = new PrintWriter(socketOutput, true);
+            socketReader = new BufferedReader(new InputStreamReader(socketInput));
             isOpen = true;
-            socketWriter.println("CONTROL:1:2");
+            socketWriter.println("CONTROL:1:2" + codec.getHandshakeSuffix());
             Logger.info("Connected to server at " + serverAddress + ":" + serverPort);
             listenForSensorData();
             return true;
@@ -67,11 +117,12 @@ public class ControlPanelCommunicationChannel implements CommunicationChannel {
     }
 
     /**
-     * sets the isGuiReady boolean to true, indicating that the control panel can start receiving and processing data
+     * indicates that the control panel can start receiving and processing data. nothing received before, like the
+     * snapshot of the node states the server sends right after connecting, is lost.
      */
 
     public void setGuiReady() {
-        isGuiReady = true;
+        guiReady.countDown();
         Logger.info("Gui ready");
     }
 
@@ -89,131 +140,263 @@ public class ControlPanelCommunicationChannel implements CommunicationChannel {
             return;
         }
 
-        // commands are sent in json format
-        JSONObject message = new JSONObject();
-        message.put("nodeId", nodeId);
-        message.put("actuator", actuatorId);
-        message.put("status", isOn);
+        // commands are sent in the codec chosen in the handshake
+        ActuatorCommand command = new ActuatorCommand(nodeId, actuatorId, isOn);
 
         try {
-            socketWriter.println(message);
-            Logger.info("Sent actuator change command: " + message);
+            if (codec == WireCodec.BINARY) {
+                synchronized (this) {
+                    socketOutput.write(BinaryCodec.encode(command));
+                    socketOutput.flush();
+                }
+                Logger.info("Sent actuator change command: node " + nodeId + ", actuator " + actuatorId
+                        + ", status " + isOn);
+            } else {
+                JSONObject message = command.toJson();
+                socketWriter.println(message);
+                Logger.info("Sent actuator change command: " + message);
+            }
         } catch (Exception e) {
             Logger.error("Failed to send actuator change command: " + e.getMessage());
         }
     }
 
+    /**
+     * asks the server for the recorded readings of all sensors of a node
+     *
+     * @param nodeId ID of the node
+     * @param from   start of the time range, in milliseconds since the epoch
+     * @param to     end of the time range, in milliseconds since the epoch
+     */
+    @Override
+    public void requestSensorHistory(int nodeId, long from, long to) {
+        if (!isOpen) {
+            Logger.error("Connection is not open!");
+            return;
+        }
+        HistoryRequest request = new HistoryRequest(nodeId, null, from, to);
+        try {
+            if (codec == WireCodec.BINARY) {
+                synchronized (this) {
+                    socketOutput.write(BinaryCodec.encode(request));
+                    socketOutput.flush();
+                }
+            } else {
+                socketWriter.println(request.toJson());
+            }
+            Logger.info("Requested sensor history of node " + nodeId);
+        } catch (IOException e) {
+            Logger.error("Failed to request sensor history: " + e.getMessage());
+        }
+    }
+
     /**
      * start a background thread that receives sensor data and processes it
      */
     public void listenForSensorData() {
         new Thread(() -> {
-            String message;
             try {
-                while ((message = socketReader.readLine()) != null) {
-                    if (isGuiReady) {
-                        Logger.info("Received sensor data: " + message);
-
-                        // get id of node
-                        JSONObject jsonObject = new JSONObject(message);
-                        int nodeId = jsonObject.getInt("id");
-                        SensorActuatorNodeInfo info = new SensorActuatorNodeInfo(nodeId);
-
-                        // make sure that nodes are not duplicate
-                        if (!addedNodes.contains(nodeId)) {
-                            Logger.info("Adding node info to GUI:" + nodeId);
-                            logic.onNodeAdded(info);
-                            addedNodes.add(nodeId);
-                        }
-
-                        // process sensor readings and actuator updates
-                        if (message.contains("sensors")) {
-                            List<SensorReading> sensors = parseSensorReadings(message);
-                            List<Actuator> actuators = parseActuators(message, info);
-                            logic.onSensorData(nodeId, sensors);
-                            for (Actuator actuator : actuators) {
-                                Logger.info("Updating Actuator States: " + actuator.getId() + ", status: " + actuator.isOn());
-                                logic.onActuatorStateChanged(nodeId, actuator.getId(), actuator.isOn());
-                            }
-                        } else {
-                            // update actuators when the message only contains actuator data
-                            JSONObject jsonObject2 = new JSONObject(message);
-                            JSONArray actuatorsArray = jsonObject2.getJSONArray("actuators");
-
-                            for (int i = 0; i < actuatorsArray.length(); i++) {
-                                JSONObject actuatorObject = actuatorsArray.getJSONObject(i);
-                                String status = actuatorObject.getString("status");
-                                int actuatorId = actuatorObject.getInt("id");
-
-                                boolean isOn = Objects.equals(actuatorObject.getString("status"), "on");
-                                Logger.info("Changing actuator: " + actuatorId + " status:" + status);
-                                logic.onActuatorStateChanged(nodeId, actuatorId, isOn);
-                            }
-                        }
-                    } else {
-                        Logger.info("Waiting for GUI to set up.");
-                    }
-
+                Logger.info("Waiting for GUI to set up.");
+                guiReady.await();
+                if (codec == WireCodec.BINARY) {
+                    receiveSensorFrames();
+                } else {
+                    receiveSensorLines();
                 }
             } catch (IOException e) {
                 Logger.error("Error reading from server: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
         }).start();
     }
 
     /**
-     * parse sensor readings from a json string
+     * receives and processes json lines until the connection is closed. sensor data and deltas, nearly all of the
+     * traffic, are read in a single pass by the decoder, only the rare sensor history is parsed into json objects.
      *
-     * @param sensorInfo json string which contains sensor data
-     * @return list of sensor readings
+     * @throws IOException if reading fails
      */
-    private List<SensorReading> parseSensorReadings(String sensorInfo) {
-        List<SensorReading> sensorReadings = new ArrayList<>();
-
-        JSONObject jsonObject = new JSONObject(sensorInfo);
-        JSONArray sensorsArray = jsonObject.getJSONArray("sensors");
-
-        for (int i = 0; i < sensorsArray.length(); i++) {
-            JSONObject sensorObject = sensorsArray.getJSONObject(i);
+    private void receiveSensorLines() throws IOException {
+        String message;
+        while ((message = socketReader.readLine()) != null) {
+            try {
+                if (!decoder.decode(message, jsonHandler)) {
+                    if (HistoryRequest.isHistoryMessage(message)) {
+                        SensorHistory history = SensorHistory.fromJson(message);
+                        logic.onSensorHistory(history.getNodeId(), history);
+                    } else {
+                        Logger.error("Discarding unexpected message: " + message);
+                    }
+                }
+            } catch (JSONException | IllegalArgumentException e) {
+                Logger.error("Discarding malformed message: " + e.getMessage());
+            }
+        }
+    }
 
-            String type = sensorObject.getString("type");
-            double value = sensorObject.getDouble("value");
-            String unit = sensorObject.getString("unit");
+    /**
+     * receives and processes binary frames until the connection is closed
+     *
+     * @throws IOException if reading fails or a frame is malformed
+     */
+    private void receiveSensorFrames() throws IOException {
+        byte[] frame;
+        while ((frame = BinaryCodec.readFrame(socketInput)) != null) {
+            try {
+                switch (BinaryCodec.getType(frame)) {
+                    case SENSOR_HISTORY -> {
+                        SensorHistory history = BinaryCodec.decodeSensorHistory(frame);
+                        logic.onSensorHistory(history.getNodeId(), history);
+                    }
+                    case SENSOR_DELTA -> handleSensorDelta(BinaryCodec.decodeSensorDelta(frame));
+                    case SENSOR_DATA -> handleSensorData(BinaryCodec.decodeSensorData(frame));
+                    default -> Logger.error("Discarding unexpected frame: " + BinaryCodec.getType(frame));
+                }
+            } catch (IllegalArgumentException e) {
+                Logger.error("Discarding malformed frame: " + e.getMessage());
+            }
+        }
+    }
 
-            Logger.info("Received Sensor Reading: " + type + " " + value + " " + unit);
-            sensorReadings.add(new SensorReading(type, value, unit));
+    /**
+     * shows the full state of a node and keeps it, so the following deltas can be applied to it. the actuators are
+     * compared with the known states, only the ones that changed are reported.
+     *
+     * @param nodeId  id of the node
+     * @param message the decoder, holding the full state
+     */
+    private void handleSensorData(int nodeId, SensorMessageDecoder message) {
+        SensorModel sensors = sensorModels.computeIfAbsent(nodeId, id -> new SensorModel());
+        sensors.set(message);
+        ActuatorModel actuators = actuatorModels.get(nodeId);
+        if (actuators == null) {
+            actuators = new ActuatorModel();
+            actuatorModels.put(nodeId, actuators);
+            // once per node, so the copy does not matter
+            addNode(message.toSensorData(), actuators);
+        }
+        // a message without sensors only updates the actuators
+        if (message.getSensorCount() > 0) {
+            logic.onSensorData(nodeId, sensors.getReadings());
+        }
+        for (int i = 0; i < message.getActuatorCount(); ++i) {
+            updateActuator(nodeId, actuators, message.getActuatorId(i), message.isActuatorOn(i));
         }
+    }
 
-        return sensorReadings;
+    /**
+     * same as {@link #handleSensorData(int, SensorMessageDecoder)}, for a binary frame
+     *
+     * @param data the full state
+     */
+    private void handleSensorData(SensorData data) {
+        int nodeId = data.getNodeId();
+        SensorModel sensors = sensorModels.computeIfAbsent(nodeId, id -> new SensorModel());
+        sensors.set(data);
+        ActuatorModel actuators = actuatorModels.get(nodeId);
+        if (actuators == null) {
+            actuators = new ActuatorModel();
+            actuatorModels.put(nodeId, actuators);
+            addNode(data, actuators);
+        }
+        if (!data.getSensors().isEmpty()) {
+            logic.onSensorData(nodeId, sensors.getReadings());
+        }
+        for (ActuatorState state : data.getActuators()) {
+            updateActuator(nodeId, actuators, state.getId(), state.isOn());
+        }
     }
 
     /**
-     * parses actuator data from json string and updates them on the ui
+     * applies the changes of a node to its known state and shows the result. deltas overtaken by a newer full state
+     * are ignored. after a missed delta, the node is not updated until its next full state arrives.
      *
-     * @param jsonMessage json string with the actuator data
-     * @param info        SensorActuatorNodeInfo object that has to be updated
-     * @return list of actuator objects that are parsed
+     * @param nodeId  id of the node
+     * @param message the decoder, holding the changes
      */
-    private List<Actuator> parseActuators(String jsonMessage, SensorActuatorNodeInfo info) {
-        List<Actuator> actuators = new ArrayList<>();
+    private void handleSensorDelta(int nodeId, SensorMessageDecoder message) {
+        SensorModel sensors = sensorModels.get(nodeId);
+        if (!follows(nodeId, sensors, message.getSequence())) {
+            return;
+        }
+        sensors.apply(message);
+        if (message.getSensorCount() > 0) {
+            logic.onSensorData(nodeId, sensors.getReadings());
+        }
+        ActuatorModel actuators = actuatorModels.get(nodeId);
+        for (int i = 0; i < message.getActuatorCount(); ++i) {
+            updateActuator(nodeId, actuators, message.getActuatorId(i), message.isActuatorOn(i));
+        }
+    }
 
-        JSONObject jsonObject = new JSONObject(jsonMessage);
-        JSONArray actuatorsArray = jsonObject.getJSONArray("actuators");
+    /**
+     * same as {@link #handleSensorDelta(int, SensorMessageDecoder)}, for a binary frame
+     *
+     * @param delta the changes
+     */
+    private void handleSensorDelta(SensorDelta delta) {
+        int nodeId = delta.getNodeId();
+        SensorModel sensors = sensorModels.get(nodeId);
+        if (!follows(nodeId, sensors, delta.getSequence())) {
+            return;
+        }
+        sensors.apply(delta);
+        if (delta.getSensorIndexes().length > 0) {
+            logic.onSensorData(nodeId, sensors.getReadings());
+        }
+        ActuatorModel actuators = actuatorModels.get(nodeId);
+        int[] actuatorIds = delta.getActuatorIds();
+        for (int i = 0; i < actuatorIds.length; ++i) {
+            updateActuator(nodeId, actuators, actuatorIds[i], delta.getActuatorStates()[i]);
+        }
+    }
 
-        for (int i = 0; i < actuatorsArray.length(); i++) {
-            JSONObject actuatorObject = actuatorsArray.getJSONObject(i);
-            String type = actuatorObject.getString("type");
-            int actuatorId = actuatorObject.getInt("id");
-            String status = actuatorObject.getString("status");
+    /**
+     * checks whether a delta can be applied to the known state of a node. a gap in the sequence numbers means
+     * changes were missed, the state is forgotten until the next full state.
+     *
+     * @return true if the delta directly follows the known state
+     */
+    private boolean follows(int nodeId, SensorModel sensors, int sequence) {
+        if (sensors == null || !sensors.isKnown() || sequence <= sensors.getSequence()) {
+            return false;
+        }
+        if (sequence != sensors.getSequence() + 1) {
+            Logger.info("Missed changes of node " + nodeId + ", waiting for its full state.");
+            sensors.forget();
+            return false;
+        }
+        return true;
+    }
 
-            Actuator actuator = new Actuator(type, info.getId(), actuatorId, status);
+    /**
+     * tells the logic about a node the first time data of it arrives. the node info carries the initial actuator
+     * states, they are stored in the model without being reported as changes.
+     *
+     * @param data      the first full state of the node
+     * @param actuators the empty actuator model of the node
+     */
+    private void addNode(SensorData data, ActuatorModel actuators) {
+        SensorActuatorNodeInfo info = new SensorActuatorNodeInfo(data.getNodeId());
+        for (ActuatorState state : data.getActuators()) {
+            Actuator actuator = new Actuator(state.getType(), data.getNodeId(), state.getId(),
+                    state.isOn() ? "on" : "off");
             actuator.setListener(logic);
             info.addActuator(actuator);
-            Logger.info("Adding actuator: " + actuator.getId() + " status:" + actuator.isOn());
-            actuators.add(actuator);
+            actuators.update(state.getId(), state.isOn());
         }
+        Logger.info("Adding node info to GUI:" + info.getId());
+        logic.onNodeAdded(info);
+    }
 
-        return actuators;
+    /**
+     * passes the received state of an actuator on to the logic, if it changed
+     */
+    private void updateActuator(int nodeId, ActuatorModel actuators, int actuatorId, boolean isOn) {
+        if (actuators.update(actuatorId, isOn)) {
+            logic.onActuatorStateChanged(nodeId, actuatorId, isOn);
+        }
     }
 
     /**
@@ -7,6 +7,7 @@ import no.ntnu.greenhouse.SensorReading;
 import no.ntnu.listeners.common.ActuatorListener;
 import no.ntnu.listeners.common.CommunicationChannelListener;
 import no.ntnu.listeners.controlpanel.GreenhouseEventListener;
+import no.ntnu.protocol.SensorHistory;
 import no.ntnu.tools.Logger;
 
 /**
@@ -21,6 +22,9 @@ import no.ntnu.tools.Logger;
  */
 public class ControlPanelLogic implements GreenhouseEventListener, ActuatorListener,
     CommunicationChannelListener {
+  // how much recorded data is loaded when a node is selected
+  private static final long HISTORY_WINDOW_MILLIS = 60 * 60 * 1000;
+
   private final List<GreenhouseEventListener> listeners = new LinkedList<>();
 
   private CommunicationChannel communicationChannel;
@@ -60,6 +64,20 @@ public class ControlPanelLogic implements GreenhouseEventListener, ActuatorListe
     listeners.forEach(listener -> listener.onNodeAdded(nodeInfo));
   }
 
+  /**
+   * Ask for the recorded readings of the last hour of a node. The answer arrives as
+   * onSensorHistory events. Loaded on demand, as a panel watching thousands of nodes only
+   * shows the history of the few nodes the operator looks at.
+   *
+   * @param nodeId ID of the node
+   */
+  public void requestSensorHistory(int nodeId) {
+    if (communicationChannel != null) {
+      long now = System.currentTimeMillis();
+      communicationChannel.requestSensorHistory(nodeId, now - HISTORY_WINDOW_MILLIS, now);
+    }
+  }
+
   @Override
   public void onNodeRemoved(int nodeId) {
     listeners.forEach(listener -> listener.onNodeRemoved(nodeId));
@@ -70,6 +88,12 @@ public class ControlPanelLogic implements GreenhouseEventListener, ActuatorListe
     listeners.forEach(listener -> listener.onSensorData(nodeId, sensors));
   }
 
+  @Override
+  public void onSensorHistory(int nodeId, SensorHistory history) {
+    Logger.info("Received " + history.size() + " recorded readings of node " + nodeId);
+    listeners.forEach(listener -> listener.onSensorHistory(nodeId, history));
+  }
+
   @Override
   public void onActuatorStateChanged(int nodeId, int actuatorId, boolean isOn) {
     listeners.forEach(listener -> listener.onActuatorStateChanged(nodeId, actuatorId, isOn));
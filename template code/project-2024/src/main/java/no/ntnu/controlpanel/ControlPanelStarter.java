@@ -1,6 +1,7 @@
 package no.ntnu.controlpanel;
 
 import no.ntnu.gui.controlpanel.ControlPanelApplication;
+import no.ntnu.protocol.WireCodec;
 import no.ntnu.tools.Logger;
 
 /**
@@ -11,18 +12,30 @@ import no.ntnu.tools.Logger;
 public class ControlPanelStarter {
 
     CommunicationChannel channel;
+    private final WireCodec codec;
 
     public ControlPanelStarter() {
+        this(WireCodec.JSON);
+    }
+
+    /**
+     * Create a starter for a control panel using the given codec.
+     *
+     * @param codec codec used to talk to the server
+     */
+    public ControlPanelStarter(WireCodec codec) {
+        this.codec = codec;
     }
 
     /**
      * Entrypoint for the application.
      *
-     * @param args command line arguments not used
+     * @param args optional codec used to talk to the server, "json" (default) or "bin"
      */
     public static void main(String[] args) {
 
-        ControlPanelStarter starter = new ControlPanelStarter();
+        WireCodec codec = args.length >= 1 ? WireCodec.fromArgument(args[0]) : WireCodec.JSON;
+        ControlPanelStarter starter = new ControlPanelStarter(codec);
         starter.start();
     }
 
@@ -55,7 +68,8 @@ public class ControlPanelStarter {
     private CommunicationChannel initiateSocketCommunication(ControlPanelLogic logic) {
         String serverAddress = "localhost";
         int portNumber = 1238;
-        ControlPanelCommunicationChannel communicationChannel = new ControlPanelCommunicationChannel(logic, serverAddress, portNumber);
+        ControlPanelCommunicationChannel communicationChannel = new ControlPanelCommunicationChannel(logic, serverAddress, portNumber,
+                codec);
         if (communicationChannel.open()) {
             System.out.println();
             logic.setCommunicationChannel(communicationChannel);
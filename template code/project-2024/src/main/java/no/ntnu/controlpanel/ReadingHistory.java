@@ -0,0 +1,171 @@
+package no.ntnu.controlpanel;
+
+import java.util.Arrays;
+
+/**
+ * The recent readings of one sensor, kept by the control panel to draw its trend. Readings are
+ * stored in two primitive arrays used as a ring: when it is full, the oldest reading is
+ * overwritten. Readings are kept in order of time.
+ * The ring is filled by the thread receiving data and read by the JavaFX application thread,
+ * all methods are synchronized.
+ */
+public final class ReadingHistory {
+  private final long[] timestamps;
+  private final double[] values;
+  // position of the oldest reading, and number of readings
+  private int head;
+  private int count;
+  // time of the first reading received live, older readings can only come from the server
+  private long firstLiveTimestamp = Long.MAX_VALUE;
+  // changed with every change of the readings
+  private long version;
+
+  /**
+   * Create an empty history.
+   *
+   * @param capacity Number of readings kept
+   */
+  public ReadingHistory(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity of the reading history must be positive");
+    }
+    timestamps = new long[capacity];
+    values = new double[capacity];
+  }
+
+  /**
+   * Add a reading that was just received. Readings older than the newest one are ignored.
+   *
+   * @param timestamp Time of the reading, in milliseconds since the epoch
+   * @param value     Value of the reading
+   */
+  public synchronized void add(long timestamp, double value) {
+    if (count > 0 && timestamp < timestamps[index(count - 1)]) {
+      return;
+    }
+    if (firstLiveTimestamp == Long.MAX_VALUE) {
+      firstLiveTimestamp = timestamp;
+    }
+    append(timestamp, value);
+    version++;
+  }
+
+  /**
+   * Add readings recorded by the server. Only the readings older than the first live reading
+   * are used, the newer ones have been received live already. When there are more readings
+   * than fit, the oldest ones are left out.
+   *
+   * @param recordedTimestamps Times of the readings, in increasing order
+   * @param recordedValues     Values of the readings
+   */
+  public synchronized void addRecorded(long[] recordedTimestamps, double[] recordedValues) {
+    int recorded = 0;
+    while (recorded < recordedTimestamps.length
+        && recordedTimestamps[recorded] < firstLiveTimestamp) {
+      recorded++;
+    }
+    if (recorded == 0) {
+      return;
+    }
+    long[] oldTimestamps = new long[count];
+    double[] oldValues = new double[count];
+    for (int i = 0; i < count; ++i) {
+      oldTimestamps[i] = timestamps[index(i)];
+      oldValues[i] = values[index(i)];
+    }
+    head = 0;
+    count = 0;
+    // merge both, in order of time. the ring drops the oldest when it is full.
+    int i = 0;
+    int j = 0;
+    while (i < recorded || j < oldTimestamps.length) {
+      if (j == oldTimestamps.length
+          || (i < recorded && recordedTimestamps[i] < oldTimestamps[j])) {
+        append(recordedTimestamps[i], recordedValues[i]);
+        i++;
+      } else {
+        append(oldTimestamps[j], oldValues[j]);
+        j++;
+      }
+    }
+    version++;
+  }
+
+  public synchronized int size() {
+    return count;
+  }
+
+  /**
+   * Get a number which changes whenever the readings change, so a chart can tell whether it
+   * has to be drawn again.
+   *
+   * @return The version of the readings
+   */
+  public synchronized long getVersion() {
+    return version;
+  }
+
+  public synchronized long getOldestTimestamp() {
+    return count > 0 ? timestamps[head] : 0;
+  }
+
+  public synchronized long getNewestTimestamp() {
+    return count > 0 ? timestamps[index(count - 1)] : 0;
+  }
+
+  /**
+   * Reduce the readings in a time range to the smallest and largest value per column of a
+   * chart, so a chart needs to draw one vertical line per pixel, no matter how many readings
+   * there are. Unlike averaging, this keeps every peak visible.
+   *
+   * @param from     Start of the time range, in milliseconds since the epoch
+   * @param to       End of the time range, in milliseconds since the epoch
+   * @param minimums Receives the smallest value of every column, NaN for columns without
+   *                 readings. The length is the number of columns.
+   * @param maximums Receives the largest value of every column, NaN for columns without
+   *                 readings
+   * @return Number of columns with readings
+   */
+  public synchronized int decimate(long from, long to, double[] minimums, double[] maximums) {
+    int columns = minimums.length;
+    Arrays.fill(minimums, Double.NaN);
+    Arrays.fill(maximums, Double.NaN);
+    int filled = 0;
+    double millisPerColumn = Math.max(1, to - from) / (double) columns;
+    for (int i = 0; i < count; ++i) {
+      int position = index(i);
+      long timestamp = timestamps[position];
+      if (timestamp < from || timestamp > to) {
+        continue;
+      }
+      int column = Math.min(columns - 1, (int) ((timestamp - from) / millisPerColumn));
+      double value = values[position];
+      if (Double.isNaN(minimums[column])) {
+        minimums[column] = value;
+        maximums[column] = value;
+        filled++;
+      } else {
+        minimums[column] = Math.min(minimums[column], value);
+        maximums[column] = Math.max(maximums[column], value);
+      }
+    }
+    return filled;
+  }
+
+  private void append(long timestamp, double value) {
+    int position;
+    if (count < timestamps.length) {
+      position = index(count);
+      count++;
+    } else {
+      position = head;
+      head = index(1);
+    }
+    timestamps[position] = timestamp;
+    values[position] = value;
+  }
+
+  private int index(int i) {
+    return (head + i) % timestamps.length;
+  }
+}
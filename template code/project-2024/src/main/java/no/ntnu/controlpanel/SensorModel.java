@@ -0,0 +1,128 @@
+package no.ntnu.controlpanel;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import no.ntnu.greenhouse.SensorReading;
+import no.ntnu.protocol.SensorData;
+import no.ntnu.protocol.SensorDelta;
+import no.ntnu.protocol.SensorMessageDecoder;
+
+/**
+ * The last known sensor readings of one node, as seen by the control panel, rebuilt from the
+ * full states and deltas the node sends. Json messages are applied straight from the decoder,
+ * without copying them into sensor data or a delta first.
+ * The list of readings handed to the logic is the one copy made per message: the GUI keeps it
+ * and reads it later on the JavaFX application thread, while the next message is applied, so a
+ * list is replaced instead of changed. Readings of sensors that did not change are shared
+ * between the lists.
+ */
+final class SensorModel {
+  private boolean known;
+  private int sequence;
+  private List<SensorReading> readings = List.of();
+
+  /**
+   * Check whether the model holds a state the next delta can be applied to.
+   *
+   * @return True after a full state, false before it, or after a missed delta
+   */
+  boolean isKnown() {
+    return known;
+  }
+
+  /**
+   * Forget the state, after a missed delta. Deltas are ignored until the next full state.
+   */
+  void forget() {
+    known = false;
+  }
+
+  int getSequence() {
+    return sequence;
+  }
+
+  /**
+   * Get the current readings.
+   *
+   * @return The readings, never changed afterwards
+   */
+  List<SensorReading> getReadings() {
+    return readings;
+  }
+
+  /**
+   * Store the full state of a json message.
+   *
+   * @param message The decoder, holding a full state
+   */
+  void set(SensorMessageDecoder message) {
+    SensorReading[] sensors = new SensorReading[message.getSensorCount()];
+    for (int i = 0; i < sensors.length; ++i) {
+      sensors[i] = new SensorReading(message.getSensorType(i), message.getSensorValue(i),
+          message.getSensorUnit(i));
+    }
+    setReadings(message.getSequence(), sensors);
+  }
+
+  /**
+   * Store the full state of a binary frame.
+   *
+   * @param data The full state
+   */
+  void set(SensorData data) {
+    setReadings(data.getSequence(), data.getSensors().toArray(new SensorReading[0]));
+  }
+
+  /**
+   * Apply the delta of a json message. The sequence number is not checked.
+   *
+   * @param message The decoder, holding a delta
+   * @throws IllegalArgumentException If the delta refers to a sensor the node does not have
+   */
+  void apply(SensorMessageDecoder message) {
+    int count = message.getSensorCount();
+    if (count == 0) {
+      sequence = message.getSequence();
+      return;
+    }
+    SensorReading[] sensors = readings.toArray(new SensorReading[0]);
+    for (int i = 0; i < count; ++i) {
+      change(sensors, message.getSensorIndex(i), message.getSensorValue(i));
+    }
+    setReadings(message.getSequence(), sensors);
+  }
+
+  /**
+   * Apply the delta of a binary frame. The sequence number is not checked.
+   *
+   * @param delta The delta
+   * @throws IllegalArgumentException If the delta refers to a sensor the node does not have
+   */
+  void apply(SensorDelta delta) {
+    int[] indexes = delta.getSensorIndexes();
+    if (indexes.length == 0) {
+      sequence = delta.getSequence();
+      return;
+    }
+    SensorReading[] sensors = readings.toArray(new SensorReading[0]);
+    for (int i = 0; i < indexes.length; ++i) {
+      change(sensors, indexes[i], delta.getSensorValues()[i]);
+    }
+    setReadings(delta.getSequence(), sensors);
+  }
+
+  private static void change(SensorReading[] sensors, int index, double value) {
+    if (index < 0 || index >= sensors.length) {
+      throw new IllegalArgumentException("The node has no sensor " + index);
+    }
+    SensorReading old = sensors[index];
+    sensors[index] = new SensorReading(old.getType(), value, old.getUnit());
+  }
+
+  private void setReadings(int sequence, SensorReading[] sensors) {
+    this.sequence = sequence;
+    this.readings = Collections.unmodifiableList(Arrays.asList(sensors));
+    this.known = true;
+  }
+}
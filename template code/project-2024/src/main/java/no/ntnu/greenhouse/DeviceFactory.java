@@ -1,5 +1,7 @@
 package no.ntnu.greenhouse;
 
+import java.util.Random;
+
 /**
  * A factory for producing sensors and actuators of specific types.
  */
@@ -13,8 +15,12 @@ public class DeviceFactory {
   private static final double NORMAL_GREENHOUSE_HUMIDITY = 80;
   private static final String HUMIDITY_UNIT = "%";
   private static final String SENSOR_TYPE_TEMPERATURE = "temperature";
+  // changes smaller than these are not reported, see Sensor.setReporting()
+  private static final double TEMPERATURE_DEADBAND = 0.5;
+  private static final double HUMIDITY_DEADBAND = 2.0;
 
   private static int nextNodeId = 1;
+  private static Random random = new Random();
 
   /**
    * Constructing the factory is not allowed.
@@ -22,6 +28,17 @@ public class DeviceFactory {
   private DeviceFactory() {
   }
 
+  /**
+   * Make all devices created from now on use random numbers derived from a seed, for the starting values, the
+   * noise of the sensors and the start of the sensor readings. Together with a {@link VirtualClock}, a simulation
+   * then produces the same messages every time it runs.
+   *
+   * @param seed The seed
+   */
+  public static void setSeed(long seed) {
+    random = new Random(seed);
+  }
+
   /**
    * Create a sensor/actuator device with specific number of sensors and actuators.
    *
@@ -34,7 +51,7 @@ public class DeviceFactory {
    */
   public static SensorActuatorNode createNode(int temperatureSensorCount, int humiditySensorCount,
                                               int windowCount, int fanCount, int heaterCount) {
-    SensorActuatorNode node = new SensorActuatorNode(generateUniqueNodeId());
+    SensorActuatorNode node = new SensorActuatorNode(generateUniqueNodeId(), new Random(random.nextLong()));
     if (temperatureSensorCount > 0) {
       node.addSensors(DeviceFactory.createTemperatureSensor(), temperatureSensorCount);
     }
@@ -73,8 +90,10 @@ public class DeviceFactory {
    * @return A typical temperature sensor, which can be used as a template
    */
   public static Sensor createTemperatureSensor() {
-    return new Sensor(SENSOR_TYPE_TEMPERATURE, MIN_TEMPERATURE, MAX_TEMPERATURE,
+    Sensor sensor = new Sensor(SENSOR_TYPE_TEMPERATURE, MIN_TEMPERATURE, MAX_TEMPERATURE,
         randomize(NORMAL_GREENHOUSE_TEMPERATURE, 1.0), TEMPERATURE_UNIT);
+    sensor.setReporting(TEMPERATURE_DEADBAND, Sensor.DEFAULT_MAX_SILENCE_MILLIS);
+    return sensor;
   }
 
   /**
@@ -83,8 +102,10 @@ public class DeviceFactory {
    * @return A typical humidity sensor which can be used as a template
    */
   public static Sensor createHumiditySensor() {
-    return new Sensor("humidity", MIN_HUMIDITY, MAX_HUMIDITY,
+    Sensor sensor = new Sensor("humidity", MIN_HUMIDITY, MAX_HUMIDITY,
         randomize(NORMAL_GREENHOUSE_HUMIDITY, 5.0), HUMIDITY_UNIT);
+    sensor.setReporting(HUMIDITY_DEADBAND, Sensor.DEFAULT_MAX_SILENCE_MILLIS);
+    return sensor;
   }
 
   /**
@@ -132,7 +153,7 @@ public class DeviceFactory {
    * @return a randomized value within the desired range
    */
   private static double randomize(double x, double d) {
-    final double zeroToDoubleD = Math.random() * 2 * d;
+    final double zeroToDoubleD = random.nextDouble() * 2 * d;
     final double plusMinusD = zeroToDoubleD - d;
     return x + plusMinusD;
   }
@@ -0,0 +1,390 @@
+package no.ntnu.greenhouse;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import no.ntnu.protocol.ActuatorCommand;
+import no.ntnu.protocol.BinaryCodec;
+import no.ntnu.protocol.GatewayHandshake;
+import no.ntnu.protocol.WireCodec;
+import no.ntnu.tools.Logger;
+import org.json.JSONException;
+
+/**
+ * One connection to the server, shared by many sensor/actuator nodes, like the gateway in front of the sensor
+ * boards of a real greenhouse. The gateway announces all its nodes in a single handshake, e.g. "GATEWAY:1-500".
+ * The nodes send their messages through the gateway, and a single thread reads the actuator commands for all of
+ * them and hands each command to the node named in it.
+ * If the connection fails, the gateway connects again in the background, waiting longer after every failed attempt,
+ * like a node with its own connection. Meanwhile the nodes buffer their messages, and send them once the gateway is
+ * connected again.
+ */
+public class GatewayConnection {
+    // Delay before the first and the longest delay between two connection attempts, in milliseconds.
+    private static final long MIN_RECONNECT_DELAY = 500;
+    private static final long MAX_RECONNECT_DELAY = 30 * 1000;
+    private final Map<Integer, SensorActuatorNode> nodes = new HashMap<>();
+    private final WireCodec codec;
+
+    private Socket socket;
+    private OutputStream socketOutput;
+    private volatile boolean connected;
+    // the server the gateway should be connected to, null if it should not be connected
+    private volatile String serverAddress;
+    private int serverPort;
+    private boolean reconnecting;
+    // messages of the current tick, sent together by sendQueued(). only used by the thread running the ticks.
+    private final SensorActuatorNode[] queuedNodes;
+    private final byte[][] queuedMessages;
+    private int queuedCount;
+
+    /**
+     * Create a gateway for a set of nodes. The nodes are attached to it when it connects.
+     *
+     * @param nodes The nodes behind the gateway
+     * @param codec The codec of all messages on the connection
+     */
+    public GatewayConnection(Collection<SensorActuatorNode> nodes, WireCodec codec) {
+        for (SensorActuatorNode node : nodes) {
+            this.nodes.put(node.getId(), node);
+        }
+        this.codec = codec;
+        this.queuedNodes = new SensorActuatorNode[this.nodes.size()];
+        this.queuedMessages = new byte[this.nodes.size()][];
+    }
+
+    public WireCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Attach the nodes to the gateway, connect to the server and send the handshake listing all nodes. If the server
+     * can't be reached, the gateway keeps trying in the background, and the nodes buffer their messages meanwhile.
+     *
+     * @param serverAddress Address of the server
+     * @param portNumber    Port number of the server
+     * @return True if connected, false if still trying
+     */
+    public boolean connect(String serverAddress, int portNumber) {
+        this.serverAddress = serverAddress;
+        this.serverPort = portNumber;
+        attachNodes();
+        if (!openConnection()) {
+            reconnect();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Open the connection and send the handshake.
+     *
+     * @return True on success
+     */
+    private boolean openConnection() {
+        String address = serverAddress;
+        if (address == null) {
+            return false;
+        }
+        int[] nodeIDs = nodes.keySet().stream().mapToInt(Integer::intValue).toArray();
+        Socket newSocket = null;
+        try {
+            newSocket = new Socket(address, serverPort);
+            InputStream input = new BufferedInputStream(newSocket.getInputStream());
+            OutputStream output = new BufferedOutputStream(newSocket.getOutputStream());
+            String handshake = GatewayHandshake.create(nodeIDs) + codec.getHandshakeSuffix() + "\n";
+            output.write(handshake.getBytes(StandardCharsets.UTF_8));
+            output.flush();
+            synchronized (this) {
+                if (serverAddress == null) {
+                    // closed while connecting
+                    newSocket.close();
+                    return false;
+                }
+                socket = newSocket;
+                socketOutput = output;
+                connected = true;
+            }
+            Logger.info("Gateway with " + nodeIDs.length + " nodes connected to " + address + ", " + serverPort);
+            Socket connection = newSocket;
+            Thread.ofVirtual().name("gateway-commands").start(() -> receiveActuatorCommands(connection, input));
+            return true;
+        } catch (IOException e) {
+            Logger.error("Failed to connect gateway to server: " + e.getMessage());
+            if (newSocket != null) {
+                closeQuietly(newSocket);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Check whether the gateway can send messages. While it can't, the nodes buffer their messages.
+     *
+     * @return True when connected
+     */
+    boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * Send a message of one of the nodes. Messages of different nodes are never mixed, as only one node writes at
+     * a time.
+     *
+     * @param message The encoded message
+     * @throws IOException If writing to the server fails
+     */
+    synchronized void send(byte[] message) throws IOException {
+        checkConnected();
+        try {
+            socketOutput.write(message);
+            socketOutput.flush();
+        } catch (IOException e) {
+            connectionLost(socket);
+            throw e;
+        }
+    }
+
+    /**
+     * Send the buffered messages of one of the nodes, see {@link MessageRing#writeTo(OutputStream, int)}.
+     *
+     * @param messages  The buffered messages, the ones sent are taken out
+     * @param batchSize Most bytes written at once
+     * @return Number of messages sent
+     * @throws IOException If writing to the server fails, the messages not sent yet stay in the buffer
+     */
+    synchronized int send(MessageRing messages, int batchSize) throws IOException {
+        checkConnected();
+        try {
+            return messages.writeTo(socketOutput, batchSize);
+        } catch (IOException e) {
+            connectionLost(socket);
+            throw e;
+        }
+    }
+
+    private void checkConnected() throws IOException {
+        if (!connected) {
+            throw new IOException("The gateway is not connected");
+        }
+    }
+
+    /**
+     * Queue a message of one of the nodes, to be sent with the messages of the other nodes stepped in the same tick.
+     * Only called by the thread running the ticks.
+     *
+     * @param node    The node
+     * @param message The encoded message
+     */
+    void queue(SensorActuatorNode node, byte[] message) {
+        if (queuedCount == queuedNodes.length) {
+            sendQueued();
+        }
+        queuedNodes[queuedCount] = node;
+        queuedMessages[queuedCount] = message;
+        queuedCount++;
+    }
+
+    /**
+     * Send the queued messages and flush once, instead of once per node. If sending fails, every node buffers its
+     * message, as when a single message fails, and the gateway connects again. Only called by the thread running the
+     * ticks.
+     */
+    void sendQueued() {
+        if (queuedCount == 0) {
+            return;
+        }
+        boolean sent = false;
+        synchronized (this) {
+            try {
+                checkConnected();
+                for (int i = 0; i < queuedCount; ++i) {
+                    socketOutput.write(queuedMessages[i]);
+                }
+                socketOutput.flush();
+                sent = true;
+            } catch (IOException e) {
+                Logger.error("Failed to send the messages of " + queuedCount + " nodes through the gateway: "
+                        + e.getMessage());
+                connectionLost(socket);
+            }
+        }
+        // outside the lock of the gateway, a node sending on its own holds its lock before the one of the gateway
+        for (int i = 0; i < queuedCount; ++i) {
+            if (!sent) {
+                queuedNodes[i].bufferMessage(queuedMessages[i]);
+            }
+            queuedNodes[i] = null;
+            queuedMessages[i] = null;
+        }
+        queuedCount = 0;
+    }
+
+    /**
+     * Read the actuator commands for all nodes until the connection is closed.
+     *
+     * @param connection The socket of the connection
+     * @param input      The input stream of the socket
+     */
+    private void receiveActuatorCommands(Socket connection, InputStream input) {
+        try {
+            if (codec == WireCodec.BINARY) {
+                byte[] frame;
+                while ((frame = BinaryCodec.readFrame(input)) != null) {
+                    try {
+                        dispatch(BinaryCodec.decodeActuatorCommand(frame));
+                    } catch (IllegalArgumentException e) {
+                        Logger.error("Ignoring invalid actuator command: " + e.getMessage());
+                    }
+                }
+            } else {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(input,
+                        StandardCharsets.UTF_8));
+                String message;
+                while ((message = reader.readLine()) != null) {
+                    try {
+                        dispatch(ActuatorCommand.fromJson(message));
+                    } catch (JSONException e) {
+                        Logger.error("Ignoring invalid actuator command: " + e.getMessage());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (isCurrent(connection)) {
+                Logger.error("Error reading actuator commands on the gateway: " + e.getMessage());
+            }
+        }
+        // the server closed the connection, or it failed
+        connectionLost(connection);
+    }
+
+    private synchronized boolean isCurrent(Socket connection) {
+        return connected && socket == connection;
+    }
+
+    private void dispatch(ActuatorCommand command) {
+        SensorActuatorNode node = nodes.get(command.getNodeId());
+        if (node == null) {
+            Logger.error("Ignoring command for node " + command.getNodeId() + ", which is not behind the gateway");
+            return;
+        }
+        node.processActuatorCommand(command);
+    }
+
+    /**
+     * Forget a connection that failed, and connect again if the gateway should still be connected. Does nothing if
+     * the connection was already replaced.
+     *
+     * @param lostSocket The socket of the failed connection
+     */
+    private synchronized void connectionLost(Socket lostSocket) {
+        if (!connected || socket != lostSocket) {
+            return;
+        }
+        connected = false;
+        closeQuietly(lostSocket);
+        socket = null;
+        socketOutput = null;
+        if (serverAddress != null) {
+            Logger.error("Gateway with " + nodes.size() + " nodes lost the connection to the server.");
+            reconnect();
+        }
+    }
+
+    /**
+     * Try to connect again in the background until it succeeds or the gateway is closed. The delay doubles after
+     * every failed attempt, and every delay is a random part of it, so many gateways losing the server at the same
+     * time do not come back all at once. Once connected, every node sends its buffered messages.
+     */
+    private synchronized void reconnect() {
+        if (reconnecting || serverAddress == null) {
+            return;
+        }
+        reconnecting = true;
+        Thread.ofVirtual().name("gateway-reconnect").start(() -> {
+            attachNodes();
+            long maxDelay = MIN_RECONNECT_DELAY;
+            try {
+                while (serverAddress != null) {
+                    Thread.sleep(ThreadLocalRandom.current().nextLong(maxDelay + 1));
+                    if (openConnection()) {
+                        replayBufferedMessages();
+                        break;
+                    }
+                    maxDelay = Math.min(maxDelay * 2, MAX_RECONNECT_DELAY);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                synchronized (this) {
+                    reconnecting = false;
+                }
+            }
+        });
+    }
+
+    /**
+     * Attach the nodes to the gateway, so they send their messages through it, and continue with their full state,
+     * as the server may have lost what it knew. Called without holding the lock of the gateway, as a node holds its
+     * own lock before the one of the gateway.
+     */
+    private void attachNodes() {
+        for (SensorActuatorNode node : nodes.values()) {
+            node.attachToGateway(this);
+        }
+    }
+
+    /**
+     * Let every node send the messages it buffered while the gateway was disconnected. Called without holding the
+     * lock of the gateway, as a node holds its own lock before the one of the gateway.
+     */
+    private void replayBufferedMessages() {
+        for (SensorActuatorNode node : nodes.values()) {
+            try {
+                node.sendBufferedMessagesThroughGateway();
+            } catch (IOException e) {
+                // lost again, the nodes keep their messages for the next connection
+                Logger.error("Failed to send the buffered messages of node " + node.getId() + ": " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    private void closeQuietly(Socket socketToClose) {
+        try {
+            socketToClose.close();
+        } catch (IOException e) {
+            Logger.error("Error closing gateway connection: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Close the connection of all nodes, and stop connecting again.
+     */
+    public void close() {
+        Socket openSocket;
+        synchronized (this) {
+            serverAddress = null;
+            if (!connected) {
+                return;
+            }
+            connected = false;
+            openSocket = socket;
+            socket = null;
+            socketOutput = null;
+        }
+        closeQuietly(openSocket);
+        Logger.info("Gateway with " + nodes.size() + " nodes disconnected from the server.");
+    }
+}
@@ -1,23 +1,117 @@
 package no.ntnu.greenhouse;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
 
 import no.ntnu.listeners.greenhouse.NodeStateListener;
+import no.ntnu.protocol.WireCodec;
 import no.ntnu.tools.Logger;
 
 /**
  * Application entrypoint - a simulator for a greenhouse.
+ * By default every node generates its sensor values on its own schedule. In tick mode, the simulator steps all
+ * nodes at once: the new values and messages of all nodes are computed in parallel on a {@link ForkJoinPool}, and
+ * the messages are then sent as one batch, so the load the simulator creates grows with the number of cores.
+ * With gateways, the nodes share a few connections instead of one each, like sensor boards behind the gateway of
+ * a real greenhouse.
+ * The simulator runs without a GUI. Its nodes and server are described by a {@link Topology}, which can be read
+ * from a file to simulate large fleets.
  */
 public class GreenhouseSimulator {
+    private static final String SEED_OPTION = "seed=";
+    private static final String FAST_FORWARD_OPTION = "fast-forward=";
+    private static final String TICK_OPTION = "tick";
+    private static final String TOPOLOGY_OPTION = "topology=";
+    private static final String GATEWAY_OPTION = "gateway=";
+    // a fork/join task steps at most this many nodes itself, more are split between two tasks
+    private static final int NODES_PER_TASK = 32;
+    // a fast-forwarded simulation starts at 2024-01-01T00:00:00Z, so it also sees the same times every run
+    private static final long VIRTUAL_START_MILLIS = 1704067200000L;
+
     private final Map<Integer, SensorActuatorNode> nodes = new HashMap<>();
+    private Topology topology = Topology.createDefault();
+    private WireCodec codec = WireCodec.JSON;
+    private SimulationClock clock = SimulationClock.system();
+    private boolean tickMode;
+    private ForkJoinPool stepPool;
+    private SimulationClock.Task tickTask;
+    private SensorActuatorNode[] steppedNodes;
+    // time every stepped node is due for its next step, in the order of steppedNodes
+    private long[] nextStepMillis;
+    // positions of the nodes due in the current tick
+    private int[] dueNodes;
+    private long tickCount;
+    // steps of all nodes in all ticks
+    private long stepCount;
+    // nodes per gateway, 0 if every node has its own connection
+    private int gatewaySize;
+    private final List<GatewayConnection> gateways = new ArrayList<>();
 
 
+    /**
+     * Starts the simulator.
+     *
+     * @param args optional codec the nodes use to talk to the server, "json" (default) or "bin", and options:
+     *             "seed=&lt;number&gt;" makes all random values of the simulation reproducible,
+     *             "fast-forward=&lt;hours&gt;" runs the simulation for that many hours of virtual time as fast as
+     *             possible and stops it afterwards. with both, every run sends exactly the same messages.
+     *             "tick" steps all nodes together, in parallel.
+     *             "topology=&lt;file&gt;" reads the nodes and the server from a json file, see {@link Topology}.
+     *             "gateway=&lt;nodes&gt;" connects the nodes through gateways carrying that many nodes each.
+     */
     public static void main(String[] args) {
         GreenhouseSimulator greenhouseSimulator = new GreenhouseSimulator();
+        long fastForwardHours = 0;
+        try {
+            for (String arg : args) {
+                if (arg.startsWith(SEED_OPTION)) {
+                    DeviceFactory.setSeed(Long.parseLong(arg.substring(SEED_OPTION.length())));
+                } else if (arg.startsWith(FAST_FORWARD_OPTION)) {
+                    fastForwardHours = Long.parseLong(arg.substring(FAST_FORWARD_OPTION.length()));
+                } else if (arg.equals(TICK_OPTION)) {
+                    greenhouseSimulator.setTickMode(true);
+                } else if (arg.startsWith(GATEWAY_OPTION)) {
+                    greenhouseSimulator.setGatewaySize(Integer.parseInt(arg.substring(GATEWAY_OPTION.length())));
+                } else if (arg.startsWith(TOPOLOGY_OPTION)) {
+                    Path topologyFile = Path.of(arg.substring(TOPOLOGY_OPTION.length()));
+                    greenhouseSimulator.setTopology(Topology.readFrom(topologyFile));
+                } else {
+                    greenhouseSimulator.setWireCodec(WireCodec.fromArgument(arg));
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            Logger.error("Invalid argument: " + e.getMessage());
+            return;
+        } catch (IOException e) {
+            Logger.error("Could not read the topology: " + e.getMessage());
+            return;
+        }
+        VirtualClock virtualClock = null;
+        if (fastForwardHours > 0) {
+            virtualClock = new VirtualClock(VIRTUAL_START_MILLIS);
+            greenhouseSimulator.setClock(virtualClock);
+        }
         greenhouseSimulator.initialize();
         greenhouseSimulator.start(); // Start the greenhouse simulation
         Logger.info("GreenhouseSimulator started");
+        if (virtualClock != null) {
+            long started = System.nanoTime();
+            long runs = virtualClock.advance(TimeUnit.HOURS.toMillis(fastForwardHours));
+            // in tick mode, one run steps every node that is due
+            long readings = greenhouseSimulator.tickMode ? greenhouseSimulator.stepCount : runs;
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+            greenhouseSimulator.stop();
+            Logger.info("Simulated " + fastForwardHours + " hours with " + readings + " sensor readings in "
+                    + elapsed + " ms");
+        }
     }
 
     /**
@@ -26,19 +120,73 @@ public class GreenhouseSimulator {
     public GreenhouseSimulator() {
     }
 
+    /**
+     * Choose the codec all nodes use to talk to the server. Must be called before starting.
+     *
+     * @param codec json or binary frames
+     */
+    public void setWireCodec(WireCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Choose the clock of the simulation. Must be called before starting.
+     *
+     * @param clock the real time clock (the default) or a virtual clock
+     */
+    public void setClock(SimulationClock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Choose whether the simulator steps all nodes together, in parallel, instead of letting every node generate
+     * its values on its own. Must be called before starting.
+     *
+     * @param tickMode true to step all nodes together
+     */
+    public void setTickMode(boolean tickMode) {
+        this.tickMode = tickMode;
+    }
+
+    /**
+     * Choose whether the nodes share gateway connections instead of connecting on their own. Must be called before
+     * starting.
+     *
+     * @param gatewaySize number of nodes per gateway, 0 to give every node its own connection
+     */
+    public void setGatewaySize(int gatewaySize) {
+        if (gatewaySize < 0) {
+            throw new IllegalArgumentException("Gateway size can't be negative");
+        }
+        this.gatewaySize = gatewaySize;
+    }
+
+    /**
+     * Choose the nodes of the greenhouse and the server they connect to. Must be called before initializing.
+     *
+     * @param topology the topology, by default two small nodes on a local server
+     */
+    public void setTopology(Topology topology) {
+        this.topology = topology;
+    }
+
     /**
      * Initialise the greenhouse but don't start the simulation just yet.
      */
     public void initialize() {
-        createNode(1, 1, 1, 1, 0);
-        createNode(1, 0, 0, 2, 1);
-        //createNode(2, 0, 0, 0, 0);
-        Logger.info("Greenhouse initialized");
+        for (Topology.NodeClass nodeClass : topology.getNodeClasses()) {
+            for (int i = 0; i < nodeClass.getCount(); ++i) {
+                createNode(nodeClass);
+            }
+            Logger.info("Created " + nodeClass.getCount() + " nodes of class " + nodeClass.getName());
+        }
+        Logger.info("Greenhouse initialized with " + nodes.size() + " nodes");
     }
 
-    private void createNode(int temperature, int humidity, int windows, int fans, int heaters) {
-        SensorActuatorNode node = DeviceFactory.createNode(
-                temperature, humidity, windows, fans, heaters);
+    private void createNode(Topology.NodeClass nodeClass) {
+        SensorActuatorNode node = DeviceFactory.createNode(nodeClass.getTemperatureSensors(),
+                nodeClass.getHumiditySensors(), nodeClass.getWindows(), nodeClass.getFans(), nodeClass.getHeaters());
+        node.setSensingInterval(nodeClass.getIntervalMillis());
         nodes.put(node.getId(), node);
     }
 
@@ -48,33 +196,157 @@ public class GreenhouseSimulator {
     public void start() {
         initiateCommunication();
         for (SensorActuatorNode node : nodes.values()) {
-            node.start();
+            node.setClock(clock);
+            node.start(!tickMode);
+        }
+        if (tickMode) {
+            steppedNodes = nodes.values().toArray(new SensorActuatorNode[0]);
+            dueNodes = new int[steppedNodes.length];
+            nextStepMillis = new long[steppedNodes.length];
+            long now = clock.currentTimeMillis();
+            for (int i = 0; i < steppedNodes.length; ++i) {
+                nextStepMillis[i] = now + steppedNodes[i].getSensingInterval();
+            }
+            stepPool = new ForkJoinPool();
+            long tickMillis = getShortestSensingInterval();
+            tickTask = clock.scheduleAtFixedRate(this::tick, tickMillis, tickMillis);
         }
 
         Logger.info("Simulator started");
     }
 
+    /**
+     * ticks use the shortest sensing interval of all nodes, so no node is stepped less often than configured. a
+     * node with a longer interval is only stepped in the ticks it is due.
+     *
+     * @return the shortest interval, in milliseconds
+     */
+    private long getShortestSensingInterval() {
+        if (steppedNodes.length == 0) {
+            return Topology.NodeClass.DEFAULT_INTERVAL_MILLIS;
+        }
+        long shortest = Long.MAX_VALUE;
+        for (SensorActuatorNode node : steppedNodes) {
+            shortest = Math.min(shortest, node.getSensingInterval());
+        }
+        return shortest;
+    }
+
+    /**
+     * steps the nodes that are due in parallel, and then sends the messages of all of them. the messages of the
+     * nodes behind a gateway are sent together, with one flush per gateway.
+     */
+    private void tick() {
+        long started = System.nanoTime();
+        int dueCount = findDueNodes(clock.currentTimeMillis());
+        byte[][] messages = new byte[dueCount][];
+        stepPool.invoke(new StepTask(steppedNodes, dueNodes, messages, 0, dueCount));
+        long stepped = System.nanoTime();
+
+        int messageCount = 0;
+        long bytes = 0;
+        for (int i = 0; i < dueCount; ++i) {
+            if (messages[i] != null) {
+                SensorActuatorNode node = steppedNodes[dueNodes[i]];
+                if (!node.queueOnGateway(messages[i])) {
+                    node.transmit(messages[i]);
+                }
+                messageCount++;
+                bytes += messages[i].length;
+            }
+        }
+        for (GatewayConnection gateway : gateways) {
+            gateway.sendQueued();
+        }
+        long sent = System.nanoTime();
+        tickCount++;
+        stepCount += dueCount;
+        Logger.info("Tick " + tickCount + ": " + dueCount + " nodes stepped in "
+                + TimeUnit.NANOSECONDS.toMillis(stepped - started) + " ms, " + messageCount + " messages ("
+                + bytes + " bytes) sent in " + TimeUnit.NANOSECONDS.toMillis(sent - stepped) + " ms");
+    }
+
+    /**
+     * collects the nodes due for a step in {@link #dueNodes}, and moves their next step one interval further.
+     * the next step is counted from when the node was due, not from now, so a node whose interval is not a
+     * multiple of the tick still steps at its own rate on average. a node that fell behind by more than an
+     * interval continues from now instead of catching up.
+     *
+     * @param now the current time of the simulation
+     * @return the number of nodes due
+     */
+    private int findDueNodes(long now) {
+        int dueCount = 0;
+        for (int i = 0; i < steppedNodes.length; ++i) {
+            if (nextStepMillis[i] <= now) {
+                dueNodes[dueCount++] = i;
+                long interval = steppedNodes[i].getSensingInterval();
+                nextStepMillis[i] += interval;
+                if (nextStepMillis[i] <= now) {
+                    nextStepMillis[i] = now + interval;
+                }
+            }
+        }
+        return dueCount;
+    }
+
 
     /**
      * Runs the connectToServer() method for every Node that has been created for this simulator.
-     * Passes the sever and port number to the every node.
+     * Passes the server address and port number of the topology to every node.
      */
     private void initiateCommunication() {
+        if (gatewaySize > 0) {
+            connectGateways();
+            return;
+        }
         for (SensorActuatorNode node : nodes.values()) {
-            // variables for TCP connection
-            String serverAddress = "localhost";
-            int portNumber = 1238;
-            node.connectToServer(serverAddress, portNumber);
+            node.setWireCodec(codec);
+            node.connectToServer(topology.getHost(), topology.getPort());
         }
     }
 
+    /**
+     * Splits the nodes, in the order of their ids, into groups of the gateway size and connects a gateway for
+     * every group.
+     */
+    private void connectGateways() {
+        List<SensorActuatorNode> group = new ArrayList<>();
+        for (SensorActuatorNode node : new TreeMap<>(nodes).values()) {
+            group.add(node);
+            if (group.size() == gatewaySize) {
+                connectGateway(group);
+                group = new ArrayList<>();
+            }
+        }
+        if (!group.isEmpty()) {
+            connectGateway(group);
+        }
+    }
+
+    private void connectGateway(List<SensorActuatorNode> group) {
+        GatewayConnection gateway = new GatewayConnection(group, codec);
+        // kept even if the server can't be reached yet, the gateway keeps trying while its nodes buffer
+        gateway.connect(topology.getHost(), topology.getPort());
+        gateways.add(gateway);
+    }
+
     /**
      * Stop the simulation of the greenhouse - all the nodes in it.
      */
     public void stop() {
+        if (tickTask != null) {
+            tickTask.cancel();
+            tickTask = null;
+            stepPool.shutdown();
+        }
         for (SensorActuatorNode node : nodes.values()) {
             node.stop();
         }
+        for (GatewayConnection gateway : gateways) {
+            gateway.close();
+        }
+        gateways.clear();
     }
 
 
@@ -88,4 +360,41 @@ public class GreenhouseSimulator {
             node.addStateListener(listener);
         }
     }
+
+    /**
+     * steps a range of the due nodes, splitting it in halves until a range is small enough to be stepped by one
+     * thread. every node writes its message to its own position of the array, so the order of the messages is the
+     * order of the due nodes, whatever thread stepped them.
+     */
+    private static class StepTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        // the arrays of the tick, shared by all tasks. a task is never serialized
+        private final transient SensorActuatorNode[] nodes;
+        private final transient int[] dueNodes;
+        private final transient byte[][] messages;
+        private final int from;
+        private final int to;
+
+        StepTask(SensorActuatorNode[] nodes, int[] dueNodes, byte[][] messages, int from, int to) {
+            this.nodes = nodes;
+            this.dueNodes = dueNodes;
+            this.messages = messages;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= NODES_PER_TASK) {
+                for (int i = from; i < to; ++i) {
+                    messages[i] = nodes[dueNodes[i]].step();
+                }
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new StepTask(nodes, dueNodes, messages, from, middle),
+                        new StepTask(nodes, dueNodes, messages, middle, to));
+            }
+        }
+    }
 }
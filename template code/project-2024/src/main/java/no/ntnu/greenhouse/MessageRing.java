@@ -0,0 +1,156 @@
+package no.ntnu.greenhouse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A fixed-capacity ring of encoded messages, kept by a node while it can't reach the server.
+ * All messages are copied into one byte array, allocated once, so buffering a message allocates nothing. When the
+ * ring is full, the oldest messages are overwritten. A message never wraps around the end of the array, it starts
+ * at the beginning again instead.
+ */
+final class MessageRing {
+  // the smallest message is a binary delta of about 20 bytes, so there can never be more entries than this
+  private static final int MIN_MESSAGE_SIZE = 16;
+
+  private final byte[] data;
+  private final int[] offsets;
+  private final int[] lengths;
+  // index of the oldest entry, and number of entries
+  private int head;
+  private int count;
+  // where the next message is written
+  private int writePosition;
+
+  /**
+   * Create a ring.
+   *
+   * @param capacity Number of bytes the ring can hold
+   */
+  MessageRing(int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity of the message buffer must be positive");
+    }
+    this.data = new byte[capacity];
+    int maxEntries = Math.max(1, capacity / MIN_MESSAGE_SIZE);
+    this.offsets = new int[maxEntries];
+    this.lengths = new int[maxEntries];
+  }
+
+  /**
+   * Add a message, overwriting the oldest messages if there is not enough space.
+   *
+   * @param message The encoded message
+   * @return True if older messages (or this one, if it is larger than the whole ring) were lost
+   */
+  boolean add(byte[] message) {
+    if (message.length > data.length) {
+      return true;
+    }
+    boolean lost = false;
+    int position = writePosition;
+    if (position + message.length > data.length) {
+      // the entries between the write position and the end are older than the ones at the start,
+      // so they go first, before any entry at the start is overwritten
+      while (count > 0 && offsets[head] >= writePosition) {
+        removeOldest();
+        lost = true;
+      }
+      position = 0;
+    }
+    // the live entries from the position on are in order of age, so the ones overlapping the
+    // message are always the oldest ones
+    while (count > 0 && (count == offsets.length || overlapsOldest(position, message.length))) {
+      removeOldest();
+      lost = true;
+    }
+    if (count == 0) {
+      position = 0;
+    }
+    System.arraycopy(message, 0, data, position, message.length);
+    int tail = (head + count) % offsets.length;
+    offsets[tail] = position;
+    lengths[tail] = message.length;
+    count++;
+    writePosition = position + message.length;
+    return lost;
+  }
+
+  /**
+   * Look at the oldest message, without taking it out of the ring.
+   *
+   * @return A copy of the message, or null if the ring is empty
+   */
+  byte[] peek() {
+    if (count == 0) {
+      return null;
+    }
+    return Arrays.copyOfRange(data, offsets[head], offsets[head] + lengths[head]);
+  }
+
+  /**
+   * Write all messages to a stream, oldest first, in batches of at most the given size (a
+   * single larger message is a batch of its own). The stream is flushed after every batch, and
+   * the messages of a batch are only taken out of the ring once it is flushed, so if writing
+   * fails, the messages not written yet are still in the ring.
+   *
+   * @param output    The stream
+   * @param batchSize Most bytes written at once
+   * @return Number of messages written
+   * @throws IOException If writing fails
+   */
+  int writeTo(OutputStream output, int batchSize) throws IOException {
+    ByteArrayOutputStream batch = new ByteArrayOutputStream(batchSize);
+    int written = 0;
+    while (count > 0) {
+      batch.reset();
+      int batched = 0;
+      while (batched < count) {
+        int entry = (head + batched) % offsets.length;
+        if (batched > 0 && batch.size() + lengths[entry] > batchSize) {
+          break;
+        }
+        batch.write(data, offsets[entry], lengths[entry]);
+        batched++;
+      }
+      batch.writeTo(output);
+      output.flush();
+      for (int i = 0; i < batched; ++i) {
+        removeOldest();
+      }
+      written += batched;
+    }
+    return written;
+  }
+
+  boolean isEmpty() {
+    return count == 0;
+  }
+
+  int size() {
+    return count;
+  }
+
+  /**
+   * Take the oldest message out of the ring, without looking at it.
+   */
+  void removeOldest() {
+    if (count == 0) {
+      return;
+    }
+    head = (head + 1) % offsets.length;
+    count--;
+    if (count == 0) {
+      head = 0;
+      writePosition = 0;
+    }
+  }
+
+  private boolean overlapsOldest(int position, int length) {
+    int oldestStart = offsets[head];
+    int oldestEnd = oldestStart + lengths[head];
+    return position < oldestEnd && oldestStart < position + length;
+  }
+}
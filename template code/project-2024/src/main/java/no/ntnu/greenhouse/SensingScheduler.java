@@ -0,0 +1,75 @@
+package no.ntnu.greenhouse;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import no.ntnu.tools.Logger;
+
+/**
+ * One scheduler for the periodic sensor readings of all nodes in this JVM.
+ * A {@link java.util.Timer} per node costs a platform thread per node, which limits a simulator to a few thousand
+ * nodes. Instead, all nodes share a small pool with one thread per core. The pool is created when the first node
+ * starts and shut down when the last node stops, so, like the timers before, it keeps the JVM alive exactly as long
+ * as a node is running.
+ */
+final class SensingScheduler {
+  private static final int THREAD_COUNT = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+  private static ScheduledExecutorService executor;
+  private static int scheduledTasks;
+
+  /**
+   * Not instantiated, the scheduler is shared.
+   */
+  private SensingScheduler() {
+  }
+
+  /**
+   * Run a task periodically.
+   *
+   * @param task         The task. An exception thrown by it is logged and does not stop the following runs.
+   * @param initialDelay Delay before the first run, in milliseconds
+   * @param period       Time between the start of two runs, in milliseconds
+   * @return The scheduled task, to be passed to {@link #cancel(ScheduledFuture)}
+   */
+  static synchronized ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long initialDelay, long period) {
+    if (executor == null) {
+      ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(THREAD_COUNT, createThreadFactory());
+      // stopped nodes must not stay in the queue until their next run would have been due
+      pool.setRemoveOnCancelPolicy(true);
+      executor = pool;
+    }
+    scheduledTasks++;
+    return executor.scheduleAtFixedRate(() -> runSafely(task), initialDelay, period, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop a periodic task. A run that already started is finished.
+   *
+   * @param scheduledTask The task, as returned by {@link #scheduleAtFixedRate(Runnable, long, long)}
+   */
+  static synchronized void cancel(ScheduledFuture<?> scheduledTask) {
+    if (scheduledTask.cancel(false) && --scheduledTasks == 0) {
+      executor.shutdown();
+      executor = null;
+    }
+  }
+
+  private static void runSafely(Runnable task) {
+    try {
+      task.run();
+    } catch (RuntimeException e) {
+      // an exception would cancel all following runs of the task
+      Logger.error("Sensor reading failed: " + e.getMessage());
+    }
+  }
+
+  private static ThreadFactory createThreadFactory() {
+    AtomicInteger threadNumber = new AtomicInteger();
+    return task -> new Thread(task, "sensing-" + threadNumber.incrementAndGet());
+  }
+}
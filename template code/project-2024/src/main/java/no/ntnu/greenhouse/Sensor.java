@@ -2,14 +2,22 @@ package no.ntnu.greenhouse;
 
 /**
  * A sensor which can sense the environment in a specific way.
+ * The sensor is a view of one slot in a {@link SensorBank}, which holds its value, range and reporting settings.
+ * The sensor reports by exception: a new value is only sent when it moved more than the deadband away from the
+ * last reported value, or when the sensor has been silent for its maximum silence interval (a heartbeat).
  */
 public class Sensor {
+  /**
+   * Longest time a sensor stays silent by default, in milliseconds.
+   */
+  public static final long DEFAULT_MAX_SILENCE_MILLIS = 60 * 1000;
+
+  private final SensorBank bank;
+  private final int slot;
   private final SensorReading reading;
-  private final double min;
-  private final double max;
 
   /**
-   * Create a sensor.
+   * Create a sensor in a bank of its own, for example a template for the sensors of a node.
    *
    * @param type    The type of the sensor. Examples: "temperature", "humidity"
    * @param min     Minimum allowed value
@@ -18,14 +26,27 @@ public class Sensor {
    * @param unit    The measurement unit. Examples: "%", "C", "lux"
    */
   public Sensor(String type, double min, double max, double current, String unit) {
-    this.reading = new SensorReading(type, current, unit);
-    this.min = min;
-    this.max = max;
-    ensureValueBoundsAndPrecision(current);
+    this(new SensorBank(), type, min, max, current, unit);
+  }
+
+  private Sensor(SensorBank bank, String type, double min, double max, double current, String unit) {
+    this(bank, bank.add(type, min, max, current, unit));
+  }
+
+  /**
+   * Create a view of a sensor in a bank.
+   *
+   * @param bank The bank holding the sensor
+   * @param slot The slot of the sensor in the bank
+   */
+  Sensor(SensorBank bank, int slot) {
+    this.bank = bank;
+    this.slot = slot;
+    this.reading = new SensorReading(bank, slot);
   }
 
   public String getType() {
-    return reading.getType();
+    return bank.getType(slot);
   }
 
   /**
@@ -43,37 +64,64 @@ public class Sensor {
    * @return A clone of this sensor, where all the fields are the same
    */
   public Sensor createClone() {
-    return new Sensor(this.reading.getType(), this.min, this.max,
-        this.reading.getValue(), this.reading.getUnit());
+    return copyTo(new SensorBank());
   }
 
   /**
-   * Add a random noise to the sensors to simulate realistic values.
+   * Add a copy of this sensor to a bank.
+   *
+   * @param target The bank to add the copy to
+   * @return The copy, with the same type, range, value and reporting settings
    */
-  public void addRandomNoise() {
-    double newValue = this.reading.getValue() + generateRealisticNoise();
-    ensureValueBoundsAndPrecision(newValue);
+  Sensor copyTo(SensorBank target) {
+    Sensor copy = new Sensor(target, bank.getType(slot), bank.getMin(slot), bank.getMax(slot),
+        bank.getValue(slot), bank.getUnit(slot));
+    copy.setReporting(getDeadband(), getMaxSilenceMillis());
+    return copy;
   }
 
-  private void ensureValueBoundsAndPrecision(double newValue) {
-    newValue = roundToTwoDecimals(newValue);
-    if (newValue < min) {
-      newValue = min;
-    } else if (newValue > max) {
-      newValue = max;
+  /**
+   * Set when the sensor reports its value.
+   *
+   * @param deadband         How far the value has to move away from the last reported value before it is
+   *                         reported again. 0 reports every change.
+   * @param maxSilenceMillis The value is reported after this many milliseconds even if it did not move
+   */
+  public void setReporting(double deadband, long maxSilenceMillis) {
+    if (deadband < 0) {
+      throw new IllegalArgumentException("Deadband can't be negative");
     }
-    reading.setValue(newValue);
+    if (maxSilenceMillis <= 0) {
+      throw new IllegalArgumentException("Maximum silence must be positive");
+    }
+    bank.setReporting(slot, deadband, maxSilenceMillis);
   }
 
-  private double roundToTwoDecimals(double value) {
-    return Math.round(value * 100.0) / 100.0;
+  public double getDeadband() {
+    return bank.getDeadband(slot);
   }
 
-  private double generateRealisticNoise() {
-    final double wholeRange = max - min;
-    final double onePercentOfRange = wholeRange / 100.0;
-    final double zeroToTwoPercent = Math.random() * onePercentOfRange * 2;
-    return zeroToTwoPercent - onePercentOfRange; // In the range [-1%..+1%]
+  public long getMaxSilenceMillis() {
+    return bank.getMaxSilenceMillis(slot);
+  }
+
+  /**
+   * Check whether the current value has to be reported.
+   *
+   * @param reportedValue     The last reported value
+   * @param millisSinceReport Time since the value was last reported, in milliseconds
+   * @return True if the value moved out of the deadband or the maximum silence is over
+   */
+  public boolean shouldReport(double reportedValue, long millisSinceReport) {
+    return Math.abs(bank.getValue(slot) - reportedValue) > bank.getDeadband(slot)
+        || millisSinceReport >= bank.getMaxSilenceMillis(slot);
+  }
+
+  /**
+   * Add a random noise to the sensor to simulate realistic values.
+   */
+  public void addRandomNoise() {
+    bank.addRandomNoise(slot);
   }
 
   /**
@@ -82,8 +130,7 @@ public class Sensor {
    * @param impact The impact to apply - the delta for the value
    */
   public void applyImpact(double impact) {
-    double newValue = this.reading.getValue() + impact;
-    ensureValueBoundsAndPrecision(newValue);
+    bank.setValue(slot, bank.getValue(slot) + impact);
   }
 
   @Override
@@ -1,48 +1,104 @@
 package no.ntnu.greenhouse;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ThreadLocalRandom;
 
 import no.ntnu.listeners.common.ActuatorListener;
 import no.ntnu.listeners.common.CommunicationChannelListener;
 import no.ntnu.listeners.greenhouse.NodeStateListener;
 import no.ntnu.listeners.greenhouse.SensorListener;
+import no.ntnu.protocol.ActuatorCommand;
+import no.ntnu.protocol.ActuatorState;
+import no.ntnu.protocol.BinaryCodec;
+import no.ntnu.protocol.MessageType;
+import no.ntnu.protocol.SensorData;
+import no.ntnu.protocol.SensorDelta;
+import no.ntnu.protocol.WireCodec;
 import no.ntnu.tools.Logger;
-import org.json.JSONArray;
-import org.json.JSONObject;
+import org.json.JSONException;
 
 /**
  * Represents one node with sensors and actuators.
+ * After connecting, the node sends its full state once, and then only the sensors and actuators whose values
+ * changed since the previous message. A sensor only counts as changed when its value left the deadband around the
+ * last reported value, or when it has been silent for too long (see {@link Sensor#setReporting(double, long)}),
+ * and nothing is sent when nothing changed. Every message is numbered, and the full state is sent again every
+ * {@link #FULL_STATE_INTERVAL_MILLIS} milliseconds, so a receiver that missed a delta catches up again.
+ * If the server can't be reached, or the connection drops, the node keeps its messages in a fixed-size buffer and
+ * tries to connect again, waiting longer after every failed attempt. After reconnecting, the buffered messages are
+ * sent first, in their original order.
  */
 public class SensorActuatorNode implements ActuatorListener, CommunicationChannelListener {
-    // How often to generate new sensor values, in seconds.
+    // How often to generate new sensor values by default, in milliseconds.
     private static final long SENSING_DELAY = 5000;
+    // How often the full state is sent, in milliseconds.
+    private static final long FULL_STATE_INTERVAL_MILLIS = 5 * 60 * 1000;
+    // Bytes of messages kept while the server can't be reached, by default.
+    private static final int DEFAULT_BUFFER_CAPACITY = 64 * 1024;
+    // Bytes of buffered messages written at once when they are sent after reconnecting.
+    private static final int REPLAY_BATCH_SIZE = 8 * 1024;
+    // Delay before the first and the longest delay between two connection attempts, in milliseconds.
+    private static final long MIN_RECONNECT_DELAY = 500;
+    private static final long MAX_RECONNECT_DELAY = 30 * 1000;
     private final int id;
 
     // TCP socket
     private Socket socket;
     private BufferedReader socketReader;
     private PrintWriter socketWriter;
-
-    private final List<Sensor> sensors = new LinkedList<>();
+    // raw streams, used by the binary codec
+    private InputStream socketInput;
+    private OutputStream socketOutput;
+    private WireCodec codec = WireCodec.JSON;
+    // the shared connection, if the node talks to the server through a gateway instead of its own socket
+    private GatewayConnection gateway;
+    // the server the node should be connected to, null if it should not be connected
+    private volatile String serverAddress;
+    private int serverPort;
+    private boolean reconnecting;
+    // messages created while the node could not reach the server, allocated when the connection fails first
+    private MessageRing unsentMessages;
+    private int bufferCapacity = DEFAULT_BUFFER_CAPACITY;
+
+    // sequence number of the last message sent to the server
+    private int sequence;
+    // the state the server knows, null until the full state has been sent
+    private SensorData sentState;
+    private long fullStateSentAt;
+    // when every sensor was last reported, in the order of the sensors
+    private long[] sensorReportedAt;
+
+    // the values of all sensors, the sensors in the list are views of it
+    private final SensorBank sensorBank;
+    private final List<Sensor> sensors = new ArrayList<>();
     private final ActuatorCollection actuators = new ActuatorCollection();
 
     private final List<SensorListener> sensorListeners = new LinkedList<>();
     private final List<ActuatorListener> actuatorListeners = new LinkedList<>();
     private final List<NodeStateListener> stateListeners = new LinkedList<>();
 
-    Timer sensorReadingTimer;
+    // periodic sensor readings, scheduled on the clock of the simulation
+    private SimulationClock clock = SimulationClock.system();
+    private SimulationClock.Task sensorReadingTask;
+    private long sensingInterval = SENSING_DELAY;
 
     private boolean running;
-    private final Random random = new Random();
+    // true if the simulator steps the node, together with all other nodes, instead of its own periodic task
+    private boolean steppedBySimulator;
+    private final Random random;
 
     /**
      * Create a sensor/actuator node. Note: the node itself does not check whether the ID is unique.
@@ -51,7 +107,19 @@ public class SensorActuatorNode implements ActuatorListener, CommunicationChanne
      * @param id A unique ID of the node
      */
     public SensorActuatorNode(int id) {
+        this(id, new Random());
+    }
+
+    /**
+     * Create a sensor/actuator node using the given random numbers, e.g. from a seeded generator.
+     *
+     * @param id     A unique ID of the node
+     * @param random Random numbers for the start of the sensor readings and the noise of the sensors
+     */
+    public SensorActuatorNode(int id, Random random) {
         this.id = id;
+        this.random = random;
+        this.sensorBank = new SensorBank(new Random(random.nextLong()));
         this.running = false;
     }
 
@@ -64,6 +132,54 @@ public class SensorActuatorNode implements ActuatorListener, CommunicationChanne
         return id;
     }
 
+    /**
+     * Choose how the node encodes its messages to the server. Must be called before connecting.
+     *
+     * @param codec json (the default) or binary frames
+     */
+    public void setWireCodec(WireCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Choose the clock the node reads the time from and schedules its sensor readings on. Must be called before
+     * starting.
+     *
+     * @param clock the real time clock (the default) or a virtual clock
+     */
+    public void setClock(SimulationClock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Choose how often the node generates new sensor values. Must be called before starting.
+     *
+     * @param sensingInterval Time between two sensor readings, in milliseconds
+     */
+    public void setSensingInterval(long sensingInterval) {
+        if (sensingInterval <= 0) {
+            throw new IllegalArgumentException("Sensing interval must be positive");
+        }
+        this.sensingInterval = sensingInterval;
+    }
+
+    public long getSensingInterval() {
+        return sensingInterval;
+    }
+
+    /**
+     * Choose how many bytes of messages the node keeps while it can't reach the server. Must be called before
+     * connecting.
+     *
+     * @param bufferCapacity Capacity of the buffer in bytes. When it is full, the oldest messages are dropped.
+     */
+    public void setBufferCapacity(int bufferCapacity) {
+        if (bufferCapacity <= 0) {
+            throw new IllegalArgumentException("Buffer capacity must be positive");
+        }
+        this.bufferCapacity = bufferCapacity;
+    }
+
     /**
      * Add sensors to the node.
      *
@@ -85,7 +201,7 @@ public class SensorActuatorNode implements ActuatorListener, CommunicationChanne
         }
 
         for (int i = 0; i < n; ++i) {
-            sensors.add(template.createClone());
+            sensors.add(template.copyTo(sensorBank));
         }
     }
 
@@ -138,8 +254,22 @@ public class SensorActuatorNode implements ActuatorListener, CommunicationChanne
      * Start simulating the sensor node's operation.
      */
     public void start() {
+        start(true);
+    }
+
+    /**
+     * Start simulating the sensor node's operation.
+     *
+     * @param periodic true to generate sensor values periodically, false if the simulator calls {@link #step()}
+     *                 and {@link #transmit(byte[])} itself. the node then does not log every reading, as many
+     *                 nodes are stepped at the same time.
+     */
+    void start(boolean periodic) {
         if (!running) {
-            startPeriodicSensorReading();
+            steppedBySimulator = !periodic;
+            if (periodic) {
+                startPeriodicSensorReading();
+            }
             running = true;
             notifyStateChanges(true);
         }
@@ -168,20 +298,15 @@ public class SensorActuatorNode implements ActuatorListener, CommunicationChanne
     }
 
     private void startPeriodicSensorReading() {
-        sensorReadingTimer = new Timer();
-        TimerTask newSensorValueTask = new TimerTask() {
-            @Override
-            public void run() {
-                generateNewSensorValues();
-            }
-        };
-        long randomStartDelay = random.nextLong(SENSING_DELAY);
-        sensorReadingTimer.scheduleAtFixedRate(newSensorValueTask, randomStartDelay, SENSING_DELAY);
+        long randomStartDelay = random.nextLong(sensingInterval);
+        sensorReadingTask = clock.scheduleAtFixedRate(this::generateNewSensorValues, randomStartDelay,
+                sensingInterval);
     }
 
     private void stopPeriodicSensorReading() {
-        if (sensorReadingTimer != null) {
-            sensorReadingTimer.cancel();
+        if (sensorReadingTask != null) {
+            sensorReadingTask.cancel();
+            sensorReadingTask = null;
         }
     }
 
@@ -190,60 +315,211 @@ public class SensorActuatorNode implements ActuatorListener, CommunicationChanne
      * Also send the new values to the server.
      */
     public void generateNewSensorValues() {
-        Logger.infoNoNewline("Node #" + id);
+        byte[] message = step();
+        if (message != null) {
+            transmit(message);
+        }
+    }
+
+    /**
+     * generates new sensor values, notifies the listeners and encodes the message for the server with the chosen
+     * codec, without sending it. nodes can be stepped in parallel, as a step only touches the node itself.
+     *
+     * @return the encoded message, or null if the node is not connected or nothing has to be sent
+     */
+    byte[] step() {
         addRandomNoiseToSensors();
         notifySensorChanges();
-        debugPrint();
+        if (!steppedBySimulator) {
+            Logger.infoNoNewline("Node #" + id);
+            debugPrint();
+        }
+        if (serverAddress == null && gateway == null) {
+            return null;
+        }
+        try {
+            return encodeSensorData();
+        } catch (RuntimeException e) {
+            Logger.error("Failed to encode sensor data for node " + id + ": " + e.getMessage());
+            return null;
+        }
+    }
 
-        // creates a json object from the new values and sends them to the server,
-        // if a connection is established
-        if (socketWriter != null) {
+    /**
+     * sends a message created by {@link #step()} to the server. while the node has no connection, the message is
+     * buffered instead. if sending fails, the message is buffered and the node connects again. behind a gateway,
+     * the gateway connects again, and the buffered messages are sent before the next message that goes through.
+     *
+     * @param message the encoded message
+     */
+    synchronized void transmit(byte[] message) {
+        if (gateway != null) {
+            if (!gateway.isConnected()) {
+                bufferMessage(message);
+                return;
+            }
             try {
-                JSONObject sensorActuatorData = createJSONObject();
-                socketWriter.println(sensorActuatorData);
-                Logger.info("Node " + id + " sent sensor data to server." + sensorActuatorData);
-            } catch (Exception e) {
+                sendBufferedMessagesThroughGateway();
+                gateway.send(message);
+            } catch (IOException e) {
+                Logger.error("Failed to send sensor data for node " + id + ": " + e.getMessage());
+                bufferMessage(message);
+            }
+        } else if (socketOutput != null) {
+            try {
+                socketOutput.write(message);
+                socketOutput.flush();
+            } catch (IOException e) {
                 Logger.error("Failed to send sensor data for node " + id + ": " + e.getMessage());
+                bufferMessage(message);
+                connectionLost(socket);
             }
+        } else {
+            bufferMessage(message);
         }
     }
 
     /**
-     * creates a json object that represents the state of the node.
-     * both sensor readings and actuator states are being included
+     * hands a message created by {@link #step()} to the gateway, to be sent with the messages of the other nodes
+     * stepped in the same tick, see {@link GatewayConnection#queue(SensorActuatorNode, byte[])}.
+     *
+     * @param message the encoded message
+     * @return false if the node does not send through a gateway, the gateway is disconnected, or the node has
+     *         buffered messages to send first. the message then has to be sent with {@link #transmit(byte[])}.
+     */
+    synchronized boolean queueOnGateway(byte[] message) {
+        if (gateway == null || !gateway.isConnected() || (unsentMessages != null && !unsentMessages.isEmpty())) {
+            return false;
+        }
+        gateway.queue(this, message);
+        return true;
+    }
+
+    /**
+     * keeps a message until the node is connected again. if older messages had to be dropped to make room, the
+     * next message is the full state, so the buffered deltas after it can be applied again.
+     */
+    synchronized void bufferMessage(byte[] message) {
+        if (unsentMessages == null) {
+            unsentMessages = new MessageRing(bufferCapacity);
+        }
+        if (unsentMessages.add(message)) {
+            sentState = null;
+        }
+    }
+
+    /**
+     * encodes the full state of the node, or only what changed since the previous message, and remembers it as
+     * sent.
      *
-     * @return json object including the node's data
+     * @return the message, or null if no sensor has to be reported and no actuator changed
      */
-    private JSONObject createJSONObject() {
-        JSONObject sensorActuatorData = new JSONObject();
-        sensorActuatorData.put("id", id);
+    private synchronized byte[] encodeSensorData() {
+        long now = clock.currentTimeMillis();
+        SensorData state = createSensorData(sequence + 1);
+        boolean full = sentState == null || now - fullStateSentAt >= FULL_STATE_INTERVAL_MILLIS;
+        SensorDelta delta = null;
+        if (!full) {
+            delta = createDelta(sentState, state, now);
+            if (delta.getSensorIndexes().length == 0 && delta.getActuatorIds().length == 0) {
+                return null;
+            }
+        }
+        String content = full ? "sensor data" : "changes";
+        byte[] message;
+        if (codec == WireCodec.BINARY) {
+            message = full ? BinaryCodec.encode(state) : BinaryCodec.encode(delta);
+            if (!steppedBySimulator) {
+                Logger.info("Node " + id + " sent " + message.length + " bytes of " + content + " to server.");
+            }
+        } else {
+            String json = (full ? state.toJson() : delta.toJson()).toString();
+            message = (json + "\n").getBytes(StandardCharsets.UTF_8);
+            if (!steppedBySimulator) {
+                Logger.info("Node " + id + " sent " + content + " to server." + json);
+            }
+        }
+        sequence = state.getSequence();
+        if (full) {
+            sentState = state;
+            fullStateSentAt = now;
+            sensorReportedAt = new long[state.getSensors().size()];
+            Arrays.fill(sensorReportedAt, now);
+        } else {
+            sentState = sentState.apply(delta);
+            for (int sensorIndex : delta.getSensorIndexes()) {
+                sensorReportedAt[sensorIndex] = now;
+            }
+        }
+        return message;
+    }
 
-        JSONArray sensorData = new JSONArray();
+    /**
+     * finds the sensors that have to be reported and the actuators that changed
+     *
+     * @param reported the state the server knows
+     * @param current  the current state
+     * @param now      the current time, in milliseconds since the epoch
+     * @return the changes, numbered like the current state
+     */
+    private SensorDelta createDelta(SensorData reported, SensorData current, long now) {
+        List<SensorReading> reportedSensors = reported.getSensors();
+        List<SensorReading> newSensors = current.getSensors();
+        int[] sensorIndexes = new int[newSensors.size()];
+        double[] sensorValues = new double[newSensors.size()];
+        int sensorCount = 0;
+        int i = 0;
         for (Sensor sensor : sensors) {
-            JSONObject sensorDataObj = new JSONObject();
-            sensorDataObj.put("type", sensor.getType());
-            sensorDataObj.put("value", sensor.getReading().getValue());
-            sensorDataObj.put("unit", sensor.getReading().getUnit());
-            sensorData.put(sensorDataObj);
+            if (sensor.shouldReport(reportedSensors.get(i).getValue(), now - sensorReportedAt[i])) {
+                sensorIndexes[sensorCount] = i;
+                sensorValues[sensorCount++] = newSensors.get(i).getValue();
+            }
+            i++;
+        }
+
+        List<ActuatorState> oldActuators = reported.getActuators();
+        List<ActuatorState> newActuators = current.getActuators();
+        int[] actuatorIds = new int[newActuators.size()];
+        boolean[] actuatorStates = new boolean[newActuators.size()];
+        int actuatorCount = 0;
+        for (i = 0; i < newActuators.size(); ++i) {
+            ActuatorState actuator = newActuators.get(i);
+            // the actuators of a node never change, so they are in the same order in both states
+            if (actuator.isOn() != oldActuators.get(i).isOn()) {
+                actuatorIds[actuatorCount] = actuator.getId();
+                actuatorStates[actuatorCount++] = actuator.isOn();
+            }
         }
-        sensorActuatorData.put("sensors", sensorData);
+        return new SensorDelta(id, current.getSequence(), Arrays.copyOf(sensorIndexes, sensorCount),
+                Arrays.copyOf(sensorValues, sensorCount), Arrays.copyOf(actuatorIds, actuatorCount),
+                Arrays.copyOf(actuatorStates, actuatorCount));
+    }
 
-        JSONArray actuatorData = new JSONArray();
+    /**
+     * collects the state of the node, which is sent to the server.
+     * both sensor readings and actuator states are being included
+     *
+     * @param sequence sequence number of the message
+     * @return the node's data, independent of the codec
+     */
+    private SensorData createSensorData(int sequence) {
+        int sensorCount = sensorBank.size();
+        List<SensorReading> sensorData = new ArrayList<>(sensorCount);
+        for (int slot = 0; slot < sensorCount; ++slot) {
+            // copied, the bank keeps changing the values and the sent state must not change with it
+            sensorData.add(new SensorReading(sensorBank.getType(slot), sensorBank.getValue(slot),
+                    sensorBank.getUnit(slot)));
+        }
+
+        List<ActuatorState> actuatorData = new ArrayList<>();
         for (Actuator actuator : actuators) {
-            JSONObject actuatorDataObj = new JSONObject();
-            actuatorDataObj.put("id", actuator.getId());
-            actuatorDataObj.put("type", actuator.getType());
-            actuatorDataObj.put("status", actuator.isOn() ? "on" : "off");
-            actuatorData.put(actuatorDataObj);
+            actuatorData.add(new ActuatorState(actuator.getId(), actuator.getType(), actuator.isOn()));
         }
-        sensorActuatorData.put("actuators", actuatorData);
-        return sensorActuatorData;
+        return new SensorData(id, sequence, sensorData, actuatorData);
     }
 
     private void addRandomNoiseToSensors() {
-        for (Sensor sensor : sensors) {
-            sensor.addRandomNoise();
-        }
+        sensorBank.addRandomNoise();
     }
 
     private void debugPrint() {
@@ -318,11 +594,7 @@ public class SensorActuatorNode implements ActuatorListener, CommunicationChanne
      * @param impact     The impact to apply
      */
     public void applyActuatorImpact(String sensorType, double impact) {
-        for (Sensor sensor : sensors) {
-            if (sensor.getType().equals(sensorType)) {
-                sensor.applyImpact(impact);
-            }
-        }
+        sensorBank.applyImpact(sensorType, impact);
     }
 
     /**
@@ -334,6 +606,15 @@ public class SensorActuatorNode implements ActuatorListener, CommunicationChanne
         return sensors;
     }
 
+    /**
+     * Get the values of all sensors of the node, in the same order as {@link #getSensors()}.
+     *
+     * @return The bank holding the sensor values
+     */
+    public SensorBank getSensorBank() {
+        return sensorBank;
+    }
+
     /**
      * Get all the actuators available on the node.
      *
@@ -375,71 +656,271 @@ public class SensorActuatorNode implements ActuatorListener, CommunicationChanne
 
     /**
      * connect the socket to the server and send the handshake message containing the nodes ID
-     * initialize input and output streams
+     * initialize input and output streams. if the server can't be reached, the node keeps trying in the background.
      *
      * @param serverAddress address of the server
      * @param portNumber    port number of the server
      */
     public void connectToServer(String serverAddress, int portNumber) {
-        try {
-            socket = new Socket(serverAddress, portNumber);
-            socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            socketWriter = new PrintWriter(socket.getOutputStream(), true);
-
-            // send handshake message
-            String handshakeMessage = "SENSOR:" + id;
-            socketWriter.println(handshakeMessage);
+        this.serverAddress = serverAddress;
+        this.serverPort = portNumber;
+        if (!openConnection()) {
+            reconnect();
+        }
+    }
 
-            Logger.info("Node " + getId() + " connected to " + serverAddress + ", " + portNumber);
+    /**
+     * opens the connection, sends the handshake and then the messages buffered while the node was disconnected
+     *
+     * @return true on success
+     */
+    private boolean openConnection() {
+        String address = serverAddress;
+        if (address == null) {
+            return false;
+        }
+        Socket newSocket = null;
+        try {
+            newSocket = new Socket(address, serverPort);
+            InputStream input = new BufferedInputStream(newSocket.getInputStream());
+            OutputStream output = newSocket.getOutputStream();
+            synchronized (this) {
+                if (serverAddress == null) {
+                    // stopped while connecting
+                    newSocket.close();
+                    return false;
+                }
+                socket = newSocket;
+                socketInput = input;
+                socketReader = new BufferedReader(new InputStreamReader(input));
+                socketWriter = new PrintWriter(output, true);
+
+                // send handshake message, the codec option is only added for the binary codec
+                String handshakeMessage = "SENSOR:" + id + codec.getHandshakeSuffix();
+                socketWriter.println(handshakeMessage);
+                sendBufferedMessages(output);
+                socketOutput = output;
+                // a new connection continues with the full state, the server may have lost what it knew
+                sentState = null;
+            }
+            Logger.info("Node " + getId() + " connected to " + address + ", " + serverPort);
 
             // begin listening to actuator commands
-            receiveActuatorUpdates();
+            receiveActuatorUpdates(newSocket, input, socketReader);
+            return true;
         } catch (IOException e) {
             Logger.error("Failed to connect node" + getId() + " to server:" + e.getMessage());
+            if (newSocket != null) {
+                connectionLost(newSocket);
+                closeQuietly(newSocket);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * sends the buffered messages in batches. messages are only dropped from the buffer once the batch holding
+     * them is flushed.
+     *
+     * @param output the stream of the new connection
+     * @throws IOException if writing fails, the messages not sent yet stay in the buffer
+     */
+    private synchronized void sendBufferedMessages(OutputStream output) throws IOException {
+        if (!dropDeltasWithoutFullState()) {
+            return;
+        }
+        int count = unsentMessages.writeTo(output, REPLAY_BATCH_SIZE);
+        Logger.info("Node " + id + " sent " + count + " buffered messages to the server.");
+    }
+
+    /**
+     * sends the buffered messages through the gateway, in batches, like after reconnecting on its own.
+     *
+     * @throws IOException if writing fails, the messages not sent yet stay in the buffer
+     */
+    synchronized void sendBufferedMessagesThroughGateway() throws IOException {
+        if (gateway == null || !dropDeltasWithoutFullState()) {
+            return;
+        }
+        int count = gateway.send(unsentMessages, REPLAY_BATCH_SIZE);
+        Logger.info("Node " + id + " sent " + count + " buffered messages through the gateway.");
+    }
+
+    /**
+     * drops the deltas at the start of the buffer, as the full state they follow was dropped when the buffer was
+     * full.
+     *
+     * @return true if there are buffered messages left to send
+     */
+    private synchronized boolean dropDeltasWithoutFullState() {
+        if (unsentMessages == null) {
+            return false;
+        }
+        byte[] oldest;
+        while ((oldest = unsentMessages.peek()) != null && !isFullState(oldest)) {
+            unsentMessages.removeOldest();
+        }
+        return !unsentMessages.isEmpty();
+    }
+
+    private boolean isFullState(byte[] message) {
+        if (codec == WireCodec.BINARY) {
+            return BinaryCodec.getType(message) == MessageType.SENSOR_DATA;
+        }
+        return !SensorDelta.isDeltaMessage(new String(message, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * forgets a connection that failed, and connects again if the node should still be connected. does nothing if
+     * the connection was already replaced.
+     *
+     * @param lostSocket the socket of the failed connection
+     */
+    private synchronized void connectionLost(Socket lostSocket) {
+        if (socket != lostSocket) {
+            return;
+        }
+        closeQuietly(lostSocket);
+        socket = null;
+        socketOutput = null;
+        socketWriter = null;
+        sentState = null;
+        if (serverAddress != null) {
+            Logger.error("Node " + id + " lost the connection to the server.");
+            reconnect();
+        }
+    }
+
+    /**
+     * tries to connect again in the background until it succeeds or the node is stopped. the delay doubles after
+     * every failed attempt, and every delay is a random part of it, so a fleet of nodes losing the server at the
+     * same time does not come back all at once.
+     */
+    private synchronized void reconnect() {
+        if (reconnecting || serverAddress == null) {
+            return;
         }
+        reconnecting = true;
+        Thread.ofVirtual().name("node-" + id + "-reconnect").start(() -> {
+            long maxDelay = MIN_RECONNECT_DELAY;
+            try {
+                while (serverAddress != null) {
+                    Thread.sleep(ThreadLocalRandom.current().nextLong(maxDelay + 1));
+                    if (openConnection()) {
+                        break;
+                    }
+                    maxDelay = Math.min(maxDelay * 2, MAX_RECONNECT_DELAY);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                synchronized (this) {
+                    reconnecting = false;
+                }
+            }
+        });
+    }
 
+    private void closeQuietly(Socket socketToClose) {
+        try {
+            socketToClose.close();
+        } catch (IOException e) {
+            Logger.error("Error closing connection to server: " + e.getMessage());
+        }
     }
 
     /**
-     * starts a thread which continuously listens to actuator commands being sent from the server
+     * lets the node talk to the server through a gateway, which carries many nodes over one connection and reads
+     * the actuator commands for all of them. the node uses the codec of the gateway.
+     *
+     * @param gateway the connected gateway
+     */
+    void attachToGateway(GatewayConnection gateway) {
+        synchronized (this) {
+            this.gateway = gateway;
+            this.codec = gateway.getCodec();
+            // a new connection starts with the full state
+            sentState = null;
+        }
+    }
+
+    /**
+     * starts a thread which continuously listens to actuator commands being sent from the server.
+     * it is a virtual thread, as it spends nearly all of its time waiting for commands, and a simulator may run many
+     * thousands of nodes.
      */
-    private void receiveActuatorUpdates() {
+    private void receiveActuatorUpdates(Socket connection, InputStream input, BufferedReader reader) {
         Logger.info("Receive actuator updates method reached.");
-        new Thread(() -> {
-            String message;
+        Thread.ofVirtual().name("node-" + id + "-commands").start(() -> {
             try {
-                while ((message = socketReader.readLine()) != null) {
-                    Logger.info("Sensor node " + id + " received actuator command: " + message);
-                    processActuatorCommand(message);
+                if (codec == WireCodec.BINARY) {
+                    byte[] frame;
+                    while ((frame = BinaryCodec.readFrame(input)) != null) {
+                        try {
+                            processActuatorCommand(BinaryCodec.decodeActuatorCommand(frame));
+                        } catch (IllegalArgumentException e) {
+                            Logger.error("Ignoring invalid actuator command: " + e.getMessage());
+                        }
+                    }
+                } else {
+                    String message;
+                    while ((message = reader.readLine()) != null) {
+                        Logger.info("Sensor node " + id + " received actuator command: " + message);
+                        try {
+                            processActuatorCommand(ActuatorCommand.fromJson(message));
+                        } catch (JSONException e) {
+                            Logger.error("Ignoring invalid actuator command: " + e.getMessage());
+                        }
+                    }
                 }
             } catch (IOException e) {
-                Logger.error("Error reading actuator update command from server: " + e.getMessage());
+                if (running && serverAddress != null) {
+                    Logger.error("Error reading actuator update command from server: " + e.getMessage());
+                }
             }
-        }).start();
+            // the server closed the connection, or it failed
+            connectionLost(connection);
+        });
     }
 
     /**
      * processes a received actuator command and changes the actuators status accordingly
      *
-     * @param message json string that contains the command
+     * @param command the received command
      */
-    private void processActuatorCommand(String message) {
-        JSONObject commandJSONObj = new JSONObject(message);
-        int actuatorID = commandJSONObj.getInt("actuator");
-        boolean actuatorStatus = commandJSONObj.getBoolean("status");
+    void processActuatorCommand(ActuatorCommand command) {
+        int actuatorID = command.getActuatorId();
+        boolean actuatorStatus = command.isOn();
+        if (getActuator(actuatorID) == null) {
+            Logger.error("Ignoring command for unknown actuator " + actuatorID + " on node " + id);
+            return;
+        }
         setActuator(actuatorID, actuatorStatus);
         Logger.info("CHANGED ACTUATOR STATUS of actuator: " + actuatorID + ", status: " + getActuator(actuatorID).isOn());
     }
 
     private void disconnectFromServer() {
+        Socket openSocket;
+        synchronized (this) {
+            // also stops connecting again
+            serverAddress = null;
+            openSocket = socket;
+            socket = null;
+            socketOutput = null;
+        }
+        if (openSocket == null) {
+            return;
+        }
         try {
+            // the socket is closed first: closing the reader would wait for the command thread, which is blocked
+            // reading from the socket
+            openSocket.close();
             if (socketReader != null) {
                 socketReader.close();
             }
             if (socketWriter != null) {
                 socketWriter.close();
             }
-            socket.close();
             Logger.info("Node " + id + " disconnected from the server.");
         } catch (IOException e) {
             Logger.error("Error closing connection to server: " + e.getMessage());
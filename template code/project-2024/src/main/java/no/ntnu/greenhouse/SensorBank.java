@@ -0,0 +1,276 @@
+package no.ntnu.greenhouse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+
+/**
+ * The state of many sensors, stored as one primitive array per property instead of one object per sensor.
+ * Every sensor is a slot, an index into the arrays. Sensor types are numbered, so finding the sensors of a type
+ * compares integers instead of strings. Stepping all sensors is a simple loop over the arrays, which the JIT can
+ * compile to vector instructions.
+ * {@link Sensor} and {@link SensorReading} objects handed out by a bank are views of a slot, changing the bank
+ * changes them and the other way round.
+ * Every node has a bank of its own, so nodes are stepped on different threads and at their own intervals without
+ * sharing any state. A bank is not thread safe. Sensors must be added before the bank is stepped from another
+ * thread.
+ */
+public final class SensorBank {
+  private static final int INITIAL_CAPACITY = 8;
+
+  private final List<String> typeNames = new ArrayList<>();
+  // derived from the given random numbers: Random updates its seed atomically on every call, which costs more
+  // than the rest of a step
+  private SplittableRandom random;
+
+  private int size;
+  private int[] typeIds;
+  private String[] units;
+  private double[] values;
+  private double[] minimums;
+  private double[] maximums;
+  // one percent of the value range, the largest noise of a single step
+  private double[] noiseAmplitudes;
+  private double[] deadbands;
+  private long[] maxSilenceMillis;
+  // random numbers of one step, drawn before the values are updated so that the update loop has no calls
+  private double[] noise;
+
+  /**
+   * Create an empty bank with its own random numbers.
+   */
+  public SensorBank() {
+    this(new Random());
+  }
+
+  /**
+   * Create an empty bank.
+   *
+   * @param random The random numbers used for the noise. With a seeded generator, the bank produces the same
+   *               values every time.
+   */
+  public SensorBank(Random random) {
+    setRandom(random);
+    allocate(INITIAL_CAPACITY);
+  }
+
+  /**
+   * Add a sensor.
+   *
+   * @param type    The type of the sensor. Examples: "temperature", "humidity"
+   * @param min     Minimum allowed value
+   * @param max     Maximum allowed value
+   * @param current The current (starting) value of the sensor
+   * @param unit    The measurement unit. Examples: "%", "C", "lux"
+   * @return The slot of the new sensor
+   */
+  public int add(String type, double min, double max, double current, String unit) {
+    if (min > max) {
+      throw new IllegalArgumentException("Minimum of a sensor can't be above its maximum");
+    }
+    if (size == values.length) {
+      allocate(size * 2);
+    }
+    int slot = size++;
+    typeIds[slot] = getOrCreateTypeId(type);
+    units[slot] = unit;
+    minimums[slot] = min;
+    maximums[slot] = max;
+    noiseAmplitudes[slot] = (max - min) / 100.0;
+    maxSilenceMillis[slot] = Sensor.DEFAULT_MAX_SILENCE_MILLIS;
+    setValue(slot, current);
+    return slot;
+  }
+
+  /**
+   * Create a view of a slot.
+   *
+   * @param slot The slot of the sensor
+   * @return A sensor reading and writing the slot
+   */
+  public Sensor getSensor(int slot) {
+    checkSlot(slot);
+    return new Sensor(this, slot);
+  }
+
+  /**
+   * Get the number of sensors in the bank.
+   *
+   * @return The number of sensors
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Set the random numbers used for the noise.
+   *
+   * @param random The random number generator
+   */
+  public void setRandom(Random random) {
+    this.random = new SplittableRandom(random.nextLong());
+  }
+
+  /**
+   * Get the number of a sensor type.
+   *
+   * @param type The type, for example "temperature"
+   * @return The number of the type, or -1 if no sensor in the bank has this type
+   */
+  public int getTypeId(String type) {
+    return typeNames.indexOf(type);
+  }
+
+  /**
+   * Add a random noise to all sensors, in the range of -1% to +1% of the value range of every sensor.
+   */
+  public void addRandomNoise() {
+    for (int i = 0; i < size; ++i) {
+      noise[i] = random.nextDouble() * 2 - 1;
+    }
+    final double[] values = this.values;
+    for (int i = 0; i < size; ++i) {
+      values[i] = clamp(roundToTwoDecimals(values[i] + noise[i] * noiseAmplitudes[i]), minimums[i], maximums[i]);
+    }
+  }
+
+  /**
+   * Add a random noise to one sensor.
+   *
+   * @param slot The slot of the sensor
+   */
+  public void addRandomNoise(int slot) {
+    setValue(slot, values[slot] + (random.nextDouble() * 2 - 1) * noiseAmplitudes[slot]);
+  }
+
+  /**
+   * Apply an external impact (from an actuator) to all sensors of one type.
+   *
+   * @param type   The type of the affected sensors
+   * @param impact The delta for the values
+   */
+  public void applyImpact(String type, double impact) {
+    int typeId = getTypeId(type);
+    if (typeId >= 0) {
+      applyImpact(typeId, impact);
+    }
+  }
+
+  /**
+   * Apply an external impact (from an actuator) to all sensors of one type.
+   *
+   * @param typeId The number of the type, see {@link #getTypeId(String)}
+   * @param impact The delta for the values
+   */
+  public void applyImpact(int typeId, double impact) {
+    final double[] values = this.values;
+    for (int i = 0; i < size; ++i) {
+      if (typeIds[i] == typeId) {
+        values[i] = clamp(roundToTwoDecimals(values[i] + impact), minimums[i], maximums[i]);
+      }
+    }
+  }
+
+  public String getType(int slot) {
+    return typeNames.get(typeIds[slot]);
+  }
+
+  public String getUnit(int slot) {
+    return units[slot];
+  }
+
+  public double getValue(int slot) {
+    return values[slot];
+  }
+
+  public double getMin(int slot) {
+    return minimums[slot];
+  }
+
+  public double getMax(int slot) {
+    return maximums[slot];
+  }
+
+  /**
+   * Set the value of a sensor, rounded to two decimals and kept within the allowed range.
+   *
+   * @param slot     The slot of the sensor
+   * @param newValue The new value
+   */
+  public void setValue(int slot, double newValue) {
+    values[slot] = clamp(roundToTwoDecimals(newValue), minimums[slot], maximums[slot]);
+  }
+
+  /**
+   * Set the value of a sensor as it is, without rounding or range check.
+   *
+   * @param slot     The slot of the sensor
+   * @param newValue The new value
+   */
+  void setRawValue(int slot, double newValue) {
+    values[slot] = newValue;
+  }
+
+  double getDeadband(int slot) {
+    return deadbands[slot];
+  }
+
+  long getMaxSilenceMillis(int slot) {
+    return maxSilenceMillis[slot];
+  }
+
+  void setReporting(int slot, double deadband, long maxSilenceMillis) {
+    this.deadbands[slot] = deadband;
+    this.maxSilenceMillis[slot] = maxSilenceMillis;
+  }
+
+  private int getOrCreateTypeId(String type) {
+    int typeId = typeNames.indexOf(type);
+    if (typeId < 0) {
+      typeId = typeNames.size();
+      typeNames.add(type);
+    }
+    return typeId;
+  }
+
+  private void checkSlot(int slot) {
+    if (slot < 0 || slot >= size) {
+      throw new IndexOutOfBoundsException("No sensor in slot " + slot);
+    }
+  }
+
+  private void allocate(int capacity) {
+    if (values == null) {
+      typeIds = new int[capacity];
+      units = new String[capacity];
+      values = new double[capacity];
+      minimums = new double[capacity];
+      maximums = new double[capacity];
+      noiseAmplitudes = new double[capacity];
+      deadbands = new double[capacity];
+      maxSilenceMillis = new long[capacity];
+      noise = new double[capacity];
+    } else {
+      typeIds = Arrays.copyOf(typeIds, capacity);
+      units = Arrays.copyOf(units, capacity);
+      values = Arrays.copyOf(values, capacity);
+      minimums = Arrays.copyOf(minimums, capacity);
+      maximums = Arrays.copyOf(maximums, capacity);
+      noiseAmplitudes = Arrays.copyOf(noiseAmplitudes, capacity);
+      deadbands = Arrays.copyOf(deadbands, capacity);
+      maxSilenceMillis = Arrays.copyOf(maxSilenceMillis, capacity);
+      noise = Arrays.copyOf(noise, capacity);
+    }
+  }
+
+  // floor instead of Math.round, which has no vector instruction; the result is the same for sensor values
+  private static double roundToTwoDecimals(double value) {
+    return Math.floor(value * 100.0 + 0.5) / 100.0;
+  }
+
+  private static double clamp(double value, double min, double max) {
+    return Math.min(Math.max(value, min), max);
+  }
+}
@@ -4,11 +4,16 @@ import java.util.Objects;
 
 /**
  * Represents one sensor reading (value).
+ * A reading is either a value of its own, for example a received one, or the live value of a sensor in a
+ * {@link SensorBank}.
  */
 public class SensorReading {
   private final String type;
   private double value;
   private final String unit;
+  // the bank holding the value, null if the reading has a value of its own
+  private final SensorBank bank;
+  private final int slot;
 
   /**
    * Create a new sensor reading.
@@ -21,6 +26,21 @@ public class SensorReading {
     this.type = type;
     this.value = value;
     this.unit = unit;
+    this.bank = null;
+    this.slot = -1;
+  }
+
+  /**
+   * Create a view of the value of a sensor in a bank.
+   *
+   * @param bank The bank holding the sensor
+   * @param slot The slot of the sensor
+   */
+  SensorReading(SensorBank bank, int slot) {
+    this.type = bank.getType(slot);
+    this.unit = bank.getUnit(slot);
+    this.bank = bank;
+    this.slot = slot;
   }
 
   public String getType() {
@@ -28,7 +48,7 @@ public class SensorReading {
   }
 
   public double getValue() {
-    return value;
+    return bank != null ? bank.getValue(slot) : value;
   }
 
   public String getUnit() {
@@ -36,12 +56,16 @@ public class SensorReading {
   }
 
   public void setValue(double newValue) {
-    this.value = newValue;
+    if (bank != null) {
+      bank.setRawValue(slot, newValue);
+    } else {
+      this.value = newValue;
+    }
   }
 
   @Override
   public String toString() {
-    return "{ type=" + type + ", value=" + value + ", unit=" + unit + " }";
+    return "{ type=" + type + ", value=" + getValue() + ", unit=" + unit + " }";
   }
 
   /**
@@ -50,7 +74,7 @@ public class SensorReading {
    * @return The sensor reading and the unit
    */
   public String getFormatted() {
-    return value + unit;
+    return getValue() + unit;
   }
 
   @Override
@@ -62,13 +86,13 @@ public class SensorReading {
       return false;
     }
     SensorReading that = (SensorReading) o;
-    return Double.compare(value, that.value) == 0
+    return Double.compare(getValue(), that.getValue()) == 0
         && Objects.equals(type, that.type)
         && Objects.equals(unit, that.unit);
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(type, value, unit);
+    return Objects.hash(type, getValue(), unit);
   }
 }
@@ -0,0 +1,44 @@
+package no.ntnu.greenhouse;
+
+/**
+ * The time source of a simulated greenhouse. Nodes ask the clock for the current time and schedule their sensor
+ * readings on it, so the same simulation can run in real time or, with a {@link VirtualClock}, as fast as possible.
+ */
+public interface SimulationClock {
+
+  /**
+   * A periodic task scheduled on a clock.
+   */
+  interface Task {
+    /**
+     * Stop the task. A run that already started is finished.
+     */
+    void cancel();
+  }
+
+  /**
+   * Get the clock using the real time, with the sensor readings of all nodes run by a shared thread pool.
+   *
+   * @return The real time clock
+   */
+  static SimulationClock system() {
+    return SystemClock.INSTANCE;
+  }
+
+  /**
+   * Get the current time of the clock.
+   *
+   * @return Milliseconds since the epoch
+   */
+  long currentTimeMillis();
+
+  /**
+   * Run a task periodically.
+   *
+   * @param task         The task
+   * @param initialDelay Delay before the first run, in milliseconds
+   * @param period       Time between the start of two runs, in milliseconds
+   * @return The scheduled task
+   */
+  Task scheduleAtFixedRate(Runnable task, long initialDelay, long period);
+}
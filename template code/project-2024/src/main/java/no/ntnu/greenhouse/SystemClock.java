@@ -0,0 +1,24 @@
+package no.ntnu.greenhouse;
+
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * The real time, with the tasks run by the {@link SensingScheduler}.
+ */
+final class SystemClock implements SimulationClock {
+  static final SystemClock INSTANCE = new SystemClock();
+
+  private SystemClock() {
+  }
+
+  @Override
+  public long currentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+
+  @Override
+  public Task scheduleAtFixedRate(Runnable task, long initialDelay, long period) {
+    ScheduledFuture<?> future = SensingScheduler.scheduleAtFixedRate(task, initialDelay, period);
+    return () -> SensingScheduler.cancel(future);
+  }
+}
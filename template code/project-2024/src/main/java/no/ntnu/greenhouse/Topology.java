@@ -0,0 +1,197 @@
+package no.ntnu.greenhouse;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The layout of a simulated greenhouse: which server the nodes connect to, and which nodes there are.
+ * Nodes are described in classes, every class has a number of identical nodes. A topology is read from a json
+ * file, for example:
+ * <pre>
+ * {
+ *   "server": {"host": "localhost", "port": 1238},
+ *   "nodes": [
+ *     {"name": "climate", "count": 500, "temperature": 1, "humidity": 1, "windows": 1, "fans": 1,
+ *      "intervalMillis": 5000},
+ *     {"name": "heating", "count": 20, "temperature": 2, "heaters": 1, "intervalMillis": 10000}
+ *   ]
+ * }
+ * </pre>
+ * Every field except the list of nodes and the count of a class is optional.
+ */
+public class Topology {
+    public static final String DEFAULT_HOST = "localhost";
+    public static final int DEFAULT_PORT = 1238;
+
+    private final String host;
+    private final int port;
+    private final List<NodeClass> nodeClasses;
+
+    /**
+     * Create a topology.
+     *
+     * @param host        Address of the server
+     * @param port        TCP port of the server
+     * @param nodeClasses The classes of nodes
+     */
+    public Topology(String host, int port, List<NodeClass> nodeClasses) {
+        if (port <= 0 || port > 65535) {
+            throw new IllegalArgumentException("Invalid server port: " + port);
+        }
+        this.host = host;
+        this.port = port;
+        this.nodeClasses = List.copyOf(nodeClasses);
+    }
+
+    /**
+     * Get the topology of the default greenhouse, two small nodes on a local server.
+     *
+     * @return The default topology
+     */
+    public static Topology createDefault() {
+        List<NodeClass> nodeClasses = new ArrayList<>();
+        nodeClasses.add(new NodeClass("default-1", 1, 1, 1, 1, 1, 0, NodeClass.DEFAULT_INTERVAL_MILLIS));
+        nodeClasses.add(new NodeClass("default-2", 1, 1, 0, 0, 2, 1, NodeClass.DEFAULT_INTERVAL_MILLIS));
+        return new Topology(DEFAULT_HOST, DEFAULT_PORT, nodeClasses);
+    }
+
+    /**
+     * Read a topology from a json file.
+     *
+     * @param file The file
+     * @return The topology
+     * @throws IOException              If the file can't be read
+     * @throws IllegalArgumentException If the file is not a valid topology
+     */
+    public static Topology readFrom(Path file) throws IOException {
+        return fromJson(Files.readString(file));
+    }
+
+    /**
+     * Read a topology from its json representation.
+     *
+     * @param json The json string
+     * @return The topology
+     * @throws IllegalArgumentException If the json is not a valid topology
+     */
+    public static Topology fromJson(String json) {
+        try {
+            JSONObject topology = new JSONObject(json);
+            JSONObject server = topology.optJSONObject("server");
+            String host = server != null ? server.optString("host", DEFAULT_HOST) : DEFAULT_HOST;
+            int port = server != null ? server.optInt("port", DEFAULT_PORT) : DEFAULT_PORT;
+
+            JSONArray nodes = topology.getJSONArray("nodes");
+            List<NodeClass> nodeClasses = new ArrayList<>();
+            for (int i = 0; i < nodes.length(); ++i) {
+                JSONObject node = nodes.getJSONObject(i);
+                nodeClasses.add(new NodeClass(node.optString("name", "class-" + (i + 1)), node.getInt("count"),
+                        node.optInt("temperature"), node.optInt("humidity"), node.optInt("windows"),
+                        node.optInt("fans"), node.optInt("heaters"),
+                        node.optLong("intervalMillis", NodeClass.DEFAULT_INTERVAL_MILLIS)));
+            }
+            return new Topology(host, port, nodeClasses);
+        } catch (JSONException e) {
+            throw new IllegalArgumentException("Invalid topology: " + e.getMessage(), e);
+        }
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public List<NodeClass> getNodeClasses() {
+        return Collections.unmodifiableList(nodeClasses);
+    }
+
+    /**
+     * A number of identical nodes: the same sensors, actuators and sensing interval.
+     */
+    public static class NodeClass {
+        public static final long DEFAULT_INTERVAL_MILLIS = 5000;
+
+        private final String name;
+        private final int count;
+        private final int temperatureSensors;
+        private final int humiditySensors;
+        private final int windows;
+        private final int fans;
+        private final int heaters;
+        private final long intervalMillis;
+
+        /**
+         * Create a class of nodes.
+         *
+         * @param name               Name of the class, used in the log
+         * @param count              Number of nodes
+         * @param temperatureSensors Number of temperature sensors on every node
+         * @param humiditySensors    Number of humidity sensors on every node
+         * @param windows            Number of windows on every node
+         * @param fans               Number of fans on every node
+         * @param heaters            Number of heaters on every node
+         * @param intervalMillis     Time between two sensor readings of a node, in milliseconds
+         */
+        public NodeClass(String name, int count, int temperatureSensors, int humiditySensors, int windows,
+                         int fans, int heaters, long intervalMillis) {
+            if (count < 0 || temperatureSensors < 0 || humiditySensors < 0 || windows < 0 || fans < 0
+                    || heaters < 0) {
+                throw new IllegalArgumentException("Counts of node class " + name + " can't be negative");
+            }
+            if (intervalMillis <= 0) {
+                throw new IllegalArgumentException("Sensing interval of node class " + name + " must be positive");
+            }
+            this.name = name;
+            this.count = count;
+            this.temperatureSensors = temperatureSensors;
+            this.humiditySensors = humiditySensors;
+            this.windows = windows;
+            this.fans = fans;
+            this.heaters = heaters;
+            this.intervalMillis = intervalMillis;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public int getTemperatureSensors() {
+            return temperatureSensors;
+        }
+
+        public int getHumiditySensors() {
+            return humiditySensors;
+        }
+
+        public int getWindows() {
+            return windows;
+        }
+
+        public int getFans() {
+            return fans;
+        }
+
+        public int getHeaters() {
+            return heaters;
+        }
+
+        public long getIntervalMillis() {
+            return intervalMillis;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package no.ntnu.greenhouse;
+
+import java.util.PriorityQueue;
+
+import no.ntnu.tools.Logger;
+
+/**
+ * A clock which only moves when it is told to. All scheduled tasks run on the thread advancing the clock, one after
+ * the other, in the order of their due time (and in the order they were scheduled when due at the same time).
+ * Together with seeded random numbers, a simulation on this clock does exactly the same every time it runs, and it
+ * runs as fast as the tasks allow: a simulated day of a greenhouse takes seconds instead of a day.
+ */
+public class VirtualClock implements SimulationClock {
+  private final PriorityQueue<ScheduledTask> queue = new PriorityQueue<>();
+  private long now;
+  private long scheduledCount;
+
+  /**
+   * A task waiting in the queue of the clock.
+   */
+  private class ScheduledTask implements Task, Comparable<ScheduledTask> {
+    private final Runnable task;
+    private final long period;
+    // breaks ties between tasks due at the same time
+    private final long order;
+    private long dueTime;
+    private boolean cancelled;
+
+    private ScheduledTask(Runnable task, long dueTime, long period, long order) {
+      this.task = task;
+      this.dueTime = dueTime;
+      this.period = period;
+      this.order = order;
+    }
+
+    @Override
+    public void cancel() {
+      synchronized (VirtualClock.this) {
+        cancelled = true;
+        queue.remove(this);
+      }
+    }
+
+    @Override
+    public int compareTo(ScheduledTask other) {
+      int byTime = Long.compare(dueTime, other.dueTime);
+      return byTime != 0 ? byTime : Long.compare(order, other.order);
+    }
+  }
+
+  /**
+   * Create a virtual clock.
+   *
+   * @param startMillis The time the clock starts at, in milliseconds since the epoch
+   */
+  public VirtualClock(long startMillis) {
+    this.now = startMillis;
+  }
+
+  @Override
+  public synchronized long currentTimeMillis() {
+    return now;
+  }
+
+  @Override
+  public synchronized Task scheduleAtFixedRate(Runnable task, long initialDelay, long period) {
+    if (initialDelay < 0 || period <= 0) {
+      throw new IllegalArgumentException("Invalid delay or period");
+    }
+    ScheduledTask scheduled = new ScheduledTask(task, now + initialDelay, period, scheduledCount++);
+    queue.add(scheduled);
+    return scheduled;
+  }
+
+  /**
+   * Move the clock forward, running every task that gets due on the way on the calling thread.
+   *
+   * @param millis How far to move the clock, in milliseconds
+   * @return Number of task runs
+   */
+  public long advance(long millis) {
+    long end;
+    synchronized (this) {
+      end = now + millis;
+    }
+    long runs = 0;
+    ScheduledTask next;
+    while ((next = nextDueTask(end)) != null) {
+      try {
+        next.task.run();
+      } catch (RuntimeException e) {
+        Logger.error("Simulated task failed: " + e.getMessage());
+      }
+      runs++;
+      synchronized (this) {
+        if (!next.cancelled) {
+          next.dueTime += next.period;
+          queue.add(next);
+        }
+      }
+    }
+    synchronized (this) {
+      now = end;
+    }
+    return runs;
+  }
+
+  /**
+   * Take the next task due before the end of the step, and move the clock to its due time.
+   */
+  private synchronized ScheduledTask nextDueTask(long end) {
+    ScheduledTask next = queue.peek();
+    if (next == null || next.dueTime > end) {
+      return null;
+    }
+    queue.poll();
+    now = next.dueTime;
+    return next;
+  }
+}
@@ -2,7 +2,6 @@ package no.ntnu.gui.common;
 
 import java.util.HashMap;
 import java.util.Map;
-import javafx.application.Platform;
 import javafx.beans.property.SimpleBooleanProperty;
 import javafx.beans.property.SimpleStringProperty;
 import javafx.scene.Node;
@@ -22,6 +21,7 @@ import no.ntnu.greenhouse.ActuatorCollection;
 public class ActuatorPane extends TitledPane {
   private final Map<Actuator, SimpleStringProperty> actuatorValue = new HashMap<>();
   private final Map<Actuator, SimpleBooleanProperty> actuatorActive = new HashMap<>();
+  private final GuiUpdateBuffer updateBuffer = GuiUpdateBuffer.getInstance();
 
   /**
    * Create an actuator pane.
@@ -79,7 +79,8 @@ public class ActuatorPane extends TitledPane {
   }
 
   /**
-   * An actuator has been updated, update the corresponding GUI parts.
+   * An actuator has been updated, update the corresponding GUI parts. Can be called from any
+   * thread, the controls change when the next frame is drawn.
    *
    * @param actuator The actuator which has been updated
    */
@@ -90,9 +91,7 @@ public class ActuatorPane extends TitledPane {
       throw new IllegalStateException("Can't update GUI for an unknown actuator: " + actuator);
     }
 
-    Platform.runLater(() -> {
-      actuatorText.set(generateActuatorText(actuator));
-      actuatorSelected.set(actuator.isOn());
-    });
+    updateBuffer.set(actuatorText, generateActuatorText(actuator));
+    updateBuffer.set(actuatorSelected, actuator.isOn());
   }
 }
@@ -0,0 +1,164 @@
+package no.ntnu.gui.common;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import javafx.animation.AnimationTimer;
+import javafx.beans.value.WritableValue;
+import no.ntnu.tools.Logger;
+
+/**
+ * Collects the changes of GUI values, such as the text of a sensor label, and applies them
+ * once per frame. Posting every change with Platform.runLater floods the queue of the JavaFX
+ * application thread when many nodes send data, and the GUI falls seconds behind. The buffer
+ * keeps only the latest value of every target instead, and an AnimationTimer writes all
+ * pending values when the next frame is drawn.
+ * Values can be set from any thread. Every few seconds, the buffer logs how many updates it
+ * applied, how many were coalesced (replaced by a newer value before being shown) and how
+ * many were dropped (the value was already shown).
+ * Views drawn by code, such as charts, can ask to be redrawn in the next frame as well. They
+ * are not values, so they are not counted.
+ */
+public final class GuiUpdateBuffer {
+  private static final long REPORT_INTERVAL_NANOS = 10_000_000_000L;
+  private static GuiUpdateBuffer instance;
+
+  private final Map<WritableValue<?>, Object> pending = new ConcurrentHashMap<>();
+  // redraws requested since the last frame
+  private final Queue<Runnable> redraws = new ConcurrentLinkedQueue<>();
+  // counted by the threads setting values
+  private final LongAdder coalesced = new LongAdder();
+  // only used on the JavaFX application thread
+  private long applied;
+  private long dropped;
+  private long lastReport;
+  private long reportedApplied;
+  private long reportedCoalesced;
+  private long reportedDropped;
+
+  private GuiUpdateBuffer() {
+    new AnimationTimer() {
+      @Override
+      public void handle(long now) {
+        applyPending();
+        runRedraws();
+        if (now - lastReport >= REPORT_INTERVAL_NANOS) {
+          report();
+          lastReport = now;
+        }
+      }
+    }.start();
+  }
+
+  /**
+   * Get the buffer shared by all panes. The first call must be made on the JavaFX application
+   * thread, as it starts the timer.
+   *
+   * @return The buffer
+   */
+  public static synchronized GuiUpdateBuffer getInstance() {
+    if (instance == null) {
+      instance = new GuiUpdateBuffer();
+    }
+    return instance;
+  }
+
+  /**
+   * Set a value when the next frame is drawn. An earlier value for the same target which has
+   * not been shown yet is replaced.
+   *
+   * @param target The value to set, for example a property a label is bound to
+   * @param value  The new value, not null
+   * @param <T>    Type of the value
+   */
+  public <T> void set(WritableValue<T> target, T value) {
+    if (pending.put(target, value) != null) {
+      coalesced.increment();
+    }
+  }
+
+  /**
+   * Run a redraw on the JavaFX application thread when the next frame is drawn, after the
+   * pending values are set. Every request runs the redraw once, so the caller should keep a
+   * dirty flag of its own and only ask when it is not set yet.
+   *
+   * @param redraw The redraw
+   */
+  public void requestRedraw(Runnable redraw) {
+    redraws.add(redraw);
+  }
+
+  /**
+   * Get the number of updates which were replaced by a newer value before being shown.
+   *
+   * @return The number of coalesced updates
+   */
+  public long getCoalescedCount() {
+    return coalesced.sum();
+  }
+
+  /**
+   * Get the number of updates which were not applied because the target already had the value.
+   * Only read this on the JavaFX application thread.
+   *
+   * @return The number of dropped updates
+   */
+  public long getDroppedCount() {
+    return dropped;
+  }
+
+  /**
+   * Get the number of updates which were applied. Only read this on the JavaFX application
+   * thread.
+   *
+   * @return The number of applied updates
+   */
+  public long getAppliedCount() {
+    return applied;
+  }
+
+  @SuppressWarnings("unchecked")
+  private void applyPending() {
+    for (Map.Entry<WritableValue<?>, Object> entry : pending.entrySet()) {
+      WritableValue<Object> target = (WritableValue<Object>) entry.getKey();
+      Object value = entry.getValue();
+      // a value set in the meantime stays for the next frame
+      if (!pending.remove(target, value)) {
+        continue;
+      }
+      if (Objects.equals(target.getValue(), value)) {
+        dropped++;
+      } else {
+        target.setValue(value);
+        applied++;
+      }
+    }
+  }
+
+  private void runRedraws() {
+    // redraws requested by these wait for the next frame
+    for (int i = redraws.size(); i > 0; --i) {
+      Runnable redraw = redraws.poll();
+      if (redraw == null) {
+        break;
+      }
+      redraw.run();
+    }
+  }
+
+  private void report() {
+    long coalescedCount = coalesced.sum();
+    if (applied > reportedApplied || coalescedCount > reportedCoalesced
+        || dropped > reportedDropped) {
+      Logger.info("GUI updates: " + (applied - reportedApplied) + " applied, "
+          + (coalescedCount - reportedCoalesced) + " coalesced, "
+          + (dropped - reportedDropped) + " dropped");
+    }
+    reportedApplied = applied;
+    reportedCoalesced = coalescedCount;
+    reportedDropped = dropped;
+  }
+}
@@ -18,6 +18,7 @@ import no.ntnu.tools.Logger;
 public class SensorPane extends TitledPane {
   private final List<SimpleStringProperty> sensorProps = new ArrayList<>();
   private final VBox contentBox = new VBox();
+  private final GuiUpdateBuffer updateBuffer = GuiUpdateBuffer.getInstance();
 
   /**
    * Create a sensor pane.
@@ -55,7 +56,8 @@ public class SensorPane extends TitledPane {
   }
 
   /**
-   * Update the GUI according to the changes in sensor data.
+   * Update the GUI according to the changes in sensor data. Can be called from any thread, the
+   * labels change when the next frame is drawn.
    *
    * @param sensors The sensor data that has been updated
    */
@@ -79,6 +81,10 @@ public class SensorPane extends TitledPane {
   private Label createAndRememberSensorLabel(SensorReading sensor) {
     SimpleStringProperty props = new SimpleStringProperty(generateSensorText(sensor));
     sensorProps.add(props);
+    return createSensorLabel(props);
+  }
+
+  private static Label createSensorLabel(SimpleStringProperty props) {
     Label label = new Label();
     label.textProperty().bind(props);
     return label;
@@ -90,11 +96,13 @@ public class SensorPane extends TitledPane {
 
   private void updateSensorLabel(SensorReading sensor, int index) {
     if (sensorProps.size() > index) {
-      SimpleStringProperty props = sensorProps.get(index);
-      Platform.runLater(() -> props.set(generateSensorText(sensor)));
+      updateBuffer.set(sensorProps.get(index), generateSensorText(sensor));
     } else {
       Logger.info("Adding sensor[" + index + "]");
-      Platform.runLater(() -> contentBox.getChildren().add(createAndRememberSensorLabel(sensor)));
+      // remembered right away, so the next update does not add the label again
+      SimpleStringProperty props = new SimpleStringProperty(generateSensorText(sensor));
+      sensorProps.add(props);
+      Platform.runLater(() -> contentBox.getChildren().add(createSensorLabel(props)));
     }
   }
 }
@@ -1,47 +1,65 @@
 package no.ntnu.gui.controlpanel;
 
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javafx.animation.PauseTransition;
 import javafx.application.Application;
 import javafx.application.Platform;
+import javafx.beans.property.ReadOnlyObjectWrapper;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
 import javafx.geometry.Pos;
 import javafx.scene.Scene;
 import javafx.scene.control.Label;
-import javafx.scene.control.Tab;
-import javafx.scene.control.TabPane;
+import javafx.scene.control.SplitPane;
+import javafx.scene.control.TableColumn;
+import javafx.scene.control.TableView;
+import javafx.scene.control.TitledPane;
 import javafx.scene.layout.VBox;
 import javafx.stage.Stage;
 import javafx.util.Duration;
 import no.ntnu.controlpanel.CommunicationChannel;
 import no.ntnu.controlpanel.ControlPanelLogic;
+import no.ntnu.controlpanel.ReadingHistory;
 import no.ntnu.controlpanel.SensorActuatorNodeInfo;
 import no.ntnu.greenhouse.Actuator;
 import no.ntnu.greenhouse.SensorReading;
 import no.ntnu.gui.common.ActuatorPane;
+import no.ntnu.gui.common.GuiUpdateBuffer;
 import no.ntnu.gui.common.SensorPane;
 import no.ntnu.listeners.common.CommunicationChannelListener;
 import no.ntnu.listeners.controlpanel.GreenhouseEventListener;
+import no.ntnu.protocol.SensorHistory;
 import no.ntnu.tools.Logger;
 
 /**
  * Run a control panel with a graphical user interface (GUI), with JavaFX.
+ * All nodes are listed in a table with one row per node, which only renders the visible rows.
+ * The sensor and actuator panes are only built for the node selected in the table, so the
+ * panel can watch thousands of nodes. For the selected node, the trends of its sensors are
+ * shown as well, starting with the readings of the last hour recorded by the server.
  */
 public class ControlPanelApplication extends Application implements GreenhouseEventListener,
     CommunicationChannelListener {
   private static ControlPanelLogic logic;
-  private static final int WIDTH = 500;
-  private static final int HEIGHT = 400;
+  private static final int WIDTH = 800;
+  private static final int HEIGHT = 500;
+  private static final double FLEET_TABLE_SHARE = 0.5;
+  private static final double ID_COLUMN_WIDTH = 60;
   private static CommunicationChannel channel;
 
-  private TabPane nodeTabPane;
   private Scene mainScene;
-  private final Map<Integer, SensorPane> sensorPanes = new HashMap<>();
-  private final Map<Integer, ActuatorPane> actuatorPanes = new HashMap<>();
-  private final Map<Integer, SensorActuatorNodeInfo> nodeInfos = new HashMap<>();
-  private final Map<Integer, Tab> nodeTabs = new HashMap<>();
+  private GuiUpdateBuffer updateBuffer;
+  // every known node, updated by the thread receiving the data
+  private final Map<Integer, NodeState> nodes = new ConcurrentHashMap<>();
+  // rows of the fleet table, only changed on the JavaFX application thread
+  private final ObservableList<NodeState> rows = FXCollections.observableArrayList();
+  private SplitPane fleetView;
+  private final VBox detailBox = new VBox();
+  // panes of the selected node, null when no node is selected
+  private volatile NodeDetail detail;
 
   /**
    * Application entrypoint for the GUI of a control panel.
@@ -75,6 +93,7 @@ public class ControlPanelApplication extends Application implements GreenhouseEv
     mainScene = new Scene(createEmptyContent(), WIDTH, HEIGHT);
     stage.setScene(mainScene);
     stage.show();
+    updateBuffer = GuiUpdateBuffer.getInstance();
     logic.addListener(this);
     logic.setCommunicationChannelListener(this);
 
@@ -93,39 +112,67 @@ public class ControlPanelApplication extends Application implements GreenhouseEv
 
   @Override
   public void onNodeAdded(SensorActuatorNodeInfo nodeInfo) {
-    Platform.runLater(() -> addNodeTab(nodeInfo));
+    NodeState node = new NodeState(nodeInfo);
+    if (nodes.putIfAbsent(nodeInfo.getId(), node) != null) {
+      Logger.info("Duplicate node spawned, ignore it");
+      return;
+    }
+    Platform.runLater(() -> addNodeRow(node));
   }
 
   @Override
   public void onNodeRemoved(int nodeId) {
-    Tab nodeTab = nodeTabs.get(nodeId);
-    if (nodeTab != null) {
+    NodeState node = nodes.remove(nodeId);
+    if (node != null) {
       Platform.runLater(() -> {
-        removeNodeTab(nodeId, nodeTab);
-        forgetNodeInfo(nodeId);
-        if (nodeInfos.isEmpty()) {
-          removeNodeTabPane();
+        rows.remove(node);
+        if (rows.isEmpty()) {
+          removeFleetView();
         }
       });
       Logger.info("Node " + nodeId + " removed");
     } else {
-      Logger.error("Can't remove node " + nodeId + ", there is no Tab for it");
+      Logger.error("Can't remove node " + nodeId + ", it is not known");
     }
   }
 
-  private void removeNodeTabPane() {
+  private void removeFleetView() {
     mainScene.setRoot(createEmptyContent());
-    nodeTabPane = null;
+    fleetView = null;
   }
 
   @Override
   public void onSensorData(int nodeId, List<SensorReading> sensors) {
-    Logger.info("Sensor data from node " + nodeId);
-    SensorPane sensorPane = sensorPanes.get(nodeId);
-    if (sensorPane != null) {
-      sensorPane.update(sensors);
-    } else {
-      Logger.error("No sensor section for node " + nodeId);
+    NodeState node = nodes.get(nodeId);
+    if (node == null) {
+      Logger.error("Sensor data from unknown node " + nodeId);
+      return;
+    }
+    node.setSensors(sensors, System.currentTimeMillis());
+    updateBuffer.set(node.sensorSummaryProperty(), node.createSensorSummary());
+    NodeDetail shownDetail = detail;
+    if (shownDetail != null && shownDetail.nodeId == nodeId) {
+      shownDetail.sensorPane.update(sensors);
+      for (TrendChart chart : shownDetail.trendCharts) {
+        chart.requestDraw();
+      }
+    }
+  }
+
+  @Override
+  public void onSensorHistory(int nodeId, SensorHistory history) {
+    NodeState node = nodes.get(nodeId);
+    ReadingHistory[] histories = node != null ? node.getHistories() : null;
+    int sensorIndex = history.getSensorIndex();
+    if (histories == null || history.isRollup() || sensorIndex < 0
+        || sensorIndex >= histories.length) {
+      return;
+    }
+    histories[sensorIndex].addRecorded(history.getTimestamps(), history.getValues());
+    NodeDetail shownDetail = detail;
+    if (shownDetail != null && shownDetail.nodeId == nodeId
+        && sensorIndex < shownDetail.trendCharts.length) {
+      shownDetail.trendCharts[sensorIndex].requestDraw();
     }
   }
 
@@ -133,72 +180,102 @@ public class ControlPanelApplication extends Application implements GreenhouseEv
   public void onActuatorStateChanged(int nodeId, int actuatorId, boolean isOn) {
     String state = isOn ? "ON" : "off";
     Logger.info("actuator[" + actuatorId + "] on node " + nodeId + " is " + state);
-    ActuatorPane actuatorPane = actuatorPanes.get(nodeId);
-    if (actuatorPane != null) {
-      Actuator actuator = getStoredActuator(nodeId, actuatorId);
-      if (actuator != null) {
-        if (isOn) {
-          actuator.turnOn();
-        } else {
-          actuator.turnOff();
-        }
-        actuatorPane.update(actuator);
-      } else {
-        Logger.error(" actuator not found");
-      }
+    NodeState node = nodes.get(nodeId);
+    if (node == null) {
+      Logger.error("Actuator change on unknown node " + nodeId);
+      return;
+    }
+    Actuator actuator = node.getInfo().getActuator(actuatorId);
+    if (actuator == null) {
+      Logger.error(" actuator not found");
+      return;
+    }
+    if (isOn) {
+      actuator.turnOn();
     } else {
-      Logger.error("No actuator section for node " + nodeId);
+      actuator.turnOff();
+    }
+    updateBuffer.set(node.actuatorSummaryProperty(), node.createActuatorSummary());
+    NodeDetail shownDetail = detail;
+    if (shownDetail != null && shownDetail.nodeId == nodeId) {
+      shownDetail.actuatorPane.update(actuator);
     }
   }
 
-  private Actuator getStoredActuator(int nodeId, int actuatorId) {
-    Actuator actuator = null;
-    SensorActuatorNodeInfo nodeInfo = nodeInfos.get(nodeId);
-    if (nodeInfo != null) {
-      actuator = nodeInfo.getActuator(actuatorId);
+  private void addNodeRow(NodeState node) {
+    if (fleetView == null) {
+      fleetView = createFleetView();
+      mainScene.setRoot(fleetView);
     }
-    return actuator;
+    rows.add(node);
+    Logger.info("Node " + node.getId() + " added");
   }
 
-  private void forgetNodeInfo(int nodeId) {
-    sensorPanes.remove(nodeId);
-    actuatorPanes.remove(nodeId);
-    nodeInfos.remove(nodeId);
-  }
+  private SplitPane createFleetView() {
+    TableView<NodeState> table = new TableView<>(rows);
+    table.setColumnResizePolicy(TableView.CONSTRAINED_RESIZE_POLICY);
+
+    TableColumn<NodeState, Integer> idColumn = new TableColumn<>("Node");
+    idColumn.setCellValueFactory(row -> new ReadOnlyObjectWrapper<>(row.getValue().getId()));
+    idColumn.setMaxWidth(ID_COLUMN_WIDTH);
+    TableColumn<NodeState, String> sensorColumn = new TableColumn<>("Sensors");
+    sensorColumn.setCellValueFactory(row -> row.getValue().sensorSummaryProperty());
+    TableColumn<NodeState, String> actuatorColumn = new TableColumn<>("Actuators");
+    actuatorColumn.setCellValueFactory(row -> row.getValue().actuatorSummaryProperty());
+    table.getColumns().add(idColumn);
+    table.getColumns().add(sensorColumn);
+    table.getColumns().add(actuatorColumn);
 
-  private void removeNodeTab(int nodeId, Tab nodeTab) {
-    nodeTab.getTabPane().getTabs().remove(nodeTab);
-    nodeTabs.remove(nodeId);
+    table.getSelectionModel().selectedItemProperty().addListener(
+        (observable, oldNode, selectedNode) -> showDetail(selectedNode));
+    showDetail(null);
+
+    SplitPane view = new SplitPane(table, detailBox);
+    view.setDividerPositions(FLEET_TABLE_SHARE);
+    return view;
   }
 
-  private void addNodeTab(SensorActuatorNodeInfo nodeInfo) {
-    if (nodeTabPane == null) {
-      nodeTabPane = new TabPane();
-      mainScene.setRoot(nodeTabPane);
+  /**
+   * Build the sensor, trend and actuator panes of the selected node, and forget the ones of the
+   * node selected before. The first time a node is selected, its readings start being kept and
+   * its recorded readings are requested.
+   *
+   * @param node The selected node, null if none
+   */
+  private void showDetail(NodeState node) {
+    if (node == null) {
+      detail = null;
+      detailBox.getChildren().setAll(new Label("Select a node to see its sensors and actuators"));
+      return;
     }
-    Tab nodeTab = nodeTabs.get(nodeInfo.getId());
-    if (nodeTab == null) {
-      nodeInfos.put(nodeInfo.getId(), nodeInfo);
-      nodeTabPane.getTabs().add(createNodeTab(nodeInfo));
-      Logger.info("Node " + nodeInfo.getId() + " added");
-    } else {
-      Logger.info("Duplicate node spawned, ignore it");
+    if (node.createHistories()) {
+      logic.requestSensorHistory(node.getId());
     }
+    SensorPane sensorPane = new SensorPane(node.getSensors());
+    TrendChart[] trendCharts = createTrendCharts(node);
+    ActuatorPane actuatorPane = new ActuatorPane(node.getInfo().getActuators());
+    detail = new NodeDetail(node.getId(), sensorPane, trendCharts, actuatorPane);
+    // readings received while the panes were built
+    sensorPane.update(node.getSensors());
+    for (TrendChart chart : trendCharts) {
+      chart.requestDraw();
+    }
+    TitledPane trendPane = new TitledPane("Trends", new VBox(trendCharts));
+    detailBox.getChildren().setAll(sensorPane, trendPane, actuatorPane);
   }
 
-  private Tab createNodeTab(SensorActuatorNodeInfo nodeInfo) {
-    Tab tab = new Tab("Node " + nodeInfo.getId());
-    SensorPane sensorPane = createEmptySensorPane();
-    sensorPanes.put(nodeInfo.getId(), sensorPane);
-    ActuatorPane actuatorPane = new ActuatorPane(nodeInfo.getActuators());
-    actuatorPanes.put(nodeInfo.getId(), actuatorPane);
-    tab.setContent(new VBox(sensorPane, actuatorPane));
-    nodeTabs.put(nodeInfo.getId(), tab);
-    return tab;
-  }
-
-  private static SensorPane createEmptySensorPane() {
-    return new SensorPane();
+  private static TrendChart[] createTrendCharts(NodeState node) {
+    ReadingHistory[] histories = node.getHistories();
+    List<SensorReading> sensors = node.getSensors();
+    if (histories == null) {
+      return new TrendChart[0];
+    }
+    TrendChart[] charts = new TrendChart[Math.min(histories.length, sensors.size())];
+    for (int i = 0; i < charts.length; ++i) {
+      SensorReading sensor = sensors.get(i);
+      charts[i] = new TrendChart(sensor.getType(), sensor.getUnit(), histories[i]);
+    }
+    return charts;
   }
 
   @Override
@@ -206,4 +283,22 @@ public class ControlPanelApplication extends Application implements GreenhouseEv
     Logger.info("Communication closed, closing the GUI");
     Platform.runLater(Platform::exit);
   }
+
+  /**
+   * The panes of the selected node.
+   */
+  private static final class NodeDetail {
+    private final int nodeId;
+    private final SensorPane sensorPane;
+    private final TrendChart[] trendCharts;
+    private final ActuatorPane actuatorPane;
+
+    private NodeDetail(int nodeId, SensorPane sensorPane, TrendChart[] trendCharts,
+                       ActuatorPane actuatorPane) {
+      this.nodeId = nodeId;
+      this.sensorPane = sensorPane;
+      this.trendCharts = trendCharts;
+      this.actuatorPane = actuatorPane;
+    }
+  }
 }
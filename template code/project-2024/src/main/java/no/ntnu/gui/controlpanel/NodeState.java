@@ -0,0 +1,134 @@
+package no.ntnu.gui.controlpanel;
+
+import java.util.List;
+import javafx.beans.property.SimpleStringProperty;
+import no.ntnu.controlpanel.ReadingHistory;
+import no.ntnu.controlpanel.SensorActuatorNodeInfo;
+import no.ntnu.greenhouse.Actuator;
+import no.ntnu.greenhouse.SensorReading;
+
+/**
+ * What the control panel knows about one node: its actuators, its latest sensor readings and
+ * a one-line summary of both for the fleet table. This is all that is kept for a node which is
+ * not selected, the sensor and actuator panes are only built for the selected node.
+ * Once a node has been selected, the recent readings of its sensors are kept as well, to draw
+ * their trends.
+ */
+final class NodeState {
+  // readings kept per sensor, about an hour at one reading per second
+  private static final int HISTORY_CAPACITY = 4096;
+
+  private final SensorActuatorNodeInfo info;
+  private volatile List<SensorReading> sensors = List.of();
+  // null until the node is selected for the first time
+  private volatile ReadingHistory[] histories;
+  // shown in the fleet table, set through the GuiUpdateBuffer
+  private final SimpleStringProperty sensorSummary = new SimpleStringProperty("");
+  private final SimpleStringProperty actuatorSummary = new SimpleStringProperty();
+
+  /**
+   * Create the state of a node.
+   *
+   * @param info The node, with its actuators
+   */
+  NodeState(SensorActuatorNodeInfo info) {
+    this.info = info;
+    actuatorSummary.set(createActuatorSummary());
+  }
+
+  int getId() {
+    return info.getId();
+  }
+
+  SensorActuatorNodeInfo getInfo() {
+    return info;
+  }
+
+  List<SensorReading> getSensors() {
+    return sensors;
+  }
+
+  /**
+   * Store the latest sensor readings, and add them to the histories if the node has any.
+   *
+   * @param sensors   The readings
+   * @param timestamp Time the readings were received, in milliseconds since the epoch
+   */
+  void setSensors(List<SensorReading> sensors, long timestamp) {
+    this.sensors = sensors;
+    ReadingHistory[] sensorHistories = histories;
+    if (sensorHistories != null) {
+      for (int i = 0; i < sensorHistories.length && i < sensors.size(); ++i) {
+        sensorHistories[i].add(timestamp, sensors.get(i).getValue());
+      }
+    }
+  }
+
+  /**
+   * Get the reading histories of the sensors.
+   *
+   * @return One history per sensor, or null if readings are not kept for this node yet
+   */
+  ReadingHistory[] getHistories() {
+    return histories;
+  }
+
+  /**
+   * Start keeping the readings of the sensors, one history per sensor the node has now.
+   *
+   * @return True if the histories were created, false if the node had them already, or no
+   *     readings of it were received yet
+   */
+  boolean createHistories() {
+    if (histories != null || sensors.isEmpty()) {
+      return false;
+    }
+    ReadingHistory[] sensorHistories = new ReadingHistory[sensors.size()];
+    for (int i = 0; i < sensorHistories.length; ++i) {
+      sensorHistories[i] = new ReadingHistory(HISTORY_CAPACITY);
+    }
+    histories = sensorHistories;
+    return true;
+  }
+
+  SimpleStringProperty sensorSummaryProperty() {
+    return sensorSummary;
+  }
+
+  SimpleStringProperty actuatorSummaryProperty() {
+    return actuatorSummary;
+  }
+
+  /**
+   * Create the summary of the latest sensor readings, e.g. "temperature: 21.5 °C, humidity:
+   * 80.0 %".
+   *
+   * @return The summary
+   */
+  String createSensorSummary() {
+    StringBuilder summary = new StringBuilder();
+    for (SensorReading sensor : sensors) {
+      if (!summary.isEmpty()) {
+        summary.append(", ");
+      }
+      summary.append(sensor.getType()).append(": ").append(sensor.getFormatted());
+    }
+    return summary.toString();
+  }
+
+  /**
+   * Create the summary of the actuator states, e.g. "fan: ON, window: off".
+   *
+   * @return The summary
+   */
+  String createActuatorSummary() {
+    StringBuilder summary = new StringBuilder();
+    for (Actuator actuator : info.getActuators()) {
+      if (!summary.isEmpty()) {
+        summary.append(", ");
+      }
+      summary.append(actuator.getType()).append(": ").append(actuator.isOn() ? "ON" : "off");
+    }
+    return summary.toString();
+  }
+}
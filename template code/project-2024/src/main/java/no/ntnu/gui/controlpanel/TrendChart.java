@@ -0,0 +1,142 @@
+package no.ntnu.gui.controlpanel;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.layout.Region;
+import javafx.scene.paint.Color;
+import javafx.scene.text.TextAlignment;
+import no.ntnu.controlpanel.ReadingHistory;
+import no.ntnu.gui.common.GuiUpdateBuffer;
+
+/**
+ * The trend of one sensor, drawn on a canvas. A line chart with one node per reading gets slow
+ * with thousands of readings, so the readings are first reduced to the smallest and largest
+ * value per pixel column, see {@link ReadingHistory#decimate(long, long, double[], double[])},
+ * and every column is drawn as one vertical line.
+ * The chart is drawn again when its size changes, and at most once per frame when readings
+ * are added.
+ */
+class TrendChart extends Region {
+  private static final double HEIGHT = 90;
+  private static final double MARGIN = 4;
+  private static final double TITLE_HEIGHT = 14;
+
+  private final String title;
+  private final ReadingHistory history;
+  private final Canvas canvas = new Canvas();
+  private final GuiUpdateBuffer updateBuffer = GuiUpdateBuffer.getInstance();
+  // set when a redraw is requested, cleared when it runs
+  private final AtomicBoolean dirty = new AtomicBoolean();
+  private final Runnable redraw = this::redraw;
+  // version of the readings drawn, only used on the JavaFX application thread
+  private long drawnVersion = -1;
+  private double[] minimums = new double[0];
+  private double[] maximums = new double[0];
+
+  /**
+   * Create a chart. Must be called on the JavaFX application thread.
+   *
+   * @param sensorType Type of the sensor
+   * @param unit       Unit of the readings
+   * @param history    The readings
+   */
+  TrendChart(String sensorType, String unit, ReadingHistory history) {
+    this.title = sensorType + " (" + unit + ")";
+    this.history = history;
+    getChildren().add(canvas);
+    setMinHeight(HEIGHT);
+    setPrefHeight(HEIGHT);
+  }
+
+  /**
+   * Draw the chart again when the next frame is drawn, if readings were added. Can be called
+   * from any thread.
+   */
+  void requestDraw() {
+    if (dirty.compareAndSet(false, true)) {
+      updateBuffer.requestRedraw(redraw);
+    }
+  }
+
+  private void redraw() {
+    dirty.set(false);
+    long version = history.getVersion();
+    if (version != drawnVersion) {
+      drawnVersion = version;
+      draw();
+    }
+  }
+
+  @Override
+  protected void layoutChildren() {
+    if (canvas.getWidth() != getWidth() || canvas.getHeight() != getHeight()) {
+      canvas.setWidth(getWidth());
+      canvas.setHeight(getHeight());
+      draw();
+    }
+  }
+
+  private void draw() {
+    double width = canvas.getWidth();
+    double height = canvas.getHeight();
+    GraphicsContext graphics = canvas.getGraphicsContext2D();
+    graphics.clearRect(0, 0, width, height);
+    int columns = (int) (width - 2 * MARGIN);
+    double plotTop = MARGIN + TITLE_HEIGHT;
+    double plotHeight = height - plotTop - MARGIN;
+    if (columns <= 0 || plotHeight <= 0) {
+      return;
+    }
+    graphics.setStroke(Color.LIGHTGRAY);
+    graphics.strokeRect(MARGIN - 0.5, plotTop - 0.5, columns + 1, plotHeight + 1);
+    graphics.setFill(Color.BLACK);
+    graphics.setTextAlign(TextAlignment.LEFT);
+    graphics.fillText(title, MARGIN, MARGIN + TITLE_HEIGHT - 3);
+
+    if (minimums.length != columns) {
+      minimums = new double[columns];
+      maximums = new double[columns];
+    }
+    long from = history.getOldestTimestamp();
+    long to = history.getNewestTimestamp();
+    if (history.decimate(from, to, minimums, maximums) == 0) {
+      return;
+    }
+    double lowest = Double.POSITIVE_INFINITY;
+    double highest = Double.NEGATIVE_INFINITY;
+    for (int column = 0; column < columns; ++column) {
+      if (!Double.isNaN(minimums[column])) {
+        lowest = Math.min(lowest, minimums[column]);
+        highest = Math.max(highest, maximums[column]);
+      }
+    }
+    double range = highest > lowest ? highest - lowest : 1;
+    double scale = plotHeight / range;
+    double bottom = plotTop + plotHeight;
+
+    graphics.setStroke(Color.STEELBLUE);
+    double previousX = Double.NaN;
+    double previousY = Double.NaN;
+    for (int column = 0; column < columns; ++column) {
+      if (Double.isNaN(minimums[column])) {
+        continue;
+      }
+      double x = MARGIN + column + 0.5;
+      double top = bottom - (maximums[column] - lowest) * scale;
+      double low = bottom - (minimums[column] - lowest) * scale;
+      graphics.strokeLine(x, top, x, low);
+      // join the columns, so sparse readings still give a line
+      double y = (top + low) / 2;
+      if (!Double.isNaN(previousX)) {
+        graphics.strokeLine(previousX, previousY, x, y);
+      }
+      previousX = x;
+      previousY = y;
+    }
+    graphics.setFill(Color.GRAY);
+    graphics.setTextAlign(TextAlignment.RIGHT);
+    graphics.fillText(String.format("%.1f - %.1f", lowest, highest), width - MARGIN,
+        MARGIN + TITLE_HEIGHT - 3);
+  }
+}
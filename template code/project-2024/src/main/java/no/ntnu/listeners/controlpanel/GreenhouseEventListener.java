@@ -3,6 +3,7 @@ package no.ntnu.listeners.controlpanel;
 import java.util.List;
 import no.ntnu.controlpanel.SensorActuatorNodeInfo;
 import no.ntnu.greenhouse.SensorReading;
+import no.ntnu.protocol.SensorHistory;
 
 /**
  * Listener of events happening "inside a greenhouse", such as a node appearing, disappearing,
@@ -43,4 +44,14 @@ public interface GreenhouseEventListener {
    * @param isOn  When true, actuator is on; off when false.
    */
   void onActuatorStateChanged(int nodeId, int actuatorId, boolean isOn);
+
+  /**
+   * This event is fired when recorded readings of a sensor are received, e.g. the last hour of
+   * data loaded when a node is added. The readings of one request may arrive in several parts.
+   *
+   * @param nodeId  ID of the node
+   * @param history Recorded readings of one of the node's sensors
+   */
+  default void onSensorHistory(int nodeId, SensorHistory history) {
+  }
 }
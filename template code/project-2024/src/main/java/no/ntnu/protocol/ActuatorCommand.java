@@ -0,0 +1,62 @@
+package no.ntnu.protocol;
+
+import org.json.JSONObject;
+
+/**
+ * a command from a control panel to turn an actuator of a sensor/actuator node on or off
+ */
+public class ActuatorCommand {
+    private final int nodeId;
+    private final int actuatorId;
+    private final boolean on;
+
+    /**
+     * Constructor for an actuator command
+     *
+     * @param nodeId     id of the node the actuator is attached to
+     * @param actuatorId node-wide unique id of the actuator
+     * @param on         true to turn the actuator on, false to turn it off
+     */
+    public ActuatorCommand(int nodeId, int actuatorId, boolean on) {
+        this.nodeId = nodeId;
+        this.actuatorId = actuatorId;
+        this.on = on;
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    public int getActuatorId() {
+        return actuatorId;
+    }
+
+    public boolean isOn() {
+        return on;
+    }
+
+    /**
+     * creates the json representation, e.g. {"nodeId":1,"actuator":3,"status":true}
+     *
+     * @return json object with the command
+     */
+    public JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        json.put("nodeId", nodeId);
+        json.put("actuator", actuatorId);
+        json.put("status", on);
+        return json;
+    }
+
+    /**
+     * reads a command from its json representation
+     *
+     * @param message the json string
+     * @return the command
+     * @throws org.json.JSONException if the message is not a valid command
+     */
+    public static ActuatorCommand fromJson(String message) {
+        JSONObject json = new JSONObject(message);
+        return new ActuatorCommand(json.getInt("nodeId"), json.getInt("actuator"), json.getBoolean("status"));
+    }
+}
@@ -0,0 +1,40 @@
+package no.ntnu.protocol;
+
+/**
+ * the state of one actuator, as reported by its sensor/actuator node
+ */
+public class ActuatorState {
+    private final int id;
+    private final String type;
+    private final boolean on;
+
+    /**
+     * Constructor for an actuator state
+     *
+     * @param id   node-wide unique id of the actuator
+     * @param type type of the actuator, e.g. "fan"
+     * @param on   true if the actuator is turned on
+     */
+    public ActuatorState(int id, String type, boolean on) {
+        this.id = id;
+        this.type = type;
+        this.on = on;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public boolean isOn() {
+        return on;
+    }
+
+    @Override
+    public String toString() {
+        return type + "[" + id + "] " + (on ? "on" : "off");
+    }
+}
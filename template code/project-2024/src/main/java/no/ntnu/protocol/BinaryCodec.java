@@ -0,0 +1,507 @@
+package no.ntnu.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import no.ntnu.greenhouse.SensorReading;
+
+/**
+ * compact binary encoding of the messages. every message is sent as one frame, all numbers are big endian:
+ * <pre>
+ * int    length       number of bytes following this field
+ * byte   type         see {@link MessageType}
+ * int    node id
+ *
+ * sensor data:
+ * int    sequence     0 if not numbered
+ * ushort sensor count, then per sensor:
+ *   byte   type code  0 = custom, followed by the type and unit as modified UTF-8 strings
+ *   double value
+ * ushort actuator count, then per actuator:
+ *   int    id
+ *   byte   type code  0 = custom, followed by the type as modified UTF-8 string
+ *   byte   1 = on, 0 = off
+ *
+ * sensor delta:
+ * int    sequence
+ * ushort changed sensor count, then per sensor:
+ *   ushort index      position of the sensor in the full sensor data
+ *   double value
+ * ushort changed actuator count, then per actuator:
+ *   int    id
+ *   byte   1 = on, 0 = off
+ *
+ * actuator command:
+ * int    actuator id
+ * byte   1 = on, 0 = off
+ *
+ * history request:
+ * UTF    sensor type  empty for all sensors
+ * long   from         milliseconds since the epoch
+ * long   to
+ * byte   resolution   see {@link Resolution}
+ *
+ * sensor history:
+ * int    sensor index
+ * UTF    sensor type
+ * UTF    unit
+ * byte   1 = last message of the answer
+ * byte   resolution
+ * ushort reading count, then per reading:
+ *   long   timestamp  start of the bucket for rollups
+ *   double value      average for rollups
+ *   double minimum    only for rollups
+ *   double maximum    only for rollups
+ *   int    count      only for rollups
+ * </pre>
+ * the common sensor and actuator types are sent as a single byte, so a typical node fits into about 50 bytes
+ * instead of the 250 bytes of its json message, and a delta with three changed sensors into about 45 bytes.
+ */
+public final class BinaryCodec {
+    /**
+     * size of the length field in front of every frame
+     */
+    public static final int LENGTH_SIZE = 4;
+    /**
+     * size of the type and node id following the length field
+     */
+    public static final int HEADER_SIZE = 5;
+    /**
+     * frames longer than this are rejected
+     */
+    public static final int MAX_FRAME_LENGTH = 64 * 1024;
+
+    private static final byte CUSTOM_TYPE = 0;
+    // sensor type, unit and actuator type for every type code, the index is the code
+    private static final String[] SENSOR_TYPES = {null, "temperature", "humidity"};
+    private static final String[] SENSOR_UNITS = {null, "°C", "%"};
+    private static final String[] ACTUATOR_TYPES = {null, "window", "fan", "heater"};
+
+    private BinaryCodec() {
+    }
+
+    /**
+     * encodes sensor data into a frame
+     *
+     * @param data the sensor data
+     * @return the complete frame, including the length field
+     */
+    public static byte[] encode(SensorData data) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            writeHeader(out, MessageType.SENSOR_DATA, data.getNodeId());
+            out.writeInt(data.getSequence());
+            out.writeShort(data.getSensors().size());
+            for (SensorReading sensor : data.getSensors()) {
+                byte code = sensorTypeCode(sensor.getType(), sensor.getUnit());
+                out.writeByte(code);
+                if (code == CUSTOM_TYPE) {
+                    out.writeUTF(sensor.getType());
+                    out.writeUTF(sensor.getUnit());
+                }
+                out.writeDouble(sensor.getValue());
+            }
+            out.writeShort(data.getActuators().size());
+            for (ActuatorState actuator : data.getActuators()) {
+                out.writeInt(actuator.getId());
+                byte code = typeCode(ACTUATOR_TYPES, actuator.getType());
+                out.writeByte(code);
+                if (code == CUSTOM_TYPE) {
+                    out.writeUTF(actuator.getType());
+                }
+                out.writeBoolean(actuator.isOn());
+            }
+        } catch (IOException e) {
+            // a ByteArrayOutputStream does not throw
+            throw new IllegalStateException(e);
+        }
+        return withLength(bytes.toByteArray());
+    }
+
+    /**
+     * encodes a sensor delta into a frame
+     *
+     * @param delta the delta
+     * @return the complete frame, including the length field
+     */
+    public static byte[] encode(SensorDelta delta) {
+        int[] sensorIndexes = delta.getSensorIndexes();
+        int[] actuatorIds = delta.getActuatorIds();
+        ByteBuffer frame = ByteBuffer.allocate(LENGTH_SIZE + HEADER_SIZE + 8 + sensorIndexes.length * 10
+                + actuatorIds.length * 5);
+        frame.putInt(frame.capacity() - LENGTH_SIZE);
+        frame.put(MessageType.SENSOR_DELTA.getCode());
+        frame.putInt(delta.getNodeId());
+        frame.putInt(delta.getSequence());
+        frame.putShort((short) sensorIndexes.length);
+        for (int i = 0; i < sensorIndexes.length; ++i) {
+            frame.putShort((short) sensorIndexes[i]);
+            frame.putDouble(delta.getSensorValues()[i]);
+        }
+        frame.putShort((short) actuatorIds.length);
+        for (int i = 0; i < actuatorIds.length; ++i) {
+            frame.putInt(actuatorIds[i]);
+            frame.put((byte) (delta.getActuatorStates()[i] ? 1 : 0));
+        }
+        return frame.array();
+    }
+
+    /**
+     * encodes an actuator command into a frame
+     *
+     * @param command the command
+     * @return the complete frame, including the length field
+     */
+    public static byte[] encode(ActuatorCommand command) {
+        ByteBuffer frame = ByteBuffer.allocate(LENGTH_SIZE + HEADER_SIZE + 5);
+        frame.putInt(frame.capacity() - LENGTH_SIZE);
+        frame.put(MessageType.ACTUATOR_COMMAND.getCode());
+        frame.putInt(command.getNodeId());
+        frame.putInt(command.getActuatorId());
+        frame.put((byte) (command.isOn() ? 1 : 0));
+        return frame.array();
+    }
+
+    /**
+     * encodes a history request into a frame
+     *
+     * @param request the request
+     * @return the complete frame, including the length field
+     */
+    public static byte[] encode(HistoryRequest request) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(40);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            writeHeader(out, MessageType.HISTORY_REQUEST, request.getNodeId());
+            out.writeUTF(request.getSensorType() == null ? "" : request.getSensorType());
+            out.writeLong(request.getFrom());
+            out.writeLong(request.getTo());
+            out.writeByte(request.getResolution().getCode());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return withLength(bytes.toByteArray());
+    }
+
+    /**
+     * encodes sensor history into a frame
+     *
+     * @param history the sensor history
+     * @return the complete frame, including the length field
+     */
+    public static byte[] encode(SensorHistory history) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + history.size() * 36);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            writeHeader(out, MessageType.SENSOR_HISTORY, history.getNodeId());
+            out.writeInt(history.getSensorIndex());
+            out.writeUTF(history.getSensorType());
+            out.writeUTF(history.getUnit());
+            out.writeBoolean(history.isLast());
+            out.writeByte(history.getResolution().getCode());
+            out.writeShort(history.size());
+            long[] timestamps = history.getTimestamps();
+            double[] values = history.getValues();
+            for (int i = 0; i < timestamps.length; ++i) {
+                out.writeLong(timestamps[i]);
+                out.writeDouble(values[i]);
+                if (history.isRollup()) {
+                    out.writeDouble(history.getMinimums()[i]);
+                    out.writeDouble(history.getMaximums()[i]);
+                    out.writeInt(history.getCounts()[i]);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return withLength(bytes.toByteArray());
+    }
+
+    /**
+     * decodes a sensor data frame
+     *
+     * @param frame the complete frame, including the length field
+     * @return the sensor data
+     * @throws IllegalArgumentException if the frame is not valid sensor data
+     */
+    public static SensorData decodeSensorData(byte[] frame) {
+        DataInputStream in = openPayload(frame, MessageType.SENSOR_DATA);
+        try {
+            int sequence = in.readInt();
+            int sensorCount = in.readUnsignedShort();
+            List<SensorReading> sensors = new ArrayList<>(sensorCount);
+            for (int i = 0; i < sensorCount; ++i) {
+                int code = in.readUnsignedByte();
+                String type;
+                String unit;
+                if (code == CUSTOM_TYPE) {
+                    type = in.readUTF();
+                    unit = in.readUTF();
+                } else {
+                    type = lookup(SENSOR_TYPES, code);
+                    unit = SENSOR_UNITS[code];
+                }
+                sensors.add(new SensorReading(type, in.readDouble(), unit));
+            }
+            int actuatorCount = in.readUnsignedShort();
+            List<ActuatorState> actuators = new ArrayList<>(actuatorCount);
+            for (int i = 0; i < actuatorCount; ++i) {
+                int id = in.readInt();
+                int code = in.readUnsignedByte();
+                String type = code == CUSTOM_TYPE ? in.readUTF() : lookup(ACTUATOR_TYPES, code);
+                actuators.add(new ActuatorState(id, type, in.readBoolean()));
+            }
+            return new SensorData(getNodeId(frame), sequence, sensors, actuators);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Truncated sensor data frame", e);
+        }
+    }
+
+    /**
+     * decodes a sensor delta frame
+     *
+     * @param frame the complete frame, including the length field
+     * @return the delta
+     * @throws IllegalArgumentException if the frame is not a valid delta
+     */
+    public static SensorDelta decodeSensorDelta(byte[] frame) {
+        DataInputStream in = openPayload(frame, MessageType.SENSOR_DELTA);
+        try {
+            int sequence = in.readInt();
+            int sensorCount = in.readUnsignedShort();
+            int[] sensorIndexes = new int[sensorCount];
+            double[] sensorValues = new double[sensorCount];
+            for (int i = 0; i < sensorCount; ++i) {
+                sensorIndexes[i] = in.readUnsignedShort();
+                sensorValues[i] = in.readDouble();
+            }
+            int actuatorCount = in.readUnsignedShort();
+            int[] actuatorIds = new int[actuatorCount];
+            boolean[] actuatorStates = new boolean[actuatorCount];
+            for (int i = 0; i < actuatorCount; ++i) {
+                actuatorIds[i] = in.readInt();
+                actuatorStates[i] = in.readBoolean();
+            }
+            return new SensorDelta(getNodeId(frame), sequence, sensorIndexes, sensorValues, actuatorIds,
+                    actuatorStates);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Truncated sensor delta frame", e);
+        }
+    }
+
+    /**
+     * decodes an actuator command frame
+     *
+     * @param frame the complete frame, including the length field
+     * @return the command
+     * @throws IllegalArgumentException if the frame is not a valid command
+     */
+    public static ActuatorCommand decodeActuatorCommand(byte[] frame) {
+        DataInputStream in = openPayload(frame, MessageType.ACTUATOR_COMMAND);
+        try {
+            return new ActuatorCommand(getNodeId(frame), in.readInt(), in.readBoolean());
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Truncated actuator command frame", e);
+        }
+    }
+
+    /**
+     * decodes a history request frame
+     *
+     * @param frame the complete frame, including the length field
+     * @return the request
+     * @throws IllegalArgumentException if the frame is not a valid history request
+     */
+    public static HistoryRequest decodeHistoryRequest(byte[] frame) {
+        DataInputStream in = openPayload(frame, MessageType.HISTORY_REQUEST);
+        try {
+            String sensorType = in.readUTF();
+            return new HistoryRequest(getNodeId(frame), sensorType.isEmpty() ? null : sensorType, in.readLong(),
+                    in.readLong(), Resolution.fromCode(in.readByte()));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Truncated history request frame", e);
+        }
+    }
+
+    /**
+     * decodes a sensor history frame
+     *
+     * @param frame the complete frame, including the length field
+     * @return the sensor history
+     * @throws IllegalArgumentException if the frame is not valid sensor history
+     */
+    public static SensorHistory decodeSensorHistory(byte[] frame) {
+        DataInputStream in = openPayload(frame, MessageType.SENSOR_HISTORY);
+        try {
+            int sensorIndex = in.readInt();
+            String sensorType = in.readUTF();
+            String unit = in.readUTF();
+            boolean last = in.readBoolean();
+            Resolution resolution = Resolution.fromCode(in.readByte());
+            boolean rollup = resolution != Resolution.RAW;
+            int count = in.readUnsignedShort();
+            long[] timestamps = new long[count];
+            double[] values = new double[count];
+            double[] minimums = rollup ? new double[count] : null;
+            double[] maximums = rollup ? new double[count] : null;
+            int[] counts = rollup ? new int[count] : null;
+            for (int i = 0; i < count; ++i) {
+                timestamps[i] = in.readLong();
+                values[i] = in.readDouble();
+                if (rollup) {
+                    minimums[i] = in.readDouble();
+                    maximums[i] = in.readDouble();
+                    counts[i] = in.readInt();
+                }
+            }
+            return new SensorHistory(getNodeId(frame), sensorIndex, sensorType, unit, resolution, timestamps, values,
+                    minimums, maximums, counts, last);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Truncated sensor history frame", e);
+        }
+    }
+
+    /**
+     * reads the message type from the header of a frame
+     *
+     * @param frame the complete frame, including the length field
+     * @return the message type
+     * @throws IllegalArgumentException if the type is unknown
+     */
+    public static MessageType getType(byte[] frame) {
+        return MessageType.fromCode(frame[LENGTH_SIZE]);
+    }
+
+    /**
+     * reads the node id from the header of a frame, without decoding the rest of it
+     *
+     * @param frame the complete frame, including the length field
+     * @return id of the node the message comes from or is addressed to
+     */
+    public static int getNodeId(byte[] frame) {
+        return ByteBuffer.wrap(frame, LENGTH_SIZE + 1, 4).getInt();
+    }
+
+    /**
+     * converts a frame to the equivalent json message
+     *
+     * @param frame the complete frame, including the length field
+     * @return the json message, without a line break
+     * @throws IllegalArgumentException if the frame is malformed
+     */
+    public static String toJson(byte[] frame) {
+        return switch (getType(frame)) {
+            case SENSOR_DATA -> decodeSensorData(frame).toJson().toString();
+            case ACTUATOR_COMMAND -> decodeActuatorCommand(frame).toJson().toString();
+            case HISTORY_REQUEST -> decodeHistoryRequest(frame).toJson().toString();
+            case SENSOR_HISTORY -> decodeSensorHistory(frame).toJson().toString();
+            case SENSOR_DELTA -> decodeSensorDelta(frame).toJson().toString();
+        };
+    }
+
+    /**
+     * converts a json message to the equivalent frame
+     *
+     * @param type    type of the message
+     * @param message the json message
+     * @return the complete frame, including the length field
+     * @throws org.json.JSONException if the message is malformed
+     */
+    public static byte[] fromJson(MessageType type, String message) {
+        return switch (type) {
+            case SENSOR_DATA -> encode(SensorData.fromJson(message));
+            case ACTUATOR_COMMAND -> encode(ActuatorCommand.fromJson(message));
+            case HISTORY_REQUEST -> encode(HistoryRequest.fromJson(message));
+            case SENSOR_HISTORY -> encode(SensorHistory.fromJson(message));
+            case SENSOR_DELTA -> encode(SensorDelta.fromJson(message));
+        };
+    }
+
+    /**
+     * reads the next frame from a stream
+     *
+     * @param in the stream
+     * @return the complete frame, including the length field, or null if the stream ended before the frame started
+     * @throws IOException if reading fails, the stream ends inside a frame or the frame has an invalid length
+     */
+    public static byte[] readFrame(InputStream in) throws IOException {
+        DataInputStream data = in instanceof DataInputStream dataStream ? dataStream : new DataInputStream(in);
+        int first = data.read();
+        if (first < 0) {
+            return null;
+        }
+        byte[] lengthBytes = new byte[LENGTH_SIZE];
+        lengthBytes[0] = (byte) first;
+        data.readFully(lengthBytes, 1, LENGTH_SIZE - 1);
+        int length = ByteBuffer.wrap(lengthBytes).getInt();
+        checkLength(length);
+        byte[] frame = new byte[LENGTH_SIZE + length];
+        System.arraycopy(lengthBytes, 0, frame, 0, LENGTH_SIZE);
+        data.readFully(frame, LENGTH_SIZE, length);
+        return frame;
+    }
+
+    /**
+     * checks the length field of a frame
+     *
+     * @param length value of the length field
+     * @throws IOException if the length is too short for a header or exceeds the maximum frame length
+     */
+    public static void checkLength(int length) throws IOException {
+        if (length < HEADER_SIZE || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+    }
+
+    private static void writeHeader(DataOutputStream out, MessageType type, int nodeId) throws IOException {
+        // placeholder for the length, filled in once the frame is complete
+        out.writeInt(0);
+        out.writeByte(type.getCode());
+        out.writeInt(nodeId);
+    }
+
+    private static byte[] withLength(byte[] frame) {
+        ByteBuffer.wrap(frame).putInt(frame.length - LENGTH_SIZE);
+        return frame;
+    }
+
+    private static DataInputStream openPayload(byte[] frame, MessageType expectedType) {
+        if (frame.length < LENGTH_SIZE + HEADER_SIZE) {
+            throw new IllegalArgumentException("Frame is shorter than its header");
+        }
+        if (getType(frame) != expectedType) {
+            throw new IllegalArgumentException("Expected " + expectedType + " frame, got " + getType(frame));
+        }
+        int offset = LENGTH_SIZE + HEADER_SIZE;
+        return new DataInputStream(new ByteArrayInputStream(frame, offset, frame.length - offset));
+    }
+
+    private static byte sensorTypeCode(String type, String unit) {
+        byte code = typeCode(SENSOR_TYPES, type);
+        return code != CUSTOM_TYPE && SENSOR_UNITS[code].equals(unit) ? code : CUSTOM_TYPE;
+    }
+
+    private static byte typeCode(String[] types, String type) {
+        for (int i = 1; i < types.length; ++i) {
+            if (types[i].equals(type)) {
+                return (byte) i;
+            }
+        }
+        return CUSTOM_TYPE;
+    }
+
+    private static String lookup(String[] types, int code) throws IOException {
+        if (code >= types.length) {
+            throw new IOException("Unknown type code: " + code);
+        }
+        return types[code];
+    }
+}
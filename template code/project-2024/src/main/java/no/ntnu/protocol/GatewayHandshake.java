@@ -0,0 +1,102 @@
+package no.ntnu.protocol;
+
+import java.util.Arrays;
+
+/**
+ * the handshake of a gateway, a single connection carrying many sensor/actuator nodes. the gateway lists the ids of
+ * its nodes as ranges and single ids, e.g. "GATEWAY:1-500" or "GATEWAY:1-500:600:700-710:codec=bin".
+ * no extra framing is needed after the handshake, since every message already names its node: the "id" field of
+ * json sensor data and deltas, the "nodeId" field of json commands and the node id in the header of a binary frame.
+ */
+public final class GatewayHandshake {
+    /**
+     * first part of a gateway handshake
+     */
+    public static final String PREFIX = "GATEWAY";
+    /**
+     * most nodes a single gateway may carry
+     */
+    public static final int MAX_NODES = 65536;
+
+    /**
+     * not instantiated, only static helpers
+     */
+    private GatewayHandshake() {
+    }
+
+    /**
+     * creates the handshake for a set of nodes, without codec option. consecutive ids are written as ranges.
+     *
+     * @param nodeIDs ids of the nodes
+     * @return the handshake, e.g. "GATEWAY:1-500"
+     */
+    public static String create(int[] nodeIDs) {
+        if (nodeIDs.length == 0) {
+            throw new IllegalArgumentException("A gateway needs at least one node");
+        }
+        int[] sorted = nodeIDs.clone();
+        Arrays.sort(sorted);
+        StringBuilder handshake = new StringBuilder(PREFIX);
+        int start = 0;
+        while (start < sorted.length) {
+            int end = start;
+            while (end + 1 < sorted.length && sorted[end + 1] == sorted[end] + 1) {
+                end++;
+            }
+            handshake.append(':').append(sorted[start]);
+            if (end > start) {
+                handshake.append('-').append(sorted[end]);
+            }
+            start = end + 1;
+        }
+        return handshake.toString();
+    }
+
+    /**
+     * reads the node ids of a gateway handshake
+     *
+     * @param parts the colon separated parts of the handshake, the first one being "GATEWAY", without codec option
+     * @return the ids, sorted and without duplicates, so they can be searched with {@link #contains(int[], int)}
+     * @throws IllegalArgumentException if a part is not an id or a range, or there are too many nodes
+     */
+    public static int[] parseNodeIDs(String[] parts) {
+        if (parts.length < 2 || !parts[0].equals(PREFIX)) {
+            throw new IllegalArgumentException("Invalid gateway handshake");
+        }
+        int[] ids = new int[0];
+        int count = 0;
+        for (int i = 1; i < parts.length; ++i) {
+            int dash = parts[i].indexOf('-', 1);
+            int first;
+            int last;
+            try {
+                first = Integer.parseInt(dash < 0 ? parts[i] : parts[i].substring(0, dash));
+                last = dash < 0 ? first : Integer.parseInt(parts[i].substring(dash + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid node ids in gateway handshake: " + parts[i]);
+            }
+            if (last < first) {
+                throw new IllegalArgumentException("Invalid node range in gateway handshake: " + parts[i]);
+            }
+            if ((long) count + last - first + 1 > MAX_NODES) {
+                throw new IllegalArgumentException("A gateway can carry at most " + MAX_NODES + " nodes");
+            }
+            ids = Arrays.copyOf(ids, count + last - first + 1);
+            for (int id = first; id <= last; ++id) {
+                ids[count++] = id;
+            }
+        }
+        return Arrays.stream(ids).sorted().distinct().toArray();
+    }
+
+    /**
+     * checks whether a node belongs to a gateway
+     *
+     * @param nodeIDs the sorted ids of the gateway, as returned by {@link #parseNodeIDs(String[])}
+     * @param nodeID  the id to look for
+     * @return true if the node belongs to the gateway
+     */
+    public static boolean contains(int[] nodeIDs, int nodeID) {
+        return Arrays.binarySearch(nodeIDs, nodeID) >= 0;
+    }
+}
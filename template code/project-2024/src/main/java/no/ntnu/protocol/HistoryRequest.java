@@ -0,0 +1,122 @@
+package no.ntnu.protocol;
+
+import org.json.JSONObject;
+
+/**
+ * a request from a control panel for the recorded sensor readings of a node within a time range. the server answers
+ * with one or more {@link SensorHistory} messages, the last one is marked as such.
+ */
+public class HistoryRequest {
+    /**
+     * value of the "type" field that marks a json message as history request or sensor history
+     */
+    public static final String JSON_TYPE = "history";
+
+    private final int nodeId;
+    private final String sensorType;
+    private final long from;
+    private final long to;
+    private final Resolution resolution;
+
+    /**
+     * Constructor for a request for raw readings
+     *
+     * @param nodeId     id of the sensor/actuator node
+     * @param sensorType type of the wanted sensors, e.g. "temperature", or null for all sensors of the node
+     * @param from       start of the time range, in milliseconds since the epoch
+     * @param to         end of the time range (inclusive), in milliseconds since the epoch
+     */
+    public HistoryRequest(int nodeId, String sensorType, long from, long to) {
+        this(nodeId, sensorType, from, to, Resolution.RAW);
+    }
+
+    /**
+     * Constructor for a history request
+     *
+     * @param nodeId     id of the sensor/actuator node
+     * @param sensorType type of the wanted sensors, e.g. "temperature", or null for all sensors of the node
+     * @param from       start of the time range, in milliseconds since the epoch
+     * @param to         end of the time range (inclusive), in milliseconds since the epoch
+     * @param resolution raw readings, or the rollups of the given length
+     */
+    public HistoryRequest(int nodeId, String sensorType, long from, long to, Resolution resolution) {
+        this.nodeId = nodeId;
+        this.sensorType = sensorType;
+        this.from = from;
+        this.to = to;
+        this.resolution = resolution;
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * getter for the wanted sensor type
+     *
+     * @return the sensor type, or null if all sensors are wanted
+     */
+    public String getSensorType() {
+        return sensorType;
+    }
+
+    public long getFrom() {
+        return from;
+    }
+
+    public long getTo() {
+        return to;
+    }
+
+    public Resolution getResolution() {
+        return resolution;
+    }
+
+    /**
+     * checks whether a json message is a history request (or, coming from the server, a sensor history), without
+     * parsing it
+     *
+     * @param message the json message
+     * @return true if the message has the history type
+     */
+    public static boolean isHistoryMessage(String message) {
+        return JsonFieldScanner.findString(message, "type").filter(JSON_TYPE::equals).isPresent();
+    }
+
+    /**
+     * creates the json representation, e.g.
+     * {"type":"history","nodeId":1,"sensorType":"temperature","from":1700000000000,"to":1700003600000}.
+     * the resolution is only added for rollups, e.g. "resolution":"1h".
+     *
+     * @return json object with the request
+     */
+    public JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        json.put("type", JSON_TYPE);
+        json.put("nodeId", nodeId);
+        if (sensorType != null) {
+            json.put("sensorType", sensorType);
+        }
+        json.put("from", from);
+        json.put("to", to);
+        if (resolution != Resolution.RAW) {
+            json.put("resolution", resolution.getArgument());
+        }
+        return json;
+    }
+
+    /**
+     * reads a request from its json representation
+     *
+     * @param message the json string
+     * @return the request
+     * @throws org.json.JSONException    if the message is not a valid history request
+     * @throws IllegalArgumentException if the resolution is unknown
+     */
+    public static HistoryRequest fromJson(String message) {
+        JSONObject json = new JSONObject(message);
+        Resolution resolution = Resolution.fromArgument(json.optString("resolution", Resolution.RAW.getArgument()));
+        return new HistoryRequest(json.getInt("nodeId"), json.optString("sensorType", null), json.getLong("from"),
+                json.getLong("to"), resolution);
+    }
+}
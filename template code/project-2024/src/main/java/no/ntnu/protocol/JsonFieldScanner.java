@@ -0,0 +1,166 @@
+package no.ntnu.protocol;
+
+import java.util.Optional;
+import java.util.OptionalInt;
+
+/**
+ * reads single fields of a json message without parsing the whole message. the server only needs the node id of a
+ * command to route it, and the type of a message to tell commands from history requests, so building a complete json
+ * object for every command would be wasted work.
+ * the scanner walks the message once, skips strings and nested objects and arrays, and never throws: anything it
+ * can not read is reported as an empty result.
+ */
+public final class JsonFieldScanner {
+    // an int has at most 10 digits
+    private static final int MAX_INT_DIGITS = 10;
+
+    private JsonFieldScanner() {
+    }
+
+    /**
+     * finds an integer field of the top level object of a json message
+     *
+     * @param json  the json message
+     * @param field name of the field
+     * @return the value of the field, or empty if the message is no json object, the field is missing or its value
+     *         is not an integer
+     */
+    public static OptionalInt findInt(String json, String field) {
+        int end = trimmedEnd(json);
+        int value = findValue(json, field, end);
+        return value < 0 ? OptionalInt.empty() : parseInt(json, value, end);
+    }
+
+    /**
+     * finds a string field of the top level object of a json message. strings containing escape sequences are not
+     * decoded and reported as empty.
+     *
+     * @param json  the json message
+     * @param field name of the field
+     * @return the value of the field, or empty if the message is no json object, the field is missing or its value
+     *         is not a plain string
+     */
+    public static Optional<String> findString(String json, String field) {
+        int end = trimmedEnd(json);
+        int value = findValue(json, field, end);
+        if (value < 0 || value >= end || json.charAt(value) != '"') {
+            return Optional.empty();
+        }
+        int closingQuote = skipString(json, value, end);
+        if (closingQuote < 0) {
+            return Optional.empty();
+        }
+        String text = json.substring(value + 1, closingQuote);
+        return text.indexOf('\\') < 0 ? Optional.of(text) : Optional.empty();
+    }
+
+    /**
+     * finds where the value of a field of the top level object starts
+     *
+     * @return index of the first character of the value, or -1 if the message is no json object or the field is
+     *         missing
+     */
+    private static int findValue(String json, String field, int end) {
+        int start = skipWhitespace(json, 0);
+        if (start >= end || json.charAt(start) != '{' || json.charAt(end - 1) != '}') {
+            return -1;
+        }
+        int depth = 0;
+        boolean expectingKey = false;
+        for (int i = start; i < end; ++i) {
+            char c = json.charAt(i);
+            if (c == '"') {
+                int stringEnd = skipString(json, i, end);
+                if (stringEnd < 0) {
+                    return -1;
+                }
+                if (depth == 1 && expectingKey && isField(json, i, stringEnd, field)) {
+                    int colon = skipWhitespace(json, stringEnd + 1);
+                    if (colon >= end || json.charAt(colon) != ':') {
+                        return -1;
+                    }
+                    return skipWhitespace(json, colon + 1);
+                }
+                expectingKey = false;
+                i = stringEnd;
+            } else if (c == '{' || c == '[') {
+                depth++;
+                expectingKey = c == '{' && depth == 1;
+            } else if (c == '}' || c == ']') {
+                depth--;
+                expectingKey = false;
+            } else if (c == ',') {
+                expectingKey = depth == 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * finds the end of the message without trailing whitespace
+     */
+    private static int trimmedEnd(String json) {
+        int end = json.length();
+        while (end > 0 && Character.isWhitespace(json.charAt(end - 1))) {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * finds the closing quote of a string
+     *
+     * @return index of the closing quote, or -1 if the string is not terminated
+     */
+    private static int skipString(String json, int openingQuote, int end) {
+        for (int i = openingQuote + 1; i < end; ++i) {
+            char c = json.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '"') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isField(String json, int openingQuote, int closingQuote, String field) {
+        return closingQuote - openingQuote - 1 == field.length()
+                && json.startsWith(field, openingQuote + 1);
+    }
+
+    private static int skipWhitespace(String json, int index) {
+        while (index < json.length() && Character.isWhitespace(json.charAt(index))) {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * parses an integer value, which has to be followed by the end of the value
+     */
+    private static OptionalInt parseInt(String json, int index, int end) {
+        boolean negative = index < end && json.charAt(index) == '-';
+        if (negative) {
+            index++;
+        }
+        long value = 0;
+        int digits = 0;
+        while (index < end && json.charAt(index) >= '0' && json.charAt(index) <= '9') {
+            if (++digits > MAX_INT_DIGITS) {
+                return OptionalInt.empty();
+            }
+            value = value * 10 + (json.charAt(index) - '0');
+            index++;
+        }
+        index = skipWhitespace(json, index);
+        if (digits == 0 || index >= end || (json.charAt(index) != ',' && json.charAt(index) != '}')) {
+            return OptionalInt.empty();
+        }
+        value = negative ? -value : value;
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            return OptionalInt.empty();
+        }
+        return OptionalInt.of((int) value);
+    }
+}
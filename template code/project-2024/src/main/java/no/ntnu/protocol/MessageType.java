@@ -0,0 +1,68 @@
+package no.ntnu.protocol;
+
+/**
+ * the kinds of messages sent between the nodes, the server and the control panels. the code is the type byte of a
+ * binary frame.
+ */
+public enum MessageType {
+    /**
+     * sensor readings and actuator states of a sensor/actuator node, sent from the node to the control panels
+     */
+    SENSOR_DATA((byte) 1),
+
+    /**
+     * command to turn an actuator on or off, sent from a control panel to a node
+     */
+    ACTUATOR_COMMAND((byte) 2),
+
+    /**
+     * request for the recorded readings of a node, sent from a control panel to the server
+     */
+    HISTORY_REQUEST((byte) 3),
+
+    /**
+     * recorded readings of one sensor, sent from the server to a control panel as answer to a history request
+     */
+    SENSOR_HISTORY((byte) 4),
+
+    /**
+     * the sensor readings and actuator states of a node that changed since its previous message, sent from the node
+     * to the control panels
+     */
+    SENSOR_DELTA((byte) 5);
+
+    private final byte code;
+
+    MessageType(byte code) {
+        this.code = code;
+    }
+
+    public byte getCode() {
+        return code;
+    }
+
+    /**
+     * checks whether messages of this type are published by sensor/actuator nodes
+     *
+     * @return true for full sensor data and deltas
+     */
+    public boolean isPublishedByNode() {
+        return this == SENSOR_DATA || this == SENSOR_DELTA;
+    }
+
+    /**
+     * finds the message type of a binary frame
+     *
+     * @param code type byte of the frame
+     * @return the message type
+     * @throws IllegalArgumentException if the code is unknown
+     */
+    public static MessageType fromCode(byte code) {
+        for (MessageType type : values()) {
+            if (type.code == code) {
+                return type;
+            }
+        }
+        throw new IllegalArgumentException("Unknown message type: " + code);
+    }
+}
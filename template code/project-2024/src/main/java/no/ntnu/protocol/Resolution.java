@@ -0,0 +1,91 @@
+package no.ntnu.protocol;
+
+/**
+ * the time resolution of sensor history. besides the raw readings, the server keeps rollups of every sensor: the
+ * minimum, maximum, average and number of readings per minute, hour and day.
+ */
+public enum Resolution {
+    /**
+     * every single reading
+     */
+    RAW("raw", (byte) 0, 0),
+
+    /**
+     * one rollup per minute
+     */
+    MINUTE("1m", (byte) 1, 60 * 1000L),
+
+    /**
+     * one rollup per hour
+     */
+    HOUR("1h", (byte) 2, 60 * 60 * 1000L),
+
+    /**
+     * one rollup per day (UTC)
+     */
+    DAY("1d", (byte) 3, 24 * 60 * 60 * 1000L);
+
+    private final String argument;
+    private final byte code;
+    private final long millis;
+
+    Resolution(String argument, byte code, long millis) {
+        this.argument = argument;
+        this.code = code;
+        this.millis = millis;
+    }
+
+    /**
+     * getter for the name used in json messages
+     *
+     * @return the name, e.g. "1h"
+     */
+    public String getArgument() {
+        return argument;
+    }
+
+    public byte getCode() {
+        return code;
+    }
+
+    /**
+     * getter for the length of one rollup bucket
+     *
+     * @return bucket length in milliseconds, 0 for raw readings
+     */
+    public long getMillis() {
+        return millis;
+    }
+
+    /**
+     * finds the resolution matching a name
+     *
+     * @param argument name of the resolution, e.g. "1m"
+     * @return the resolution
+     * @throws IllegalArgumentException if no resolution matches the name
+     */
+    public static Resolution fromArgument(String argument) {
+        for (Resolution resolution : values()) {
+            if (resolution.argument.equals(argument)) {
+                return resolution;
+            }
+        }
+        throw new IllegalArgumentException("Unknown resolution: " + argument);
+    }
+
+    /**
+     * finds the resolution of a binary frame
+     *
+     * @param code the stored code
+     * @return the resolution
+     * @throws IllegalArgumentException if the code is unknown
+     */
+    public static Resolution fromCode(byte code) {
+        for (Resolution resolution : values()) {
+            if (resolution.code == code) {
+                return resolution;
+            }
+        }
+        throw new IllegalArgumentException("Unknown resolution code: " + code);
+    }
+}
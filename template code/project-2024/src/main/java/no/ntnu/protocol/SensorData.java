@@ -0,0 +1,175 @@
+package no.ntnu.protocol;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import no.ntnu.greenhouse.SensorReading;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * the sensor readings and actuator states of one sensor/actuator node. this is the content of a sensor data
+ * message, independent of the codec used to send it.
+ * a node sends its full state from time to time and only the changes in between, see {@link SensorDelta}. the
+ * sequence number tells which deltas can be applied to the state, 0 means the sender does not number its messages.
+ */
+public class SensorData {
+    private final int nodeId;
+    private final int sequence;
+    private final List<SensorReading> sensors;
+    private final List<ActuatorState> actuators;
+
+    /**
+     * Constructor for sensor data
+     *
+     * @param nodeId    id of the sensor/actuator node
+     * @param sensors   current readings of the node's sensors
+     * @param actuators current states of the node's actuators
+     */
+    public SensorData(int nodeId, List<SensorReading> sensors, List<ActuatorState> actuators) {
+        this(nodeId, 0, sensors, actuators);
+    }
+
+    /**
+     * Constructor for numbered sensor data
+     *
+     * @param nodeId    id of the sensor/actuator node
+     * @param sequence  sequence number of the message, 0 if not numbered
+     * @param sensors   current readings of the node's sensors
+     * @param actuators current states of the node's actuators
+     */
+    public SensorData(int nodeId, int sequence, List<SensorReading> sensors, List<ActuatorState> actuators) {
+        this.nodeId = nodeId;
+        this.sequence = sequence;
+        this.sensors = sensors;
+        this.actuators = actuators;
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    public List<SensorReading> getSensors() {
+        return sensors;
+    }
+
+    public List<ActuatorState> getActuators() {
+        return actuators;
+    }
+
+    /**
+     * creates the json representation, e.g.
+     * {"id":1,"seq":42,"sensors":[{"type":"temperature","value":21.5,"unit":"°C"}],
+     * "actuators":[{"id":3,"type":"fan","status":"off"}]}. the sequence number is left out if it is 0.
+     *
+     * @return json object with the data
+     */
+    public JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        json.put("id", nodeId);
+        if (sequence != 0) {
+            json.put("seq", sequence);
+        }
+
+        JSONArray sensorArray = new JSONArray();
+        for (SensorReading sensor : sensors) {
+            JSONObject sensorObject = new JSONObject();
+            sensorObject.put("type", sensor.getType());
+            sensorObject.put("value", sensor.getValue());
+            sensorObject.put("unit", sensor.getUnit());
+            sensorArray.put(sensorObject);
+        }
+        json.put("sensors", sensorArray);
+
+        JSONArray actuatorArray = new JSONArray();
+        for (ActuatorState actuator : actuators) {
+            JSONObject actuatorObject = new JSONObject();
+            actuatorObject.put("id", actuator.getId());
+            actuatorObject.put("type", actuator.getType());
+            actuatorObject.put("status", actuator.isOn() ? "on" : "off");
+            actuatorArray.put(actuatorObject);
+        }
+        json.put("actuators", actuatorArray);
+        return json;
+    }
+
+    /**
+     * reads sensor data from its json representation. a message without sensors only updates the actuators.
+     *
+     * @param message the json string
+     * @return the sensor data
+     * @throws org.json.JSONException if the message is not valid sensor data
+     */
+    public static SensorData fromJson(String message) {
+        JSONObject json = new JSONObject(message);
+
+        List<SensorReading> sensors = new ArrayList<>();
+        JSONArray sensorArray = json.optJSONArray("sensors");
+        if (sensorArray != null) {
+            for (int i = 0; i < sensorArray.length(); i++) {
+                JSONObject sensorObject = sensorArray.getJSONObject(i);
+                sensors.add(new SensorReading(sensorObject.getString("type"),
+                        sensorObject.getDouble("value"), sensorObject.getString("unit")));
+            }
+        }
+
+        List<ActuatorState> actuators = new ArrayList<>();
+        JSONArray actuatorArray = json.optJSONArray("actuators");
+        if (actuatorArray != null) {
+            for (int i = 0; i < actuatorArray.length(); i++) {
+                JSONObject actuatorObject = actuatorArray.getJSONObject(i);
+                actuators.add(new ActuatorState(actuatorObject.getInt("id"), actuatorObject.getString("type"),
+                        "on".equals(actuatorObject.getString("status"))));
+            }
+        }
+        return new SensorData(json.getInt("id"), json.optInt("seq", 0), sensors, actuators);
+    }
+
+    /**
+     * creates the state after a delta. sensors and actuators not mentioned in the delta keep their values.
+     * the sequence number is not checked, see {@link SensorDelta#follows(SensorData)}.
+     *
+     * @param delta changes of the node
+     * @return the new state, with the sequence number of the delta
+     * @throws IllegalArgumentException if the delta belongs to another node, or refers to a sensor or an actuator
+     *                                  this state does not have
+     */
+    public SensorData apply(SensorDelta delta) {
+        if (delta.getNodeId() != nodeId) {
+            throw new IllegalArgumentException("Delta of node " + delta.getNodeId() + " applied to node " + nodeId);
+        }
+        List<SensorReading> newSensors = new ArrayList<>(sensors);
+        int[] indexes = delta.getSensorIndexes();
+        double[] values = delta.getSensorValues();
+        for (int i = 0; i < indexes.length; ++i) {
+            if (indexes[i] < 0 || indexes[i] >= newSensors.size()) {
+                throw new IllegalArgumentException("Node " + nodeId + " has no sensor " + indexes[i]);
+            }
+            SensorReading old = newSensors.get(indexes[i]);
+            newSensors.set(indexes[i], new SensorReading(old.getType(), values[i], old.getUnit()));
+        }
+
+        List<ActuatorState> newActuators = new ArrayList<>(actuators);
+        int[] ids = delta.getActuatorIds();
+        boolean[] states = delta.getActuatorStates();
+        for (int i = 0; i < ids.length; ++i) {
+            int position = findActuator(newActuators, ids[i]);
+            ActuatorState old = newActuators.get(position);
+            newActuators.set(position, new ActuatorState(old.getId(), old.getType(), states[i]));
+        }
+        return new SensorData(nodeId, delta.getSequence(), newSensors, newActuators);
+    }
+
+    private int findActuator(List<ActuatorState> actuatorStates, int actuatorId) {
+        for (int i = 0; i < actuatorStates.size(); ++i) {
+            if (actuatorStates.get(i).getId() == actuatorId) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Node " + nodeId + " has no actuator " + actuatorId);
+    }
+}
@@ -0,0 +1,152 @@
+package no.ntnu.protocol;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * the changes of one sensor/actuator node since its previous message. after sending its full state as
+ * {@link SensorData}, a node only sends the sensors and actuators whose values changed. sensors are identified by
+ * their position in the full state, actuators by their id, types and units are not repeated.
+ * every message of a node carries a sequence number, one higher than the one of the previous message, so a receiver
+ * can tell whether it missed a delta. a receiver that missed one has to wait for the next full state.
+ */
+public class SensorDelta {
+    /**
+     * value of the type field of a json delta
+     */
+    public static final String JSON_TYPE = "delta";
+
+    private final int nodeId;
+    private final int sequence;
+    private final int[] sensorIndexes;
+    private final double[] sensorValues;
+    private final int[] actuatorIds;
+    private final boolean[] actuatorStates;
+
+    /**
+     * Constructor for a delta
+     *
+     * @param nodeId         id of the sensor/actuator node
+     * @param sequence       sequence number of the message
+     * @param sensorIndexes  positions of the changed sensors
+     * @param sensorValues   new values of the changed sensors, in the same order
+     * @param actuatorIds    ids of the changed actuators
+     * @param actuatorStates new states of the changed actuators, in the same order
+     */
+    public SensorDelta(int nodeId, int sequence, int[] sensorIndexes, double[] sensorValues, int[] actuatorIds,
+                       boolean[] actuatorStates) {
+        if (sensorIndexes.length != sensorValues.length || actuatorIds.length != actuatorStates.length) {
+            throw new IllegalArgumentException("Every changed sensor and actuator needs exactly one value");
+        }
+        this.nodeId = nodeId;
+        this.sequence = sequence;
+        this.sensorIndexes = sensorIndexes;
+        this.sensorValues = sensorValues;
+        this.actuatorIds = actuatorIds;
+        this.actuatorStates = actuatorStates;
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    public int[] getSensorIndexes() {
+        return sensorIndexes;
+    }
+
+    public double[] getSensorValues() {
+        return sensorValues;
+    }
+
+    public int[] getActuatorIds() {
+        return actuatorIds;
+    }
+
+    public boolean[] getActuatorStates() {
+        return actuatorStates;
+    }
+
+    /**
+     * checks whether a json message is a delta, without parsing the whole message
+     *
+     * @param message the json message
+     * @return true if the type field of the message is "delta"
+     */
+    public static boolean isDeltaMessage(String message) {
+        return JsonFieldScanner.findString(message, "type").filter(JSON_TYPE::equals).isPresent();
+    }
+
+    /**
+     * creates the json representation, e.g.
+     * {"type":"delta","id":1,"seq":43,"sensors":[[0,21.6],[2,40.1]],"actuators":[[3,"on"]]}.
+     * every sensor is a pair of its position and value, every actuator a pair of its id and status.
+     *
+     * @return json object with the delta
+     */
+    public JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        json.put("type", JSON_TYPE);
+        json.put("id", nodeId);
+        json.put("seq", sequence);
+
+        JSONArray sensorArray = new JSONArray();
+        for (int i = 0; i < sensorIndexes.length; ++i) {
+            sensorArray.put(new JSONArray().put(sensorIndexes[i]).put(sensorValues[i]));
+        }
+        json.put("sensors", sensorArray);
+
+        JSONArray actuatorArray = new JSONArray();
+        for (int i = 0; i < actuatorIds.length; ++i) {
+            actuatorArray.put(new JSONArray().put(actuatorIds[i]).put(actuatorStates[i] ? "on" : "off"));
+        }
+        json.put("actuators", actuatorArray);
+        return json;
+    }
+
+    /**
+     * reads a delta from its json representation
+     *
+     * @param message the json string
+     * @return the delta
+     * @throws org.json.JSONException if the message is not a valid delta
+     */
+    public static SensorDelta fromJson(String message) {
+        JSONObject json = new JSONObject(message);
+
+        JSONArray sensorArray = json.optJSONArray("sensors");
+        int sensorCount = sensorArray == null ? 0 : sensorArray.length();
+        int[] sensorIndexes = new int[sensorCount];
+        double[] sensorValues = new double[sensorCount];
+        for (int i = 0; i < sensorCount; ++i) {
+            JSONArray sensor = sensorArray.getJSONArray(i);
+            sensorIndexes[i] = sensor.getInt(0);
+            sensorValues[i] = sensor.getDouble(1);
+        }
+
+        JSONArray actuatorArray = json.optJSONArray("actuators");
+        int actuatorCount = actuatorArray == null ? 0 : actuatorArray.length();
+        int[] actuatorIds = new int[actuatorCount];
+        boolean[] actuatorStates = new boolean[actuatorCount];
+        for (int i = 0; i < actuatorCount; ++i) {
+            JSONArray actuator = actuatorArray.getJSONArray(i);
+            actuatorIds[i] = actuator.getInt(0);
+            actuatorStates[i] = "on".equals(actuator.getString(1));
+        }
+        return new SensorDelta(json.getInt("id"), json.getInt("seq"), sensorIndexes, sensorValues, actuatorIds,
+                actuatorStates);
+    }
+
+    /**
+     * checks whether this delta is the message directly following a state
+     *
+     * @param state the state the delta should be applied to
+     * @return true if the sequence number of the delta is one higher than the one of the state
+     */
+    public boolean follows(SensorData state) {
+        return sequence == state.getSequence() + 1;
+    }
+}
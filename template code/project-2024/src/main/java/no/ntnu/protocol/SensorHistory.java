@@ -0,0 +1,223 @@
+package no.ntnu.protocol;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * recorded readings of one sensor of a node, in order of time. the answer to a {@link HistoryRequest} is split into
+ * several of these messages, so a long time range does not end up in one huge message. the last message of an
+ * answer is marked, an answer without any readings consists of a single empty message.
+ * for rollups, every entry is one bucket: its start time, the average as value, and the minimum, maximum and number
+ * of the readings in the bucket.
+ */
+public class SensorHistory {
+    /**
+     * sensor index of the empty message that ends an answer without readings
+     */
+    public static final int NO_SENSOR = -1;
+
+    private final int nodeId;
+    private final int sensorIndex;
+    private final String sensorType;
+    private final String unit;
+    private final long[] timestamps;
+    private final double[] values;
+    private final Resolution resolution;
+    // only used for rollups, null for raw readings
+    private final double[] minimums;
+    private final double[] maximums;
+    private final int[] counts;
+    private final boolean last;
+
+    /**
+     * Constructor for raw sensor history
+     *
+     * @param nodeId      id of the sensor/actuator node
+     * @param sensorIndex position of the sensor in the sensor list of the node
+     * @param sensorType  type of the sensor
+     * @param unit        unit of the values
+     * @param timestamps  time of every reading, in milliseconds since the epoch
+     * @param values      value of every reading
+     * @param last        true if this is the last message of the answer
+     */
+    public SensorHistory(int nodeId, int sensorIndex, String sensorType, String unit, long[] timestamps,
+                         double[] values, boolean last) {
+        this(nodeId, sensorIndex, sensorType, unit, Resolution.RAW, timestamps, values, null, null, null, last);
+    }
+
+    /**
+     * Constructor for sensor history
+     *
+     * @param nodeId      id of the sensor/actuator node
+     * @param sensorIndex position of the sensor in the sensor list of the node
+     * @param sensorType  type of the sensor
+     * @param unit        unit of the values
+     * @param resolution  raw readings or the length of the rollup buckets
+     * @param timestamps  time of every reading, or start of every bucket, in milliseconds since the epoch
+     * @param values      value of every reading, or average of every bucket
+     * @param minimums    smallest reading of every bucket, null for raw readings
+     * @param maximums    largest reading of every bucket, null for raw readings
+     * @param counts      number of readings in every bucket, null for raw readings
+     * @param last        true if this is the last message of the answer
+     */
+    public SensorHistory(int nodeId, int sensorIndex, String sensorType, String unit, Resolution resolution,
+                         long[] timestamps, double[] values, double[] minimums, double[] maximums, int[] counts,
+                         boolean last) {
+        if (timestamps.length != values.length) {
+            throw new IllegalArgumentException("Every reading needs a timestamp and a value");
+        }
+        if (resolution != Resolution.RAW && (minimums == null || maximums == null || counts == null
+                || minimums.length != values.length || maximums.length != values.length
+                || counts.length != values.length)) {
+            throw new IllegalArgumentException("Every rollup needs a minimum, maximum and count");
+        }
+        this.nodeId = nodeId;
+        this.sensorIndex = sensorIndex;
+        this.sensorType = sensorType;
+        this.unit = unit;
+        this.resolution = resolution;
+        this.timestamps = timestamps;
+        this.values = values;
+        this.minimums = minimums;
+        this.maximums = maximums;
+        this.counts = counts;
+        this.last = last;
+    }
+
+    /**
+     * creates the empty message that answers a request without any recorded readings
+     *
+     * @param nodeId id of the node the request was about
+     * @return the message
+     */
+    public static SensorHistory empty(int nodeId) {
+        return new SensorHistory(nodeId, NO_SENSOR, "", "", new long[0], new double[0], true);
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    public int getSensorIndex() {
+        return sensorIndex;
+    }
+
+    public String getSensorType() {
+        return sensorType;
+    }
+
+    public String getUnit() {
+        return unit;
+    }
+
+    public long[] getTimestamps() {
+        return timestamps;
+    }
+
+    public double[] getValues() {
+        return values;
+    }
+
+    public Resolution getResolution() {
+        return resolution;
+    }
+
+    /**
+     * checks whether the entries are rollups instead of raw readings
+     *
+     * @return true for rollups
+     */
+    public boolean isRollup() {
+        return resolution != Resolution.RAW;
+    }
+
+    public double[] getMinimums() {
+        return minimums;
+    }
+
+    public double[] getMaximums() {
+        return maximums;
+    }
+
+    public int[] getCounts() {
+        return counts;
+    }
+
+    public int size() {
+        return timestamps.length;
+    }
+
+    public boolean isLast() {
+        return last;
+    }
+
+    /**
+     * creates the json representation, e.g.
+     * {"type":"history","nodeId":1,"sensor":0,"sensorType":"temperature","unit":"°C","last":true,
+     * "readings":[[1700000000000,21.5],[1700000002000,21.6]]}.
+     * rollups add the resolution, e.g. "resolution":"1h", and every entry is [start, average, minimum, maximum,
+     * count].
+     *
+     * @return json object with the readings
+     */
+    public JSONObject toJson() {
+        JSONObject json = new JSONObject();
+        json.put("type", HistoryRequest.JSON_TYPE);
+        json.put("nodeId", nodeId);
+        json.put("sensor", sensorIndex);
+        json.put("sensorType", sensorType);
+        json.put("unit", unit);
+        json.put("last", last);
+        if (isRollup()) {
+            json.put("resolution", resolution.getArgument());
+        }
+        JSONArray readings = new JSONArray();
+        for (int i = 0; i < timestamps.length; ++i) {
+            JSONArray reading = new JSONArray();
+            reading.put(timestamps[i]);
+            reading.put(values[i]);
+            if (isRollup()) {
+                reading.put(minimums[i]);
+                reading.put(maximums[i]);
+                reading.put(counts[i]);
+            }
+            readings.put(reading);
+        }
+        json.put("readings", readings);
+        return json;
+    }
+
+    /**
+     * reads sensor history from its json representation
+     *
+     * @param message the json string
+     * @return the sensor history
+     * @throws org.json.JSONException    if the message is not valid sensor history
+     * @throws IllegalArgumentException if the resolution is unknown
+     */
+    public static SensorHistory fromJson(String message) {
+        JSONObject json = new JSONObject(message);
+        Resolution resolution = Resolution.fromArgument(json.optString("resolution", Resolution.RAW.getArgument()));
+        boolean rollup = resolution != Resolution.RAW;
+        JSONArray readings = json.getJSONArray("readings");
+        int size = readings.length();
+        long[] timestamps = new long[size];
+        double[] values = new double[size];
+        double[] minimums = rollup ? new double[size] : null;
+        double[] maximums = rollup ? new double[size] : null;
+        int[] counts = rollup ? new int[size] : null;
+        for (int i = 0; i < size; ++i) {
+            JSONArray reading = readings.getJSONArray(i);
+            timestamps[i] = reading.getLong(0);
+            values[i] = reading.getDouble(1);
+            if (rollup) {
+                minimums[i] = reading.getDouble(2);
+                maximums[i] = reading.getDouble(3);
+                counts[i] = reading.getInt(4);
+            }
+        }
+        return new SensorHistory(json.getInt("nodeId"), json.getInt("sensor"), json.getString("sensorType"),
+                json.getString("unit"), resolution, timestamps, values, minimums, maximums, counts,
+                json.getBoolean("last"));
+    }
+}
@@ -0,0 +1,634 @@
+package no.ntnu.protocol;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import no.ntnu.greenhouse.SensorReading;
+
+/**
+ * reads json sensor data and deltas in a single pass, without building json objects. a control panel watching
+ * hundreds of nodes receives thousands of these messages per second, and parsing every one into a tree of json
+ * objects, boxing every number and copying every string, costs more than everything else the panel does with them.
+ * the decoder walks the characters of a message once and keeps what it reads in primitive arrays, which are reused
+ * for the next message. type and unit strings equal to the ones read at the same place before are reused as well,
+ * so decoding the usual stream of messages allocates nothing. the message is then handed to a
+ * {@link SensorMessageHandler}.
+ * the fields of a message may come in any order, unknown fields are skipped. one decoder must not be used by
+ * several threads at once.
+ */
+public final class SensorMessageDecoder {
+    private static final int INITIAL_CAPACITY = 8;
+    // deeper nesting is never sent by a node, and would only be skipped anyway
+    private static final int MAX_DEPTH = 32;
+    // doubles with at most this many digits and a small exponent are exact, see readDouble
+    private static final int MAX_EXACT_DIGITS = 15;
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final int MAX_INT_DIGITS = 10;
+
+    // the message being read, and the position of the next character
+    private String json;
+    private int position;
+    private int end;
+    // start and end of the last field name
+    private int keyStart;
+    private int keyEnd;
+    // whether the last string had escape sequences
+    private boolean escaped;
+
+    private int nodeId;
+    private int sequence;
+    private boolean delta;
+    // the sensors and actuators of the message, as objects in a full state or as pairs in a delta
+    private int objectEntries;
+    private int pairEntries;
+
+    private int sensorCount;
+    private int[] sensorIndexes = new int[INITIAL_CAPACITY];
+    private double[] sensorValues = new double[INITIAL_CAPACITY];
+    private String[] sensorTypes = new String[INITIAL_CAPACITY];
+    private String[] sensorUnits = new String[INITIAL_CAPACITY];
+
+    private int actuatorCount;
+    private int[] actuatorIds = new int[INITIAL_CAPACITY];
+    private boolean[] actuatorStates = new boolean[INITIAL_CAPACITY];
+    private String[] actuatorTypes = new String[INITIAL_CAPACITY];
+
+    /**
+     * reads a json message and passes it to the handler if it is sensor data or a delta
+     *
+     * @param message the json message
+     * @param handler receives the message
+     * @return true if the message was sensor data or a delta, false if it is another type of message, e.g.
+     *         sensor history, which is left for the caller
+     * @throws IllegalArgumentException if the message is not valid json, or not valid sensor data or delta
+     */
+    public boolean decode(String message, SensorMessageHandler handler) {
+        json = message;
+        position = 0;
+        end = message.length();
+        delta = false;
+        sequence = 0;
+        objectEntries = 0;
+        pairEntries = 0;
+        sensorCount = 0;
+        actuatorCount = 0;
+        boolean hasId = false;
+        boolean hasSequence = false;
+
+        expect('{');
+        if (!consume('}')) {
+            do {
+                readKey();
+                expect(':');
+                if (keyIs("type")) {
+                    if (!readStringIs(SensorDelta.JSON_TYPE)) {
+                        return false;
+                    }
+                    delta = true;
+                } else if (keyIs("id")) {
+                    nodeId = readInt();
+                    hasId = true;
+                } else if (keyIs("seq")) {
+                    sequence = readInt();
+                    hasSequence = true;
+                } else if (keyIs("sensors")) {
+                    readSensors();
+                } else if (keyIs("actuators")) {
+                    readActuators();
+                } else {
+                    skipValue(0);
+                }
+            } while (consume(','));
+            expect('}');
+        }
+        skipWhitespace();
+        if (position < end) {
+            throw error("unexpected text after the message");
+        }
+        if (!hasId) {
+            throw error("node id missing");
+        }
+        if (delta) {
+            if (!hasSequence) {
+                throw error("sequence number of delta missing");
+            }
+            if (objectEntries > 0) {
+                throw error("delta with full sensor or actuator entries");
+            }
+            handler.onSensorDelta(nodeId, sequence, this);
+        } else {
+            if (pairEntries > 0) {
+                throw error("sensor data with delta entries");
+            }
+            handler.onSensorData(nodeId, sequence, this);
+        }
+        return true;
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    public boolean isDelta() {
+        return delta;
+    }
+
+    public int getSensorCount() {
+        return sensorCount;
+    }
+
+    /**
+     * @param i number of the sensor in the message
+     * @return position of the sensor in the full state of the node
+     */
+    public int getSensorIndex(int i) {
+        return sensorIndexes[i];
+    }
+
+    public double getSensorValue(int i) {
+        return sensorValues[i];
+    }
+
+    /**
+     * @param i number of the sensor in the message
+     * @return type of the sensor, null in a delta
+     */
+    public String getSensorType(int i) {
+        return delta ? null : sensorTypes[i];
+    }
+
+    /**
+     * @param i number of the sensor in the message
+     * @return unit of the sensor, null in a delta
+     */
+    public String getSensorUnit(int i) {
+        return delta ? null : sensorUnits[i];
+    }
+
+    public int getActuatorCount() {
+        return actuatorCount;
+    }
+
+    public int getActuatorId(int i) {
+        return actuatorIds[i];
+    }
+
+    /**
+     * @param i number of the actuator in the message
+     * @return type of the actuator, null in a delta
+     */
+    public String getActuatorType(int i) {
+        return delta ? null : actuatorTypes[i];
+    }
+
+    public boolean isActuatorOn(int i) {
+        return actuatorStates[i];
+    }
+
+    /**
+     * copies the current full state into sensor data, for receivers that keep it
+     *
+     * @return the sensor data
+     */
+    public SensorData toSensorData() {
+        List<SensorReading> sensors = new ArrayList<>(sensorCount);
+        for (int i = 0; i < sensorCount; ++i) {
+            sensors.add(new SensorReading(sensorTypes[i], sensorValues[i], sensorUnits[i]));
+        }
+        List<ActuatorState> actuators = new ArrayList<>(actuatorCount);
+        for (int i = 0; i < actuatorCount; ++i) {
+            actuators.add(new ActuatorState(actuatorIds[i], actuatorTypes[i], actuatorStates[i]));
+        }
+        return new SensorData(nodeId, sequence, sensors, actuators);
+    }
+
+    /**
+     * copies the current delta, for receivers that keep it
+     *
+     * @return the delta
+     */
+    public SensorDelta toSensorDelta() {
+        return new SensorDelta(nodeId, sequence, Arrays.copyOf(sensorIndexes, sensorCount),
+                Arrays.copyOf(sensorValues, sensorCount), Arrays.copyOf(actuatorIds, actuatorCount),
+                Arrays.copyOf(actuatorStates, actuatorCount));
+    }
+
+    /**
+     * reads the sensor list, either objects like {"type":"temperature","value":21.5,"unit":"°C"} or pairs of
+     * position and value like [0,21.5]
+     */
+    private void readSensors() {
+        expect('[');
+        if (consume(']')) {
+            return;
+        }
+        do {
+            if (sensorCount == sensorIndexes.length) {
+                growSensors();
+            }
+            int i = sensorCount;
+            skipWhitespace();
+            if (peek() == '[') {
+                position++;
+                sensorIndexes[i] = readInt();
+                expect(',');
+                sensorValues[i] = readDouble();
+                expect(']');
+                pairEntries++;
+            } else {
+                readSensorObject(i);
+                objectEntries++;
+            }
+            sensorCount++;
+        } while (consume(','));
+        expect(']');
+    }
+
+    private void readSensorObject(int i) {
+        String previousType = sensorTypes[i];
+        String previousUnit = sensorUnits[i];
+        String type = null;
+        String unit = null;
+        boolean hasValue = false;
+        expect('{');
+        if (!consume('}')) {
+            do {
+                readKey();
+                expect(':');
+                if (keyIs("type")) {
+                    type = readString(previousType);
+                } else if (keyIs("value")) {
+                    sensorValues[i] = readDouble();
+                    hasValue = true;
+                } else if (keyIs("unit")) {
+                    unit = readString(previousUnit);
+                } else {
+                    skipValue(2);
+                }
+            } while (consume(','));
+            expect('}');
+        }
+        if (type == null || unit == null || !hasValue) {
+            throw error("sensor without type, value or unit");
+        }
+        sensorIndexes[i] = i;
+        sensorTypes[i] = type;
+        sensorUnits[i] = unit;
+    }
+
+    /**
+     * reads the actuator list, either objects like {"id":3,"type":"fan","status":"off"} or pairs of id and status
+     * like [3,"on"]
+     */
+    private void readActuators() {
+        expect('[');
+        if (consume(']')) {
+            return;
+        }
+        do {
+            if (actuatorCount == actuatorIds.length) {
+                growActuators();
+            }
+            int i = actuatorCount;
+            skipWhitespace();
+            if (peek() == '[') {
+                position++;
+                actuatorIds[i] = readInt();
+                expect(',');
+                actuatorStates[i] = readStringIs("on");
+                expect(']');
+                pairEntries++;
+            } else {
+                readActuatorObject(i);
+                objectEntries++;
+            }
+            actuatorCount++;
+        } while (consume(','));
+        expect(']');
+    }
+
+    private void readActuatorObject(int i) {
+        String previousType = actuatorTypes[i];
+        String type = null;
+        boolean hasId = false;
+        boolean hasStatus = false;
+        expect('{');
+        if (!consume('}')) {
+            do {
+                readKey();
+                expect(':');
+                if (keyIs("id")) {
+                    actuatorIds[i] = readInt();
+                    hasId = true;
+                } else if (keyIs("type")) {
+                    type = readString(previousType);
+                } else if (keyIs("status")) {
+                    actuatorStates[i] = readStringIs("on");
+                    hasStatus = true;
+                } else {
+                    skipValue(2);
+                }
+            } while (consume(','));
+            expect('}');
+        }
+        if (type == null || !hasId || !hasStatus) {
+            throw error("actuator without id, type or status");
+        }
+        actuatorTypes[i] = type;
+    }
+
+    private void growSensors() {
+        int capacity = sensorIndexes.length * 2;
+        sensorIndexes = Arrays.copyOf(sensorIndexes, capacity);
+        sensorValues = Arrays.copyOf(sensorValues, capacity);
+        sensorTypes = Arrays.copyOf(sensorTypes, capacity);
+        sensorUnits = Arrays.copyOf(sensorUnits, capacity);
+    }
+
+    private void growActuators() {
+        int capacity = actuatorIds.length * 2;
+        actuatorIds = Arrays.copyOf(actuatorIds, capacity);
+        actuatorStates = Arrays.copyOf(actuatorStates, capacity);
+        actuatorTypes = Arrays.copyOf(actuatorTypes, capacity);
+    }
+
+    /**
+     * reads a field name, without decoding it. names with escape sequences never match a known field.
+     */
+    private void readKey() {
+        skipWhitespace();
+        if (peek() != '"') {
+            throw error("field name expected");
+        }
+        keyStart = position + 1;
+        keyEnd = findClosingQuote();
+        position = keyEnd + 1;
+    }
+
+    private boolean keyIs(String name) {
+        return keyEnd - keyStart == name.length() && json.startsWith(name, keyStart);
+    }
+
+    /**
+     * reads a string and compares it to an expected text, without creating it
+     */
+    private boolean readStringIs(String expected) {
+        skipWhitespace();
+        if (peek() != '"') {
+            throw error("string expected");
+        }
+        int start = position + 1;
+        int closingQuote = findClosingQuote();
+        position = closingQuote + 1;
+        return closingQuote - start == expected.length() && json.startsWith(expected, start);
+    }
+
+    /**
+     * reads a string. if it equals the previous string at the same place, that one is returned instead of a copy.
+     *
+     * @param previous the string read at the same place in the previous message, or null
+     */
+    private String readString(String previous) {
+        skipWhitespace();
+        if (peek() != '"') {
+            throw error("string expected");
+        }
+        int start = position + 1;
+        int closingQuote = findClosingQuote();
+        position = closingQuote + 1;
+        int length = closingQuote - start;
+        if (!escaped) {
+            if (previous != null && previous.length() == length && json.startsWith(previous, start)) {
+                return previous;
+            }
+            return json.substring(start, closingQuote);
+        }
+        return unescape(start, closingQuote);
+    }
+
+    private String unescape(int start, int closingQuote) {
+        StringBuilder text = new StringBuilder(closingQuote - start);
+        for (int i = start; i < closingQuote; ++i) {
+            char c = json.charAt(i);
+            if (c != '\\') {
+                text.append(c);
+                continue;
+            }
+            char escaped = json.charAt(++i);
+            switch (escaped) {
+                case 'b' -> text.append('\b');
+                case 'f' -> text.append('\f');
+                case 'n' -> text.append('\n');
+                case 'r' -> text.append('\r');
+                case 't' -> text.append('\t');
+                case 'u' -> {
+                    if (i + 4 >= closingQuote) {
+                        throw error("invalid unicode escape");
+                    }
+                    try {
+                        text.append((char) Integer.parseInt(json, i + 1, i + 5, 16));
+                    } catch (NumberFormatException e) {
+                        throw error("invalid unicode escape");
+                    }
+                    i += 4;
+                }
+                default -> text.append(escaped);
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * finds the closing quote of the string starting at the current position
+     */
+    private int findClosingQuote() {
+        escaped = false;
+        for (int i = position + 1; i < end; ++i) {
+            char c = json.charAt(i);
+            if (c == '\\') {
+                escaped = true;
+                i++;
+            } else if (c == '"') {
+                return i;
+            }
+        }
+        throw error("string not terminated");
+    }
+
+    private int readInt() {
+        skipWhitespace();
+        boolean negative = consumeChar('-');
+        long value = 0;
+        int digits = 0;
+        while (position < end && isDigit(json.charAt(position))) {
+            if (++digits > MAX_INT_DIGITS) {
+                throw error("integer too large");
+            }
+            value = value * 10 + (json.charAt(position++) - '0');
+        }
+        if (digits == 0) {
+            throw error("integer expected");
+        }
+        value = negative ? -value : value;
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw error("integer too large");
+        }
+        return (int) value;
+    }
+
+    /**
+     * reads a number. numbers with few digits, which is what nodes send, are calculated directly: the digits and
+     * the power of ten are exact doubles then, so one multiplication or division gives the correctly rounded result.
+     * other numbers are left to {@link Double#parseDouble(String)}.
+     */
+    private double readDouble() {
+        skipWhitespace();
+        int start = position;
+        boolean negative = consumeChar('-');
+        long digitsValue = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        while (position < end && isDigit(json.charAt(position))) {
+            digitsValue = digitsValue * 10 + (json.charAt(position++) - '0');
+            digits++;
+        }
+        if (consumeChar('.')) {
+            while (position < end && isDigit(json.charAt(position))) {
+                digitsValue = digitsValue * 10 + (json.charAt(position++) - '0');
+                digits++;
+                fractionDigits++;
+            }
+        }
+        if (digits == 0) {
+            throw error("number expected");
+        }
+        int exponent = 0;
+        if (position < end && (json.charAt(position) == 'e' || json.charAt(position) == 'E')) {
+            position++;
+            boolean negativeExponent = consumeChar('-');
+            if (!negativeExponent) {
+                consumeChar('+');
+            }
+            int exponentDigits = 0;
+            while (position < end && isDigit(json.charAt(position))) {
+                if (exponentDigits++ < MAX_INT_DIGITS - 1) {
+                    exponent = exponent * 10 + (json.charAt(position) - '0');
+                }
+                position++;
+            }
+            if (exponentDigits == 0) {
+                throw error("number expected");
+            }
+            exponent = negativeExponent ? -exponent : exponent;
+        }
+        exponent -= fractionDigits;
+        if (digits > MAX_EXACT_DIGITS || Math.abs(exponent) >= POWERS_OF_TEN.length) {
+            try {
+                return Double.parseDouble(json.substring(start, position));
+            } catch (NumberFormatException e) {
+                throw error("invalid number");
+            }
+        }
+        double value = exponent >= 0
+                ? digitsValue * POWERS_OF_TEN[exponent]
+                : digitsValue / POWERS_OF_TEN[-exponent];
+        return negative ? -value : value;
+    }
+
+    /**
+     * skips a value of a field that is not needed
+     *
+     * @param depth nesting depth of the value
+     */
+    private void skipValue(int depth) {
+        if (depth > MAX_DEPTH) {
+            throw error("nesting too deep");
+        }
+        skipWhitespace();
+        char c = peek();
+        if (c == '"') {
+            position = findClosingQuote() + 1;
+        } else if (c == '{') {
+            position++;
+            if (!consume('}')) {
+                do {
+                    readKey();
+                    expect(':');
+                    skipValue(depth + 1);
+                } while (consume(','));
+                expect('}');
+            }
+        } else if (c == '[') {
+            position++;
+            if (!consume(']')) {
+                do {
+                    skipValue(depth + 1);
+                } while (consume(','));
+                expect(']');
+            }
+        } else if (c == '-' || isDigit(c)) {
+            readDouble();
+        } else if (!skipLiteral("true") && !skipLiteral("false") && !skipLiteral("null")) {
+            throw error("value expected");
+        }
+    }
+
+    private boolean skipLiteral(String literal) {
+        if (json.startsWith(literal, position)) {
+            position += literal.length();
+            return true;
+        }
+        return false;
+    }
+
+    private void skipWhitespace() {
+        while (position < end && Character.isWhitespace(json.charAt(position))) {
+            position++;
+        }
+    }
+
+    private char peek() {
+        if (position >= end) {
+            throw error("message ends too early");
+        }
+        return json.charAt(position);
+    }
+
+    /**
+     * skips whitespace and the given character, if it comes next
+     */
+    private boolean consume(char c) {
+        skipWhitespace();
+        return consumeChar(c);
+    }
+
+    private boolean consumeChar(char c) {
+        if (position < end && json.charAt(position) == c) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(char c) {
+        if (!consume(c)) {
+            throw error("'" + c + "' expected");
+        }
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private IllegalArgumentException error(String problem) {
+        return new IllegalArgumentException("Invalid sensor message at position " + position + ": " + problem);
+    }
+}
@@ -0,0 +1,25 @@
+package no.ntnu.protocol;
+
+/**
+ * receives the messages read by a {@link SensorMessageDecoder}. the content of a message can only be read from the
+ * decoder while the callback runs, the decoder reuses its buffers for the next message.
+ */
+public interface SensorMessageHandler {
+    /**
+     * called for the full state of a node
+     *
+     * @param nodeId   id of the sensor/actuator node
+     * @param sequence sequence number of the message, 0 if not numbered
+     * @param message  the decoder, holding the sensors and actuators of the message
+     */
+    void onSensorData(int nodeId, int sequence, SensorMessageDecoder message);
+
+    /**
+     * called for the changes of a node since its previous message
+     *
+     * @param nodeId   id of the sensor/actuator node
+     * @param sequence sequence number of the message
+     * @param message  the decoder, holding the changed sensors and actuators
+     */
+    void onSensorDelta(int nodeId, int sequence, SensorMessageDecoder message);
+}
@@ -0,0 +1,84 @@
+package no.ntnu.protocol;
+
+/**
+ * the encoding a client uses for its messages after the handshake. the codec is chosen by the client, by adding
+ * the option "codec=bin" to its handshake, e.g. "SENSOR:3:codec=bin" or "CONTROL:1:2:codec=bin". clients that do
+ * not add the option keep talking json, so old clients continue to work.
+ */
+public enum WireCodec {
+    /**
+     * one json object per line, the original format
+     */
+    JSON("json"),
+
+    /**
+     * length prefixed binary frames, see {@link BinaryCodec}
+     */
+    BINARY("bin");
+
+    /**
+     * prefix of the handshake option which selects the codec
+     */
+    public static final String HANDSHAKE_OPTION = "codec=";
+
+    private final String argument;
+
+    WireCodec(String argument) {
+        this.argument = argument;
+    }
+
+    /**
+     * getter for the name of the codec used in handshakes and on the command line
+     *
+     * @return the name of the codec
+     */
+    public String getArgument() {
+        return argument;
+    }
+
+    /**
+     * the text a client appends to its handshake to select this codec
+     *
+     * @return the handshake option, empty for json since that is the default
+     */
+    public String getHandshakeSuffix() {
+        return this == JSON ? "" : ":" + HANDSHAKE_OPTION + argument;
+    }
+
+    /**
+     * checks whether a part of a handshake is an option instead of a node id
+     *
+     * @param handshakePart one of the colon separated parts of a handshake
+     * @return true if the part is a codec option
+     */
+    public static boolean isHandshakeOption(String handshakePart) {
+        return handshakePart.startsWith(HANDSHAKE_OPTION);
+    }
+
+    /**
+     * finds the codec selected by a handshake option
+     *
+     * @param handshakePart handshake option, e.g. "codec=bin"
+     * @return the selected codec
+     * @throws IllegalArgumentException if the option does not name a known codec
+     */
+    public static WireCodec fromHandshakeOption(String handshakePart) {
+        return fromArgument(handshakePart.substring(HANDSHAKE_OPTION.length()));
+    }
+
+    /**
+     * finds the codec matching a name
+     *
+     * @param argument name of the codec, case is ignored
+     * @return the matching codec
+     * @throws IllegalArgumentException if no codec matches the name
+     */
+    public static WireCodec fromArgument(String argument) {
+        for (WireCodec codec : values()) {
+            if (codec.argument.equalsIgnoreCase(argument)) {
+                return codec;
+            }
+        }
+        throw new IllegalArgumentException("Unknown codec: " + argument);
+    }
+}
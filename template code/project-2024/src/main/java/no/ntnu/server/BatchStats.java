@@ -0,0 +1,77 @@
+package no.ntnu.server;
+
+/**
+ * counts how many messages are written to a connection with every flush. a high average batch size means that many
+ * messages share a single write call, which is what saves system calls and small TCP segments under load.
+ */
+public class BatchStats {
+    private long flushCount;
+    private long messageCount;
+    private int maxBatchSize;
+    private int lastBatchSize;
+
+    /**
+     * records one flush
+     *
+     * @param batchSize number of messages written with the flush
+     */
+    public synchronized void record(int batchSize) {
+        flushCount++;
+        messageCount += batchSize;
+        lastBatchSize = batchSize;
+        if (batchSize > maxBatchSize) {
+            maxBatchSize = batchSize;
+        }
+    }
+
+    /**
+     * getter for the number of flushes
+     *
+     * @return number of flushes so far
+     */
+    public synchronized long getFlushCount() {
+        return flushCount;
+    }
+
+    /**
+     * getter for the number of written messages
+     *
+     * @return number of messages written so far
+     */
+    public synchronized long getMessageCount() {
+        return messageCount;
+    }
+
+    /**
+     * getter for the average number of messages per flush
+     *
+     * @return average batch size, 0 if nothing has been flushed yet
+     */
+    public synchronized double getAverageBatchSize() {
+        return flushCount == 0 ? 0 : (double) messageCount / flushCount;
+    }
+
+    /**
+     * getter for the largest batch written with a single flush
+     *
+     * @return largest batch size
+     */
+    public synchronized int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * getter for the size of the latest batch
+     *
+     * @return number of messages written with the latest flush
+     */
+    public synchronized int getLastBatchSize() {
+        return lastBatchSize;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%d messages in %d flushes (avg %.1f, max %d per flush)",
+                messageCount, flushCount, getAverageBatchSize(), maxBatchSize);
+    }
+}
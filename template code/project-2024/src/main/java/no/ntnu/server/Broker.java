@@ -0,0 +1,365 @@
+package no.ntnu.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import no.ntnu.protocol.MessageType;
+import no.ntnu.protocol.SensorData;
+import no.ntnu.protocol.SensorDelta;
+import no.ntnu.tools.Logger;
+
+/**
+ * publish/subscribe broker between sensor/actuator nodes and control panels. every sensor/actuator node is a topic,
+ * identified by its node id, and any number of control panels (or recorders, dashboards, ...) can subscribe to it.
+ * the broker only hands messages to the subscribers, every subscriber is responsible for queueing them on its own,
+ * so a slow subscriber never delays the others.
+ * the broker also remembers the latest state of every connected node, so a new subscriber gets it right away instead
+ * of waiting for the next reading of the node. nodes send their full state only from time to time and deltas in
+ * between, the broker keeps the deltas since the last full state and only applies them when someone subscribes.
+ * recorders, like the telemetry log, see every sensor data message and every command that reaches its node.
+ * the lock of a topic only guards its state, messages are delivered after it is released. the deliveries of a topic
+ * are queued in the order they were made, and handed out one after the other by whichever thread finds the queue
+ * idle, so every subscriber still gets the messages of a node in order, and a snapshot never overtakes a newer
+ * message.
+ */
+public class Broker {
+    // deltas kept per node before they are applied to the state, even without a new subscriber
+    private static final int MAX_PENDING_DELTAS = 64;
+    private final Map<Integer, Topic> topics = new ConcurrentHashMap<>();
+    // receive every message passing through the broker, no matter which node it belongs to
+    private final Set<Subscriber> recorders = new CopyOnWriteArraySet<>();
+
+    /**
+     * a single sensor/actuator node and everyone listening to it
+     */
+    private static class Topic {
+        // the connected node, null while the node is offline
+        private volatile Subscriber node;
+        private final Set<Subscriber> subscribers = new CopyOnWriteArraySet<>();
+        // latest full state published by the node, null until it sends its first one
+        private volatile Message lastMessage;
+        // deltas published after the latest full state, guarded by the topic
+        private final List<Message> deltas = new ArrayList<>();
+        // deliveries not handed out yet, and whether a thread is handing them out, guarded by the topic
+        private final ArrayDeque<Delivery> outbox = new ArrayDeque<>();
+        private boolean delivering;
+
+        private boolean isUnused() {
+            return node == null && subscribers.isEmpty();
+        }
+    }
+
+    /**
+     * a message and the subscribers that get it, as they were when the message was published
+     */
+    private static class Delivery {
+        // the iterator of a copy-on-write set is a snapshot of it, without copying the set
+        private final Iterator<Subscriber> subscribers;
+        private final Message message;
+
+        private Delivery(Iterator<Subscriber> subscribers, Message message) {
+            this.subscribers = subscribers;
+            this.message = message;
+        }
+    }
+
+    /**
+     * registers a connected sensor/actuator node as the publisher of a topic
+     *
+     * @param nodeID id of the node
+     * @param node   the node, which will receive the actuator commands addressed to it
+     * @return true on success, false if a node with the same id is already connected
+     */
+    public synchronized boolean addTopic(int nodeID, Subscriber node) {
+        Topic topic = topics.computeIfAbsent(nodeID, id -> new Topic());
+        if (topic.node != null) {
+            return false;
+        }
+        topic.node = node;
+        return true;
+    }
+
+    /**
+     * registers a gateway as the publisher of the topics of all nodes it carries. either all or none of the topics
+     * are registered.
+     *
+     * @param nodeIDs ids of the nodes behind the gateway
+     * @param gateway the gateway, which will receive the actuator commands addressed to any of its nodes
+     * @return true on success, false if a node with one of the ids is already connected
+     */
+    public synchronized boolean addTopics(int[] nodeIDs, Subscriber gateway) {
+        for (int id : nodeIDs) {
+            Topic topic = topics.get(id);
+            if (topic != null && topic.node != null) {
+                Logger.error("Sensor node " + id + " of the gateway is already connected");
+                return false;
+            }
+        }
+        for (int id : nodeIDs) {
+            addTopic(id, gateway);
+        }
+        return true;
+    }
+
+    /**
+     * removes the topics of a disconnected gateway
+     *
+     * @param nodeIDs ids of the nodes behind the gateway
+     * @param gateway the gateway that disconnected
+     */
+    public void removeTopics(int[] nodeIDs, Subscriber gateway) {
+        for (int id : nodeIDs) {
+            removeTopic(id, gateway);
+        }
+    }
+
+    /**
+     * removes a disconnected sensor/actuator node. its subscribers stay subscribed, so they continue to receive data
+     * if the node connects again.
+     *
+     * @param nodeID id of the node
+     * @param node   the node that disconnected
+     */
+    public void removeTopic(int nodeID, Subscriber node) {
+        Topic topic;
+        synchronized (this) {
+            topic = topics.get(nodeID);
+            if (topic == null || topic.node != node) {
+                return;
+            }
+            topic.node = null;
+            if (topic.isUnused()) {
+                topics.remove(nodeID);
+            }
+        }
+        // the state of an offline node is outdated, unless the node connected again in the meantime
+        synchronized (topic) {
+            if (topic.node == null) {
+                topic.lastMessage = null;
+                topic.deltas.clear();
+            }
+        }
+    }
+
+    /**
+     * adds a recorder, which receives all sensor data and actuator commands of all nodes. recorders must not block,
+     * as they are called on the thread forwarding the message.
+     *
+     * @param recorder the recorder
+     */
+    public void addRecorder(Subscriber recorder) {
+        recorders.add(recorder);
+    }
+
+    /**
+     * subscribes to a set of sensor/actuator nodes. either all or none of the subscriptions are made.
+     * the subscriber immediately receives the latest known state of every node that already sent data.
+     *
+     * @param subscriber the subscriber
+     * @param nodeIDs    ids of the wanted nodes
+     * @return true on success, false if one of the nodes is not connected to the server
+     */
+    public boolean subscribe(Subscriber subscriber, int[] nodeIDs) {
+        Topic[] subscribed = new Topic[nodeIDs.length];
+        synchronized (this) {
+            for (int i = 0; i < nodeIDs.length; ++i) {
+                subscribed[i] = topics.get(nodeIDs[i]);
+                if (subscribed[i] == null || subscribed[i].node == null) {
+                    Logger.error("Sensor node with requested id is not connected to server: " + nodeIDs[i]);
+                    return false;
+                }
+            }
+            for (Topic topic : subscribed) {
+                topic.subscribers.add(subscriber);
+            }
+        }
+        for (int i = 0; i < nodeIDs.length; ++i) {
+            Topic topic = subscribed[i];
+            // queued like a published message, so it can not overtake a newer one. messages published since the
+            // subscriber was added may reach it first, the snapshot includes them.
+            synchronized (topic) {
+                Message snapshot = currentState(nodeIDs[i], topic);
+                if (snapshot != null) {
+                    topic.outbox.add(new Delivery(List.of(subscriber).iterator(), snapshot));
+                }
+            }
+            deliverQueued(nodeIDs[i], topic);
+        }
+        return true;
+    }
+
+    /**
+     * removes the subscriptions of a subscriber
+     *
+     * @param subscriber the subscriber
+     * @param nodeIDs    ids of the nodes it was subscribed to
+     */
+    public synchronized void unsubscribe(Subscriber subscriber, int[] nodeIDs) {
+        for (int id : nodeIDs) {
+            Topic topic = topics.get(id);
+            if (topic != null) {
+                topic.subscribers.remove(subscriber);
+                if (topic.isUnused()) {
+                    topics.remove(id);
+                }
+            }
+        }
+    }
+
+    /**
+     * hands a message from a sensor/actuator node to all of its subscribers and remembers it as part of the latest
+     * state of the node
+     *
+     * @param nodeID  id of the publishing node
+     * @param message the message
+     */
+    public void publish(int nodeID, Message message) {
+        Topic topic = topics.get(nodeID);
+        if (topic != null) {
+            synchronized (topic) {
+                remember(nodeID, topic, message);
+                topic.outbox.add(new Delivery(topic.subscribers.iterator(), message));
+            }
+            deliverQueued(nodeID, topic);
+            record(nodeID, message);
+        }
+    }
+
+    /**
+     * hands out the queued deliveries of a topic, without holding its lock. if another thread is doing so already,
+     * it hands out the new ones as well.
+     */
+    private void deliverQueued(int nodeID, Topic topic) {
+        synchronized (topic) {
+            if (topic.delivering) {
+                return;
+            }
+            topic.delivering = true;
+        }
+        while (true) {
+            Delivery delivery;
+            synchronized (topic) {
+                delivery = topic.outbox.poll();
+                if (delivery == null) {
+                    topic.delivering = false;
+                    return;
+                }
+            }
+            while (delivery.subscribers.hasNext()) {
+                Subscriber subscriber = delivery.subscribers.next();
+                try {
+                    subscriber.deliver(nodeID, delivery.message);
+                } catch (RuntimeException e) {
+                    Logger.error("Failed to deliver a message of node " + nodeID + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * keeps a full state, or a delta to be applied to the last full state. called while holding the topic.
+     */
+    private void remember(int nodeID, Topic topic, Message message) {
+        if (message.getType() == MessageType.SENSOR_DATA) {
+            topic.lastMessage = message;
+            topic.deltas.clear();
+        } else if (message.getType() == MessageType.SENSOR_DELTA && topic.lastMessage != null) {
+            topic.deltas.add(message);
+            if (topic.deltas.size() >= MAX_PENDING_DELTAS) {
+                currentState(nodeID, topic);
+            }
+        }
+    }
+
+    /**
+     * applies the deltas received since the last full state of a node, and keeps the result as its new full state.
+     * called while holding the topic.
+     *
+     * @return the current state of the node, or null if it has not sent its full state yet
+     */
+    private Message currentState(int nodeID, Topic topic) {
+        if (topic.deltas.isEmpty()) {
+            return topic.lastMessage;
+        }
+        try {
+            SensorData state = topic.lastMessage.decodeSensorData();
+            for (Message message : topic.deltas) {
+                SensorDelta delta = message.decodeSensorDelta();
+                if (!delta.follows(state)) {
+                    Logger.error("Delta " + delta.getSequence() + " of node " + nodeID + " does not follow state "
+                            + state.getSequence() + ", ignoring the following deltas.");
+                    break;
+                }
+                state = state.apply(delta);
+            }
+            topic.lastMessage = Message.fromJson(MessageType.SENSOR_DATA, nodeID, state.toJson().toString());
+        } catch (RuntimeException e) {
+            Logger.error("Could not apply the changes of node " + nodeID + ": " + e.getMessage());
+        }
+        topic.deltas.clear();
+        return topic.lastMessage;
+    }
+
+    private void record(int nodeID, Message message) {
+        for (Subscriber recorder : recorders) {
+            recorder.deliver(nodeID, message);
+        }
+    }
+
+    /**
+     * getter for the latest state of a sensor/actuator node, with all deltas applied
+     *
+     * @param nodeID id of the node
+     * @return the latest full sensor data of the node, or null if the node is offline or has not sent any data yet
+     */
+    public Message getLastKnownState(int nodeID) {
+        Topic topic = topics.get(nodeID);
+        if (topic == null) {
+            return null;
+        }
+        synchronized (topic) {
+            return currentState(nodeID, topic);
+        }
+    }
+
+    /**
+     * checks whether a subscriber is subscribed to a sensor/actuator node
+     *
+     * @param nodeID     id of the node
+     * @param subscriber the subscriber
+     * @return true if the subscriber receives the messages of the node
+     */
+    public boolean isSubscribed(int nodeID, Subscriber subscriber) {
+        Topic topic = topics.get(nodeID);
+        return topic != null && topic.subscribers.contains(subscriber);
+    }
+
+    /**
+     * hands a command to a sensor/actuator node. only subscribers of the node are allowed to control it.
+     *
+     * @param nodeID  id of the node
+     * @param sender  the subscriber that sent the command
+     * @param message the command
+     * @return true if the command was handed to the node, false if the node is offline or the sender not
+     *         subscribed to it
+     */
+    public boolean sendToNode(int nodeID, Subscriber sender, Message message) {
+        Topic topic = topics.get(nodeID);
+        if (topic == null || !topic.subscribers.contains(sender)) {
+            return false;
+        }
+        Subscriber node = topic.node;
+        if (node == null) {
+            return false;
+        }
+        node.deliver(nodeID, message);
+        record(nodeID, message);
+        return true;
+    }
+}
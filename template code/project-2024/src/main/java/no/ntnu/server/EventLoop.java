@@ -0,0 +1,180 @@
+package no.ntnu.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import no.ntnu.tools.Logger;
+
+/**
+ * a single selector thread of the nio server. every connection is owned by exactly one event loop, which does
+ * all reading and writing for it. other threads hand work to the loop through its task queue.
+ */
+public class EventLoop implements Runnable {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private final int index;
+    private final NioServer server;
+    private final Selector selector;
+    // connections are only read from this thread, so they can all share one read buffer
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // makes sure we only pay for one selector wakeup per batch of submitted tasks
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+    private volatile boolean running;
+    private Thread thread;
+
+    /**
+     * Constructor for an event loop
+     *
+     * @param index  number of the loop, used for naming its thread
+     * @param server the server which owns this loop
+     * @throws IOException if the selector can not be opened
+     */
+    public EventLoop(int index, NioServer server) throws IOException {
+        this.index = index;
+        this.server = server;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * starts the thread of this event loop
+     */
+    public void start() {
+        running = true;
+        thread = new Thread(this, "nio-event-loop-" + index);
+        thread.start();
+    }
+
+    /**
+     * stops the event loop and closes every connection it owns
+     */
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * hands a newly accepted channel to this loop
+     *
+     * @param channel accepted client channel
+     */
+    public void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new NioConnection(channel, key, this, server));
+            } catch (IOException e) {
+                Logger.error("Could not register client channel: " + e.getMessage());
+                closeQuietly(channel);
+            }
+        });
+    }
+
+    /**
+     * runs a task on the thread of this loop
+     *
+     * @param task task to run
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread && wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * checks if the caller is running on this loop
+     *
+     * @return true if called from the thread of this loop
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * getter for the read buffer shared by all connections of this loop
+     *
+     * @return read buffer, only to be used from the thread of this loop
+     */
+    ByteBuffer getReadBuffer() {
+        return readBuffer;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                if (tasks.isEmpty()) {
+                    selector.select();
+                } else {
+                    selector.selectNow();
+                }
+                wakeupPending.set(false);
+                runTasks();
+                processSelectedKeys();
+            } catch (IOException e) {
+                Logger.error("Event loop " + index + " failed to select: " + e.getMessage());
+            }
+        }
+        closeAll();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Logger.error("Task failed on event loop " + index + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void processSelectedKeys() {
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            NioConnection connection = (NioConnection) key.attachment();
+            try {
+                if (key.isReadable()) {
+                    connection.onReadable();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    connection.onWritable();
+                }
+            } catch (CancelledKeyException e) {
+                connection.close();
+            }
+        }
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof NioConnection connection) {
+                connection.close();
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            Logger.error("Error closing selector: " + e.getMessage());
+        }
+    }
+
+    private void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Logger.error("Failed to close client channel: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package no.ntnu.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import no.ntnu.protocol.BinaryCodec;
+import no.ntnu.protocol.HistoryRequest;
+import no.ntnu.protocol.MessageType;
+import no.ntnu.protocol.Resolution;
+import no.ntnu.protocol.SensorHistory;
+import no.ntnu.protocol.WireCodec;
+import no.ntnu.server.telemetry.TelemetryStore;
+import no.ntnu.tools.Logger;
+
+/**
+ * answers the history requests of control panels from the telemetry log, either with raw readings or with the
+ * per minute, hour or day rollups. the readings are streamed out of the log and sent in messages of at most
+ * {@link #MAX_READINGS_PER_MESSAGE} readings per sensor, so the panel can show the first ones before the whole
+ * answer has been read.
+ * answering a request reads from the disk, so it must not run on a thread that other connections depend on.
+ */
+public class HistoryService {
+    public static final int MAX_READINGS_PER_MESSAGE = 256;
+    // upper limit for one answer, so a request for years of data can not flood the queue of the panel
+    public static final int MAX_READINGS_PER_REQUEST = 64 * 1024;
+
+    private final TelemetryStore store;
+
+    /**
+     * Constructor for the history service
+     *
+     * @param store the telemetry log, or null if the server does not record telemetry. every request is then
+     *              answered without readings.
+     */
+    public HistoryService(TelemetryStore store) {
+        this.store = store;
+    }
+
+    /**
+     * a message being filled with the readings or rollups of one sensor
+     */
+    private static class Batch {
+        private final int sensorIndex;
+        private final String type;
+        private final String unit;
+        private final Resolution resolution;
+        private final long[] timestamps = new long[MAX_READINGS_PER_MESSAGE];
+        private final double[] values = new double[MAX_READINGS_PER_MESSAGE];
+        // only used for rollups
+        private final double[] minimums;
+        private final double[] maximums;
+        private final int[] counts;
+        private int size;
+
+        private Batch(int sensorIndex, String type, String unit, Resolution resolution) {
+            this.sensorIndex = sensorIndex;
+            this.type = type;
+            this.unit = unit;
+            this.resolution = resolution;
+            boolean rollup = resolution != Resolution.RAW;
+            this.minimums = rollup ? new double[MAX_READINGS_PER_MESSAGE] : null;
+            this.maximums = rollup ? new double[MAX_READINGS_PER_MESSAGE] : null;
+            this.counts = rollup ? new int[MAX_READINGS_PER_MESSAGE] : null;
+        }
+
+        private SensorHistory toHistory(int nodeID, boolean last) {
+            if (resolution == Resolution.RAW) {
+                return new SensorHistory(nodeID, sensorIndex, type, unit, Arrays.copyOf(timestamps, size),
+                        Arrays.copyOf(values, size), last);
+            }
+            return new SensorHistory(nodeID, sensorIndex, type, unit, resolution, Arrays.copyOf(timestamps, size),
+                    Arrays.copyOf(values, size), Arrays.copyOf(minimums, size), Arrays.copyOf(maximums, size),
+                    Arrays.copyOf(counts, size), last);
+        }
+    }
+
+    /**
+     * the answer to one request, sent in batches while the readings are found
+     */
+    private static class Answer {
+        private final Subscriber panel;
+        private final WireCodec codec;
+        private final int nodeID;
+        private final Resolution resolution;
+        private final Map<Integer, Batch> batches = new HashMap<>();
+        private int found;
+
+        private Answer(Subscriber panel, WireCodec codec, int nodeID, Resolution resolution) {
+            this.panel = panel;
+            this.codec = codec;
+            this.nodeID = nodeID;
+            this.resolution = resolution;
+        }
+
+        /**
+         * adds a reading or rollup, sending the batch of its sensor when it is full
+         *
+         * @return false once the answer has reached its maximum size
+         */
+        private boolean add(int sensorIndex, String type, String unit, long timestamp, double value, double minimum,
+                            double maximum, int count) {
+            Batch batch = batches.get(sensorIndex);
+            if (batch == null || !batch.type.equals(type)) {
+                if (batch != null) {
+                    send(panel, codec, batch.toHistory(nodeID, false));
+                }
+                batch = new Batch(sensorIndex, type, unit, resolution);
+                batches.put(sensorIndex, batch);
+            }
+            batch.timestamps[batch.size] = timestamp;
+            batch.values[batch.size] = value;
+            if (batch.counts != null) {
+                batch.minimums[batch.size] = minimum;
+                batch.maximums[batch.size] = maximum;
+                batch.counts[batch.size] = count;
+            }
+            if (++batch.size == MAX_READINGS_PER_MESSAGE) {
+                send(panel, codec, batch.toHistory(nodeID, false));
+                batches.remove(sensorIndex);
+            }
+            return ++found < MAX_READINGS_PER_REQUEST;
+        }
+
+        /**
+         * sends the batches that are not full yet, the last one is marked as end of the answer
+         */
+        private void finish() {
+            List<Batch> remaining = new ArrayList<>(batches.values());
+            if (remaining.isEmpty()) {
+                send(panel, codec, SensorHistory.empty(nodeID));
+            }
+            for (int i = 0; i < remaining.size(); ++i) {
+                send(panel, codec, remaining.get(i).toHistory(nodeID, i == remaining.size() - 1));
+            }
+        }
+    }
+
+    /**
+     * answers a history request, with raw readings from the telemetry log or with rollups. the last message sent
+     * to the panel is marked as such, even if nothing is found.
+     *
+     * @param panel   the control panel that sent the request
+     * @param codec   codec of the control panel
+     * @param request the request
+     */
+    public void answer(Subscriber panel, WireCodec codec, HistoryRequest request) {
+        int nodeID = request.getNodeId();
+        Answer answer = new Answer(panel, codec, nodeID, request.getResolution());
+        if (store != null && request.getResolution() == Resolution.RAW) {
+            store.query(nodeID, request.getSensorType(), request.getFrom(), request.getTo(),
+                    (sensorIndex, type, unit, timestamp, value) ->
+                            answer.add(sensorIndex, type, unit, timestamp, value, value, value, 1));
+        } else if (store != null) {
+            store.queryRollups(nodeID, request.getSensorType(), request.getResolution(), request.getFrom(),
+                    request.getTo(), (sensorIndex, type, unit, start, minimum, maximum, average, count) ->
+                            answer.add(sensorIndex, type, unit, start, average, minimum, maximum, count));
+        }
+        answer.finish();
+        Logger.info("Answered " + request.getResolution().getArgument() + " history request for node " + nodeID
+                + " with " + answer.found + " entries");
+    }
+
+    private static void send(Subscriber panel, WireCodec codec, SensorHistory history) {
+        Message message = codec == WireCodec.BINARY
+                ? Message.fromFrame(BinaryCodec.encode(history))
+                : Message.fromJson(MessageType.SENSOR_HISTORY, history.getNodeId(), history.toJson().toString());
+        panel.deliver(history.getNodeId(), message);
+    }
+}
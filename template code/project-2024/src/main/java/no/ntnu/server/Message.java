@@ -0,0 +1,167 @@
+package no.ntnu.server;
+
+import java.nio.charset.StandardCharsets;
+
+import no.ntnu.protocol.ActuatorCommand;
+import no.ntnu.protocol.BinaryCodec;
+import no.ntnu.protocol.MessageType;
+import no.ntnu.protocol.SensorData;
+import no.ntnu.protocol.SensorDelta;
+import no.ntnu.protocol.WireCodec;
+
+/**
+ * a message passing through the server. it keeps the encoding it arrived in and creates the other encoding only when
+ * a subscriber using that codec needs it. the result is cached, so a message published to many control panels is
+ * transcoded and encoded at most once per codec, no matter how many panels receive it.
+ */
+public class Message {
+    private final MessageType type;
+    private final int nodeID;
+    private volatile String json;
+    private volatile byte[] jsonLine;
+    private volatile byte[] frame;
+
+    private Message(MessageType type, int nodeID, String json, byte[] frame) {
+        this.type = type;
+        this.nodeID = nodeID;
+        this.json = json;
+        this.frame = frame;
+    }
+
+    /**
+     * wraps a message received as json
+     *
+     * @param type   type of the message
+     * @param nodeID id of the node the message comes from or is addressed to
+     * @param json   the json message, without a line break
+     * @return the message
+     */
+    public static Message fromJson(MessageType type, int nodeID, String json) {
+        return new Message(type, nodeID, json, null);
+    }
+
+    /**
+     * wraps a json line received from a sensor/actuator node, which is either its full state or a delta
+     *
+     * @param nodeID id of the node
+     * @param json   the json message, without a line break
+     * @return the message
+     */
+    public static Message fromSensorJson(int nodeID, String json) {
+        MessageType type = SensorDelta.isDeltaMessage(json) ? MessageType.SENSOR_DELTA : MessageType.SENSOR_DATA;
+        return new Message(type, nodeID, json, null);
+    }
+
+    /**
+     * wraps a message received as binary frame. type and node id are read from the frame header.
+     *
+     * @param frame the complete frame, including the length field
+     * @return the message
+     * @throws IllegalArgumentException if the header contains an unknown message type
+     */
+    public static Message fromFrame(byte[] frame) {
+        return new Message(BinaryCodec.getType(frame), BinaryCodec.getNodeId(frame), null, frame);
+    }
+
+    public MessageType getType() {
+        return type;
+    }
+
+    public int getNodeID() {
+        return nodeID;
+    }
+
+    /**
+     * getter for the json form of the message, converted from the binary frame if needed
+     *
+     * @return the json message, without a line break
+     * @throws IllegalArgumentException if the message arrived as a malformed frame
+     */
+    public String getJson() {
+        String result = json;
+        if (result == null) {
+            result = BinaryCodec.toJson(frame);
+            json = result;
+        }
+        return result;
+    }
+
+    /**
+     * getter for the bytes to send to a client using the given codec
+     *
+     * @param codec codec of the receiving client
+     * @return a json line or a binary frame. the array is shared and must not be modified.
+     * @throws IllegalArgumentException      if the message arrived as a malformed frame
+     * @throws org.json.JSONException        if the message arrived as malformed json
+     */
+    public byte[] encode(WireCodec codec) {
+        if (codec == WireCodec.BINARY) {
+            byte[] result = frame;
+            if (result == null) {
+                result = BinaryCodec.fromJson(type, json);
+                frame = result;
+            }
+            return result;
+        }
+        byte[] result = jsonLine;
+        if (result == null) {
+            result = (getJson() + "\n").getBytes(StandardCharsets.UTF_8);
+            jsonLine = result;
+        }
+        return result;
+    }
+
+    /**
+     * decodes the content of a sensor data message, from whichever encoding the message arrived in
+     *
+     * @return the sensor data
+     * @throws IllegalArgumentException if the message is no sensor data or a malformed frame
+     * @throws org.json.JSONException    if the message is malformed json
+     */
+    public SensorData decodeSensorData() {
+        if (type != MessageType.SENSOR_DATA) {
+            throw new IllegalArgumentException("Not a sensor data message: " + type);
+        }
+        byte[] binary = frame;
+        return binary != null ? BinaryCodec.decodeSensorData(binary) : SensorData.fromJson(json);
+    }
+
+    /**
+     * decodes the content of a sensor delta message, from whichever encoding the message arrived in
+     *
+     * @return the delta
+     * @throws IllegalArgumentException if the message is no delta or a malformed frame
+     * @throws org.json.JSONException    if the message is malformed json
+     */
+    public SensorDelta decodeSensorDelta() {
+        if (type != MessageType.SENSOR_DELTA) {
+            throw new IllegalArgumentException("Not a sensor delta message: " + type);
+        }
+        byte[] binary = frame;
+        return binary != null ? BinaryCodec.decodeSensorDelta(binary) : SensorDelta.fromJson(json);
+    }
+
+    /**
+     * decodes the content of an actuator command, from whichever encoding the message arrived in
+     *
+     * @return the command
+     * @throws IllegalArgumentException if the message is no actuator command or a malformed frame
+     * @throws org.json.JSONException    if the message is malformed json
+     */
+    public ActuatorCommand decodeActuatorCommand() {
+        if (type != MessageType.ACTUATOR_COMMAND) {
+            throw new IllegalArgumentException("Not an actuator command: " + type);
+        }
+        byte[] binary = frame;
+        return binary != null ? BinaryCodec.decodeActuatorCommand(binary) : ActuatorCommand.fromJson(json);
+    }
+
+    @Override
+    public String toString() {
+        String text = json;
+        if (text != null) {
+            return text;
+        }
+        return type + " frame of node " + nodeID + " (" + frame.length + " bytes)";
+    }
+}
@@ -0,0 +1,393 @@
+package no.ntnu.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import no.ntnu.protocol.BinaryCodec;
+import no.ntnu.protocol.WireCodec;
+import no.ntnu.tools.Logger;
+
+/**
+ * represents a non-blocking connection of the nio server. splits incoming bytes into lines (or binary frames, if
+ * the client asked for them in its handshake), hands them to the server and keeps outgoing messages in a bounded
+ * queue until the channel is ready to take them.
+ * reading and writing is only done from the event loop that owns the connection, while other threads may
+ * call send at any time. sending does not write right away: the flush runs as a task after the current pass of the
+ * event loop, and writes everything queued until then with a single gathering write.
+ */
+public class NioConnection implements Subscriber {
+    private static final int INITIAL_LINE_CAPACITY = 256;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    // limits how long one busy connection can keep the event loop to itself
+    private static final int MAX_READS_PER_EVENT = 16;
+    // most messages handed to a single gathering write
+    private static final int MAX_BATCH_SIZE = 256;
+
+    /**
+     * the role a connection has taken by sending its handshake
+     */
+    public enum Role {
+        HANDSHAKE,
+        SENSOR,
+        CONTROL,
+        GATEWAY
+    }
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final EventLoop eventLoop;
+    private final NioServer server;
+
+    // collects the current line, or the current frame of a binary client
+    private byte[] lineBuffer = new byte[INITIAL_LINE_CAPACITY];
+    private int lineLength;
+    private volatile WireCodec codec = WireCodec.JSON;
+
+    private OutboundQueue outbound;
+    // the batch being written, batchStart is the first message the channel has not fully taken yet
+    private final ByteBuffer[] writeBatch = new ByteBuffer[MAX_BATCH_SIZE];
+    private int batchStart;
+    private int batchEnd;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final BatchStats batchStats = new BatchStats();
+
+    private Role role = Role.HANDSHAKE;
+    private int nodeId;
+    // the sensor nodes a control panel is subscribed to, or the sorted ids of the nodes behind a gateway
+    private int[] subscribedNodeIDs = new int[0];
+    private volatile boolean closed;
+
+    /**
+     * Constructor for a nio connection
+     *
+     * @param channel   the connected client channel
+     * @param key       selection key of the channel
+     * @param eventLoop the event loop which owns the channel
+     * @param server    the server which routes the messages of this connection
+     */
+    public NioConnection(SocketChannel channel, SelectionKey key, EventLoop eventLoop, NioServer server) {
+        this.channel = channel;
+        this.key = key;
+        this.eventLoop = eventLoop;
+        this.server = server;
+    }
+
+    /**
+     * reads all available bytes from the channel and passes every complete line to the server
+     */
+    void onReadable() {
+        ByteBuffer buffer = eventLoop.getReadBuffer();
+        try {
+            for (int i = 0; i < MAX_READS_PER_EVENT && !closed; ++i) {
+                buffer.clear();
+                int read = channel.read(buffer);
+                if (read < 0) {
+                    close();
+                    return;
+                }
+                if (read == 0) {
+                    return;
+                }
+                buffer.flip();
+                processInput(buffer);
+            }
+        } catch (IOException e) {
+            Logger.error("Error reading from client channel: " + e.getMessage());
+            close();
+        }
+    }
+
+    private void processInput(ByteBuffer buffer) {
+        // the handshake is always a line, the codec may change right after it
+        while (buffer.hasRemaining() && !closed) {
+            if (codec == WireCodec.BINARY && role != Role.HANDSHAKE) {
+                readFrame(buffer);
+            } else {
+                readLine(buffer);
+            }
+        }
+    }
+
+    /**
+     * consumes bytes until a line is complete or the buffer is empty
+     */
+    private void readLine(ByteBuffer buffer) {
+        while (buffer.hasRemaining() && !closed) {
+            byte b = buffer.get();
+            if (b == '\n') {
+                int length = lineLength;
+                if (length > 0 && lineBuffer[length - 1] == '\r') {
+                    length--;
+                }
+                String line = new String(lineBuffer, 0, length, StandardCharsets.UTF_8);
+                lineLength = 0;
+                server.onLine(this, line);
+                return;
+            } else {
+                appendToLine(b);
+            }
+        }
+    }
+
+    private void appendToLine(byte b) {
+        if (lineLength == lineBuffer.length) {
+            if (lineBuffer.length >= MAX_LINE_LENGTH) {
+                Logger.error("Line from client exceeds " + MAX_LINE_LENGTH + " bytes. Closing connection.");
+                close();
+                return;
+            }
+            lineBuffer = Arrays.copyOf(lineBuffer, Math.min(lineBuffer.length * 2, MAX_LINE_LENGTH));
+        }
+        lineBuffer[lineLength++] = b;
+    }
+
+    /**
+     * consumes bytes until a frame is complete or the buffer is empty. the length field is collected first, then
+     * the rest of the frame is copied in one go.
+     */
+    private void readFrame(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            int frameLength = BinaryCodec.LENGTH_SIZE;
+            if (lineLength >= BinaryCodec.LENGTH_SIZE) {
+                int length = ByteBuffer.wrap(lineBuffer, 0, BinaryCodec.LENGTH_SIZE).getInt();
+                try {
+                    BinaryCodec.checkLength(length);
+                } catch (IOException e) {
+                    Logger.error(e.getMessage() + ". Closing connection.");
+                    close();
+                    return;
+                }
+                frameLength += length;
+                if (lineBuffer.length < frameLength) {
+                    lineBuffer = Arrays.copyOf(lineBuffer, frameLength);
+                }
+            }
+            int count = Math.min(frameLength - lineLength, buffer.remaining());
+            buffer.get(lineBuffer, lineLength, count);
+            lineLength += count;
+            if (lineLength == frameLength && frameLength > BinaryCodec.LENGTH_SIZE) {
+                byte[] frame = Arrays.copyOf(lineBuffer, frameLength);
+                lineLength = 0;
+                server.onFrame(this, frame);
+                return;
+            }
+        }
+    }
+
+    /**
+     * queues a message for sending. can be called from any thread. the message is written once the event loop has
+     * finished its current pass, together with all other messages queued by then, or as soon as a full batch is
+     * queued.
+     *
+     * @param nodeID  id of the node the message belongs to
+     * @param message the message, it is encoded with the codec of this connection
+     */
+    public void send(int nodeID, Message message) {
+        if (closed || outbound == null) {
+            return;
+        }
+        outbound.offer(nodeID, message);
+        if (eventLoop.inEventLoop() && outbound.size() >= MAX_BATCH_SIZE) {
+            // a full batch is waiting, writing it now keeps a long pass from overflowing the queue
+            flush();
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            eventLoop.execute(() -> {
+                flushScheduled.set(false);
+                flush();
+            });
+        }
+    }
+
+    @Override
+    public void deliver(int nodeID, Message message) {
+        send(nodeID, message);
+    }
+
+    /**
+     * the channel can take more bytes again
+     */
+    void onWritable() {
+        flush();
+    }
+
+    private void flush() {
+        if (closed) {
+            return;
+        }
+        try {
+            while (batchStart < batchEnd || takeNextBatch()) {
+                channel.write(writeBatch, batchStart, batchEnd - batchStart);
+                while (batchStart < batchEnd && !writeBatch[batchStart].hasRemaining()) {
+                    writeBatch[batchStart++] = null;
+                }
+                if (batchStart < batchEnd) {
+                    // the socket buffer is full, continue when the channel is writable again
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            if ((key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+        } catch (IOException e) {
+            Logger.error("Error writing to client channel: " + e.getMessage());
+            close();
+        }
+    }
+
+    private boolean takeNextBatch() {
+        batchStart = 0;
+        batchEnd = 0;
+        Message message;
+        while (batchEnd < MAX_BATCH_SIZE && (message = outbound.poll()) != null) {
+            try {
+                // the encoded bytes are shared by all subscribers, every buffer only keeps its own position
+                writeBatch[batchEnd] = ByteBuffer.wrap(message.encode(codec));
+                batchEnd++;
+            } catch (RuntimeException e) {
+                Logger.error("Could not encode message for client, skipping it: " + e.getMessage());
+            }
+        }
+        if (batchEnd == 0) {
+            return false;
+        }
+        batchStats.record(batchEnd);
+        return true;
+    }
+
+    /**
+     * closes the channel and lets the server forget about this connection. must be called from the owning
+     * event loop.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Logger.error("Error closing client channel: " + e.getMessage());
+        }
+        if (outbound != null) {
+            outbound.close();
+        }
+        if (batchStats.getFlushCount() > 0) {
+            Logger.info("Connection wrote " + batchStats);
+        }
+        server.onConnectionClosed(this);
+    }
+
+    public Role getRole() {
+        return role;
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    public WireCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * sets the codec the client asked for in its handshake
+     *
+     * @param codec the codec used for all messages after the handshake
+     */
+    void setCodec(WireCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * marks this connection as a sensor/actuator node
+     *
+     * @param nodeId id of the node
+     * @param queue  queue for the actuator commands sent to the node
+     */
+    void becomeSensor(int nodeId, OutboundQueue queue) {
+        this.role = Role.SENSOR;
+        this.nodeId = nodeId;
+        this.outbound = queue;
+    }
+
+    /**
+     * marks this connection as a control panel
+     *
+     * @param subscribedNodeIDs ids of the sensor nodes the control panel is subscribed to
+     * @param queue             queue for the sensor data sent to the control panel
+     */
+    void becomeControl(int[] subscribedNodeIDs, OutboundQueue queue) {
+        this.role = Role.CONTROL;
+        this.subscribedNodeIDs = subscribedNodeIDs;
+        this.outbound = queue;
+    }
+
+    /**
+     * marks this connection as a gateway carrying many sensor/actuator nodes
+     *
+     * @param nodeIDs ids of the nodes behind the gateway, sorted
+     * @param queue   queue for the actuator commands sent to any of the nodes
+     */
+    void becomeGateway(int[] nodeIDs, OutboundQueue queue) {
+        this.role = Role.GATEWAY;
+        this.subscribedNodeIDs = nodeIDs;
+        this.outbound = queue;
+    }
+
+    /**
+     * getter for the number of messages waiting to be written
+     *
+     * @return depth of the outbound queue
+     */
+    public int getQueueDepth() {
+        return outbound == null ? 0 : outbound.size();
+    }
+
+    /**
+     * getter for the number of messages that were dropped because the client did not keep up
+     *
+     * @return number of dropped messages
+     */
+    public long getDroppedMessages() {
+        return outbound == null ? 0 : outbound.getDroppedCount();
+    }
+
+    /**
+     * getter for the number of messages replaced by a newer message from the same node
+     *
+     * @return number of conflated messages
+     */
+    public long getConflatedMessages() {
+        return outbound == null ? 0 : outbound.getConflatedCount();
+    }
+
+    /**
+     * getter for the statistics about how many messages were written with each gathering write
+     *
+     * @return the batch statistics of this connection
+     */
+    public BatchStats getBatchStats() {
+        return batchStats;
+    }
+
+    /**
+     * getter for the nodes of the connection: the nodes a control panel is subscribed to, or the nodes behind a
+     * gateway
+     *
+     * @return the node ids
+     */
+    public int[] getSubscribedNodeIDs() {
+        return subscribedNodeIDs;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+}
@@ -0,0 +1,396 @@
+package no.ntnu.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.OptionalInt;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import no.ntnu.protocol.BinaryCodec;
+import no.ntnu.protocol.GatewayHandshake;
+import no.ntnu.protocol.HistoryRequest;
+import no.ntnu.protocol.JsonFieldScanner;
+import no.ntnu.protocol.MessageType;
+import no.ntnu.protocol.WireCodec;
+import no.ntnu.server.telemetry.TelemetryStore;
+import no.ntnu.tools.Logger;
+import org.json.JSONException;
+
+/**
+ * An alternative to the blocking server, built on non-blocking channels. Instead of one thread per connection,
+ * all connections are spread over a small, fixed set of event loops, which lets a single server hold many
+ * thousands of sensor/actuator nodes. The handshake and the subscription rules are the same as in the blocking
+ * server, including gateways carrying many nodes over one connection.
+ */
+public class NioServer {
+    public static final int DEFAULT_EVENT_LOOPS = Runtime.getRuntime().availableProcessors();
+    // large backlog, so that a whole fleet of nodes connecting at once is not refused
+    private static final int ACCEPT_BACKLOG = 4096;
+
+    private final ServerConfig config;
+    private final int port;
+    private final OverflowPolicy controlOverflowPolicy;
+    private final EventLoop[] eventLoops;
+    private int nextEventLoop;
+    private ServerSocketChannel serverChannel;
+    private Selector acceptSelector;
+    private volatile boolean running;
+
+    private final Broker broker = new Broker();
+    // records all messages, null if the server runs without a telemetry log
+    private final TelemetryStore telemetry;
+    private final HistoryService historyService;
+    // history requests read from the disk, which must not stall an event loop. one thread answers them one after
+    // the other, so the answers to several requests of a panel do not get mixed up.
+    private final ExecutorService historyExecutor = Executors.newSingleThreadExecutor(
+            Thread.ofPlatform().name("history-reader").daemon().factory());
+
+    /**
+     * Constructor for the nio server
+     *
+     * @param config settings of the server, with the TCP port and the number of event loops
+     */
+    public NioServer(ServerConfig config) {
+        if (config.getEventLoops() < 1) {
+            throw new IllegalArgumentException("The server needs at least one event loop");
+        }
+        this.config = config;
+        this.port = config.getPort();
+        this.eventLoops = new EventLoop[config.getEventLoops()];
+        if (config.getOverflowPolicy() == OverflowPolicy.BLOCK) {
+            // waiting for a full queue would stall the event loop and every other connection on it
+            Logger.error("The block overflow policy is not supported in nio mode, dropping the oldest messages "
+                    + "instead.");
+            this.controlOverflowPolicy = OverflowPolicy.DROP_OLDEST;
+        } else {
+            this.controlOverflowPolicy = config.getOverflowPolicy();
+        }
+        this.telemetry = config.openTelemetryStore();
+        if (telemetry != null) {
+            broker.addRecorder(telemetry);
+        }
+        this.historyService = new HistoryService(telemetry);
+    }
+
+    /**
+     * opens the listening channel, starts the event loops and accepts clients until the server is stopped
+     */
+    public void run() {
+        if (openListeningChannel() && startEventLoops()) {
+            running = true;
+            Logger.info("NIO server started with " + eventLoops.length + " event loops...");
+            while (running) {
+                acceptClients();
+            }
+        }
+        stopEventLoops();
+        historyExecutor.shutdownNow();
+        Logger.info("Server exiting...");
+    }
+
+    /**
+     * stops accepting clients and shuts down the event loops
+     */
+    public void stop() {
+        running = false;
+        if (acceptSelector != null) {
+            acceptSelector.wakeup();
+        }
+    }
+
+    private boolean openListeningChannel() {
+        boolean success = false;
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+            serverChannel.configureBlocking(false);
+            acceptSelector = Selector.open();
+            serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+            Logger.info("Server listening on port " + port);
+            success = true;
+        } catch (IOException e) {
+            Logger.error("Could not open a listening channel on port " + port + ", reason: " + e.getMessage());
+        }
+        return success;
+    }
+
+    private boolean startEventLoops() {
+        try {
+            for (int i = 0; i < eventLoops.length; ++i) {
+                eventLoops[i] = new EventLoop(i, this);
+            }
+        } catch (IOException e) {
+            Logger.error("Could not create event loops: " + e.getMessage());
+            return false;
+        }
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.start();
+        }
+        return true;
+    }
+
+    private void stopEventLoops() {
+        for (EventLoop eventLoop : eventLoops) {
+            if (eventLoop != null) {
+                eventLoop.stop();
+            }
+        }
+    }
+
+    /**
+     * waits for pending connections and hands every accepted channel to the next event loop
+     */
+    private void acceptClients() {
+        try {
+            acceptSelector.select();
+            Iterator<SelectionKey> keys = acceptSelector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                keys.next();
+                keys.remove();
+                SocketChannel clientChannel;
+                while ((clientChannel = serverChannel.accept()) != null) {
+                    nextEventLoop().register(clientChannel);
+                }
+            }
+        } catch (IOException e) {
+            Logger.error("Could not accept the next client: " + e.getMessage());
+        }
+    }
+
+    private EventLoop nextEventLoop() {
+        EventLoop eventLoop = eventLoops[nextEventLoop];
+        nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+        return eventLoop;
+    }
+
+    /**
+     * routes a line received on a connection, depending on the role of the connection
+     *
+     * @param connection the connection which received the line
+     * @param line       the received line, without the line break
+     */
+    void onLine(NioConnection connection, String line) {
+        switch (connection.getRole()) {
+            case HANDSHAKE -> handleHandshake(connection, line);
+            case SENSOR -> forwardSensorData(connection, line);
+            case GATEWAY -> forwardGatewayData(connection, line);
+            case CONTROL -> {
+                if (HistoryRequest.isHistoryMessage(line)) {
+                    answerHistoryRequest(connection, line);
+                } else {
+                    forwardActuatorCommand(connection, line);
+                }
+            }
+        }
+    }
+
+    /**
+     * routes a binary frame received on a connection, depending on the role of the connection
+     *
+     * @param connection the connection which received the frame
+     * @param frame      the complete frame, including the length field
+     */
+    void onFrame(NioConnection connection, byte[] frame) {
+        Message message;
+        try {
+            message = Message.fromFrame(frame);
+        } catch (IllegalArgumentException e) {
+            Logger.error("Discarding malformed frame: " + e.getMessage());
+            return;
+        }
+        if (connection.getRole() == NioConnection.Role.SENSOR && message.getType().isPublishedByNode()
+                && message.getNodeID() == connection.getNodeId()) {
+            broker.publish(connection.getNodeId(), message);
+        } else if (connection.getRole() == NioConnection.Role.GATEWAY && message.getType().isPublishedByNode()
+                && GatewayHandshake.contains(connection.getSubscribedNodeIDs(), message.getNodeID())) {
+            broker.publish(message.getNodeID(), message);
+        } else if (connection.getRole() == NioConnection.Role.CONTROL
+                && message.getType() == MessageType.HISTORY_REQUEST) {
+            try {
+                answerHistoryRequest(connection, BinaryCodec.decodeHistoryRequest(frame));
+            } catch (IllegalArgumentException e) {
+                Logger.error("Discarding malformed history request: " + e.getMessage());
+            }
+        } else if (connection.getRole() == NioConnection.Role.CONTROL
+                && message.getType() == MessageType.ACTUATOR_COMMAND) {
+            if (!broker.sendToNode(message.getNodeID(), connection, message)) {
+                Logger.error("Invalid Sensor node id:" + message.getNodeID()
+                        + ". Actuator command cannot be forwarded.");
+            }
+        } else {
+            Logger.error("Discarding unexpected frame: " + message);
+        }
+    }
+
+    /**
+     * parses the handshake message of a client and registers it as sensor node or control panel.
+     * a trailing codec option (e.g. "CONTROL:1:2:codec=bin") selects the codec of the connection.
+     *
+     * @param connection connection of the client
+     * @param message    handshake message
+     */
+    private void handleHandshake(NioConnection connection, String message) {
+        if (message.trim().isEmpty()) {
+            Logger.error("Received empty handshake message. Closing client channel.");
+            connection.close();
+            return;
+        }
+        String[] parts = message.split(":");
+        try {
+            if (parts.length > 1 && WireCodec.isHandshakeOption(parts[parts.length - 1])) {
+                connection.setCodec(WireCodec.fromHandshakeOption(parts[parts.length - 1]));
+                parts = Arrays.copyOf(parts, parts.length - 1);
+            }
+            if (parts[0].equals("SENSOR") && parts.length == 2) {
+                registerSensorNode(connection, Integer.parseInt(parts[1]));
+            } else if (parts[0].equals("CONTROL")) {
+                int[] wantedSensorNodeIDs = new int[parts.length - 1];
+                for (int i = 1; i < parts.length; ++i) {
+                    wantedSensorNodeIDs[i - 1] = Integer.parseInt(parts[i]);
+                }
+                subscribeControlNode(connection, wantedSensorNodeIDs);
+            } else if (parts[0].equals(GatewayHandshake.PREFIX)) {
+                registerGateway(connection, GatewayHandshake.parseNodeIDs(parts));
+            } else {
+                Logger.error("Invalid handshake message: " + message + ". Closing client channel.");
+                connection.close();
+            }
+        } catch (NumberFormatException e) {
+            Logger.error("Invalid node id in handshake message: " + message + ". Closing client channel.");
+            connection.close();
+        } catch (IllegalArgumentException e) {
+            Logger.error(e.getMessage() + ". Closing client channel.");
+            connection.close();
+        }
+    }
+
+    private void registerSensorNode(NioConnection connection, int nodeID) {
+        connection.becomeSensor(nodeID, config.createNodeQueue());
+        if (!broker.addTopic(nodeID, connection)) {
+            Logger.error("Duplicate sensor node ID: " + nodeID + ". Discarding this node.");
+            connection.close();
+            return;
+        }
+        Logger.info("Sensor node connected: " + nodeID);
+    }
+
+    /**
+     * registers a gateway as the publisher of all nodes it carries. if one of them is already connected, the
+     * gateway is disconnected.
+     *
+     * @param connection connection of the gateway
+     * @param nodeIDs    ids of the nodes behind the gateway, sorted
+     */
+    private void registerGateway(NioConnection connection, int[] nodeIDs) {
+        connection.becomeGateway(nodeIDs, config.createNodeQueue());
+        if (!broker.addTopics(nodeIDs, connection)) {
+            Logger.error("Closing gateway, some of its sensor nodes are already connected.");
+            connection.close();
+            return;
+        }
+        Logger.info("Gateway connected with " + nodeIDs.length + " sensor nodes");
+    }
+
+    /**
+     * subscribes a control panel to the sensor nodes it asks for. all of them have to be connected, otherwise the
+     * control panel is disconnected.
+     *
+     * @param connection          connection of the control panel
+     * @param wantedSensorNodeIDs ids of the sensor nodes that the control panel wants to connect to
+     */
+    private void subscribeControlNode(NioConnection connection, int[] wantedSensorNodeIDs) {
+        connection.becomeControl(wantedSensorNodeIDs,
+                new OutboundQueue(config.getQueueCapacity(), controlOverflowPolicy));
+        if (!broker.subscribe(connection, wantedSensorNodeIDs)) {
+            Logger.error("Closing Control channel, not all requested sensor nodes are available.");
+            connection.close();
+            return;
+        }
+        Logger.info("Control panel subscribed to " + wantedSensorNodeIDs.length + " sensor nodes");
+    }
+
+    /**
+     * publishes sensor data or a delta to every control panel subscribed to the node
+     */
+    private void forwardSensorData(NioConnection sensorNode, String message) {
+        broker.publish(sensorNode.getNodeId(), Message.fromSensorJson(sensorNode.getNodeId(), message));
+    }
+
+    /**
+     * publishes sensor data or a delta of one of the nodes behind a gateway, found by the id in the message
+     */
+    private void forwardGatewayData(NioConnection gateway, String message) {
+        OptionalInt nodeID = JsonFieldScanner.findInt(message, "id");
+        if (nodeID.isPresent() && GatewayHandshake.contains(gateway.getSubscribedNodeIDs(), nodeID.getAsInt())) {
+            broker.publish(nodeID.getAsInt(), Message.fromSensorJson(nodeID.getAsInt(), message));
+        } else {
+            Logger.error("Discarding message for a node not behind the gateway: " + message);
+        }
+    }
+
+    /**
+     * forwards a command from a control panel to the sensor/actuator node it is addressed to. only the node id is
+     * read from the command, the original line is forwarded untouched.
+     */
+    private void forwardActuatorCommand(NioConnection controlNode, String message) {
+        OptionalInt nodeIDField = JsonFieldScanner.findInt(message, "nodeId");
+        if (nodeIDField.isEmpty()) {
+            Logger.error("Invalid actuator command, discarding it: " + message);
+            return;
+        }
+        int nodeID = nodeIDField.getAsInt();
+        Message command = Message.fromJson(MessageType.ACTUATOR_COMMAND, nodeID, message);
+        if (!broker.sendToNode(nodeID, controlNode, command)) {
+            Logger.error("Invalid Sensor node id:" + nodeID + ". Actuator command cannot be forwarded.");
+        }
+    }
+
+    /**
+     * answers a json history request of a control panel
+     */
+    private void answerHistoryRequest(NioConnection controlNode, String message) {
+        try {
+            answerHistoryRequest(controlNode, HistoryRequest.fromJson(message));
+        } catch (JSONException | IllegalArgumentException e) {
+            Logger.error("Invalid history request, discarding it: " + message);
+        }
+    }
+
+    /**
+     * answers a history request on the history thread. only the history of nodes the panel is subscribed to is
+     * available.
+     */
+    private void answerHistoryRequest(NioConnection controlNode, HistoryRequest request) {
+        if (!broker.isSubscribed(request.getNodeId(), controlNode)) {
+            Logger.error("History of node " + request.getNodeId() + " requested without subscription, ignoring it.");
+            return;
+        }
+        historyExecutor.execute(() -> historyService.answer(controlNode, controlNode.getCodec(), request));
+    }
+
+    /**
+     * forgets a closed connection, by removing its topic or its subscriptions from the broker
+     *
+     * @param connection the connection that was closed
+     */
+    void onConnectionClosed(NioConnection connection) {
+        if (connection.getRole() == NioConnection.Role.SENSOR) {
+            broker.removeTopic(connection.getNodeId(), connection);
+            Logger.info("Sensor node disconnected: " + connection.getNodeId());
+        } else if (connection.getRole() == NioConnection.Role.GATEWAY) {
+            broker.removeTopics(connection.getSubscribedNodeIDs(), connection);
+            Logger.info("Gateway disconnected with " + connection.getSubscribedNodeIDs().length + " sensor nodes");
+        } else if (connection.getRole() == NioConnection.Role.CONTROL) {
+            broker.unsubscribe(connection, connection.getSubscribedNodeIDs());
+            Logger.info("Control panel disconnected, its subscriptions are removed.");
+        }
+    }
+}
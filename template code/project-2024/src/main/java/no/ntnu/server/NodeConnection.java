@@ -1,24 +1,45 @@
 package no.ntnu.server;
 
+import no.ntnu.protocol.BinaryCodec;
+import no.ntnu.protocol.WireCodec;
 import no.ntnu.tools.Logger;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 
 /**
- * represents a connection to the server. stores the socket, writer, and reader and provides methods to access these
+ * represents a connection to the server. stores the socket, writer, and reader and provides methods to access these.
+ * messages for the connection are put in a bounded queue and written by its own writer task, so a slow client can
+ * only fill its own queue instead of stalling the thread delivering the messages.
+ * the writer task does not flush every line on its own, it writes everything that is queued and then flushes once,
+ * so a burst of messages ends up in a few large writes instead of one system call per line.
+ * after the handshake, the connection talks either json lines or binary frames, depending on the codec the client
+ * asked for.
  */
-public class NodeConnection {
+public class NodeConnection implements Subscriber {
+    private static final int WRITE_BUFFER_SIZE = 16 * 1024;
+    // upper limit for the lines written before flushing, so a client under constant load still gets its data
+    private static final int MAX_BATCH_SIZE = 512;
+    private static final int MAX_HANDSHAKE_LENGTH = 1024;
 
-
-    private boolean isUnpaired;
     private final Socket socket;
-    private PrintWriter socketWriter;
+    private BufferedInputStream socketInput;
+    private BufferedOutputStream socketOutput;
     private BufferedReader socketReader;
+    private WireCodec codec = WireCodec.JSON;
+    private OutboundQueue outbound;
+    private long flushBudgetNanos;
+    private final BatchStats batchStats = new BatchStats();
+    private volatile boolean closed;
 
     /**
      * Constructor for a NodeConnection object. initializes input and output streams
@@ -28,8 +49,8 @@ public class NodeConnection {
     public NodeConnection(Socket socket) {
         this.socket = socket;
         try {
-            this.socketWriter = new PrintWriter(socket.getOutputStream(), true);
-            this.socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            this.socketOutput = new BufferedOutputStream(socket.getOutputStream(), WRITE_BUFFER_SIZE);
+            this.socketInput = new BufferedInputStream(socket.getInputStream());
         } catch (IOException e) {
             Logger.error("Error setting up Node connection: " + e.getMessage());
         }
@@ -47,43 +68,189 @@ public class NodeConnection {
     }
 
     /**
-     * getter for the output stream
+     * reads the handshake line. it is read byte by byte, so nothing the client sends after it is consumed, no matter
+     * which codec the client continues with.
      *
-     * @return PrintWriter, which represents this sockets output stream
+     * @return the handshake without the line break, or null if the client disconnected
+     * @throws IOException if reading fails or the line is too long
      */
-    public PrintWriter getSocketWriter() {
-        return socketWriter;
+    public String readHandshake() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = socketInput.read()) != '\n') {
+            if (b < 0) {
+                return line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8);
+            }
+            if (line.size() == MAX_HANDSHAKE_LENGTH) {
+                throw new IOException("Handshake exceeds " + MAX_HANDSHAKE_LENGTH + " bytes");
+            }
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8).replace("\r", "");
     }
 
     /**
-     * getter for input stream
+     * getter for the line reader used by json clients. only valid after the handshake.
      *
      * @return BufferedReader, which represents this sockets input stream
      */
     public BufferedReader getSocketReader() {
+        if (socketReader == null) {
+            socketReader = new BufferedReader(new InputStreamReader(socketInput));
+        }
         return socketReader;
     }
 
     /**
-     * close input and output stream and then close the socket
+     * reads the next frame from a binary client
+     *
+     * @return the complete frame, or null if the client disconnected
+     * @throws IOException if reading fails or the frame is malformed
      */
-    public void closeConnection() {
-        try {
-            if (socketWriter != null) {
-                socketWriter.close();
-            }
-        } catch (Exception e) {
-            Logger.error("Error closing socket output stream: " + e.getMessage());
+    public byte[] readFrame() throws IOException {
+        return BinaryCodec.readFrame(socketInput);
+    }
+
+    public WireCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * sets the codec the client asked for in its handshake
+     *
+     * @param codec the codec used for all messages after the handshake
+     */
+    public void setCodec(WireCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * starts the task that writes the queued messages to the socket
+     *
+     * @param executor          executor that runs the writer task
+     * @param queue             the outbound queue of this connection
+     * @param flushBudgetMicros how long the writer may wait for more messages before flushing, in microseconds.
+     *                          0 flushes as soon as the queue is empty.
+     */
+    public void startWriter(Executor executor, OutboundQueue queue, long flushBudgetMicros) {
+        this.outbound = queue;
+        this.flushBudgetNanos = TimeUnit.MICROSECONDS.toNanos(flushBudgetMicros);
+        executor.execute(this::writeMessages);
+    }
+
+    /**
+     * queues a message for this connection
+     *
+     * @param nodeID  id of the node the message belongs to
+     * @param message the message
+     */
+    @Override
+    public void deliver(int nodeID, Message message) {
+        if (!closed && outbound != null) {
+            outbound.offer(nodeID, message);
         }
+    }
 
+    /**
+     * waits for a message, then writes it together with all messages that are queued by now (or arrive within the
+     * flush budget) and flushes them at once
+     */
+    private void writeMessages() {
         try {
-            if (socketReader != null) {
-                socketReader.close();
+            Message message;
+            while ((message = outbound.take()) != null) {
+                long deadline = System.nanoTime() + flushBudgetNanos;
+                int batchSize = 0;
+                while (message != null) {
+                    write(message);
+                    if (++batchSize == MAX_BATCH_SIZE) {
+                        break;
+                    }
+                    message = outbound.poll();
+                    if (message == null && flushBudgetNanos > 0) {
+                        message = outbound.poll(deadline - System.nanoTime());
+                    }
+                }
+                socketOutput.flush();
+                batchStats.record(batchSize);
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (IOException e) {
-            Logger.error("Error closing socket input stream: " + e.getMessage());
+            if (!closed) {
+                Logger.error("Error writing to client: " + e.getMessage());
+                closeConnection();
+            }
+        }
+    }
+
+    private void write(Message message) throws IOException {
+        byte[] bytes;
+        try {
+            bytes = message.encode(codec);
+        } catch (RuntimeException e) {
+            Logger.error("Could not encode message for client, skipping it: " + e.getMessage());
+            return;
         }
+        socketOutput.write(bytes);
+    }
+
+    /**
+     * getter for the number of messages waiting to be written
+     *
+     * @return depth of the outbound queue
+     */
+    public int getQueueDepth() {
+        return outbound == null ? 0 : outbound.size();
+    }
+
+    /**
+     * getter for the number of messages that were dropped because the client did not keep up
+     *
+     * @return number of dropped messages
+     */
+    public long getDroppedMessages() {
+        return outbound == null ? 0 : outbound.getDroppedCount();
+    }
+
+    /**
+     * getter for the number of messages replaced by a newer message from the same node
+     *
+     * @return number of conflated messages
+     */
+    public long getConflatedMessages() {
+        return outbound == null ? 0 : outbound.getConflatedCount();
+    }
+
+    /**
+     * getter for the statistics about how many messages were written with each flush
+     *
+     * @return the batch statistics of this connection
+     */
+    public BatchStats getBatchStats() {
+        return batchStats;
+    }
 
+    /**
+     * close the socket together with its input and output stream
+     */
+    public synchronized void closeConnection() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (outbound != null) {
+            outbound.close();
+            if (outbound.getDroppedCount() > 0 || outbound.getConflatedCount() > 0) {
+                Logger.info("Connection dropped " + outbound.getDroppedCount() + " and conflated "
+                        + outbound.getConflatedCount() + " of " + outbound.getEnqueuedCount() + " messages.");
+            }
+        }
+        if (batchStats.getFlushCount() > 0) {
+            Logger.info("Connection wrote " + batchStats);
+        }
+        // closing the socket closes both streams. the output stream is not closed on its own, since flushing it
+        // would block on a client that stopped reading.
         try {
             if (socket != null && !socket.isClosed()) {
                 socket.close();
@@ -95,12 +262,4 @@ public class NodeConnection {
         Logger.info("NodeConnection closed successfully.");
     }
 
-    public boolean isUnpaired() {
-        return isUnpaired;
-    }
-
-    public void setUnpaired(boolean unpaired) {
-        isUnpaired = unpaired;
-    }
-
 }
@@ -1,158 +1,310 @@
 package no.ntnu.server;
 
 import java.io.IOException;
-import java.net.Socket;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.OptionalInt;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
+import no.ntnu.protocol.BinaryCodec;
+import no.ntnu.protocol.GatewayHandshake;
+import no.ntnu.protocol.HistoryRequest;
+import no.ntnu.protocol.JsonFieldScanner;
+import no.ntnu.protocol.MessageType;
+import no.ntnu.protocol.WireCodec;
+import no.ntnu.server.telemetry.TelemetryStore;
 import no.ntnu.tools.Logger;
-import org.json.JSONObject;
+import org.json.JSONException;
 
 /**
- * the node handler handles the communication between a Control panel and the sensor/actuator nodes which it monitors.
- * it makes sure the messages are sent to the appropriate receiver.
+ * the node handler handles the communication of the connected sensor/actuator nodes and control panels.
+ * every sensor/actuator node publishes its data to the broker, which passes it on to all the control panels that
+ * subscribed to that node. commands from the control panels are sent back to the node they are addressed to.
+ * history requests of the control panels are answered from the telemetry log, on the thread of the requesting panel.
+ * every client talks the codec it chose in its handshake, messages are converted only when sender and receiver
+ * use different codecs.
+ * a gateway carries many sensor/actuator nodes over one connection. it publishes for all of them, every message is
+ * routed by the node id it contains, the same way as the messages of a node connected on its own.
  */
 public class NodeHandler {
-    // map to maintain the sensor/actuator nodes
-    private static final ConcurrentHashMap<Integer, NodeConnection> sensorNodesMap = new ConcurrentHashMap<>();
-    private static NodeConnection controlNode = null;
+    private final Broker broker = new Broker();
+    private final ServerConfig config;
+    // records all messages, null if the server runs without a telemetry log
+    private final TelemetryStore telemetry;
+    private final HistoryService historyService;
     //thread pool is used to make sure each node's communication can run concurrently
-    private final ExecutorService nodeThreadPool = Executors.newFixedThreadPool(6);
-    private final Server server;
+    private final ExecutorService nodeThreadPool;
 
 
     /**
      * Constructor for node handler class
      *
-     * @param server the server that created the node handler
+     * @param config settings of the server, decide which kind of threads run the communication and how
+     *               messages are queued
      */
-    public NodeHandler(Server server) {
-        this.server = server;
+    public NodeHandler(ServerConfig config) {
+        this.config = config;
+        this.nodeThreadPool = config.getMode().createPerConnectionExecutor("node-handler");
+        this.telemetry = config.openTelemetryStore();
+        if (telemetry != null) {
+            broker.addRecorder(telemetry);
+        }
+        this.historyService = new HistoryService(telemetry);
     }
 
 
     /**
-     * takes in control node and creates a NodeConnection object to store its socket, reader and writer
+     * takes in a control node, subscribes it to the sensor/actuator nodes it wants to monitor and starts
+     * forwarding its commands. if one of the nodes is not connected, the control node is disconnected.
      *
-     * @param socket socket of this control panel
+     * @param controlNode         connection of this control panel
+     * @param wantedSensorNodeIDs ids of the sensor nodes that the control panel wants to connect to
      */
-    public void addControlNode(Socket socket) {
-        controlNode = new NodeConnection(socket);
+    public void addControlNode(NodeConnection controlNode, int[] wantedSensorNodeIDs) {
+        controlNode.startWriter(nodeThreadPool, config.createControlQueue(), config.getFlushBudgetMicros());
+        if (!broker.subscribe(controlNode, wantedSensorNodeIDs)) {
+            Logger.error("Closing Control Socket, not all requested sensor nodes are available.");
+            controlNode.closeConnection();
+            return;
+        }
+        Logger.info("Control panel subscribed to " + wantedSensorNodeIDs.length + " sensor nodes");
+        nodeThreadPool.execute(() -> controlCommandFlow(controlNode, wantedSensorNodeIDs));
     }
 
     /**
-     * takes in sensor/actuator node, creates a NodeConnection object and stores it in a map, with
-     * its id being the key
+     * takes in sensor/actuator node, registers it as a topic at the broker and starts publishing its data
      *
      * @param sensorNodeID id of the sensor node
-     * @param socket socket of the sensor node
+     * @param sensorNode   connection of the sensor node
      */
-    public void addSensorNode(Integer sensorNodeID, Socket socket) {
-        NodeConnection sensorNode = new NodeConnection(socket);
-        sensorNode.setUnpaired(false);
-        sensorNodesMap.put(sensorNodeID, sensorNode);
-        Logger.info("Added Sensor node to map: " + sensorNodeID);
+    public void addSensorNode(int sensorNodeID, NodeConnection sensorNode) {
+        sensorNode.startWriter(nodeThreadPool, config.createNodeQueue(), config.getFlushBudgetMicros());
+        if (!broker.addTopic(sensorNodeID, sensorNode)) {
+            Logger.error("Duplicate sensor node ID: " + sensorNodeID + ". Discarding this node.");
+            sensorNode.closeConnection();
+            return;
+        }
+        Logger.info("Added Sensor node: " + sensorNodeID);
+        nodeThreadPool.execute(() -> sensorDataFlow(sensorNodeID, sensorNode));
     }
 
     /**
-     * starts the communication threads for every node
+     * takes in a gateway, registers all of its nodes as topics at the broker and starts publishing their data.
+     * if one of the nodes is already connected, the gateway is disconnected.
+     *
+     * @param nodeIDs ids of the nodes behind the gateway, sorted
+     * @param gateway connection of the gateway
      */
-    public void startCommunication() {
-        Logger.info("Attempting to start communication");
-
-        // start thread for sending sensor data to the control panel
-        for (Integer sensorNodeID : sensorNodesMap.keySet()) {
-            nodeThreadPool.execute(() -> sensorDataFlow(sensorNodeID, sensorNodesMap.get(sensorNodeID)));
+    public void addGateway(int[] nodeIDs, NodeConnection gateway) {
+        gateway.startWriter(nodeThreadPool, config.createNodeQueue(), config.getFlushBudgetMicros());
+        if (!broker.addTopics(nodeIDs, gateway)) {
+            Logger.error("Closing gateway, some of its sensor nodes are already connected.");
+            gateway.closeConnection();
+            return;
         }
-        // start thread for the sending control panel commands to sensor/actuator nodes
-        nodeThreadPool.execute(this::controlCommandFlow);
+        Logger.info("Added gateway with " + nodeIDs.length + " sensor nodes");
+        nodeThreadPool.execute(() -> gatewayDataFlow(nodeIDs, gateway));
+    }
 
+    /**
+     * publishes the data of all nodes behind a gateway. messages for nodes that do not belong to the gateway are
+     * discarded.
+     *
+     * @param nodeIDs ids of the nodes behind the gateway, sorted
+     * @param gateway connection of the gateway
+     */
+    private void gatewayDataFlow(int[] nodeIDs, NodeConnection gateway) {
+        try {
+            if (gateway.getCodec() == WireCodec.JSON) {
+                String line;
+                while ((line = gateway.getSocketReader().readLine()) != null) {
+                    OptionalInt nodeID = JsonFieldScanner.findInt(line, "id");
+                    if (nodeID.isPresent() && GatewayHandshake.contains(nodeIDs, nodeID.getAsInt())) {
+                        broker.publish(nodeID.getAsInt(), Message.fromSensorJson(nodeID.getAsInt(), line));
+                    } else {
+                        Logger.error("Discarding message for a node not behind the gateway: " + line);
+                    }
+                }
+            } else {
+                byte[] frame;
+                while ((frame = gateway.readFrame()) != null) {
+                    try {
+                        Message message = Message.fromFrame(frame);
+                        if (message.getType().isPublishedByNode()
+                                && GatewayHandshake.contains(nodeIDs, message.getNodeID())) {
+                            broker.publish(message.getNodeID(), message);
+                        } else {
+                            Logger.error("Discarding frame from gateway: " + message);
+                        }
+                    } catch (IllegalArgumentException e) {
+                        Logger.error("Discarding malformed frame from gateway: " + e.getMessage());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Logger.error("Error reading gateway data on server: " + e.getMessage());
+        } finally {
+            Logger.info("Gateway with " + nodeIDs.length + " sensor nodes disconnected.");
+            broker.removeTopics(nodeIDs, gateway);
+            gateway.closeConnection();
+        }
     }
 
     /**
-     * forwards sensor data from a sensor/actuator node to the control panel
+     * publishes sensor data from a sensor/actuator node to the control panels subscribed to it
      *
      * @param sensorID             the id of the sensor/actuator node
      * @param sensorNodeConnection NodeConnection object corresponding to the sensor/actuator node
      */
     private void sensorDataFlow(int sensorID, NodeConnection sensorNodeConnection) {
         try {
-            String message;
-            while ((message = sensorNodeConnection.getSocketReader().readLine()) != null) {
-                synchronized (this) {
-                    if(sensorNodeConnection.isUnpaired()) {
-                        break;
-                    }
-                }
+            Message message;
+            while ((message = readSensorData(sensorID, sensorNodeConnection)) != null) {
                 Logger.info("Received message from sensor node " + sensorID + ": " + message);
-                //Save as node in the server
-                controlNode.getSocketWriter().println(message);
+                broker.publish(sensorID, message);
             }
         } catch (IOException e) {
             Logger.error("Error reading sensor data on server: " + e.getMessage());
+        } finally {
+            Logger.info("Sensor node " + sensorID + " disconnected.");
+            broker.removeTopic(sensorID, sensorNodeConnection);
+            sensorNodeConnection.closeConnection();
+        }
+    }
+
+    /**
+     * reads the next message from a sensor/actuator node, either its full state or a delta. binary frames which are
+     * neither of these, or belong to another node, are discarded.
+     *
+     * @param sensorID             the id of the sensor/actuator node
+     * @param sensorNodeConnection connection of the sensor/actuator node
+     * @return the message, or null if the node disconnected
+     * @throws IOException if reading fails
+     */
+    private Message readSensorData(int sensorID, NodeConnection sensorNodeConnection) throws IOException {
+        if (sensorNodeConnection.getCodec() == WireCodec.JSON) {
+            String line = sensorNodeConnection.getSocketReader().readLine();
+            return line == null ? null : Message.fromSensorJson(sensorID, line);
         }
+        byte[] frame;
+        while ((frame = sensorNodeConnection.readFrame()) != null) {
+            try {
+                Message message = Message.fromFrame(frame);
+                if (message.getType().isPublishedByNode() && message.getNodeID() == sensorID) {
+                    return message;
+                }
+                Logger.error("Discarding frame from sensor node " + sensorID + ": " + message);
+            } catch (IllegalArgumentException e) {
+                Logger.error("Discarding malformed frame from sensor node " + sensorID + ": " + e.getMessage());
+            }
+        }
+        return null;
     }
 
     /**
-     * manages the forwarding of received commands from the control panel to a sensor node
+     * manages the forwarding of received commands from a control panel to the sensor nodes
+     *
+     * @param controlNode         connection of the control panel
+     * @param subscribedNodeIDs   ids of the sensor nodes the control panel is subscribed to
      */
-    private void controlCommandFlow() {
+    private void controlCommandFlow(NodeConnection controlNode, int[] subscribedNodeIDs) {
         try {
             Logger.info("waiting for control commands");
-            String message;
-            while ((message = controlNode.getSocketReader().readLine()) != null) {
-                Logger.info("Received actuator command from control panel: " + message);
-                forwardActuatorCommand(message);
+            if (controlNode.getCodec() == WireCodec.JSON) {
+                String message;
+                while ((message = controlNode.getSocketReader().readLine()) != null) {
+                    if (HistoryRequest.isHistoryMessage(message)) {
+                        answerHistoryRequest(controlNode, message);
+                    } else {
+                        Logger.info("Received actuator command from control panel: " + message);
+                        forwardActuatorCommand(controlNode, message);
+                    }
+                }
+            } else {
+                byte[] frame;
+                while ((frame = controlNode.readFrame()) != null) {
+                    handleControlFrame(controlNode, frame);
+                }
             }
         } catch (IOException e) {
             Logger.error("Error reading actuator command on the server: " + e.getMessage());
         } finally {
-            Logger.info("Control panel connection lost. Closing this NodeHandler instance and passing sensor" +
-                    "nodes back to server.");
-            closeConnection();
+            Logger.info("Control panel connection lost. Removing its subscriptions.");
+            broker.unsubscribe(controlNode, subscribedNodeIDs);
+            controlNode.closeConnection();
         }
     }
 
     /**
-     * forwards a command from the control panel the appropriate sensor/actuator node
+     * forwards a command from the control panel the appropriate sensor/actuator node. only the node id is read from
+     * the command, the original line is forwarded untouched. commands without a readable node id are discarded.
      *
-     * @param message command from control panel
+     * @param controlNode the control panel that sent the command
+     * @param message     command from control panel
      */
-    private void forwardActuatorCommand(String message) {
-        JSONObject msg = new JSONObject(message);
-        int nodeID = msg.getInt("nodeId");
-        if (sensorNodesMap.containsKey(nodeID)) {
-            sensorNodesMap.get(nodeID).getSocketWriter().println(msg);
-        } else {
+    private void forwardActuatorCommand(NodeConnection controlNode, String message) {
+        OptionalInt nodeIDField = JsonFieldScanner.findInt(message, "nodeId");
+        if (nodeIDField.isEmpty()) {
+            Logger.error("Invalid actuator command, discarding it: " + message);
+            return;
+        }
+        int nodeID = nodeIDField.getAsInt();
+        Message command = Message.fromJson(MessageType.ACTUATOR_COMMAND, nodeID, message);
+        if (!broker.sendToNode(nodeID, controlNode, command)) {
             Logger.error("Invalid Sensor node id:" + nodeID + ". Actuator command cannot be forwarded.");
         }
     }
 
-
     /**
-     * closes connection of the control node and passes all the connected sensors back to the server,
-     * so they can be paired again
+     * answers a json history request of a control panel. only the history of nodes the panel is subscribed to is
+     * available.
+     *
+     * @param controlNode the control panel that sent the request
+     * @param message     the request
      */
-    private void closeConnection() {
+    private void answerHistoryRequest(NodeConnection controlNode, String message) {
+        HistoryRequest request;
+        try {
+            request = HistoryRequest.fromJson(message);
+        } catch (JSONException | IllegalArgumentException e) {
+            Logger.error("Invalid history request, discarding it: " + message);
+            return;
+        }
+        answerHistoryRequest(controlNode, request);
+    }
 
-        if (controlNode != null) {
-            controlNode.closeConnection();
-            Logger.info("Closed control node connection");
+    private void answerHistoryRequest(NodeConnection controlNode, HistoryRequest request) {
+        if (broker.isSubscribed(request.getNodeId(), controlNode)) {
+            historyService.answer(controlNode, controlNode.getCodec(), request);
+        } else {
+            Logger.error("History of node " + request.getNodeId() + " requested without subscription, ignoring it.");
         }
+    }
 
-        for (Map.Entry<Integer, NodeConnection> entry : sensorNodesMap.entrySet()) {
-            Integer sensorNodeID = entry.getKey();
-            NodeConnection sensorNode = entry.getValue();
-            synchronized (this){
-                sensorNode.setUnpaired(true);
+    /**
+     * handles a binary frame from the control panel. for commands, the node id is read from the frame header, the
+     * rest of the frame is only decoded if the node uses json.
+     *
+     * @param controlNode the control panel that sent the frame
+     * @param frame       the command or history request frame
+     */
+    private void handleControlFrame(NodeConnection controlNode, byte[] frame) {
+        Message command;
+        try {
+            command = Message.fromFrame(frame);
+            if (command.getType() == MessageType.HISTORY_REQUEST) {
+                answerHistoryRequest(controlNode, BinaryCodec.decodeHistoryRequest(frame));
+                return;
             }
-
-            server.getSensorNodes().put(sensorNodeID, sensorNode.getSocket());
+        } catch (IllegalArgumentException e) {
+            Logger.error("Discarding malformed frame from control panel: " + e.getMessage());
+            return;
+        }
+        Logger.info("Received actuator command from control panel: " + command);
+        if (command.getType() != MessageType.ACTUATOR_COMMAND) {
+            Logger.error("Discarding " + command.getType() + " frame from control panel.");
+        } else if (!broker.sendToNode(command.getNodeID(), controlNode, command)) {
+            Logger.error("Invalid Sensor node id:" + command.getNodeID() + ". Actuator command cannot be forwarded.");
         }
-
     }
 
     /**
@@ -174,4 +326,4 @@ public class NodeHandler {
     }
 
 
-}
\ No newline at end of file
+}
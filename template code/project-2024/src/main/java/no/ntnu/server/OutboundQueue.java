@@ -0,0 +1,203 @@
+package no.ntnu.server;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import no.ntnu.protocol.MessageType;
+
+/**
+ * bounded queue of messages waiting to be written to one connection. what happens when the queue is full is decided
+ * by its overflow policy. the queue counts the messages it had to drop, so a stuck client can be spotted.
+ */
+public class OutboundQueue {
+
+    /**
+     * a queued message, together with the node it belongs to
+     */
+    private static class Pending {
+        private final int nodeID;
+        private Message message;
+
+        private Pending(int nodeID, Message message) {
+            this.nodeID = nodeID;
+            this.message = message;
+        }
+    }
+
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+    // the queued message of every node, only used when conflating
+    private final Map<Integer, Pending> pendingByNode = new HashMap<>();
+    private boolean closed;
+
+    private long enqueuedCount;
+    private long droppedCount;
+    private long conflatedCount;
+
+    /**
+     * Constructor for an outbound queue
+     *
+     * @param capacity maximum number of queued messages
+     * @param policy   what to do when the queue is full
+     */
+    public OutboundQueue(int capacity, OverflowPolicy policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Queue capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    /**
+     * adds a message to the queue. with the block policy, this waits while the queue is full.
+     *
+     * @param nodeID  id of the sensor/actuator node the message belongs to
+     * @param message the message
+     */
+    public synchronized void offer(int nodeID, Message message) {
+        if (closed) {
+            return;
+        }
+        // only full sensor data carries the whole state of a node, deltas and other messages must not replace each other
+        boolean conflate = policy == OverflowPolicy.CONFLATE && message.getType() == MessageType.SENSOR_DATA;
+        if (conflate) {
+            Pending queued = pendingByNode.get(nodeID);
+            if (queued != null) {
+                queued.message = message;
+                conflatedCount++;
+                return;
+            }
+        }
+        while (pending.size() >= capacity) {
+            if (policy == OverflowPolicy.BLOCK) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    droppedCount++;
+                    return;
+                }
+                if (closed) {
+                    return;
+                }
+            } else {
+                forget(pending.poll());
+                droppedCount++;
+            }
+        }
+        Pending queued = new Pending(nodeID, message);
+        pending.add(queued);
+        if (conflate) {
+            pendingByNode.put(nodeID, queued);
+        }
+        enqueuedCount++;
+        notifyAll();
+    }
+
+    /**
+     * removes the oldest message, waiting until there is one
+     *
+     * @return the oldest message, or null if the queue has been closed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized Message take() throws InterruptedException {
+        while (pending.isEmpty() && !closed) {
+            wait();
+        }
+        return poll();
+    }
+
+    /**
+     * removes the oldest message, waiting a limited time until there is one
+     *
+     * @param timeoutNanos how long to wait at most, in nanoseconds
+     * @return the oldest message, or null if none arrived in time or the queue has been closed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized Message poll(long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (pending.isEmpty() && !closed) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return poll();
+    }
+
+    /**
+     * removes the oldest message without waiting
+     *
+     * @return the oldest message, or null if the queue is empty
+     */
+    public synchronized Message poll() {
+        Pending queued = pending.poll();
+        if (queued == null) {
+            return null;
+        }
+        forget(queued);
+        // a producer may be waiting for room
+        notifyAll();
+        return queued.message;
+    }
+
+    private void forget(Pending queued) {
+        if (policy == OverflowPolicy.CONFLATE) {
+            pendingByNode.remove(queued.nodeID, queued);
+        }
+    }
+
+    /**
+     * throws away all queued messages and wakes up everyone waiting on the queue
+     */
+    public synchronized void close() {
+        closed = true;
+        pending.clear();
+        pendingByNode.clear();
+        notifyAll();
+    }
+
+    /**
+     * getter for the number of queued messages
+     *
+     * @return current depth of the queue
+     */
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    /**
+     * getter for the total number of queued messages
+     *
+     * @return number of messages that have been added to the queue
+     */
+    public synchronized long getEnqueuedCount() {
+        return enqueuedCount;
+    }
+
+    /**
+     * getter for the number of messages dropped because the queue was full
+     *
+     * @return number of dropped messages
+     */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * getter for the number of messages replaced by a newer message from the same node
+     *
+     * @return number of conflated messages
+     */
+    public synchronized long getConflatedCount() {
+        return conflatedCount;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+}
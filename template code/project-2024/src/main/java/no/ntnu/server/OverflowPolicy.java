@@ -0,0 +1,55 @@
+package no.ntnu.server;
+
+/**
+ * decides what happens when a message is delivered to a connection whose outbound queue is full
+ */
+public enum OverflowPolicy {
+    /**
+     * the delivering thread waits until the queue has room again. nothing is lost, but a stuck client slows down
+     * the node it listens to.
+     */
+    BLOCK("block"),
+
+    /**
+     * the oldest queued message is dropped to make room for the new one
+     */
+    DROP_OLDEST("drop-oldest"),
+
+    /**
+     * only the latest full state of every node is kept: a queued full state from the same node is replaced by the
+     * new one. deltas and other messages are queued, and dropped when the queue is full, as with drop-oldest. a
+     * panel that misses a delta shows stale values until the next full state of the node arrives.
+     */
+    CONFLATE("conflate");
+
+    private final String argument;
+
+    OverflowPolicy(String argument) {
+        this.argument = argument;
+    }
+
+    /**
+     * getter for the command line name of the policy
+     *
+     * @return the name used to select this policy on the command line
+     */
+    public String getArgument() {
+        return argument;
+    }
+
+    /**
+     * finds the policy matching a command line argument
+     *
+     * @param argument command line argument, case is ignored
+     * @return the matching policy
+     * @throws IllegalArgumentException if no policy matches the argument
+     */
+    public static OverflowPolicy fromArgument(String argument) {
+        for (OverflowPolicy policy : values()) {
+            if (policy.argument.equalsIgnoreCase(argument)) {
+                return policy;
+            }
+        }
+        throw new IllegalArgumentException("Unknown overflow policy: " + argument);
+    }
+}
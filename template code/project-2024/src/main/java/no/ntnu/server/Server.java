@@ -1,22 +1,20 @@
 package no.ntnu.server;
 
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Arrays;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.io.BufferedReader;
 
+import no.ntnu.protocol.GatewayHandshake;
+import no.ntnu.protocol.WireCodec;
 import no.ntnu.tools.Logger;
 
 
 /**
  * A class for our server, which serves as mediator between control panels and the sensor/actuator nodes.
- * It accepts clients, saves unpaired sensor/actuator nodes in a map and pairs them with control nodes upon request.
- * Paired nodes are passed to a nodehandler that manages their communication.
+ * It accepts clients, receives their handshake and passes them to a nodehandler, which publishes the data of every
+ * sensor/actuator node to all the control nodes that subscribed to it.
  */
 public class Server {
 
@@ -25,24 +23,43 @@ public class Server {
     private ServerSocket serverSocket;
     private boolean running;
 
-    // Map for sensor/actuator nodes which haven't been paired yet. their nodeIds serve as keys
-    private final Map<Integer, Socket> sensorNodes = new ConcurrentHashMap<>();
+    private final ServerConfig config;
 
     // thread pool for handling newly connected clients concurrently
-    private final ExecutorService threadPool = Executors.newFixedThreadPool(10);
+    private final ExecutorService threadPool;
+    // manages the communication of all connected nodes
+    private final NodeHandler nodeHandler;
 
+    /**
+     * Constructor for the server
+     *
+     * @param config settings of the server, its mode decides whether connections are handled by pooled platform
+     *               threads or by virtual threads
+     */
+    public Server(ServerConfig config) {
+        this.config = config;
+        this.threadPool = config.getMode().createExecutor("client-handler", 10);
+        this.nodeHandler = new NodeHandler(config);
+    }
 
     /**
-     * main-method that starts the server. TCP-port can be set via command line argument.
+     * main-method that starts the server. TCP-port, server mode and further options can be set via command line
+     * arguments.
      *
-     * @param args command-line arguments, where the first argument can specify the TCP port.
+     * @param args command-line arguments, where the first argument can specify the TCP port, the second
+     *             one the server mode ("blocking", "virtual" or "nio") and the following ones options like
+     *             "queue=1024" or "overflow=conflate". See {@link ServerConfig}.
      */
     public static void main(String[] args) {
-        if (args.length == 1) {
-            TCP_PORT = Integer.parseInt(args[0]);
+        ServerConfig config = ServerConfig.fromArguments(args);
+        TCP_PORT = config.getPort();
+        if (config.getMode() == ServerMode.NIO) {
+            NioServer server = new NioServer(config);
+            server.run();
+        } else {
+            Server server = new Server(config);
+            server.run();
         }
-        Server server = new Server();
-        server.run();
     }
 
     /**
@@ -52,7 +69,7 @@ public class Server {
     private void run() {
         if (openListeningSocket()) {
             running = true;
-            Logger.info("Server started...");
+            Logger.info("Server started in " + config.getMode().getArgument() + " mode...");
             while (running) {
                 Socket clientSocket = acceptNextClient();
                 if (clientSocket != null) {
@@ -104,146 +121,146 @@ public class Server {
      * @param clientSocket socket of client
      */
     private void handleClient(Socket clientSocket) {
+        // the connection reads the handshake without buffering past it, so no data sent right after it gets lost
+        NodeConnection connection = new NodeConnection(clientSocket);
         // receive and split handshake message
-        String handshakeMessage = receiveHandshakeMessageFromClient(clientSocket);
-        String[] handshakeParts = splitHandShakeMessage(handshakeMessage, clientSocket);
+        String handshakeMessage = receiveHandshakeMessageFromClient(connection);
+        String[] handshakeParts = splitHandShakeMessage(handshakeMessage, connection);
+        if (handshakeParts == null) {
+            return;
+        }
         // discern between sensor nodes and control nodes to route them to correct method
         if (handshakeParts[0].equals("SENSOR")) {
-            parseSensorHandshake(handshakeParts, clientSocket);
+            parseSensorHandshake(handshakeParts, connection);
         } else if (handshakeParts[0].equals("CONTROL")) {
-            parseControlHandShake(handshakeParts, clientSocket);
+            parseControlHandShake(handshakeParts, connection);
+        } else if (handshakeParts[0].equals(GatewayHandshake.PREFIX)) {
+            parseGatewayHandshake(handshakeParts, connection);
         }
     }
 
     /**
      * receives the handshake message from the client
      *
-     * @param clientSocket client which sends handshake message
+     * @param connection client which sends handshake message
      * @return handshake message or null if an exception is thrown
      */
-    private String receiveHandshakeMessageFromClient(Socket clientSocket) {
+    private String receiveHandshakeMessageFromClient(NodeConnection connection) {
         try {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            String handshakeMessage = reader.readLine();
+            String handshakeMessage = connection.readHandshake();
             if (handshakeMessage == null || handshakeMessage.trim().isEmpty()) {
                 Logger.error("Received empty handshake message. Closing client socket.");
-                closeClientSocket(clientSocket);
+                connection.closeConnection();
             }
             return handshakeMessage;
         } catch (IOException e) {
             Logger.error("Error receiving handshake message: " + e.getMessage());
+            connection.closeConnection();
             return null;
         }
     }
 
     /**
-     * Splits handshake message and makes sure that it is in the expected format/not empty
+     * Splits handshake message and makes sure that it is in the expected format/not empty. a trailing codec option
+     * (e.g. "SENSOR:1:codec=bin") is removed from the parts and applied to the connection.
      *
-     * @param message      handshake message
-     * @param clientSocket socket of connected node
+     * @param message    handshake message
+     * @param connection connection of the connected node
      * @return String array with parts of handshake message or null if invalid handshake message
      */
-    private String[] splitHandShakeMessage(String message, Socket clientSocket) {
+    private String[] splitHandShakeMessage(String message, NodeConnection connection) {
 
         if (message == null || message.trim().isEmpty()) {
             Logger.error("Received invalid handshake message. Closing client socket.");
-            closeClientSocket(clientSocket);
+            connection.closeConnection();
             return null;
         }
         String[] parts = message.split(":");
-        if (!parts[0].equals("CONTROL") && !parts[0].equals("SENSOR")) {
+        if (parts.length > 1 && WireCodec.isHandshakeOption(parts[parts.length - 1])) {
+            try {
+                connection.setCodec(WireCodec.fromHandshakeOption(parts[parts.length - 1]));
+            } catch (IllegalArgumentException e) {
+                Logger.error(e.getMessage() + ". Closing client socket.");
+                connection.closeConnection();
+                return null;
+            }
+            parts = Arrays.copyOf(parts, parts.length - 1);
+        }
+        if (!parts[0].equals("CONTROL") && !parts[0].equals("SENSOR") && !parts[0].equals(GatewayHandshake.PREFIX)) {
             Logger.error("Unknown Node Type: " + parts[0] + ". Closing client socket.");
-            closeClientSocket(clientSocket);
+            connection.closeConnection();
             return null;
         }
         if (parts[0].equals("SENSOR") && parts.length != 2) {
             Logger.error("Invalid Handshake format. Closing client socket");
-            closeClientSocket(clientSocket);
+            connection.closeConnection();
             return null;
         }
         return parts;
     }
 
     /**
-     * parses the handshake message of a sensor/actuator node and adds it to the unpaired sensorNodes map
+     * parses the handshake message of a sensor/actuator node and passes it to the node handler, which publishes
+     * its data
      *
      * @param handshakeParts parts of the handshake message
-     * @param clientSocket   socket of the node
+     * @param connection     connection of the node
      */
-    private synchronized void parseSensorHandshake(String[] handshakeParts, Socket clientSocket) {
-        Integer nodeID = Integer.valueOf(handshakeParts[1]);
-        synchronized (sensorNodes) {
-            if (sensorNodes.containsKey(nodeID)) {
-                Logger.error("Duplicate sensor node ID: " + nodeID + ". Discarding this node.");
-            } else {
-                sensorNodes.put(nodeID, clientSocket);
-            }
+    private void parseSensorHandshake(String[] handshakeParts, NodeConnection connection) {
+        try {
+            nodeHandler.addSensorNode(Integer.parseInt(handshakeParts[1]), connection);
+        } catch (NumberFormatException e) {
+            Logger.error("Invalid sensor node id: " + handshakeParts[1] + ". Closing client socket.");
+            connection.closeConnection();
         }
-
     }
 
     /**
-     * parse handshake message from a control node and attempt to establish connection between control node
-     * and its requested sensor/actuator nodes
-     * handshake has the following format -> CONTROL:1:2:3 (amount of requested sensor/actuator nodes
-     * can be more or less than 3)
+     * parses the handshake of a gateway, e.g. GATEWAY:1-500, and passes it to the node handler, which publishes the
+     * data of all its nodes
      *
-     * @param handshakeParts parts of handshake message
-     * @param clientSocket   socket of the control node
+     * @param handshakeParts parts of the handshake message
+     * @param connection     connection of the gateway
      */
-    private synchronized void parseControlHandShake(String[] handshakeParts, Socket clientSocket) {
-        Integer[] wantedSensorNodeIDs = new Integer[handshakeParts.length - 1];
-        for (int i = 1; i < handshakeParts.length; ++i) {
-            wantedSensorNodeIDs[i - 1] = Integer.valueOf(handshakeParts[i]);
-        }
-        // ensure that requested sensor/actuator nodes are connected to the server
-        for (int id : wantedSensorNodeIDs) {
-            if (!sensorNodes.containsKey(id)) {
-                Logger.error("Sensor node with requested id is not connected to server or already paired: " + id +
-                        ". Closing Control Socket.");
-
-                closeClientSocket(clientSocket);
-                return;
-            }
+    private void parseGatewayHandshake(String[] handshakeParts, NodeConnection connection) {
+        try {
+            nodeHandler.addGateway(GatewayHandshake.parseNodeIDs(handshakeParts), connection);
+        } catch (IllegalArgumentException e) {
+            Logger.error(e.getMessage() + ". Closing client socket.");
+            connection.closeConnection();
         }
-        passSocketsToNodeHandler(clientSocket, wantedSensorNodeIDs);
     }
 
     /**
-     * Creates a node handler, which is responsible for managing the communication between
-     * a control node and its connected sensor/actuator nodes
+     * parse handshake message from a control node and subscribe it to its requested sensor/actuator nodes
+     * handshake has the following format -> CONTROL:1:2:3 (amount of requested sensor/actuator nodes
+     * can be more or less than 3)
      *
-     * @param clientSocket        socket of control node
-     * @param wantedSensorNodeIDs ids of the sensor nodes that the control panel wants to connect to
+     * @param handshakeParts parts of handshake message
+     * @param connection     connection of the control node
      */
-    private void passSocketsToNodeHandler(Socket clientSocket, Integer[] wantedSensorNodeIDs) {
-        NodeHandler handler = new NodeHandler(this);
-        handler.addControlNode(clientSocket);
-        for (int id : wantedSensorNodeIDs) {
-            handler.addSensorNode(id, sensorNodes.get(id));
+    private void parseControlHandShake(String[] handshakeParts, NodeConnection connection) {
+        int[] wantedSensorNodeIDs = new int[handshakeParts.length - 1];
+        try {
+            for (int i = 1; i < handshakeParts.length; ++i) {
+                wantedSensorNodeIDs[i - 1] = Integer.parseInt(handshakeParts[i]);
+            }
+        } catch (NumberFormatException e) {
+            Logger.error("Invalid sensor node id in control handshake. Closing Control Socket.");
+            connection.closeConnection();
+            return;
         }
-        handler.startCommunication();
+        nodeHandler.addControlNode(connection, wantedSensorNodeIDs);
     }
 
     /**
-     * closes the client socket
+     * getter for the settings of the server
      *
-     * @param socket socket which is supposed to be closed
+     * @return settings of the server
      */
-    private void closeClientSocket(Socket socket) {
-        try {
-            socket.close();
-        } catch (IOException e) {
-            Logger.error("Failed to close client socket: " + e.getMessage());
-        }
+    public ServerConfig getConfig() {
+        return config;
     }
 
-    /**
-     * getter for map of unpaired sensor nodes
-     * @return map containing unpaired sensor nodes
-     */
-    public Map<Integer, Socket> getSensorNodes() {
-        return sensorNodes;
-    }
 
 }
\ No newline at end of file
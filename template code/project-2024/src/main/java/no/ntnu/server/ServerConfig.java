@@ -0,0 +1,157 @@
+package no.ntnu.server;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import no.ntnu.server.telemetry.TelemetryStore;
+import no.ntnu.tools.Logger;
+
+/**
+ * settings of the server, read from the command line. the first two arguments are the TCP port and the server mode,
+ * every following argument is an option written as name=value, for example "overflow=conflate".
+ */
+public class ServerConfig {
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    // raw telemetry is kept for a week, the rollups for longer
+    public static final long DEFAULT_RETENTION_HOURS = 7 * 24;
+
+    private int port = Server.TCP_PORT;
+    private ServerMode mode = ServerMode.BLOCKING;
+    private int eventLoops = NioServer.DEFAULT_EVENT_LOOPS;
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+    private long flushBudgetMicros = 0;
+    private Path telemetryDirectory;
+    private int telemetrySegmentCapacity = TelemetryStore.DEFAULT_SEGMENT_CAPACITY;
+    private long telemetryRetentionHours = DEFAULT_RETENTION_HOURS;
+
+    /**
+     * reads the settings from command line arguments. settings which are not given keep their default value.
+     *
+     * @param args command line arguments: [port] [mode] [name=value ...]
+     * @return the settings
+     * @throws IllegalArgumentException if an argument can not be understood
+     */
+    public static ServerConfig fromArguments(String[] args) {
+        ServerConfig config = new ServerConfig();
+        if (args.length >= 1) {
+            config.port = Integer.parseInt(args[0]);
+        }
+        if (args.length >= 2) {
+            config.mode = ServerMode.fromArgument(args[1]);
+        }
+        for (int i = 2; i < args.length; ++i) {
+            String[] option = args[i].split("=", 2);
+            if (option.length != 2) {
+                throw new IllegalArgumentException("Options must be written as name=value: " + args[i]);
+            }
+            config.setOption(option[0], option[1]);
+        }
+        return config;
+    }
+
+    private void setOption(String name, String value) {
+        switch (name) {
+            case "loops" -> eventLoops = Integer.parseInt(value);
+            case "queue" -> queueCapacity = Integer.parseInt(value);
+            case "overflow" -> overflowPolicy = OverflowPolicy.fromArgument(value);
+            case "flush" -> flushBudgetMicros = Long.parseLong(value);
+            case "telemetry" -> telemetryDirectory = Path.of(value);
+            case "segment" -> telemetrySegmentCapacity = Integer.parseInt(value);
+            case "retention" -> telemetryRetentionHours = Long.parseLong(value);
+            default -> throw new IllegalArgumentException("Unknown option: " + name);
+        }
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public ServerMode getMode() {
+        return mode;
+    }
+
+    /**
+     * getter for the number of selector threads, only used in nio mode
+     *
+     * @return number of event loops
+     */
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    /**
+     * getter for the capacity of the outbound queue every connection has
+     *
+     * @return maximum number of queued messages per connection
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * getter for the policy used when the outbound queue of a control panel is full
+     *
+     * @return the overflow policy
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * getter for how long a writer may wait for more messages before flushing. only used by the blocking and
+     * virtual modes, the nio server flushes once per pass of its event loop.
+     *
+     * @return flush budget in microseconds, 0 to flush as soon as the queue is empty
+     */
+    public long getFlushBudgetMicros() {
+        return flushBudgetMicros;
+    }
+
+    /**
+     * creates the outbound queue of a control panel
+     *
+     * @return a queue using the configured capacity and overflow policy
+     */
+    public OutboundQueue createControlQueue() {
+        return new OutboundQueue(queueCapacity, overflowPolicy);
+    }
+
+    /**
+     * creates the outbound queue of a sensor/actuator node. it only carries actuator commands, which must neither be
+     * conflated with each other nor block the control panel sending them, so the oldest one is dropped when full.
+     *
+     * @return a queue using the configured capacity
+     */
+    public OutboundQueue createNodeQueue() {
+        return new OutboundQueue(queueCapacity, OverflowPolicy.DROP_OLDEST);
+    }
+
+    /**
+     * getter for the directory of the telemetry log
+     *
+     * @return the directory, or null if the server does not record telemetry
+     */
+    public Path getTelemetryDirectory() {
+        return telemetryDirectory;
+    }
+
+    /**
+     * opens the telemetry log in the configured directory
+     *
+     * @return the telemetry store, or null if no directory is configured or the log can not be opened
+     */
+    public TelemetryStore openTelemetryStore() {
+        if (telemetryDirectory == null) {
+            return null;
+        }
+        try {
+            return TelemetryStore.open(telemetryDirectory, telemetrySegmentCapacity,
+                    TimeUnit.HOURS.toMillis(telemetryRetentionHours));
+        } catch (IOException e) {
+            Logger.error("Could not open telemetry log, continuing without it: " + e.getMessage());
+            return null;
+        }
+    }
+}
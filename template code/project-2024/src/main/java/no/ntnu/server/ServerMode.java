@@ -0,0 +1,84 @@
+package no.ntnu.server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * the different ways the server can execute its connections. the mode can be chosen with the second command
+ * line argument of the server, right after the port number.
+ */
+public enum ServerMode {
+    /**
+     * blocking sockets, one platform thread reading each connection
+     */
+    BLOCKING("blocking"),
+
+    /**
+     * blocking sockets, but every connection is read by its own virtual thread instead of a pooled one
+     */
+    VIRTUAL("virtual"),
+
+    /**
+     * non-blocking channels multiplexed over a small, fixed set of selector event loops
+     */
+    NIO("nio");
+
+    private final String argument;
+
+    ServerMode(String argument) {
+        this.argument = argument;
+    }
+
+    /**
+     * getter for the command line name of the mode
+     *
+     * @return the name used to select this mode on the command line
+     */
+    public String getArgument() {
+        return argument;
+    }
+
+    /**
+     * creates the executor that runs the connection tasks of the blocking server modes
+     *
+     * @param name            name prefix of the created threads
+     * @param platformThreads size of the thread pool when platform threads are used
+     * @return a fixed thread pool, or an executor starting one virtual thread per task in virtual mode
+     */
+    public ExecutorService createExecutor(String name, int platformThreads) {
+        if (this == VIRTUAL) {
+            return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 0).factory());
+        }
+        return Executors.newFixedThreadPool(platformThreads, Thread.ofPlatform().name(name + "-", 0).factory());
+    }
+
+    /**
+     * creates the executor that runs the long-lived tasks of the blocking server modes. those tasks read or write
+     * a single connection for as long as it is open, so the executor must never run out of threads.
+     *
+     * @param name name prefix of the created threads
+     * @return a cached thread pool, or an executor starting one virtual thread per task in virtual mode
+     */
+    public ExecutorService createPerConnectionExecutor(String name) {
+        if (this == VIRTUAL) {
+            return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 0).factory());
+        }
+        return Executors.newCachedThreadPool(Thread.ofPlatform().name(name + "-", 0).factory());
+    }
+
+    /**
+     * finds the mode matching a command line argument
+     *
+     * @param argument command line argument, case is ignored
+     * @return the matching mode
+     * @throws IllegalArgumentException if no mode matches the argument
+     */
+    public static ServerMode fromArgument(String argument) {
+        for (ServerMode mode : values()) {
+            if (mode.argument.equalsIgnoreCase(argument)) {
+                return mode;
+            }
+        }
+        throw new IllegalArgumentException("Unknown server mode: " + argument);
+    }
+}
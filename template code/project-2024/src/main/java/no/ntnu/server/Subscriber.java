@@ -0,0 +1,18 @@
+package no.ntnu.server;
+
+/**
+ * Something that can receive messages from the broker. Control panels subscribe to the sensor/actuator nodes they
+ * want to watch, and sensor/actuator nodes receive the actuator commands addressed to them the same way.
+ */
+@FunctionalInterface
+public interface Subscriber {
+    /**
+     * hands a message to the subscriber. the caller is usually the thread reading the publishing node, so
+     * implementations should queue the message instead of writing it, and only block when their overflow policy
+     * says so.
+     *
+     * @param nodeID  id of the sensor/actuator node the message comes from or is addressed to
+     * @param message the message, encoded by the subscriber with the codec of its client
+     */
+    void deliver(int nodeID, Message message);
+}
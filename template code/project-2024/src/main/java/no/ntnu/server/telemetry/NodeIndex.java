@@ -0,0 +1,86 @@
+package no.ntnu.server.telemetry;
+
+import java.util.Arrays;
+
+/**
+ * sparse timestamp index of the records of one node within one segment. it keeps the position of the first record
+ * of the node and of every {@link #INTERVAL}th record after it, so a query only scans from the closest entry before
+ * its start time instead of from the beginning of the segment.
+ * entries are added by the writing thread and searched by any number of reading threads.
+ */
+class NodeIndex {
+    /**
+     * number of records of the node between two index entries
+     */
+    static final int INTERVAL = 64;
+
+    private long[] timestamps = new long[16];
+    private int[] positions = new int[16];
+    private int size;
+    // only used by the writing thread
+    private int records;
+
+    /**
+     * counts a record of the node, adding an index entry for every {@link #INTERVAL}th one
+     *
+     * @param timestamp time of the record
+     * @param position  index of the record in the segment
+     */
+    void add(long timestamp, int position) {
+        if (records++ % INTERVAL == 0) {
+            addEntry(timestamp, position);
+        }
+    }
+
+    private synchronized void addEntry(long timestamp, int position) {
+        if (size == timestamps.length) {
+            timestamps = Arrays.copyOf(timestamps, size * 2);
+            positions = Arrays.copyOf(positions, size * 2);
+        }
+        timestamps[size] = timestamp;
+        positions[size] = position;
+        size++;
+    }
+
+    /**
+     * finds where to start scanning for records of the node at or after a point in time
+     *
+     * @param from the start time
+     * @return index of a record in the segment, no record of the node before it is at or after the start time
+     */
+    synchronized int findStart(long from) {
+        // last entry before the start time, every record of the node before it is older still
+        int entry = search(from) - 1;
+        return positions[Math.max(entry, 0)];
+    }
+
+    /**
+     * finds where to stop scanning for records of the node up to a point in time
+     *
+     * @param to the end time (inclusive)
+     * @return index of a record in the segment, no record of the node at or after it is before the end time, or -1
+     *         if the scan has to go on to the end of the segment
+     */
+    synchronized int findEnd(long to) {
+        // first entry after the end time, every record of the node after it is newer still
+        int entry = search(to + 1);
+        return entry < size ? positions[entry] : -1;
+    }
+
+    /**
+     * @return index of the first entry at or after the given time, or size if there is none
+     */
+    private int search(long timestamp) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (timestamps[middle] < timestamp) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,19 @@
+package no.ntnu.server.telemetry;
+
+/**
+ * receives the sensor readings found by a query of the {@link TelemetryStore}, one at a time and in order of time
+ */
+@FunctionalInterface
+public interface ReadingVisitor {
+    /**
+     * called for every reading matching the query
+     *
+     * @param sensorIndex position of the sensor in the sensor list of its node
+     * @param type        type of the sensor
+     * @param unit        unit of the value
+     * @param timestamp   time of the reading, in milliseconds since the epoch
+     * @param value       the value
+     * @return true to continue, false to end the query
+     */
+    boolean visit(int sensorIndex, String type, String unit, long timestamp, double value);
+}
@@ -0,0 +1,47 @@
+package no.ntnu.server.telemetry;
+
+/**
+ * what a telemetry record describes. the code is stored in every record.
+ */
+public enum RecordKind {
+    /**
+     * a sensor reading, the channel is the index of the sensor on its node
+     */
+    SENSOR((byte) 1),
+
+    /**
+     * the reported state of an actuator, the channel is the actuator id and the value 1 (on) or 0 (off)
+     */
+    ACTUATOR((byte) 2),
+
+    /**
+     * a command sent to an actuator, the channel is the actuator id and the value 1 (on) or 0 (off)
+     */
+    COMMAND((byte) 3);
+
+    private final byte code;
+
+    RecordKind(byte code) {
+        this.code = code;
+    }
+
+    public byte getCode() {
+        return code;
+    }
+
+    /**
+     * finds the kind stored in a record
+     *
+     * @param code the stored code
+     * @return the kind
+     * @throws IllegalArgumentException if the code is unknown
+     */
+    public static RecordKind fromCode(byte code) {
+        for (RecordKind kind : values()) {
+            if (kind.code == code) {
+                return kind;
+            }
+        }
+        throw new IllegalArgumentException("Unknown record kind: " + code);
+    }
+}
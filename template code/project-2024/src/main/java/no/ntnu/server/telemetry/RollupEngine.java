@@ -0,0 +1,186 @@
+package no.ntnu.server.telemetry;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import no.ntnu.protocol.Resolution;
+
+/**
+ * keeps the per minute, per hour and per day rollups of every sensor up to date while the readings are written.
+ * every sensor has one {@link RollupSeries} per resolution, so a reading only updates three buckets, and a query
+ * for a month of hourly values reads about 700 buckets instead of millions of raw records.
+ * the rollups are kept in memory and saved in checkpoints by the {@link TelemetryStore}, so they survive both a
+ * restart and the removal of old raw segments.
+ */
+public class RollupEngine {
+    private static final Resolution[] RESOLUTIONS = {Resolution.MINUTE, Resolution.HOUR, Resolution.DAY};
+
+    /**
+     * the rollups of one sensor
+     */
+    private static class SensorRollups {
+        private final short type;
+        private final RollupSeries[] series = new RollupSeries[RESOLUTIONS.length];
+
+        private SensorRollups(short type) {
+            this.type = type;
+            for (int i = 0; i < RESOLUTIONS.length; ++i) {
+                series[i] = new RollupSeries(RESOLUTIONS[i].getMillis(), capacityOf(RESOLUTIONS[i]));
+            }
+        }
+    }
+
+    private final TypeDictionary types;
+    // the sensors of every node, indexed by the position of the sensor on its node
+    private final Map<Integer, SensorRollups[]> nodes = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor for an empty rollup engine
+     *
+     * @param types dictionary of the sensor types
+     */
+    public RollupEngine(TypeDictionary types) {
+        this.types = types;
+    }
+
+    /**
+     * number of buckets kept per sensor for a resolution: two days of minutes, five weeks of hours and two years
+     * of days, about 160 KB per sensor in total
+     *
+     * @param resolution a rollup resolution
+     * @return number of buckets
+     */
+    public static int capacityOf(Resolution resolution) {
+        return switch (resolution) {
+            case MINUTE -> 2 * 24 * 60;
+            case HOUR -> 5 * 7 * 24;
+            case DAY -> 2 * 366;
+            case RAW -> throw new IllegalArgumentException("Raw readings have no rollups");
+        };
+    }
+
+    /**
+     * adds a reading to the rollups of its sensor. must only be called by the writing thread.
+     *
+     * @param nodeID      id of the node
+     * @param sensorIndex position of the sensor on the node
+     * @param type        code of the sensor type
+     * @param timestamp   time of the reading
+     * @param value       the value
+     */
+    public void add(int nodeID, int sensorIndex, short type, long timestamp, double value) {
+        SensorRollups sensor = sensorOf(nodeID, sensorIndex, type);
+        for (RollupSeries series : sensor.series) {
+            series.add(timestamp, value);
+        }
+    }
+
+    /**
+     * finds the rollups of a sensor, creating them if needed. an array in the map is never changed once it is put
+     * there, as queries read it on other threads: a new sensor goes into a filled copy, which then replaces the old
+     * array, so the map publishes it together with its elements.
+     */
+    private SensorRollups sensorOf(int nodeID, int sensorIndex, short type) {
+        SensorRollups[] sensors = nodes.get(nodeID);
+        SensorRollups sensor = (sensors != null && sensorIndex < sensors.length) ? sensors[sensorIndex] : null;
+        // a node which restarted with other sensors starts over
+        if (sensor == null || sensor.type != type) {
+            sensor = new SensorRollups(type);
+            SensorRollups[] copy = sensors == null
+                    ? new SensorRollups[sensorIndex + 1]
+                    : Arrays.copyOf(sensors, Math.max(sensors.length, sensorIndex + 1));
+            copy[sensorIndex] = sensor;
+            nodes.put(nodeID, copy);
+        }
+        return sensor;
+    }
+
+    /**
+     * finds the rollups of a node within a time range
+     *
+     * @param nodeID     id of the node
+     * @param sensorType type of the wanted sensors, or null for all sensors of the node
+     * @param resolution length of the buckets
+     * @param from       start of the time range, the bucket containing it is included
+     * @param to         end of the time range (inclusive)
+     * @param visitor    receives the buckets, sensor by sensor and in order of time
+     */
+    public void query(int nodeID, String sensorType, Resolution resolution, long from, long to,
+                      RollupVisitor visitor) {
+        int resolutionIndex = Arrays.asList(RESOLUTIONS).indexOf(resolution);
+        if (resolutionIndex < 0) {
+            throw new IllegalArgumentException("No rollups with resolution " + resolution);
+        }
+        SensorRollups[] sensors = nodes.get(nodeID);
+        if (sensors == null) {
+            return;
+        }
+        for (int i = 0; i < sensors.length; ++i) {
+            SensorRollups sensor = sensors[i];
+            if (sensor == null) {
+                continue;
+            }
+            String type = types.getType(sensor.type);
+            if (sensorType != null && !sensorType.equals(type)) {
+                continue;
+            }
+            if (!sensor.series[resolutionIndex].query(i, type, types.getUnit(sensor.type), from, to, visitor)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * writes all rollups to a checkpoint
+     *
+     * @param out the checkpoint stream
+     * @throws IOException if writing fails
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        int sensorCount = 0;
+        for (SensorRollups[] sensors : nodes.values()) {
+            for (SensorRollups sensor : sensors) {
+                if (sensor != null) {
+                    sensorCount++;
+                }
+            }
+        }
+        out.writeInt(sensorCount);
+        for (Map.Entry<Integer, SensorRollups[]> node : nodes.entrySet()) {
+            SensorRollups[] sensors = node.getValue();
+            for (int i = 0; i < sensors.length; ++i) {
+                if (sensors[i] != null) {
+                    out.writeInt(node.getKey());
+                    out.writeInt(i);
+                    out.writeShort(sensors[i].type);
+                    for (RollupSeries series : sensors[i].series) {
+                        series.writeTo(out);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * restores the rollups written by {@link #writeTo(DataOutputStream)}
+     *
+     * @param in the checkpoint stream
+     * @throws IOException if reading fails
+     */
+    public void readFrom(DataInputStream in) throws IOException {
+        int sensorCount = in.readInt();
+        for (int i = 0; i < sensorCount; ++i) {
+            int nodeID = in.readInt();
+            int sensorIndex = in.readInt();
+            short type = in.readShort();
+            SensorRollups sensor = sensorOf(nodeID, sensorIndex, type);
+            for (RollupSeries series : sensor.series) {
+                series.readFrom(in);
+            }
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package no.ntnu.server.telemetry;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * minimum, maximum, sum and count of the readings of one sensor per time bucket, e.g. per minute. the buckets are
+ * kept in a ring of primitive arrays of fixed size: bucket number b lives in slot b % capacity, so adding a reading
+ * never allocates, and a bucket is overwritten once it is older than the capacity of the ring.
+ * readings are added by the writing thread, any number of threads may query.
+ */
+class RollupSeries {
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private final long bucketMillis;
+    private final int capacity;
+    // number of the bucket held by every slot, EMPTY if the slot was never used
+    private final long[] buckets;
+    private final double[] minimums;
+    private final double[] maximums;
+    private final double[] sums;
+    private final int[] counts;
+    private long latestBucket = EMPTY;
+
+    /**
+     * Constructor for an empty series
+     *
+     * @param bucketMillis length of one bucket in milliseconds
+     * @param capacity     number of buckets kept
+     */
+    RollupSeries(long bucketMillis, int capacity) {
+        this.bucketMillis = bucketMillis;
+        this.capacity = capacity;
+        this.buckets = new long[capacity];
+        this.minimums = new double[capacity];
+        this.maximums = new double[capacity];
+        this.sums = new double[capacity];
+        this.counts = new int[capacity];
+        Arrays.fill(buckets, EMPTY);
+    }
+
+    /**
+     * adds a reading to its bucket. readings older than the oldest kept bucket are ignored.
+     *
+     * @param timestamp time of the reading in milliseconds
+     * @param value     the value
+     */
+    synchronized void add(long timestamp, double value) {
+        long bucket = Math.floorDiv(timestamp, bucketMillis);
+        if (latestBucket != EMPTY && bucket <= latestBucket - capacity) {
+            return;
+        }
+        int slot = (int) Math.floorMod(bucket, (long) capacity);
+        if (buckets[slot] != bucket) {
+            buckets[slot] = bucket;
+            minimums[slot] = value;
+            maximums[slot] = value;
+            sums[slot] = 0;
+            counts[slot] = 0;
+        }
+        minimums[slot] = Math.min(minimums[slot], value);
+        maximums[slot] = Math.max(maximums[slot], value);
+        sums[slot] += value;
+        counts[slot]++;
+        latestBucket = Math.max(latestBucket, bucket);
+    }
+
+    /**
+     * hands the buckets within a time range to a visitor, oldest first. the buckets are copied before visiting, so
+     * the visitor does not hold up the writing thread.
+     *
+     * @param sensorIndex position of the sensor on its node, passed on to the visitor
+     * @param type        type of the sensor, passed on to the visitor
+     * @param unit        unit of the sensor, passed on to the visitor
+     * @param from        start of the time range, buckets containing it are included
+     * @param to          end of the time range (inclusive)
+     * @param visitor     receives the buckets
+     * @return false if the visitor ended the query
+     */
+    boolean query(int sensorIndex, String type, String unit, long from, long to, RollupVisitor visitor) {
+        long[] starts;
+        double[] mins;
+        double[] maxs;
+        double[] sumsCopy;
+        int[] countsCopy;
+        int size = 0;
+        synchronized (this) {
+            if (latestBucket == EMPTY) {
+                return true;
+            }
+            long first = Math.max(Math.floorDiv(from, bucketMillis), latestBucket - capacity + 1);
+            long last = Math.min(Math.floorDiv(to, bucketMillis), latestBucket);
+            int length = (int) Math.max(0, last - first + 1);
+            starts = new long[length];
+            mins = new double[length];
+            maxs = new double[length];
+            sumsCopy = new double[length];
+            countsCopy = new int[length];
+            for (long bucket = first; bucket <= last; ++bucket) {
+                int slot = (int) Math.floorMod(bucket, (long) capacity);
+                if (buckets[slot] == bucket) {
+                    starts[size] = bucket * bucketMillis;
+                    mins[size] = minimums[slot];
+                    maxs[size] = maximums[slot];
+                    sumsCopy[size] = sums[slot];
+                    countsCopy[size] = counts[slot];
+                    size++;
+                }
+            }
+        }
+        for (int i = 0; i < size; ++i) {
+            if (!visitor.visit(sensorIndex, type, unit, starts[i], mins[i], maxs[i], sumsCopy[i] / countsCopy[i],
+                    countsCopy[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * writes the used buckets to a checkpoint
+     *
+     * @param out the checkpoint stream
+     * @throws IOException if writing fails
+     */
+    synchronized void writeTo(DataOutputStream out) throws IOException {
+        int used = 0;
+        for (long bucket : buckets) {
+            if (bucket != EMPTY) {
+                used++;
+            }
+        }
+        out.writeInt(used);
+        for (int slot = 0; slot < capacity; ++slot) {
+            if (buckets[slot] != EMPTY) {
+                out.writeLong(buckets[slot]);
+                out.writeDouble(minimums[slot]);
+                out.writeDouble(maximums[slot]);
+                out.writeDouble(sums[slot]);
+                out.writeInt(counts[slot]);
+            }
+        }
+    }
+
+    /**
+     * restores the buckets written by {@link #writeTo(DataOutputStream)}
+     *
+     * @param in the checkpoint stream
+     * @throws IOException if reading fails
+     */
+    synchronized void readFrom(DataInputStream in) throws IOException {
+        int used = in.readInt();
+        for (int i = 0; i < used; ++i) {
+            long bucket = in.readLong();
+            double minimum = in.readDouble();
+            double maximum = in.readDouble();
+            double sum = in.readDouble();
+            int count = in.readInt();
+            int slot = (int) Math.floorMod(bucket, (long) capacity);
+            // with a smaller capacity than before, only the newest buckets fit
+            if (buckets[slot] == EMPTY || buckets[slot] < bucket) {
+                buckets[slot] = bucket;
+                minimums[slot] = minimum;
+                maximums[slot] = maximum;
+                sums[slot] = sum;
+                counts[slot] = count;
+                latestBucket = Math.max(latestBucket, bucket);
+            }
+        }
+    }
+}
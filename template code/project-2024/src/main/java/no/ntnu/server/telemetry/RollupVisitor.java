@@ -0,0 +1,23 @@
+package no.ntnu.server.telemetry;
+
+/**
+ * receives the rollups found by a query of the {@link TelemetryStore}, one bucket at a time and in order of time
+ */
+@FunctionalInterface
+public interface RollupVisitor {
+    /**
+     * called for every bucket matching the query
+     *
+     * @param sensorIndex position of the sensor in the sensor list of its node
+     * @param type        type of the sensor
+     * @param unit        unit of the values
+     * @param start       start of the bucket, in milliseconds since the epoch
+     * @param minimum     smallest reading in the bucket
+     * @param maximum     largest reading in the bucket
+     * @param average     average of the readings in the bucket
+     * @param count       number of readings in the bucket
+     * @return true to continue, false to end the query
+     */
+    boolean visit(int sensorIndex, String type, String unit, long start, double minimum, double maximum,
+                  double average, int count);
+}
@@ -0,0 +1,210 @@
+package no.ntnu.server.telemetry;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * one segment file of the telemetry log. the file is created with its full size and mapped into memory, records are
+ * appended by writing into the mapping. every record has the same size:
+ * <pre>
+ * long   timestamp    milliseconds since the epoch, never 0
+ * int    node id
+ * short  type code    see {@link TypeDictionary}
+ * byte   kind         see {@link RecordKind}
+ * byte   reserved
+ * int    channel      index of the sensor, or id of the actuator
+ * int    reserved
+ * double value
+ * </pre>
+ * the unused rest of the file is zero, so the number of written records is found again after a restart by looking
+ * for the first record without a timestamp. the timestamps never decrease from one record to the next.
+ * every node has a sparse index of its records in the segment, which is kept in memory and rebuilt when the segment
+ * is opened again.
+ * only one thread may append, any number of threads may read the records below {@link #getCount()}.
+ */
+public class TelemetrySegment {
+    public static final int RECORD_SIZE = 32;
+    private static final int NODE_OFFSET = 8;
+    private static final int TYPE_OFFSET = 12;
+    private static final int KIND_OFFSET = 14;
+    private static final int CHANNEL_OFFSET = 16;
+    private static final int VALUE_OFFSET = 24;
+
+    private final long sequence;
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private volatile int count;
+    private final Map<Integer, NodeIndex> index = new ConcurrentHashMap<>();
+
+    private TelemetrySegment(long sequence, Path path, FileChannel channel, MappedByteBuffer buffer, int capacity) {
+        this.sequence = sequence;
+        this.path = path;
+        this.channel = channel;
+        this.buffer = buffer;
+        this.capacity = capacity;
+        this.count = findCount();
+        for (int i = 0; i < count; ++i) {
+            indexOf(getNodeID(i)).add(getTimestamp(i), i);
+        }
+    }
+
+    /**
+     * opens a segment file, creating it if it does not exist. an existing file keeps its size, even if it was
+     * written with a different capacity.
+     *
+     * @param path     the file
+     * @param sequence number of the segment, segments are ordered by it
+     * @param capacity number of records a new segment can hold
+     * @return the segment
+     * @throws IOException if the file can not be created or mapped
+     */
+    public static TelemetrySegment open(Path path, long sequence, int capacity) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            if (channel.size() >= RECORD_SIZE) {
+                capacity = (int) Math.min(Integer.MAX_VALUE, channel.size() / RECORD_SIZE);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) capacity * RECORD_SIZE);
+            return new TelemetrySegment(sequence, path, channel, buffer, capacity);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private int findCount() {
+        // written records are contiguous, so the first empty one can be found by binary search
+        int low = 0;
+        int high = capacity;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (getTimestamp(middle) != 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * appends a record. must only be called by the writing thread, and only while the segment is not full.
+     *
+     * @param timestamp time of the record in milliseconds, must not be 0
+     * @param nodeID    id of the sensor/actuator node
+     * @param kind      what the record describes
+     * @param type      code of the sensor or actuator type
+     * @param channel   index of the sensor or id of the actuator
+     * @param value     the value
+     */
+    public void append(long timestamp, int nodeID, RecordKind kind, short type, int channel, double value) {
+        int offset = count * RECORD_SIZE;
+        buffer.putInt(offset + NODE_OFFSET, nodeID);
+        buffer.putShort(offset + TYPE_OFFSET, type);
+        buffer.put(offset + KIND_OFFSET, kind.getCode());
+        buffer.putInt(offset + CHANNEL_OFFSET, channel);
+        buffer.putDouble(offset + VALUE_OFFSET, value);
+        // the timestamp marks the record as written, so it goes last
+        buffer.putLong(offset, timestamp);
+        indexOf(nodeID).add(timestamp, count);
+        count++;
+    }
+
+    private NodeIndex indexOf(int nodeID) {
+        return index.computeIfAbsent(nodeID, id -> new NodeIndex());
+    }
+
+    /**
+     * finds where to start scanning for the records of a node at or after a point in time
+     *
+     * @param nodeID id of the node
+     * @param from   the start time
+     * @return index of the first record to look at, or -1 if the segment contains no records of the node
+     */
+    public int findStart(int nodeID, long from) {
+        NodeIndex nodeIndex = index.get(nodeID);
+        return nodeIndex == null ? -1 : nodeIndex.findStart(from);
+    }
+
+    /**
+     * finds where to stop scanning for the records of a node up to a point in time
+     *
+     * @param nodeID id of the node
+     * @param to     the end time (inclusive)
+     * @return index of the record after the last one to look at
+     */
+    public int findEnd(int nodeID, long to) {
+        NodeIndex nodeIndex = index.get(nodeID);
+        int end = nodeIndex == null ? -1 : nodeIndex.findEnd(to);
+        return end < 0 ? count : Math.min(end, count);
+    }
+
+    /**
+     * writes all appended records to the disk
+     */
+    public void force() {
+        buffer.force();
+    }
+
+    /**
+     * writes the records to the disk and closes the file
+     *
+     * @throws IOException if closing fails
+     */
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+
+    public boolean isFull() {
+        return count == capacity;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public long getTimestamp(int index) {
+        return buffer.getLong(index * RECORD_SIZE);
+    }
+
+    public int getNodeID(int index) {
+        return buffer.getInt(index * RECORD_SIZE + NODE_OFFSET);
+    }
+
+    public short getType(int index) {
+        return buffer.getShort(index * RECORD_SIZE + TYPE_OFFSET);
+    }
+
+    public RecordKind getKind(int index) {
+        return RecordKind.fromCode(buffer.get(index * RECORD_SIZE + KIND_OFFSET));
+    }
+
+    public int getChannel(int index) {
+        return buffer.getInt(index * RECORD_SIZE + CHANNEL_OFFSET);
+    }
+
+    public double getValue(int index) {
+        return buffer.getDouble(index * RECORD_SIZE + VALUE_OFFSET);
+    }
+}
@@ -0,0 +1,504 @@
+package no.ntnu.server.telemetry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import no.ntnu.greenhouse.SensorReading;
+import no.ntnu.protocol.ActuatorCommand;
+import no.ntnu.protocol.ActuatorState;
+import no.ntnu.protocol.MessageType;
+import no.ntnu.protocol.Resolution;
+import no.ntnu.protocol.SensorData;
+import no.ntnu.protocol.SensorDelta;
+import no.ntnu.server.Message;
+import no.ntnu.server.Subscriber;
+import no.ntnu.tools.Logger;
+
+/**
+ * append-only log of all sensor readings, actuator states and actuator commands passing through the server.
+ * the store receives every message from the broker, but only puts it into a queue: decoding the message and
+ * writing its records happens on a separate writer thread, so forwarding never waits for the disk.
+ * the writer appends the records to memory mapped segment files and forces them to the disk at most every
+ * {@link #COMMIT_INTERVAL_MILLIS} milliseconds, so many messages share one sync (group commit).
+ * if the writer falls behind, messages are dropped and counted instead of blocking the server.
+ * the recorded sensor readings can be queried by node, sensor type and time range while the log is being written.
+ * the writer also keeps per minute, hour and day rollups of every sensor (see {@link RollupEngine}). they are saved
+ * in a checkpoint every minute, and the records written after the last checkpoint are replayed into them when the
+ * log is opened again. raw segments older than the retention time are removed, the rollups stay.
+ */
+public class TelemetryStore implements Subscriber {
+    /**
+     * records per segment file, 32 MB with 32 byte records
+     */
+    public static final int DEFAULT_SEGMENT_CAPACITY = 1 << 20;
+    public static final long COMMIT_INTERVAL_MILLIS = 200;
+    private static final int QUEUE_CAPACITY = 64 * 1024;
+    private static final int MAX_BATCH_SIZE = 1024;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".tlog";
+    private static final String DICTIONARY_FILE = "types.tsv";
+    private static final String CHECKPOINT_FILE = "rollups.chk";
+    private static final int CHECKPOINT_VERSION = 1;
+    public static final long CHECKPOINT_INTERVAL_MILLIS = 60 * 1000;
+
+    /**
+     * a message waiting to be written, with the time it passed the server
+     */
+    private static class Pending {
+        private final long timestamp;
+        private final Message message;
+
+        private Pending(long timestamp, Message message) {
+            this.timestamp = timestamp;
+            this.message = message;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentCapacity;
+    // raw segments older than this are removed, 0 keeps them forever
+    private final long retentionMillis;
+    private final TypeDictionary types;
+    private final RollupEngine rollups;
+    // all segments, oldest first. the last one is the one being written.
+    private final List<TelemetrySegment> segments = new CopyOnWriteArrayList<>();
+    private final BlockingQueue<Pending> pending = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    private final AtomicLong droppedMessages = new AtomicLong();
+    private volatile long writtenRecords;
+    private volatile long commits;
+    // timestamp of the latest record, records never get an older one, so the segments stay sorted by time
+    private long lastTimestamp;
+    // latest state of every node, needed to know the types of the sensors and actuators in a delta. writer only.
+    private final Map<Integer, SensorData> nodeStates = new HashMap<>();
+
+    private TelemetryStore(Path directory, int segmentCapacity, long retentionMillis) throws IOException {
+        this.directory = directory;
+        this.segmentCapacity = segmentCapacity;
+        this.retentionMillis = retentionMillis;
+        Files.createDirectories(directory);
+        this.types = new TypeDictionary(directory.resolve(DICTIONARY_FILE));
+        openExistingSegments();
+        this.rollups = restoreRollups();
+        if (segments.isEmpty()) {
+            segments.add(TelemetrySegment.open(segmentPath(0), 0, segmentCapacity));
+        }
+        TelemetrySegment active = activeSegment();
+        if (active.getCount() > 0) {
+            lastTimestamp = active.getTimestamp(active.getCount() - 1);
+        }
+        this.writer = new Thread(this::writeLoop, "telemetry-writer");
+        this.writer.setDaemon(true);
+    }
+
+    /**
+     * opens the telemetry log in a directory, continuing an existing log, and starts its writer thread
+     *
+     * @param directory       directory of the segment files, created if needed
+     * @param segmentCapacity number of records per segment file
+     * @param retentionMillis how long raw segments are kept, in milliseconds. 0 keeps them forever.
+     * @return the store
+     * @throws IOException if the directory or the segments can not be opened
+     */
+    public static TelemetryStore open(Path directory, int segmentCapacity, long retentionMillis)
+            throws IOException {
+        TelemetryStore store = new TelemetryStore(directory, segmentCapacity, retentionMillis);
+        store.writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(store::close, "telemetry-shutdown"));
+        Logger.info("Telemetry log opened in " + directory + " with " + store.segments.size() + " segments");
+        return store;
+    }
+
+    private void openExistingSegments() throws IOException {
+        List<Long> sequences = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    sequences.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                            name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    Logger.error("Ignoring unexpected file in telemetry directory: " + name);
+                }
+            }
+        }
+        sequences.sort(null);
+        for (long sequence : sequences) {
+            segments.add(TelemetrySegment.open(segmentPath(sequence), sequence, segmentCapacity));
+        }
+    }
+
+    /**
+     * loads the rollups from the last checkpoint and adds the records written after it. a checkpoint is read into
+     * rollups of its own, which are only used if the whole checkpoint could be read. otherwise the rollups are
+     * rebuilt from the whole log, starting empty, so nothing read from a broken checkpoint is counted twice.
+     *
+     * @return the rollups
+     */
+    private RollupEngine restoreRollups() {
+        RollupEngine engine = null;
+        long sequence = -1;
+        int count = 0;
+        Path checkpoint = directory.resolve(CHECKPOINT_FILE);
+        if (Files.exists(checkpoint)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(checkpoint)))) {
+                if (in.readInt() != CHECKPOINT_VERSION) {
+                    throw new IOException("Unknown checkpoint version");
+                }
+                sequence = in.readLong();
+                count = in.readInt();
+                RollupEngine restored = new RollupEngine(types);
+                restored.readFrom(in);
+                engine = restored;
+            } catch (IOException e) {
+                Logger.error("Could not read rollup checkpoint, rebuilding the rollups from the log: "
+                        + e.getMessage());
+                sequence = -1;
+                count = 0;
+            }
+        }
+        if (engine == null) {
+            engine = new RollupEngine(types);
+        }
+        long replayed = 0;
+        for (TelemetrySegment segment : segments) {
+            if (segment.getSequence() < sequence) {
+                continue;
+            }
+            int start = segment.getSequence() == sequence ? count : 0;
+            for (int i = start; i < segment.getCount(); ++i) {
+                if (segment.getKind(i) == RecordKind.SENSOR) {
+                    engine.add(segment.getNodeID(i), segment.getChannel(i), segment.getType(i),
+                            segment.getTimestamp(i), segment.getValue(i));
+                    replayed++;
+                }
+            }
+        }
+        if (replayed > 0) {
+            Logger.info("Replayed " + replayed + " telemetry records into the rollups");
+        }
+        return engine;
+    }
+
+    private Path segmentPath(long sequence) {
+        return directory.resolve(String.format("%s%012d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * queues a message for the log. never blocks: if the writer can not keep up, the message is dropped.
+     *
+     * @param nodeID  id of the node the message comes from or is addressed to
+     * @param message sensor data or actuator command
+     */
+    @Override
+    public void deliver(int nodeID, Message message) {
+        if (!running || !pending.offer(new Pending(System.currentTimeMillis(), message))) {
+            droppedMessages.incrementAndGet();
+        }
+    }
+
+    private void writeLoop() {
+        List<Pending> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        long lastCommit = System.currentTimeMillis();
+        long lastCheckpoint = lastCommit;
+        boolean uncommitted = false;
+        while (running || !pending.isEmpty()) {
+            try {
+                Pending first = pending.poll(COMMIT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    pending.drainTo(batch, MAX_BATCH_SIZE - 1);
+                    for (Pending message : batch) {
+                        write(message);
+                    }
+                    batch.clear();
+                    uncommitted = true;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (IOException e) {
+                Logger.error("Could not write telemetry: " + e.getMessage());
+            }
+            long now = System.currentTimeMillis();
+            if (uncommitted && now - lastCommit >= COMMIT_INTERVAL_MILLIS) {
+                activeSegment().force();
+                commits++;
+                lastCommit = now;
+                uncommitted = false;
+            }
+            if (now - lastCheckpoint >= CHECKPOINT_INTERVAL_MILLIS) {
+                maintain(now);
+                lastCheckpoint = now;
+            }
+        }
+        maintain(System.currentTimeMillis());
+    }
+
+    /**
+     * saves the rollups and then removes the raw segments older than the retention time
+     */
+    private void maintain(long now) {
+        try {
+            writeCheckpoint();
+        } catch (IOException e) {
+            // without a checkpoint the old segments are still needed to rebuild the rollups
+            Logger.error("Could not save rollup checkpoint: " + e.getMessage());
+            return;
+        }
+        if (retentionMillis <= 0) {
+            return;
+        }
+        long oldestKept = now - retentionMillis;
+        for (TelemetrySegment segment : segments) {
+            int count = segment.getCount();
+            if (segment == activeSegment() || count > 0 && segment.getTimestamp(count - 1) >= oldestKept) {
+                // segments are ordered by time, so all newer ones are kept as well
+                break;
+            }
+            segments.remove(segment);
+            try {
+                segment.close();
+                Files.deleteIfExists(segment.getPath());
+                Logger.info("Removed telemetry segment " + segment.getPath().getFileName() + ", older than "
+                        + retentionMillis / 3_600_000 + " hours");
+            } catch (IOException e) {
+                Logger.error("Could not remove telemetry segment " + segment.getPath() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * writes the rollups together with the position in the log they include. the checkpoint is written to a
+     * temporary file first, so a crash never leaves a broken checkpoint behind.
+     */
+    private void writeCheckpoint() throws IOException {
+        TelemetrySegment active = activeSegment();
+        active.force();
+        Path temporary = directory.resolve(CHECKPOINT_FILE + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(temporary)))) {
+            out.writeInt(CHECKPOINT_VERSION);
+            out.writeLong(active.getSequence());
+            out.writeInt(active.getCount());
+            rollups.writeTo(out);
+        }
+        Files.move(temporary, directory.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * decodes a message and appends one record per sensor reading, actuator state or command
+     */
+    private void write(Pending pending) throws IOException {
+        Message message = pending.message;
+        int nodeID = message.getNodeID();
+        try {
+            if (message.getType() == MessageType.SENSOR_DATA) {
+                SensorData data = message.decodeSensorData();
+                nodeStates.put(nodeID, data);
+                List<SensorReading> sensors = data.getSensors();
+                for (int i = 0; i < sensors.size(); ++i) {
+                    appendReading(pending.timestamp, nodeID, i, sensors.get(i));
+                }
+                for (ActuatorState actuator : data.getActuators()) {
+                    appendActuator(pending.timestamp, nodeID, actuator);
+                }
+            } else if (message.getType() == MessageType.SENSOR_DELTA) {
+                writeDelta(pending.timestamp, nodeID, message.decodeSensorDelta());
+            } else {
+                ActuatorCommand command = message.decodeActuatorCommand();
+                append(pending.timestamp, nodeID, RecordKind.COMMAND, TypeDictionary.NO_TYPE,
+                        command.getActuatorId(), command.isOn() ? 1 : 0);
+            }
+        } catch (RuntimeException e) {
+            Logger.error("Could not log malformed message of node " + nodeID + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * appends a record for every sensor and actuator in a delta. the types come from the state of the node, which is
+     * updated with the delta.
+     */
+    private void writeDelta(long timestamp, int nodeID, SensorDelta delta) throws IOException {
+        SensorData state = nodeStates.get(nodeID);
+        if (state == null) {
+            Logger.error("Could not log changes of node " + nodeID + " without its full state");
+            return;
+        }
+        state = state.apply(delta);
+        nodeStates.put(nodeID, state);
+        int[] sensorIndexes = delta.getSensorIndexes();
+        for (int sensorIndex : sensorIndexes) {
+            appendReading(timestamp, nodeID, sensorIndex, state.getSensors().get(sensorIndex));
+        }
+        for (int actuatorId : delta.getActuatorIds()) {
+            for (ActuatorState actuator : state.getActuators()) {
+                if (actuator.getId() == actuatorId) {
+                    appendActuator(timestamp, nodeID, actuator);
+                }
+            }
+        }
+    }
+
+    private void appendReading(long timestamp, int nodeID, int sensorIndex, SensorReading sensor) throws IOException {
+        short type = types.codeOf(sensor.getType(), sensor.getUnit());
+        append(timestamp, nodeID, RecordKind.SENSOR, type, sensorIndex, sensor.getValue());
+        rollups.add(nodeID, sensorIndex, type, lastTimestamp, sensor.getValue());
+    }
+
+    private void appendActuator(long timestamp, int nodeID, ActuatorState actuator) throws IOException {
+        append(timestamp, nodeID, RecordKind.ACTUATOR, types.codeOf(actuator.getType(), ""), actuator.getId(),
+                actuator.isOn() ? 1 : 0);
+    }
+
+    private void append(long timestamp, int nodeID, RecordKind kind, short type, int channel, double value)
+            throws IOException {
+        TelemetrySegment segment = activeSegment();
+        if (segment.isFull()) {
+            segment.force();
+            segment = TelemetrySegment.open(segmentPath(segment.getSequence() + 1), segment.getSequence() + 1,
+                    segmentCapacity);
+            segments.add(segment);
+        }
+        // messages of different nodes may be queued slightly out of order
+        lastTimestamp = Math.max(timestamp, lastTimestamp);
+        segment.append(lastTimestamp, nodeID, kind, type, channel, value);
+        writtenRecords++;
+    }
+
+    /**
+     * finds the recorded sensor readings of a node within a time range. only the segments overlapping the time range
+     * are looked at, and within them the sparse index of the node tells where its records in the range are.
+     *
+     * @param nodeID     id of the sensor/actuator node
+     * @param sensorType type of the wanted sensors, or null for all sensors of the node
+     * @param from       start of the time range, in milliseconds since the epoch
+     * @param to         end of the time range (inclusive)
+     * @param visitor    receives the readings in order of time
+     */
+    public void query(int nodeID, String sensorType, long from, long to, ReadingVisitor visitor) {
+        for (TelemetrySegment segment : segments) {
+            int count = segment.getCount();
+            if (count == 0 || segment.getTimestamp(0) > to || segment.getTimestamp(count - 1) < from) {
+                continue;
+            }
+            int start = segment.findStart(nodeID, from);
+            if (start < 0) {
+                continue;
+            }
+            int end = Math.min(segment.findEnd(nodeID, to), count);
+            for (int i = start; i < end; ++i) {
+                long timestamp = segment.getTimestamp(i);
+                if (timestamp > to) {
+                    return;
+                }
+                if (timestamp < from || segment.getNodeID(i) != nodeID || segment.getKind(i) != RecordKind.SENSOR) {
+                    continue;
+                }
+                short code = segment.getType(i);
+                String type = types.getType(code);
+                if (sensorType != null && !sensorType.equals(type)) {
+                    continue;
+                }
+                if (!visitor.visit(segment.getChannel(i), type, types.getUnit(code), timestamp, segment.getValue(i))) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * finds the rollups of a node within a time range. this only reads the rollups in memory, so it stays fast for
+     * long time ranges, and works for time ranges whose raw segments have already been removed.
+     *
+     * @param nodeID     id of the sensor/actuator node
+     * @param sensorType type of the wanted sensors, or null for all sensors of the node
+     * @param resolution length of the buckets, must not be raw
+     * @param from       start of the time range, in milliseconds since the epoch
+     * @param to         end of the time range (inclusive)
+     * @param visitor    receives the buckets, sensor by sensor and in order of time
+     */
+    public void queryRollups(int nodeID, String sensorType, Resolution resolution, long from, long to,
+                             RollupVisitor visitor) {
+        rollups.query(nodeID, sensorType, resolution, from, to, visitor);
+    }
+
+    private TelemetrySegment activeSegment() {
+        return segments.get(segments.size() - 1);
+    }
+
+    /**
+     * stops the writer once it has written all queued messages, and closes the segment files
+     */
+    public void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (TelemetrySegment segment : segments) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                Logger.error("Could not close telemetry segment " + segment.getPath() + ": " + e.getMessage());
+            }
+        }
+        Logger.info("Telemetry log closed: " + writtenRecords + " records written, " + commits + " commits, "
+                + droppedMessages.get() + " messages dropped");
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * getter for the number of records written since the store was opened
+     *
+     * @return number of written records
+     */
+    public long getWrittenRecords() {
+        return writtenRecords;
+    }
+
+    /**
+     * getter for the number of messages dropped because the writer could not keep up
+     *
+     * @return number of dropped messages
+     */
+    public long getDroppedMessages() {
+        return droppedMessages.get();
+    }
+
+    /**
+     * getter for the number of times the log was forced to the disk
+     *
+     * @return number of group commits
+     */
+    public long getCommits() {
+        return commits;
+    }
+}
@@ -0,0 +1,111 @@
+package no.ntnu.server.telemetry;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * maps sensor and actuator types (together with their unit) to the short codes stored in the telemetry records.
+ * the mapping is kept in a small text file next to the segments, one "code, tab, type, tab, unit" line per entry.
+ * new types are appended when they are seen for the first time, which only happens a handful of times.
+ */
+public class TypeDictionary {
+    /**
+     * code of records without a type, e.g. actuator commands
+     */
+    public static final short NO_TYPE = 0;
+
+    private final Path file;
+    private final Map<String, Short> codes = new HashMap<>();
+    // index is the code, code 0 is unused
+    private final List<String[]> entries = new ArrayList<>();
+
+    /**
+     * Constructor for a type dictionary, loading the existing entries
+     *
+     * @param file the dictionary file, created when the first type is added
+     * @throws IOException if the existing file can not be read
+     */
+    public TypeDictionary(Path file) throws IOException {
+        this.file = file;
+        entries.add(null);
+        if (Files.exists(file)) {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                String[] parts = line.split("\t", -1);
+                if (parts.length == 3 && Integer.parseInt(parts[0]) == entries.size()) {
+                    entries.add(new String[]{parts[1], parts[2]});
+                    codes.put(key(parts[1], parts[2]), (short) (entries.size() - 1));
+                }
+            }
+        }
+    }
+
+    /**
+     * finds the code of a type, adding the type if it is new
+     *
+     * @param type type of the sensor or actuator
+     * @param unit unit of the values, empty for actuators
+     * @return the code of the type
+     * @throws IOException if a new type can not be saved
+     */
+    public synchronized short codeOf(String type, String unit) throws IOException {
+        String key = key(type, unit);
+        Short code = codes.get(key);
+        if (code != null) {
+            return code;
+        }
+        if (entries.size() > Short.MAX_VALUE) {
+            throw new IOException("Too many telemetry types");
+        }
+        short newCode = (short) entries.size();
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            writer.write(newCode + "\t" + type + "\t" + unit + "\n");
+        }
+        entries.add(new String[]{type, unit});
+        codes.put(key, newCode);
+        return newCode;
+    }
+
+    /**
+     * finds the code of a type without adding it
+     *
+     * @param type type of the sensor or actuator
+     * @param unit unit of the values, empty for actuators
+     * @return the code, or {@link #NO_TYPE} if the type has never been stored
+     */
+    public synchronized short findCode(String type, String unit) {
+        return codes.getOrDefault(key(type, unit), NO_TYPE);
+    }
+
+    /**
+     * getter for the type stored under a code
+     *
+     * @param code the code
+     * @return the type, or null for an unknown code
+     */
+    public synchronized String getType(short code) {
+        return code > 0 && code < entries.size() ? entries.get(code)[0] : null;
+    }
+
+    /**
+     * getter for the unit stored under a code
+     *
+     * @param code the code
+     * @return the unit, or null for an unknown code
+     */
+    public synchronized String getUnit(short code) {
+        return code > 0 && code < entries.size() ? entries.get(code)[1] : null;
+    }
+
+    private static String key(String type, String unit) {
+        return type + "\t" + unit;
+    }
+}
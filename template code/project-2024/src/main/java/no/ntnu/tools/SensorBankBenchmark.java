@@ -0,0 +1,99 @@
+package no.ntnu.tools;
+
+import java.util.Random;
+
+import no.ntnu.greenhouse.DeviceFactory;
+import no.ntnu.greenhouse.SensorActuatorNode;
+import no.ntnu.greenhouse.SensorBank;
+
+/**
+ * Measures how fast the {@link SensorBank}s of the simulated nodes step their sensors. It creates nodes the way
+ * the simulator does, alternating the two node classes of the default topology, so every node has a bank of one
+ * or two sensors. After a warm-up, it prints how many sensor updates per second the noise and the actuator impact
+ * reach when every node steps its own bank, and, for comparison, when the same sensors are stepped as one bank.
+ *
+ * <p>Usage: {@code SensorBankBenchmark [nodes] [steps]}
+ */
+public class SensorBankBenchmark {
+  private static final int WARMUP_STEPS = 50;
+
+  /**
+   * Entrypoint of the benchmark.
+   *
+   * @param args number of nodes and number of measured steps
+   */
+  public static void main(String[] args) {
+    int nodeCount = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+    int steps = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+    DeviceFactory.setSeed(1);
+    SensorBank[] banks = new SensorBank[nodeCount];
+    SensorBank sharedBank = new SensorBank(new Random(1));
+    int sensorCount = 0;
+    for (int i = 0; i < nodeCount; ++i) {
+      SensorActuatorNode node = (i % 2 == 0)
+          ? DeviceFactory.createNode(1, 1, 1, 1, 0)
+          : DeviceFactory.createNode(1, 0, 0, 2, 1);
+      banks[i] = node.getSensorBank();
+      for (int slot = 0; slot < banks[i].size(); ++slot) {
+        sharedBank.add(banks[i].getType(slot), banks[i].getMin(slot), banks[i].getMax(slot),
+            banks[i].getValue(slot), banks[i].getUnit(slot));
+      }
+      sensorCount += banks[i].size();
+    }
+    System.out.printf("%d nodes with %d sensors%n", nodeCount, sensorCount);
+
+    for (int i = 0; i < WARMUP_STEPS; ++i) {
+      stepNodes(banks, i);
+      stepShared(sharedBank, i);
+    }
+
+    long start = System.nanoTime();
+    for (int i = 0; i < steps; ++i) {
+      for (SensorBank bank : banks) {
+        bank.addRandomNoise();
+      }
+    }
+    printRate("Noise, bank per node", (long) sensorCount * steps, System.nanoTime() - start);
+
+    start = System.nanoTime();
+    for (int i = 0; i < steps; ++i) {
+      double impact = (i % 2 == 0) ? 1.0 : -1.0;
+      for (SensorBank bank : banks) {
+        bank.applyImpact("temperature", impact);
+      }
+    }
+    printRate("Impact, bank per node", (long) sensorCount * steps, System.nanoTime() - start);
+
+    start = System.nanoTime();
+    for (int i = 0; i < steps; ++i) {
+      sharedBank.addRandomNoise();
+    }
+    printRate("Noise, one bank", (long) sensorCount * steps, System.nanoTime() - start);
+
+    int temperature = sharedBank.getTypeId("temperature");
+    start = System.nanoTime();
+    for (int i = 0; i < steps; ++i) {
+      sharedBank.applyImpact(temperature, (i % 2 == 0) ? 1.0 : -1.0);
+    }
+    printRate("Impact, one bank", (long) sensorCount * steps, System.nanoTime() - start);
+  }
+
+  private static void stepNodes(SensorBank[] banks, int step) {
+    for (SensorBank bank : banks) {
+      bank.addRandomNoise();
+      bank.applyImpact("temperature", (step % 2 == 0) ? 1.0 : -1.0);
+    }
+  }
+
+  private static void stepShared(SensorBank bank, int step) {
+    bank.addRandomNoise();
+    bank.applyImpact("temperature", (step % 2 == 0) ? 1.0 : -1.0);
+  }
+
+  private static void printRate(String name, long updates, long nanos) {
+    double seconds = nanos / 1e9;
+    System.out.printf("%s: %d sensor updates in %.2f s, %.1f million per second%n",
+        name, updates, seconds, updates / seconds / 1e6);
+  }
+}
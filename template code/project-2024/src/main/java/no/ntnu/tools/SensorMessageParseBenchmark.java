@@ -0,0 +1,196 @@
+package no.ntnu.tools;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import no.ntnu.controlpanel.SensorActuatorNodeInfo;
+import no.ntnu.greenhouse.Actuator;
+import no.ntnu.greenhouse.SensorReading;
+import no.ntnu.protocol.ActuatorState;
+import no.ntnu.protocol.SensorData;
+import no.ntnu.protocol.SensorDelta;
+import no.ntnu.protocol.SensorMessageDecoder;
+import no.ntnu.protocol.SensorMessageHandler;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Measures what it costs the control panel to parse a json sensor message. It creates the messages of a fleet of
+ * nodes twice: as full states only, which is all the nodes sent at first, and as the messages nodes send now,
+ * mostly deltas and a full state now and then. The full states are parsed the way the panel originally did, with
+ * three json objects per message, and with the {@link SensorMessageDecoder}. The current messages are parsed with
+ * org.json, picking the parser by the type of the message, and with the decoder. For every parser it prints the
+ * time and the memory allocated per message.
+ *
+ * <p>Usage: {@code SensorMessageParseBenchmark [messages] [rounds]}
+ */
+public class SensorMessageParseBenchmark {
+  private static final int WARMUP_ROUNDS = 5;
+  private static final int NODES = 500;
+  // every tenth message of a node is its full state, as with the heartbeat of the nodes
+  private static final int FULL_STATE_EVERY = 10;
+
+  // keeps the results alive, so the parsing is not optimized away
+  private static double checksum;
+
+  /**
+   * Entrypoint of the benchmark.
+   *
+   * @param args number of messages and number of measured rounds
+   */
+  public static void main(String[] args) {
+    int messageCount = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+    int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+    String[] fullStates = createMessages(messageCount, 1);
+    String[] messages = createMessages(messageCount, FULL_STATE_EVERY);
+
+    SensorMessageDecoder decoder = new SensorMessageDecoder();
+    SensorMessageHandler handler = new SensorMessageHandler() {
+      @Override
+      public void onSensorData(int nodeId, int sequence, SensorMessageDecoder message) {
+        for (int i = 0; i < message.getSensorCount(); ++i) {
+          checksum += message.getSensorValue(i);
+        }
+      }
+
+      @Override
+      public void onSensorDelta(int nodeId, int sequence, SensorMessageDecoder message) {
+        for (int i = 0; i < message.getSensorCount(); ++i) {
+          checksum += message.getSensorValue(i);
+        }
+      }
+    };
+    SensorMessageHandler copyingHandler = new SensorMessageHandler() {
+      @Override
+      public void onSensorData(int nodeId, int sequence, SensorMessageDecoder message) {
+        checksum += message.toSensorData().getSensors().size();
+      }
+
+      @Override
+      public void onSensorDelta(int nodeId, int sequence, SensorMessageDecoder message) {
+        checksum += message.toSensorDelta().getSensorValues().length;
+      }
+    };
+
+    System.out.println("Full states only:");
+    measure("Original", fullStates, rounds, SensorMessageParseBenchmark::parseLikeOriginal);
+    measure("Decoder", fullStates, rounds, message -> decoder.decode(message, handler));
+    measure("Decoder, copied", fullStates, rounds, message -> decoder.decode(message, copyingHandler));
+    System.out.println("Deltas, every " + FULL_STATE_EVERY + "th message a full state:");
+    measure("org.json", messages, rounds, SensorMessageParseBenchmark::parseWithJsonObjects);
+    measure("Decoder", messages, rounds, message -> decoder.decode(message, handler));
+    measure("Decoder, copied", messages, rounds, message -> decoder.decode(message, copyingHandler));
+    System.out.println("Checksum: " + checksum);
+  }
+
+  /**
+   * Parse a message the way the control panel originally did: one json object for the node id, a scan of the text
+   * for "sensors", and another json object each for the sensors and the actuators. The log lines it wrote for every
+   * reading and actuator are left out.
+   */
+  private static void parseLikeOriginal(String message) {
+    int nodeId = new JSONObject(message).getInt("id");
+    SensorActuatorNodeInfo info = new SensorActuatorNodeInfo(nodeId);
+    if (!message.contains("sensors")) {
+      return;
+    }
+    List<SensorReading> sensors = new ArrayList<>();
+    JSONArray sensorArray = new JSONObject(message).getJSONArray("sensors");
+    for (int i = 0; i < sensorArray.length(); i++) {
+      JSONObject sensor = sensorArray.getJSONObject(i);
+      sensors.add(new SensorReading(sensor.getString("type"), sensor.getDouble("value"),
+          sensor.getString("unit")));
+    }
+    List<Actuator> actuators = new ArrayList<>();
+    JSONArray actuatorArray = new JSONObject(message).getJSONArray("actuators");
+    for (int i = 0; i < actuatorArray.length(); i++) {
+      JSONObject actuatorObject = actuatorArray.getJSONObject(i);
+      Actuator actuator = new Actuator(actuatorObject.getString("type"), nodeId,
+          actuatorObject.getInt("id"), actuatorObject.getString("status"));
+      info.addActuator(actuator);
+      actuators.add(actuator);
+    }
+    checksum += sensors.size() + actuators.size();
+  }
+
+  /**
+   * Parse a message with org.json, the way the control panel did before the decoder.
+   */
+  private static void parseWithJsonObjects(String message) {
+    if (SensorDelta.isDeltaMessage(message)) {
+      checksum += SensorDelta.fromJson(message).getSensorValues().length;
+    } else {
+      checksum += SensorData.fromJson(message).getSensors().size();
+    }
+  }
+
+  /**
+   * Create the messages of the nodes, in turn.
+   *
+   * @param count          Number of messages
+   * @param fullStateEvery Every how many messages a node sends its full state, 1 for full states only
+   */
+  private static String[] createMessages(int count, int fullStateEvery) {
+    Random random = new Random(1);
+    String[] messages = new String[count];
+    int[] sequences = new int[NODES];
+    for (int i = 0; i < count; ++i) {
+      int node = i % NODES;
+      int sequence = ++sequences[node];
+      if ((sequence - 1) % fullStateEvery == 0) {
+        List<SensorReading> sensors = new ArrayList<>();
+        sensors.add(new SensorReading("temperature", 15 + random.nextInt(250) / 10.0, "°C"));
+        sensors.add(new SensorReading("humidity", 50 + random.nextInt(500) / 10.0, "%"));
+        List<ActuatorState> actuators = new ArrayList<>();
+        actuators.add(new ActuatorState(1, "window", random.nextBoolean()));
+        actuators.add(new ActuatorState(2, "fan", random.nextBoolean()));
+        messages[i] = new SensorData(node + 1, sequence, sensors, actuators).toJson().toString();
+      } else {
+        double temperature = 15 + random.nextInt(250) / 10.0;
+        SensorDelta delta = new SensorDelta(node + 1, sequence, new int[] {0}, new double[] {temperature},
+            new int[0], new boolean[0]);
+        messages[i] = delta.toJson().toString();
+      }
+    }
+    return messages;
+  }
+
+  private static void measure(String name, String[] messages, int rounds, MessageParser parser) {
+    for (int round = 0; round < WARMUP_ROUNDS; ++round) {
+      for (String message : messages) {
+        parser.parse(message);
+      }
+    }
+    long allocatedBefore = getAllocatedBytes();
+    long start = System.nanoTime();
+    for (int round = 0; round < rounds; ++round) {
+      for (String message : messages) {
+        parser.parse(message);
+      }
+    }
+    long nanos = System.nanoTime() - start;
+    long allocated = getAllocatedBytes() - allocatedBefore;
+    double parsed = (double) messages.length * rounds;
+    System.out.printf("%-16s %7.0f ns per message, %6.0f bytes allocated per message%n",
+        name + ":", nanos / parsed, allocated / parsed);
+  }
+
+  /**
+   * Get the bytes allocated by this thread so far, if the JVM tells.
+   */
+  private static long getAllocatedBytes() {
+    if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads) {
+      return threads.getThreadAllocatedBytes(Thread.currentThread().threadId());
+    }
+    return 0;
+  }
+
+  /**
+   * One way to parse a message.
+   */
+  private interface MessageParser {
+    void parse(String message);
+  }
+}
@@ -0,0 +1,256 @@
+package no.ntnu.tools;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A load test for a running server. It connects a number of fake sensor nodes, pairs every one of them with
+ * its own fake control panel and lets all the pairs forward messages at the same time. In the end it prints how
+ * many pairs were established and how many messages made it through, with their latency.
+ * Every client runs in a virtual thread, so thousands of pairs can be simulated from a single JVM.
+ *
+ * <p>Usage: {@code ServerLoadTest [host] [port] [pairs] [seconds] [intervalMs]}
+ */
+public class ServerLoadTest {
+  // node ids used by the test, chosen far away from the ids of a real greenhouse
+  private static final int FIRST_NODE_ID = 100000;
+  private static final int PAIRING_ATTEMPTS = 20;
+  private static final long PAIRING_RETRY_DELAY = 250;
+
+  private final String host;
+  private final int port;
+  private final int pairs;
+  private final long durationMs;
+  private final long intervalMs;
+
+  private final AtomicInteger pairedCount = new AtomicInteger();
+  private final AtomicInteger forwardingPairs = new AtomicInteger();
+  private final AtomicLong sentCount = new AtomicLong();
+  private final AtomicLong receivedCount = new AtomicLong();
+  private final AtomicLong latencySumNanos = new AtomicLong();
+  private final AtomicLong maxLatencyNanos = new AtomicLong();
+  private volatile boolean sending = true;
+
+  /**
+   * Create a load test.
+   *
+   * @param host       Address of the server
+   * @param port       TCP port of the server
+   * @param pairs      Number of sensor node / control panel pairs
+   * @param durationMs How long the pairs forward messages, in milliseconds
+   * @param intervalMs Delay between two messages of the same sensor node, in milliseconds
+   */
+  public ServerLoadTest(String host, int port, int pairs, long durationMs, long intervalMs) {
+    this.host = host;
+    this.port = port;
+    this.pairs = pairs;
+    this.durationMs = durationMs;
+    this.intervalMs = intervalMs;
+  }
+
+  /**
+   * Entrypoint of the load test.
+   *
+   * @param args host, port, number of pairs, duration in seconds and message interval in milliseconds
+   */
+  public static void main(String[] args) throws InterruptedException {
+    String host = args.length > 0 ? args[0] : "localhost";
+    int port = args.length > 1 ? Integer.parseInt(args[1]) : 1238;
+    int pairs = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+    long seconds = args.length > 3 ? Long.parseLong(args[3]) : 10;
+    long intervalMs = args.length > 4 ? Long.parseLong(args[4]) : 100;
+    ServerLoadTest test = new ServerLoadTest(host, port, pairs, seconds * 1000, intervalMs);
+    boolean success = test.run();
+    System.exit(success ? 0 : 1);
+  }
+
+  /**
+   * Run the load test and print the results.
+   *
+   * @return True when every pair got paired and forwarded at least one message
+   */
+  public boolean run() throws InterruptedException {
+    Logger.info("Connecting " + pairs + " sensor nodes and control panels to " + host + ":" + port);
+    CountDownLatch pairingDone = new CountDownLatch(pairs);
+    CountDownLatch startSending = new CountDownLatch(1);
+    List<Socket> sockets = new ArrayList<>();
+    try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (int i = 0; i < pairs; ++i) {
+        int nodeId = FIRST_NODE_ID + i;
+        clients.execute(() -> runPair(nodeId, sockets, pairingDone, startSending));
+      }
+      pairingDone.await();
+      Logger.info(pairedCount.get() + " of " + pairs + " pairs established, forwarding for "
+          + durationMs + " ms...");
+      long start = System.nanoTime();
+      startSending.countDown();
+      Thread.sleep(durationMs);
+      sending = false;
+      // give the last messages some time to arrive before the connections are closed
+      Thread.sleep(Math.max(1000, intervalMs * 2));
+      long elapsed = System.nanoTime() - start;
+      closeAll(sockets);
+      clients.shutdown();
+      clients.awaitTermination(10, TimeUnit.SECONDS);
+      printResults(elapsed);
+    }
+    return pairedCount.get() == pairs && forwardingPairs.get() == pairs;
+  }
+
+  private void runPair(int nodeId, List<Socket> sockets, CountDownLatch pairingDone,
+                       CountDownLatch startSending) {
+    Socket sensorSocket = null;
+    Socket controlSocket = null;
+    try {
+      sensorSocket = new Socket(host, port);
+      remember(sockets, sensorSocket);
+      PrintWriter sensorWriter = new PrintWriter(sensorSocket.getOutputStream(), true);
+      sensorWriter.println("SENSOR:" + nodeId);
+      controlSocket = connectControlPanel(nodeId, sockets);
+      if (controlSocket != null) {
+        pairedCount.incrementAndGet();
+      }
+    } catch (IOException e) {
+      Logger.error("Pair " + nodeId + " could not connect: " + e.getMessage());
+    } finally {
+      pairingDone.countDown();
+    }
+    if (controlSocket == null) {
+      return;
+    }
+    Socket control = controlSocket;
+    Thread reader = Thread.ofVirtual().start(() -> receiveMessages(control));
+    try {
+      startSending.await();
+      sendMessages(nodeId, sensorSocket);
+      reader.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Connects a control panel for a single node. The server handles handshakes asynchronously, so the sensor
+   * node may not be registered yet. In that case the server closes the control socket and we try again.
+   */
+  private Socket connectControlPanel(int nodeId, List<Socket> sockets) throws IOException {
+    for (int attempt = 0; attempt < PAIRING_ATTEMPTS; ++attempt) {
+      try {
+        Thread.sleep(PAIRING_RETRY_DELAY);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      }
+      Socket socket = new Socket(host, port);
+      PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+      writer.println("CONTROL:" + nodeId);
+      if (isStillOpen(socket)) {
+        remember(sockets, socket);
+        return socket;
+      }
+      socket.close();
+    }
+    Logger.error("Control panel for node " + nodeId + " could not be paired");
+    return null;
+  }
+
+  /**
+   * A rejected control panel is closed by the server right away. Wait a moment and check that this did not
+   * happen.
+   */
+  private boolean isStillOpen(Socket socket) throws IOException {
+    socket.setSoTimeout((int) PAIRING_RETRY_DELAY);
+    try {
+      return socket.getInputStream().read() != -1;
+    } catch (SocketTimeoutException e) {
+      return true;
+    } finally {
+      socket.setSoTimeout(0);
+    }
+  }
+
+  private void sendMessages(int nodeId, Socket sensorSocket) {
+    try {
+      PrintWriter writer = new PrintWriter(sensorSocket.getOutputStream(), true);
+      while (sending) {
+        writer.println("{\"id\":" + nodeId + ",\"sent\":" + System.nanoTime()
+            + ",\"sensors\":[],\"actuators\":[]}");
+        sentCount.incrementAndGet();
+        Thread.sleep(intervalMs);
+      }
+    } catch (IOException e) {
+      Logger.error("Sensor node " + nodeId + " failed to send: " + e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void receiveMessages(Socket controlSocket) {
+    boolean first = true;
+    try {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(controlSocket.getInputStream()));
+      String message;
+      while ((message = reader.readLine()) != null) {
+        long latency = System.nanoTime() - parseSentTime(message);
+        receivedCount.incrementAndGet();
+        latencySumNanos.addAndGet(latency);
+        maxLatencyNanos.accumulateAndGet(latency, Math::max);
+        if (first) {
+          forwardingPairs.incrementAndGet();
+          first = false;
+        }
+      }
+    } catch (IOException e) {
+      // the socket is closed at the end of the test
+    }
+  }
+
+  private static long parseSentTime(String message) {
+    int start = message.indexOf("\"sent\":") + 7;
+    int end = message.indexOf(',', start);
+    return Long.parseLong(message.substring(start, end));
+  }
+
+  private static void remember(List<Socket> sockets, Socket socket) {
+    synchronized (sockets) {
+      sockets.add(socket);
+    }
+  }
+
+  private static void closeAll(List<Socket> sockets) {
+    synchronized (sockets) {
+      for (Socket socket : sockets) {
+        try {
+          socket.close();
+        } catch (IOException e) {
+          Logger.error("Failed to close socket: " + e.getMessage());
+        }
+      }
+    }
+  }
+
+  private void printResults(long elapsedNanos) {
+    long received = receivedCount.get();
+    double seconds = elapsedNanos / 1e9;
+    Logger.info("Pairs established:        " + pairedCount.get() + " / " + pairs);
+    Logger.info("Pairs forwarding:         " + forwardingPairs.get() + " / " + pairs);
+    Logger.info("Messages sent / received: " + sentCount.get() + " / " + received);
+    Logger.info(String.format("Throughput:               %.0f messages/s", received / seconds));
+    if (received > 0) {
+      Logger.info(String.format("Latency avg / max:        %.2f ms / %.2f ms",
+          latencySumNanos.get() / (double) received / 1e6, maxLatencyNanos.get() / 1e6));
+    }
+  }
+}
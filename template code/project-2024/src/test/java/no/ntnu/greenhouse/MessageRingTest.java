@@ -0,0 +1,185 @@
+package no.ntnu.greenhouse;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Tests of the ring of messages a node buffers while it can't reach the server.
+ */
+public class MessageRingTest {
+  @Test
+  public void keepsMessagesInOrder() throws IOException {
+    MessageRing ring = new MessageRing(100);
+    assertFalse(ring.add(message(1, 20)));
+    assertFalse(ring.add(message(2, 20)));
+    assertEquals(2, ring.size());
+    assertArrayEquals(message(1, 20), ring.peek());
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    assertEquals(2, ring.writeTo(output, 1024));
+    assertArrayEquals(concat(message(1, 20), message(2, 20)), output.toByteArray());
+    assertTrue(ring.isEmpty());
+    assertNull(ring.peek());
+  }
+
+  @Test
+  public void wrapsAroundToTheStart() throws IOException {
+    MessageRing ring = new MessageRing(64);
+    ring.add(message(1, 20));
+    ring.add(message(2, 20));
+    ring.add(message(3, 20));
+    ring.removeOldest();
+    // does not fit at the end, so it starts at the beginning, where the first message was
+    assertFalse(ring.add(message(4, 20)));
+    assertEquals(3, ring.size());
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    ring.writeTo(output, 1024);
+    assertArrayEquals(concat(message(2, 20), message(3, 20), message(4, 20)),
+        output.toByteArray());
+  }
+
+  @Test
+  public void overwritesTheOldestMessages() throws IOException {
+    MessageRing ring = new MessageRing(64);
+    ring.add(message(1, 20));
+    ring.add(message(2, 20));
+    ring.add(message(3, 20));
+    // overlaps the first two messages
+    assertTrue(ring.add(message(4, 30)));
+    assertEquals(2, ring.size());
+    assertArrayEquals(message(3, 20), ring.peek());
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    ring.writeTo(output, 1024);
+    assertArrayEquals(concat(message(3, 20), message(4, 30)), output.toByteArray());
+  }
+
+  @Test
+  public void dropsTheTailBeforeWrappingAgain() throws IOException {
+    MessageRing ring = new MessageRing(100);
+    ring.add(message(1, 90));
+    ring.add(message(2, 10));
+    // wraps, overwrites the first message
+    assertTrue(ring.add(message(3, 30)));
+    // wraps again: the second message, at the end, is older than the third, at the start
+    assertTrue(ring.add(message(4, 75)));
+    assertEquals(1, ring.size());
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    ring.writeTo(output, 1024);
+    assertArrayEquals(message(4, 75), output.toByteArray());
+  }
+
+  @Test
+  public void keepsTheNewestMessagesOfMixedSizes() throws IOException {
+    Random random = new Random(1);
+    for (int run = 0; run < 200; ++run) {
+      MessageRing ring = new MessageRing(64 * 1024);
+      List<byte[]> added = new ArrayList<>();
+      int messages = 500 + random.nextInt(2000);
+      for (int i = 0; i < messages; ++i) {
+        byte[] message = new byte[17 + random.nextInt(234)];
+        random.nextBytes(message);
+        ring.add(message);
+        added.add(message);
+      }
+      // the ring holds the newest messages, unchanged and in order
+      int kept = ring.size();
+      ByteArrayOutputStream expected = new ByteArrayOutputStream();
+      for (byte[] message : added.subList(added.size() - kept, added.size())) {
+        expected.writeBytes(message);
+      }
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      assertEquals(kept, ring.writeTo(output, 8 * 1024));
+      assertArrayEquals("run " + run, expected.toByteArray(), output.toByteArray());
+    }
+  }
+
+  @Test
+  public void dropsMessagesLargerThanTheRing() {
+    MessageRing ring = new MessageRing(64);
+    ring.add(message(1, 20));
+    assertTrue(ring.add(message(2, 65)));
+    assertEquals(1, ring.size());
+    assertArrayEquals(message(1, 20), ring.peek());
+  }
+
+  @Test
+  public void keepsTheMessagesOfAFailedBatch() throws IOException {
+    MessageRing ring = new MessageRing(1024);
+    for (int i = 1; i <= 5; ++i) {
+      ring.add(message(i, 20));
+    }
+    // batches of two messages, the second batch fails
+    FailingOutputStream failing = new FailingOutputStream(1);
+    try {
+      ring.writeTo(failing, 40);
+      fail("Writing should have failed");
+    } catch (IOException e) {
+      // expected
+    }
+    assertArrayEquals(concat(message(1, 20), message(2, 20)), failing.written.toByteArray());
+    assertEquals(3, ring.size());
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    assertEquals(3, ring.writeTo(output, 40));
+    assertArrayEquals(concat(message(3, 20), message(4, 20), message(5, 20)),
+        output.toByteArray());
+    assertTrue(ring.isEmpty());
+  }
+
+  private static byte[] message(int value, int length) {
+    byte[] message = new byte[length];
+    Arrays.fill(message, (byte) value);
+    return message;
+  }
+
+  private static byte[] concat(byte[]... messages) {
+    ByteArrayOutputStream all = new ByteArrayOutputStream();
+    for (byte[] message : messages) {
+      all.writeBytes(message);
+    }
+    return all.toByteArray();
+  }
+
+  /**
+   * A stream which accepts a number of writes, and fails after that, like a connection that is
+   * lost.
+   */
+  private static final class FailingOutputStream extends OutputStream {
+    private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+    private int writesLeft;
+
+    private FailingOutputStream(int writes) {
+      this.writesLeft = writes;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (writesLeft == 0) {
+        throw new IOException("Connection lost");
+      }
+      writesLeft--;
+      written.write(b, off, len);
+    }
+  }
+}